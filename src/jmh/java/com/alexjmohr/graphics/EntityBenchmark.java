@@ -0,0 +1,64 @@
+package com.alexjmohr.graphics;
+
+import java.util.concurrent.TimeUnit;
+
+import com.alexjmohr.graphics.components.Component;
+import com.alexjmohr.graphics.components.Dummy;
+import com.alexjmohr.graphics.components.Transform;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures Entity.getComponent lookups for the first component, the last component and a miss.
+ * The last component follows numComponents filler components, so its lookup scans them all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EntityBenchmark {
+
+    /**
+     * A component type the entity never has
+     */
+    public static class Missing extends Component {
+    }
+
+    /**
+     * A component type added after the fillers
+     */
+    public static class Last extends Component {
+    }
+
+    @Param({ "1", "8" })
+    public int numComponents;
+
+    private Entity entity;
+
+    @Setup
+    public void setup() {
+        entity = new Entity(new Scene(new Camera(new Vector3f(), new Vector3f(0, 0, -1))));
+        for (int i = 0; i < numComponents; i++) {
+            entity.addComponent(Dummy.class);
+        }
+        entity.addComponent(Last.class);
+        entity.start();
+    }
+
+    @Benchmark
+    public Transform getFirstComponent() {
+        return entity.getComponent(Transform.class);
+    }
+
+    @Benchmark
+    public Last getLastComponent() {
+        return entity.getComponent(Last.class);
+    }
+
+    @Benchmark
+    public Missing getMissingComponent() {
+        return entity.getComponent(Missing.class);
+    }
+}
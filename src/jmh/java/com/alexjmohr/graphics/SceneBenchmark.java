@@ -0,0 +1,51 @@
+package com.alexjmohr.graphics;
+
+import java.util.concurrent.TimeUnit;
+
+import com.alexjmohr.graphics.components.Dummy;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures Scene.update over N entities, and Camera.update on its own. Input is never polled, so
+ * the camera sees no keys and no mouse movement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SceneBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    public int numEntities;
+
+    private Scene scene;
+
+    private Camera camera;
+
+    @Setup
+    public void setup() {
+        camera = new Camera(new Vector3f(0, 0, 3), new Vector3f(0, 0, -1));
+        scene = new Scene(camera);
+        for (int i = 0; i < numEntities; i++) {
+            Entity entity = new Entity(scene);
+            entity.addComponent(Dummy.class);
+            scene.addEntity(entity);
+        }
+        scene.start();
+    }
+
+    @Benchmark
+    public Scene updateScene() {
+        scene.update(1 / 60f);
+        return scene;
+    }
+
+    @Benchmark
+    public Camera updateCamera() {
+        camera.update(1 / 60f);
+        return camera;
+    }
+}
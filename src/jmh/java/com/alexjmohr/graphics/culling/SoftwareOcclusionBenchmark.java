@@ -0,0 +1,94 @@
+package com.alexjmohr.graphics.culling;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures rasterizing a room of wall occluders in SoftwareOcclusionCuller and testing boxes
+ * behind and in front of them. The results are checked by SoftwareOcclusionCullerTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SoftwareOcclusionBenchmark {
+
+    /**
+     * Walls per side of the room
+     */
+    private static final int WALLS = 16;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private SoftwareOcclusionCuller culler;
+    private OccluderMesh wall;
+    private Matrix4f[] models;
+    private Matrix4f viewProjection;
+
+    private Vector3f hiddenMin = new Vector3f(-0.5f, -0.5f, -12);
+    private Vector3f hiddenMax = new Vector3f(0.5f, 0.5f, -11);
+    private Vector3f visibleMin = new Vector3f(-0.5f, -0.5f, -3);
+    private Vector3f visibleMax = new Vector3f(0.5f, 0.5f, -2);
+
+    @Setup
+    public void setup() {
+        culler = new SoftwareOcclusionCuller(threads);
+        // A unit quad subdivided into a 4x4 grid, facing +z
+        float[] positions = new float[5 * 5 * 3];
+        for (int y = 0; y <= 4; y++) {
+            for (int x = 0; x <= 4; x++) {
+                positions[3 * (y * 5 + x)] = x / 4f - 0.5f;
+                positions[3 * (y * 5 + x) + 1] = y / 4f - 0.5f;
+            }
+        }
+        int[] indices = new int[4 * 4 * 6];
+        int i = 0;
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                int v = y * 5 + x;
+                indices[i++] = v;
+                indices[i++] = v + 1;
+                indices[i++] = v + 6;
+                indices[i++] = v;
+                indices[i++] = v + 6;
+                indices[i++] = v + 5;
+            }
+        }
+        wall = new OccluderMesh(positions, indices);
+
+        // Walls around the camera, the one ahead covering the hidden box
+        models = new Matrix4f[WALLS * 4];
+        for (int w = 0; w < WALLS; w++) {
+            float offset = (w - WALLS / 2) * 2;
+            models[4 * w] = new Matrix4f().translation(offset, 0, -10).scale(2, 4, 1);
+            models[4 * w + 1] = new Matrix4f().translation(offset, 0, 10).scale(2, 4, 1);
+            models[4 * w + 2] = new Matrix4f().translation(-10, 0, offset).rotateY((float) Math.PI / 2).scale(2, 4, 1);
+            models[4 * w + 3] = new Matrix4f().translation(10, 0, offset).rotateY((float) Math.PI / 2).scale(2, 4, 1);
+        }
+        viewProjection = new Matrix4f().setPerspective((float) Math.toRadians(70), 16 / 9f, 0.1f, 100)
+                .lookAt(0, 0, 0, 0, 0, -1, 0, 1, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        culler.delete();
+    }
+
+    @Benchmark
+    public boolean rasterizeAndTest() {
+        for (Matrix4f model : models) {
+            culler.addOccluder(wall, model);
+        }
+        culler.beginFrame(viewProjection);
+        boolean hidden = culler.isOccluded(hiddenMin, hiddenMax);
+        boolean visible = culler.isOccluded(visibleMin, visibleMax);
+        culler.endFrame();
+        return hidden != visible;
+    }
+}
@@ -0,0 +1,53 @@
+package com.alexjmohr.graphics.loaders;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIScene;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures converting and optimizing imported Assimp meshes, the CPU side of ModelLoader.processMesh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ModelLoaderBenchmark {
+
+    @Param({ "src/main/resources/models/bricks/bricks.obj" })
+    public String model;
+
+    private AIScene aiScene;
+
+    @Setup
+    public void setup() {
+        aiScene = aiImportFile(model, aiProcess_CalcTangentSpace | aiProcess_GenNormals
+                | aiProcess_OptimizeMeshes | aiProcess_SortByPType | aiProcess_Triangulate);
+        if (aiScene == null) {
+            throw new RuntimeException("Failed to load model: " + aiGetErrorString());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        aiReleaseImport(aiScene);
+    }
+
+    @Benchmark
+    public int readMeshes() {
+        int vertices = 0;
+        PointerBuffer aiMeshes = aiScene.mMeshes();
+        for (int i = 0; i < aiScene.mNumMeshes(); i++) {
+            MeshData data = ModelLoader.readMesh(AIMesh.create(aiMeshes.get(i)));
+            vertices += data.getVertexCount();
+            data.free();
+        }
+        return vertices;
+    }
+}
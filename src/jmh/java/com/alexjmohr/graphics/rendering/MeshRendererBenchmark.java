@@ -0,0 +1,34 @@
+package com.alexjmohr.graphics.rendering;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the model and normal matrix math done for every render in MeshRenderer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MeshRendererBenchmark {
+
+    private Vector3f position = new Vector3f(1, 2, 3);
+    private Quaternionf rotation = new Quaternionf().fromAxisAngleRad(0, 1, 0, 0.5f);
+    private Vector3f scale = new Vector3f(1, 2, 1);
+
+    private Matrix4f model = new Matrix4f();
+    private Matrix3f normalMatrix = new Matrix3f();
+
+    @Benchmark
+    public Matrix3f modelMatrices() {
+        MeshRenderer.calculateModelMatrices(position, rotation, scale, model, normalMatrix);
+        return normalMatrix;
+    }
+}
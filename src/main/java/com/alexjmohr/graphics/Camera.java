@@ -34,6 +34,11 @@ public class Camera {
 	 */
 	private Vector3f up;
 	
+	/**
+	 * Drives the camera instead of input when set
+	 */
+	private CameraController controller;
+	
 	/**
 	 * Creates a camera with specified position, forward direction, and up axis
 	 * @param position the eye position
@@ -60,6 +65,11 @@ public class Camera {
 	 * @param delta time since last update
 	 */
 	public void update(float delta) {
+		if (controller != null) {
+			controller.update(this, delta);
+			return;
+		}
+
 		Vector3f move = new Vector3f(0);
 
 		if (Input.getKey(GLFW_KEY_A)) {
@@ -96,6 +106,22 @@ public class Camera {
 		forward = newForward;
 	}
 	
+	/**
+	 * Set the controller that drives the camera instead of keyboard and mouse input
+	 * @param controller the controller, or null to use input
+	 */
+	public void setController(CameraController controller) {
+		this.controller = controller;
+	}
+	
+	/**
+	 * Get the controller driving the camera
+	 * @return the controller, or null if the camera is driven by input
+	 */
+	public CameraController getController() {
+		return controller;
+	}
+	
 	/**
 	 * Set the camera position
 	 * @param position the new position to set
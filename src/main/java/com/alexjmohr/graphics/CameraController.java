@@ -0,0 +1,16 @@
+package com.alexjmohr.graphics;
+
+/**
+ * Drives a camera instead of live keyboard and mouse input, e.g. to replay a scripted path
+ * @author Alex Mohr
+ *
+ */
+public interface CameraController {
+
+	/**
+	 * Move the camera for this update
+	 * @param camera the camera to move
+	 * @param delta  time since last update
+	 */
+	void update(Camera camera, float delta);
+}
@@ -0,0 +1,258 @@
+package com.alexjmohr.graphics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+/**
+ * Scripted camera path through keyframes of position and orientation. Positions are interpolated
+ * with a Catmull-Rom spline through the keyframes and orientations with spherical linear
+ * interpolation, so the camera moves smoothly and the same deltas always give the same frames.
+ *
+ * Path files have one keyframe per line: the time in seconds, the x, y and z position, and the yaw
+ * and pitch in degrees. Yaw 0 looks down -z and positive yaw turns left. Blank lines and lines
+ * starting with # are ignored, and keyframe times must increase.
+ * @author Alex Mohr
+ *
+ */
+public class CameraPath implements CameraController {
+
+	/**
+	 * The keyframe times in seconds
+	 */
+	private final float[] times;
+
+	/**
+	 * The keyframe positions
+	 */
+	private final Vector3f[] positions;
+
+	/**
+	 * The keyframe orientations
+	 */
+	private final Quaternionf[] orientations;
+
+	/**
+	 * Whether to start over after the last keyframe
+	 */
+	private boolean looping;
+
+	/**
+	 * The time along the path
+	 */
+	private float time;
+
+	/**
+	 * Creates a path through the keyframes
+	 * @param times        the keyframe times in seconds, increasing
+	 * @param positions    the keyframe positions
+	 * @param orientations the keyframe orientations
+	 */
+	public CameraPath(float[] times, Vector3f[] positions, Quaternionf[] orientations) {
+		if (times.length == 0 || positions.length != times.length || orientations.length != times.length) {
+			throw new IllegalArgumentException("A camera path needs the same number of times, positions and orientations");
+		}
+		for (int i = 1; i < times.length; i++) {
+			if (times[i] <= times[i - 1]) {
+				throw new IllegalArgumentException("Camera path keyframe times must increase");
+			}
+		}
+		this.times = times;
+		this.positions = positions;
+		this.orientations = orientations;
+	}
+
+	/**
+	 * Loads a path from a classpath resource
+	 * @param  resource the resource path, e.g. /paths/bricks.path
+	 * @return the path
+	 * @throws IOException if the resource can't be read
+	 */
+	public static CameraPath loadResource(String resource) throws IOException {
+		InputStream in = CameraPath.class.getResourceAsStream(resource);
+		if (in == null) {
+			throw new IOException("Camera path resource not found: " + resource);
+		}
+		try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+			return load(reader, resource);
+		}
+	}
+
+	/**
+	 * Loads a path from a file
+	 * @param  file the file path
+	 * @return the path
+	 * @throws IOException if the file can't be read
+	 */
+	public static CameraPath loadFile(Path file) throws IOException {
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			return load(reader, file.toString());
+		}
+	}
+
+	/**
+	 * Parses a path
+	 * @param  reader the path text
+	 * @param  name   the name of the file for error messages
+	 * @return the path
+	 * @throws IOException if reading fails or the path is malformed
+	 */
+	private static CameraPath load(Reader reader, String name) throws IOException {
+		List<float[]> keyframes = new ArrayList<>();
+		BufferedReader lines = new BufferedReader(reader);
+		String line;
+		int lineNumber = 0;
+		while ((line = lines.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			if (fields.length != 6) {
+				throw new IOException(name + ":" + lineNumber + ": expected time x y z yaw pitch");
+			}
+			float[] keyframe = new float[6];
+			try {
+				for (int i = 0; i < 6; i++) {
+					keyframe[i] = Float.parseFloat(fields[i]);
+				}
+			} catch (NumberFormatException ex) {
+				throw new IOException(name + ":" + lineNumber + ": " + ex.getMessage());
+			}
+			keyframes.add(keyframe);
+		}
+		if (keyframes.isEmpty()) {
+			throw new IOException(name + ": no keyframes");
+		}
+
+		int count = keyframes.size();
+		float[] times = new float[count];
+		Vector3f[] positions = new Vector3f[count];
+		Quaternionf[] orientations = new Quaternionf[count];
+		for (int i = 0; i < count; i++) {
+			float[] keyframe = keyframes.get(i);
+			times[i] = keyframe[0];
+			positions[i] = new Vector3f(keyframe[1], keyframe[2], keyframe[3]);
+			orientations[i] = new Quaternionf().rotationYXZ((float) Math.toRadians(keyframe[4]), (float) Math.toRadians(keyframe[5]), 0);
+		}
+		try {
+			return new CameraPath(times, positions, orientations);
+		} catch (IllegalArgumentException ex) {
+			throw new IOException(name + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Advance along the path and place the camera
+	 * @param camera the camera to move
+	 * @param delta  time since last update
+	 */
+	@Override
+	public void update(Camera camera, float delta) {
+		time += delta;
+		if (looping && getDuration() > 0) {
+			time %= getDuration();
+		}
+		Vector3f position = new Vector3f();
+		Quaternionf orientation = new Quaternionf();
+		sample(time, position, orientation);
+		camera.setPosition(position);
+		camera.setForward(orientation.transform(new Vector3f(0, 0, -1)));
+	}
+
+	/**
+	 * Sample the path at a time. Times outside the path are clamped to the first or last keyframe.
+	 * @param t           the time in seconds
+	 * @param position    receives the position
+	 * @param orientation receives the orientation
+	 */
+	public void sample(float t, Vector3f position, Quaternionf orientation) {
+		int last = times.length - 1;
+		if (t <= times[0] || last == 0) {
+			position.set(positions[0]);
+			orientation.set(orientations[0]);
+			return;
+		}
+		if (t >= times[last]) {
+			position.set(positions[last]);
+			orientation.set(orientations[last]);
+			return;
+		}
+
+		// Find the segment i to i + 1 containing t
+		int i = 0;
+		while (t >= times[i + 1]) {
+			i++;
+		}
+		float u = (t - times[i]) / (times[i + 1] - times[i]);
+
+		// The end keyframes are repeated as the outer control points
+		Vector3f p0 = positions[Math.max(i - 1, 0)];
+		Vector3f p1 = positions[i];
+		Vector3f p2 = positions[i + 1];
+		Vector3f p3 = positions[Math.min(i + 2, last)];
+		float u2 = u * u;
+		float u3 = u2 * u;
+		float b0 = -0.5f * u3 + u2 - 0.5f * u;
+		float b1 = 1.5f * u3 - 2.5f * u2 + 1;
+		float b2 = -1.5f * u3 + 2 * u2 + 0.5f * u;
+		float b3 = 0.5f * u3 - 0.5f * u2;
+		position.set(
+				b0 * p0.x + b1 * p1.x + b2 * p2.x + b3 * p3.x,
+				b0 * p0.y + b1 * p1.y + b2 * p2.y + b3 * p3.y,
+				b0 * p0.z + b1 * p1.z + b2 * p2.z + b3 * p3.z);
+
+		orientations[i].slerp(orientations[i + 1], u, orientation);
+	}
+
+	/**
+	 * Get the length of the path
+	 * @return the time of the last keyframe in seconds
+	 */
+	public float getDuration() {
+		return times[times.length - 1];
+	}
+
+	/**
+	 * Get the time along the path
+	 * @return the time in seconds
+	 */
+	public float getTime() {
+		return time;
+	}
+
+	/**
+	 * Set the time along the path
+	 * @param time the time in seconds
+	 */
+	public void setTime(float time) {
+		this.time = time;
+	}
+
+	/**
+	 * Returns true once the end of a non-looping path has been reached
+	 * @return true if finished
+	 */
+	public boolean isFinished() {
+		return !looping && time >= getDuration();
+	}
+
+	/**
+	 * Set whether to start over after the last keyframe
+	 * @param looping whether to loop
+	 */
+	public void setLooping(boolean looping) {
+		this.looping = looping;
+	}
+}
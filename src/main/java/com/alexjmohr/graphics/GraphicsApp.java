@@ -2,15 +2,56 @@ package com.alexjmohr.graphics;
 
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL20.*;
-
+import static org.lwjgl.opengl.GL14.GL_DEPTH_COMPONENT24;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+
+import com.alexjmohr.graphics.culling.CullingStage;
+import com.alexjmohr.graphics.culling.HiZOcclusionCuller;
+import com.alexjmohr.graphics.culling.SoftwareOcclusionCuller;
+import com.alexjmohr.graphics.loaders.AssetArchive;
+import com.alexjmohr.graphics.loaders.AssetWatcher;
 import com.alexjmohr.graphics.loaders.ModelLoader;
+import com.alexjmohr.graphics.loaders.ResourceLease;
+import com.alexjmohr.graphics.loaders.ResourceLoader;
+import com.alexjmohr.graphics.metrics.GcMetrics;
+import com.alexjmohr.graphics.metrics.Histogram;
+import com.alexjmohr.graphics.metrics.JmxExporter;
+import com.alexjmohr.graphics.metrics.MetricsRegistry;
+import com.alexjmohr.graphics.metrics.PrometheusExporter;
+import com.alexjmohr.graphics.profiling.FrameStats;
+import com.alexjmohr.graphics.profiling.Profiler;
+import com.alexjmohr.graphics.rendergraph.RenderGraph;
+import com.alexjmohr.graphics.rendergraph.RenderTarget;
+import com.alexjmohr.graphics.rendering.DynamicResolution;
+import com.alexjmohr.graphics.rendering.GpuMemoryTracker;
+import com.alexjmohr.graphics.rendering.IndirectDrawBuffer;
+import com.alexjmohr.graphics.rendering.Mesh;
 import com.alexjmohr.graphics.rendering.MeshRenderer;
-import com.alexjmohr.graphics.rendering.Shader;
-import com.alexjmohr.graphics.rendering.ShaderProgram;
+import com.alexjmohr.graphics.rendering.ProgramBinaryCache;
+import com.alexjmohr.graphics.rendering.ResourceTracker;
+import com.alexjmohr.graphics.rendering.ShaderLibrary;
+import com.alexjmohr.graphics.rendering.StaticBatch;
+import com.alexjmohr.graphics.rendering.StreamBuffer;
+import com.alexjmohr.graphics.rendering.Texture;
+import com.alexjmohr.graphics.rendering.TextureArray;
+import com.alexjmohr.graphics.rendering.TextureCache;
+import com.alexjmohr.graphics.rendering.TextureStreamer;
+import com.alexjmohr.graphics.rendering.Upscaler;
+import com.alexjmohr.graphics.world.WorldManifest;
+import com.alexjmohr.graphics.world.WorldPartition;
+import org.joml.Matrix4f;
 import org.joml.Quaternionf;
 import org.joml.Vector3f;
 import org.lwjgl.glfw.GLFWErrorCallback;
+import org.lwjgl.system.Configuration;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Logger;
 
 /**
  * Singleton class for running the app
@@ -21,6 +62,54 @@ public class GraphicsApp {
     private static final int WINDOW_HEIGHT = 720;
     private static final String WINDOW_TITLE = "Alex J Mohr Graphics";
     private static final boolean VSYNC_ENABLED = true;
+    /**
+     * Select the indirect batch's texture arrays per draw with bindless handles when
+     * ARB_bindless_texture is available, so draws with different texture sizes share a bucket
+     */
+    private static final boolean BINDLESS_TEXTURES_ENABLED = true;
+    /**
+     * Directory of the on-disk shader program binary cache
+     */
+    private static final Path SHADER_CACHE_DIR = Paths.get(System.getProperty("user.home"), ".alexjmohr-graphics", "shader-cache");
+    /**
+     * System property naming a file to write a Chrome trace of the profiler zones to on exit
+     */
+    private static final String TRACE_PROPERTY = "graphics.trace";
+    /**
+     * System property that records the allocation stack of every GL resource and native buffer,
+     * so the ones that were never released are reported with their stacks on exit
+     */
+    private static final String DEBUG_RESOURCES_PROPERTY = "graphics.debugResources";
+    /**
+     * Fixed update delta in headless and camera path runs, so runs are repeatable
+     */
+    private static final float FIXED_DELTA = 1.0f / 60.0f;
+    /**
+     * Number of owners listed in the GPU memory report after loading
+     */
+    private static final int GPU_MEMORY_REPORT_OWNERS = 10;
+    /**
+     * Register the runtime metrics as an MBean, see JmxExporter
+     */
+    private static final boolean METRICS_JMX_ENABLED = true;
+    /**
+     * What loaded meshes keep in CPU memory after upload, unless --occlusion software needs their
+     * positions. Nothing else reads mesh data on the CPU yet.
+     */
+    private static final Mesh.Residency MESH_RESIDENCY = Mesh.Residency.GPU_ONLY;
+    /**
+     * The resources directory of the source tree, watched for changed assets with --watch
+     */
+    private static final Path ASSET_ROOT = Paths.get("src", "main", "resources");
+    /**
+     * Most bytes of textures and meshes a streamed world uploads per frame
+     */
+    private static final long WORLD_UPLOAD_BUDGET_BYTES = 8L * 1024 * 1024;
+    /**
+     * Bytes of draw transforms streamed per frame, room for 16384 draws at the largest uniform
+     * buffer offset alignment
+     */
+    private static final long TRANSFORM_STREAM_BYTES = 4L * 1024 * 1024;
 
     /**
      * The singleton instance
@@ -42,6 +131,26 @@ public class GraphicsApp {
      */
     private Timer timer;
 
+    /**
+     * The frame profiler
+     */
+    private Profiler profiler;
+
+    /**
+     * The command line options
+     */
+    private LaunchOptions options;
+
+    /**
+     * The frame times of the run, recorded when there is a frame limit
+     */
+    private FrameStats frameStats;
+
+    /**
+     * The scripted camera path, null if the camera is not on a path
+     */
+    private CameraPath cameraPath;
+
     /**
      * The main camera
      */
@@ -52,11 +161,58 @@ public class GraphicsApp {
      */
     private MeshRenderer meshRenderer;
 
+    /**
+     * The ring buffer the mesh renderer streams draw transforms into
+     */
+    private StreamBuffer transformBuffer;
+
     /**
      * The model loader
      */
     private ModelLoader modelLoader;
 
+    /**
+     * The loaded model's meshes packed into shared buffers, null when streaming a world
+     */
+    private StaticBatch staticBatch;
+
+    /**
+     * The streamed world, null unless --world is given
+     */
+    private WorldPartition world;
+
+    /**
+     * Streams texture mips by what the draws need, null if --texture-budget-mb is 0
+     */
+    private TextureStreamer textureStreamer;
+
+    /**
+     * Culls the draws by frustum and occlusion
+     */
+    private CullingStage culling;
+
+    /**
+     * Tests draws against the previous frame's depth, null unless --occlusion is hiz
+     */
+    private HiZOcclusionCuller hizCuller;
+
+    /**
+     * Tests draws against occluders rasterized on the CPU, null unless --occlusion is software
+     */
+    private SoftwareOcclusionCuller softwareCuller;
+
+    /**
+     * The passes of a frame
+     */
+    private RenderGraph renderGraph;
+
+    /**
+     * Scales the scene's resolution to the GPU frame time target and upscales it to the window,
+     * null unless --target-frame-ms is given
+     */
+    private DynamicResolution dynamicResolution;
+    private Upscaler upscaler;
+
     /**
      * The current scene being rendered and updated
      */
@@ -73,12 +229,39 @@ public class GraphicsApp {
     float rotateSpeed = 0.5f;
 
     /**
-     * Shader programs used by the mesh renderer
+     * Shader variants used by the mesh renderer
+     */
+    ShaderLibrary shaders;
+
+    /**
+     * The on-disk program binary cache
+     */
+    private ProgramBinaryCache binaryCache;
+
+    /**
+     * The mounted asset archive, null unless --archive is given
+     */
+    private AssetArchive archive;
+
+    /**
+     * Reloads changed assets, null unless --watch is given
+     */
+    private AssetWatcher assetWatcher;
+
+    /**
+     * The frame time metric
+     */
+    private Histogram frameTime;
+
+    /**
+     * The metrics exporters, null if disabled
      */
-    ShaderProgram program;
+    private JmxExporter jmxExporter;
+    private PrometheusExporter prometheusExporter;
 
     private GraphicsApp() {
         timer = new Timer();
+        profiler = new Profiler();
         window = new Window(WINDOW_TITLE, WINDOW_WIDTH, WINDOW_HEIGHT, VSYNC_ENABLED);
     }
 
@@ -102,31 +285,32 @@ public class GraphicsApp {
         return window;
     }
 
-    public void run() {
-        init();
-        loop();
-        destroy();
+    /**
+     * Get the height the scene is rendered at, which is below the window's with --target-frame-ms
+     * @return the scene pass's viewport height in pixels
+     */
+    public int getRenderHeight() {
+        return dynamicResolution != null ? dynamicResolution.getRenderHeight() : window.getHeight();
     }
 
     /**
-     * Load a shader program from the given vertex and fragment shaders
-     *
-     * @param vertPath the resource path to the vertex shader
-     * @param fragPath the resource path to the fragment shader
-     * @return the created shader program
+     * Get the frame profiler
+     * @return the profiler
      */
-    private ShaderProgram loadShaderProgram(String vertPath, String fragPath) {
-        ShaderProgram program = new ShaderProgram();
-        Shader vertexShader = Shader.loadShader(GL_VERTEX_SHADER, vertPath);
-        Shader fragmentShader = Shader.loadShader(GL_FRAGMENT_SHADER, fragPath);
-        program.attachShader(vertexShader);
-        program.attachShader(fragmentShader);
-        program.link();
-        // Can delete the vertex and fragment shaders, since they are linked to the program now.
-        vertexShader.delete();
-        fragmentShader.delete();
+    public Profiler getProfiler() {
+        return profiler;
+    }
 
-        return program;
+    public void run(LaunchOptions options) {
+        this.options = options;
+        window.setHeadless(options.isHeadless(), options.getContextApi());
+        if (options.isIndirect()) {
+            // Falls back to the default context if 4.3 isn't available
+            window.requestContextVersion(4, 3);
+        }
+        init();
+        loop();
+        destroy();
     }
 
     private void init() {
@@ -142,31 +326,301 @@ public class GraphicsApp {
         // initialize the window and timer
         window.init();
         timer.init();
+        if (!profiler.enableGpu(window.getCapabilities()) && options.getTargetFrameMs() > 0) {
+            Logger.getLogger(GraphicsApp.class.getName()).warning("GPU timer queries aren't supported, the resolution won't be scaled");
+        }
+        GpuMemoryTracker.getInstance().setBudget(options.getGpuBudgetMB() * 1024L * 1024L);
+        if (System.getProperty(TRACE_PROPERTY) != null) {
+            profiler.startTrace();
+        }
 
-        // Load shader program
-        program = loadShaderProgram("/shaders/default.vert", "/shaders/default.frag");
+        if (options.getArchiveFile() != null) {
+            try {
+                archive = AssetArchive.open(Paths.get(options.getArchiveFile()));
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to open asset archive " + options.getArchiveFile(), ex);
+            }
+            ResourceLoader.mount(archive);
+            System.out.println("Mounted " + archive.getFile() + " with " + archive.getEntries().size() + " entries");
+        }
+
+        if (options.getTextureBudgetMB() > 0) {
+            textureStreamer = new TextureStreamer(options.getTextureBudgetMB() * 1024L * 1024L, window.getCapabilities());
+            TextureCache.getInstance().setStreamer(textureStreamer);
+            System.out.println("Streaming texture mips within " + options.getTextureBudgetMB() + " MB using "
+                    + (textureStreamer.isSparse() ? "sparse textures" : "reallocated textures"));
+        }
+
+        // Load the shaders. Variants are built on demand, from the program binary cache if possible.
+        binaryCache = new ProgramBinaryCache(SHADER_CACHE_DIR, window.getCapabilities());
+        shaders = new ShaderLibrary("/shaders/default.vert", "/shaders/default.frag", binaryCache);
 
         // Create the camera
         camera = new Camera(new Vector3f(0, 0, 3), new Vector3f(0, 0, -1).normalize());
 
-        // Create the mesh renderer with the shader program
-        meshRenderer = new MeshRenderer(program);
+        // Create the mesh renderer with the shader variants
+        transformBuffer = new StreamBuffer(GL_UNIFORM_BUFFER, TRANSFORM_STREAM_BYTES, StreamBuffer.DEFAULT_FRAMES_IN_FLIGHT, window.getCapabilities());
+        transformBuffer.setOwner("MeshRenderer");
+        meshRenderer = new MeshRenderer(shaders, transformBuffer);
+        culling = new CullingStage();
+        if (LaunchOptions.OCCLUSION_HIZ.equals(options.getOcclusion())) {
+            hizCuller = new HiZOcclusionCuller();
+            culling.setOcclusionCuller(hizCuller);
+        } else if (LaunchOptions.OCCLUSION_SOFTWARE.equals(options.getOcclusion())) {
+            softwareCuller = new SoftwareOcclusionCuller();
+            culling.setOcclusionCuller(softwareCuller);
+        }
+        meshRenderer.setCulling(culling);
 
-        // Load model
+        // The software rasterizer reads the occluders' positions on the CPU
+        Mesh.Residency residency = softwareCuller != null ? Mesh.Residency.CPU_RETAINED : MESH_RESIDENCY;
         modelLoader = new ModelLoader();
-        try {
-            modelLoader.loadModel("src/main/resources/models/bricks/bricks.obj", "/models/bricks");
-        } catch (Exception ex) {
-            ex.printStackTrace();
+        modelLoader.setResidency(residency);
+        if (options.getWorldFile() != null) {
+            // Stream the world's cells in as the camera moves instead of loading a model
+            WorldManifest manifest = loadWorldManifest(options.getWorldFile());
+            world = new WorldPartition(manifest, WORLD_UPLOAD_BUDGET_BYTES, this::resolveModelPath);
+            world.setMeshResidency(residency);
+            System.out.println("Streaming " + options.getWorldFile() + ": " + manifest.getInstances().size()
+                    + " models in " + world.getCellCount() + " cells");
+        } else {
+            // Load model
+            try {
+                modelLoader.loadModel(getModelPath(), getModelTexturesDir());
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+
+            // Pack the static model geometry into shared buffers
+            staticBatch = buildStaticBatch();
         }
 
+        if (options.isWatchAssets()) {
+            startAssetWatcher();
+        }
+
+        // Replay a scripted path instead of input in headless runs
+        if (options.getCameraPath() != null) {
+            cameraPath = loadCameraPath(options.getCameraPath());
+            camera.setController(cameraPath);
+        } else if (window.isHeadless()) {
+            camera.setController(new OrbitCameraController(new Vector3f(0, 0, 0), 3, 1, 0.5f));
+        }
+
+        renderGraph = buildRenderGraph();
+        GpuMemoryTracker.getInstance().printReport(GPU_MEMORY_REPORT_OWNERS);
+
         // Initialize the scene
         currentScene = new Scene(camera);
 
         // Initialize the scene and all entitities and their components
         currentScene.start();
 
+        registerMetrics();
+
         Input.init(window);
+        try {
+            if (options.getReplayInputFile() != null) {
+                Input.startReplay(new InputReplay(Paths.get(options.getReplayInputFile())));
+            }
+            if (options.getRecordInputFile() != null) {
+                Input.startRecording(new InputRecorder(Paths.get(options.getRecordInputFile())));
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to open input log", ex);
+        }
+    }
+
+    /**
+     * Get the OBJ file of the model to load
+     * @return the file path
+     */
+    private Path getModelFile() {
+        String model = options.getModel();
+        return ASSET_ROOT.resolve(Paths.get("models", model, model + ".obj"));
+    }
+
+    /**
+     * Get the path to load the model from: its path in the asset archive if one is mounted and
+     * has it, otherwise its file
+     * @return the archive or file path
+     */
+    private String getModelPath() {
+        String model = options.getModel();
+        return resolveModelPath("/models/" + model + "/" + model + ".obj");
+    }
+
+    /**
+     * Get the path to import a model from: the resource path if the mounted asset archive has it,
+     * otherwise its file in the source tree
+     * @param resourcePath the resource path of the model file
+     * @return the archive or file path
+     */
+    private String resolveModelPath(String resourcePath) {
+        if (archive != null && archive.contains(resourcePath)) {
+            return resourcePath;
+        }
+        return ASSET_ROOT.resolve(resourcePath.substring(1)).toString();
+    }
+
+    /**
+     * Get the resource directory of the model's textures
+     * @return the resource path
+     */
+    private String getModelTexturesDir() {
+        return "/models/" + options.getModel();
+    }
+
+    /**
+     * Pack the loaded meshes into shared buffers and build the shader variants they need
+     * @return the static batch
+     */
+    private StaticBatch buildStaticBatch() {
+        StaticBatch batch = new StaticBatch(modelLoader.getMeshes());
+        if (options.isIndirect()) {
+            if (IndirectDrawBuffer.isSupported(window.getCapabilities())) {
+                boolean bindless = BINDLESS_TEXTURES_ENABLED && TextureArray.isBindlessSupported(window.getCapabilities());
+                batch.buildIndirectCommands(window.getCapabilities(), bindless);
+            } else {
+                Logger.getLogger(GraphicsApp.class.getName()).warning("Indirect drawing isn't supported, drawing the batch per material");
+            }
+        }
+        meshRenderer.prepare(batch);
+        return batch;
+    }
+
+    /**
+     * Watch the shaders, textures and model in the source tree and reload them when they change
+     */
+    private void startAssetWatcher() {
+        try {
+            assetWatcher = new AssetWatcher(ASSET_ROOT);
+        } catch (IOException ex) {
+            Logger.getLogger(GraphicsApp.class.getName()).warning("Failed to watch " + ASSET_ROOT + ": " + ex.getMessage());
+            return;
+        }
+
+        // Read the shaders from the source tree rather than the classpath, so edits apply without
+        // rebuilding the resources. Either file changing rebuilds the programs.
+        Path vertexFile = ASSET_ROOT.resolve(shaders.getVertexPath().substring(1));
+        Path fragmentFile = ASSET_ROOT.resolve(shaders.getFragmentPath().substring(1));
+        AssetWatcher.Reloader shaderReloader = file -> {
+            String vertex = new String(Files.readAllBytes(vertexFile), StandardCharsets.UTF_8);
+            String fragment = new String(Files.readAllBytes(fragmentFile), StandardCharsets.UTF_8);
+            return () -> shaders.reload(vertex, fragment);
+        };
+        assetWatcher.watch(vertexFile, shaderReloader);
+        assetWatcher.watch(fragmentFile, shaderReloader);
+
+        watchTextures();
+
+        // Re-import the model from its file off the GL thread, then rebuild the batch from the new meshes. The
+        // material library changing reloads the model too. Streamed worlds are not reloaded.
+        if (staticBatch != null) {
+            AssetWatcher.Reloader modelReloader = file -> {
+                ModelLoader.ImportedModel model = ModelLoader.importModel(getModelFile().toString());
+                return AssetWatcher.Swap.of(() -> reloadModel(model), model::free);
+            };
+            Path modelFile = getModelFile();
+            assetWatcher.watch(modelFile, modelReloader);
+            String modelName = modelFile.getFileName().toString();
+            assetWatcher.watch(modelFile.resolveSibling(modelName.substring(0, modelName.length() - 4) + ".mtl"), modelReloader);
+        }
+
+        assetWatcher.start();
+        System.out.println("Watching " + assetWatcher.getRoot() + " for changed assets");
+    }
+
+    /**
+     * Watch the files of every loaded texture. The texture objects are updated in place, so
+     * materials and batches keep using them.
+     */
+    private void watchTextures() {
+        TextureCache.getInstance().getTextures().forEach((path, texture) ->
+            assetWatcher.watch(ASSET_ROOT.resolve(path.substring(1)), file -> {
+                Texture.Image image;
+                try (ResourceLease lease = ResourceLoader.openFile(file)) {
+                    image = Texture.decode(lease.getData(), path);
+                }
+                return AssetWatcher.Swap.of(() -> texture.replace(image), image::free);
+            }));
+    }
+
+    /**
+     * Replace the model's meshes with a re-imported model and rebuild the static batch. Runs on
+     * the GL thread.
+     * @param model the re-imported model
+     */
+    private void reloadModel(ModelLoader.ImportedModel model) {
+        try {
+            modelLoader.reload(model, getModelTexturesDir());
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to reload " + model.getPath(), ex);
+        }
+        StaticBatch previous = staticBatch;
+        staticBatch = buildStaticBatch();
+        previous.delete();
+        // The materials may reference new textures
+        watchTextures();
+    }
+
+    /**
+     * Register the runtime metrics and start the exporters
+     */
+    private void registerMetrics() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        frameTime = metrics.histogram("frame_time_seconds", "Time of a whole frame", MetricsRegistry.DURATION_BUCKETS);
+        metrics.gauge("frames_per_second", "Frames rendered in the last second", () -> timer.getFPS());
+        metrics.gauge("updates_per_second", "Updates in the last second", () -> timer.getUPS());
+        metrics.counter("draw_calls_total", "Draw calls issued, a multi-draw counts as one", () -> meshRenderer.getDrawCalls());
+        metrics.counter("triangles_submitted_total", "Triangles submitted in draw calls", () -> meshRenderer.getTrianglesSubmitted());
+        metrics.gauge("stream_stall_seconds", "Time the last frame waited for the GPU to release streamed data", () -> transformBuffer.getLastStallTime() / 1e9);
+        metrics.gauge("stream_bytes", "Bytes of draw data streamed in the last frame", () -> transformBuffer.getLastBytesStreamed());
+        GpuMemoryTracker gpuMemory = GpuMemoryTracker.getInstance();
+        metrics.gauge("gpu_bytes_resident", "GPU memory of all tracked allocations", () -> gpuMemory.getTotal());
+        metrics.gauge("texture_bytes_resident", "Estimated GPU memory of textures", () -> gpuMemory.getTotal(GpuMemoryTracker.Category.TEXTURE));
+        metrics.gauge("mesh_bytes_resident", "GPU memory of vertex and index buffers",
+                () -> gpuMemory.getTotal(GpuMemoryTracker.Category.VERTEX_BUFFER) + gpuMemory.getTotal(GpuMemoryTracker.Category.INDEX_BUFFER));
+        metrics.gauge("mesh_cpu_bytes_retained", "CPU memory of mesh data kept after upload", () -> modelLoader.getCpuSizeBytes());
+        metrics.counter("texture_cache_hits_total", "Texture lookups that found the texture loaded", () -> TextureCache.getInstance().getHits());
+        metrics.counter("texture_cache_misses_total", "Texture lookups that loaded the texture", () -> TextureCache.getInstance().getMisses());
+        metrics.counter("program_cache_hits_total", "Shader programs loaded from the binary cache", () -> binaryCache.getHits());
+        metrics.counter("program_cache_misses_total", "Shader programs compiled from source", () -> binaryCache.getMisses());
+        if (world != null) {
+            world.registerMetrics(metrics);
+        }
+        if (textureStreamer != null) {
+            textureStreamer.registerMetrics(metrics);
+        }
+        culling.registerMetrics(metrics);
+        renderGraph.registerMetrics(metrics);
+        if (dynamicResolution != null) {
+            dynamicResolution.registerMetrics(metrics);
+        }
+        if (softwareCuller != null) {
+            softwareCuller.registerMetrics(metrics);
+        }
+        GcMetrics.register(metrics);
+
+        if (METRICS_JMX_ENABLED) {
+            jmxExporter = new JmxExporter(metrics);
+            try {
+                jmxExporter.register();
+            } catch (JMException ex) {
+                Logger.getLogger(GraphicsApp.class.getName()).warning("Failed to register metrics MBean: " + ex.getMessage());
+                jmxExporter = null;
+            }
+        }
+        if (options.getMetricsPort() >= 0) {
+            prometheusExporter = new PrometheusExporter(metrics);
+            try {
+                prometheusExporter.start(options.getMetricsPort());
+                System.out.println("Serving metrics at http://localhost:" + prometheusExporter.getPort() + "/metrics");
+            } catch (IOException ex) {
+                Logger.getLogger(GraphicsApp.class.getName()).warning("Failed to start metrics endpoint: " + ex.getMessage());
+                prometheusExporter = null;
+            }
+        }
     }
 
     /**
@@ -174,63 +628,312 @@ public class GraphicsApp {
      * @param delta Time since last update
      */
     private void update(float delta) {
-        angle += rotateSpeed * delta;
-
-        Input.update();
-        if (Input.getKey(GLFW_KEY_ESCAPE)) {
+        // Replays substitute the recorded delta
+        delta = Input.update(delta);
+        if (Input.getKey(GLFW_KEY_ESCAPE) || Input.isReplayFinished()) {
             window.setShouldClose(true);
         }
 
+        angle += rotateSpeed * delta;
+
         currentScene.update(delta);
     }
 
     /**
-     * Render the scene objects
+     * Declare the passes of a frame. The scene is drawn into the window's framebuffer, or with
+     * --target-frame-ms into transient targets at a dynamic resolution that is then upscaled to
+     * it.
+     * @return the compiled graph
+     */
+    private RenderGraph buildRenderGraph() {
+        RenderGraph graph = new RenderGraph();
+        int width = window.getWidth();
+        int height = window.getHeight();
+        RenderTarget backbuffer = graph.importFramebuffer("backbuffer", window.getFramebuffer(), width, height);
+        if (options.getTargetFrameMs() > 0) {
+            // Render into the corner of window sized targets, then stretch it over the window
+            dynamicResolution = new DynamicResolution(options.getTargetFrameMs(), width, height);
+            upscaler = new Upscaler();
+            RenderTarget sceneColor = graph.createTarget("sceneColor", width, height, GL_RGBA8);
+            RenderTarget sceneDepth = graph.createTarget("sceneDepth", width, height, GL_DEPTH_COMPONENT24);
+            graph.addPass("scene", g -> renderScene())
+                    .write(sceneColor)
+                    .write(sceneDepth)
+                    .clear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT)
+                    .viewport(dynamicResolution::getRenderWidth, dynamicResolution::getRenderHeight);
+            graph.addPass("upscale", g -> upscaler.draw(g.getTexture(sceneColor), width, height,
+                    dynamicResolution.getRenderWidth(), dynamicResolution.getRenderHeight(), width, height))
+                    .read(sceneColor)
+                    .write(backbuffer);
+        } else {
+            graph.addPass("scene", g -> renderScene())
+                    .write(backbuffer)
+                    .clear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+        }
+        graph.compile();
+        System.out.println(graph.getSummary());
+        return graph;
+    }
+
+    /**
+     * Render a frame by running the render graph
      */
     private void render() {
-        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+        renderGraph.execute();
+    }
 
+    /**
+     * Render the scene objects into the bound framebuffer
+     */
+    @SuppressWarnings("try")
+    private void renderScene() {
         Vector3f meshPosition = new Vector3f(0, 0, 0);
         Quaternionf meshRotation = new Quaternionf().fromAxisAngleRad(0, 1, 0, angle);
         Vector3f meshScale = new Vector3f(1, 1, 1);
 
-        // Render the model at the origin
-        for (int i = 0; i < modelLoader.getNumMeshes(); i++) {
-            meshRenderer.renderMesh(modelLoader.getMesh(i), camera, meshPosition, meshRotation, meshScale);
+        // Rasterizes the occluders or reads back the depth pyramid the draws are tested against
+        try (Profiler.Zone zone = profiler.zone("cull")) {
+            if (softwareCuller != null) {
+                if (world != null) {
+                    world.addOccluders(softwareCuller);
+                } else {
+                    Matrix4f model = new Matrix4f().translation(meshPosition).rotate(meshRotation).scale(meshScale);
+                    for (Mesh mesh : modelLoader.getMeshes()) {
+                        softwareCuller.addOccluder(mesh, model);
+                    }
+                }
+            }
+            meshRenderer.beginFrame(camera);
+        }
+        if (world != null) {
+            world.render(meshRenderer, camera);
+        } else {
+            // Render the model at the origin
+            meshRenderer.renderBatch(staticBatch, camera, meshPosition, meshRotation, meshScale);
         }
+        // Builds the depth pyramid the next frames are culled against
+        meshRenderer.endFrame();
     }
 
     /**
      * The render/update loop
      */
+    @SuppressWarnings("try")
     private void loop() {
         float delta;
+        // A negative limit runs to the end of the camera path
+        int frameLimit = options.getFrames();
+        if (frameLimit > 0) {
+            frameStats = new FrameStats(frameLimit);
+        } else if (frameLimit < 0) {
+            frameStats = new FrameStats((int) Math.ceil(cameraPath.getDuration() / FIXED_DELTA) + 1);
+        }
 
-        while (!window.shouldClose()) {
+        for (int frame = 0; !window.shouldClose() && (frameLimit <= 0 || frame < frameLimit); frame++) {
+            if (frameLimit < 0 && cameraPath.isFinished()) {
+                break;
+            }
+            long frameStart = System.nanoTime();
+            profiler.beginFrame();
+            if (assetWatcher != null) {
+                assetWatcher.applyPending();
+            }
             delta = timer.getDelta();
+            if (window.isHeadless() || cameraPath != null) {
+                delta = FIXED_DELTA;
+            }
 
-            update(delta);
+            try (Profiler.Zone zone = profiler.zone("update")) {
+                update(delta);
+            }
             timer.updateUPS();
 
-            render();
+            if (world != null || textureStreamer != null) {
+                try (Profiler.Zone zone = profiler.zone("stream")) {
+                    if (world != null) {
+                        world.update(camera.getPosition());
+                    }
+                    // Streams for the mips requested by the last frame's draws
+                    if (textureStreamer != null) {
+                        textureStreamer.update();
+                    }
+                }
+            }
+
+            // Scales the resolution from the GPU times of the frames read back so far
+            if (dynamicResolution != null) {
+                dynamicResolution.update(profiler.getGpuHistogram("render"));
+            }
+
+            try (Profiler.Zone zone = profiler.zone("submit"); Profiler.GpuZone gpuZone = profiler.gpuZone("render")) {
+                // Waits for the GPU to finish with the transforms streamed frames in flight ago
+                transformBuffer.beginFrame();
+                render();
+                transformBuffer.endFrame();
+            }
             timer.updateFPS();
 
             timer.update();
 
-            window.update();
+            if (options.getDumpDirectory() != null && window.isHeadless() && frame % options.getDumpInterval() == 0) {
+                dumpFrame(frame);
+            }
+
+            try (Profiler.Zone zone = profiler.zone("swap")) {
+                window.update();
+            }
+            profiler.endFrame();
+            frameTime.observe((System.nanoTime() - frameStart) / 1e9);
+            if (frameStats != null) {
+                frameStats.add(System.nanoTime() - frameStart, cameraPath != null ? cameraPath.getTime() : Float.NaN);
+            }
         }
     }
 
+    /**
+     * Load a camera path from a file, or from a resource if there is no such file
+     * @param path the file or resource path
+     * @return the camera path
+     */
+    private static CameraPath loadCameraPath(String path) {
+        try {
+            if (Files.isRegularFile(Paths.get(path))) {
+                return CameraPath.loadFile(Paths.get(path));
+            }
+            return CameraPath.loadResource(path);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to load camera path " + path, ex);
+        }
+    }
+
+    /**
+     * Load a world manifest from a file, or from a resource if there is no such file
+     * @param path the file or resource path
+     * @return the manifest
+     */
+    private static WorldManifest loadWorldManifest(String path) {
+        try {
+            if (Files.isRegularFile(Paths.get(path))) {
+                return WorldManifest.loadFile(Paths.get(path));
+            }
+            return WorldManifest.loadResource(path);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to load world " + path, ex);
+        }
+    }
+
+    /**
+     * Write the offscreen framebuffer to a PNG file in the dump directory
+     * @param frame the frame index
+     */
+    private void dumpFrame(int frame) {
+        Path directory = Paths.get(options.getDumpDirectory());
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to create dump directory " + directory, ex);
+        }
+        window.getFramebuffer().savePNG(directory.resolve(String.format("frame_%05d.png", frame)).toString());
+    }
+
     /**
      * Destroys the window, releases error callback, and terminates GLFW
      */
     private void destroy() {
+        if (assetWatcher != null) {
+            try {
+                assetWatcher.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        if (world != null) {
+            System.out.println(world.getSummary());
+            world.delete();
+        }
+        if (staticBatch != null) {
+            staticBatch.delete();
+        }
+        if (textureStreamer != null) {
+            System.out.println(textureStreamer.getSummary());
+            textureStreamer.delete();
+            TextureCache.getInstance().setStreamer(null);
+        }
+        System.out.println(culling.getSummary());
+        renderGraph.delete();
+        if (dynamicResolution != null) {
+            System.out.println(dynamicResolution.getSummary());
+            upscaler.delete();
+        }
+        if (hizCuller != null) {
+            hizCuller.delete();
+        }
+        if (softwareCuller != null) {
+            softwareCuller.delete();
+        }
         modelLoader.delete();
         meshRenderer.delete();
+        transformBuffer.delete();
+        TextureCache.getInstance().delete();
+        if (archive != null) {
+            ResourceLoader.mount(null);
+            archive.close();
+        }
+
+        if (prometheusExporter != null) {
+            prometheusExporter.stop();
+        }
+        if (jmxExporter != null) {
+            jmxExporter.unregister();
+        }
+
+        profiler.printSummary();
+        if (frameStats != null) {
+            System.out.println(frameStats.getSummary());
+            if (options.getStatsFile() != null) {
+                try {
+                    frameStats.write(Paths.get(options.getStatsFile()));
+                    System.out.println("Wrote frame times to " + options.getStatsFile());
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+        String traceFile = System.getProperty(TRACE_PROPERTY);
+        if (traceFile != null) {
+            try {
+                profiler.writeTrace(Paths.get(traceFile));
+                System.out.println("Wrote trace to " + traceFile);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        profiler.delete();
+
+        // Close the input logs
+        InputRecorder recorder = Input.stopRecording();
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        InputReplay replay = Input.stopReplay();
+        if (replay != null) {
+            try {
+                replay.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        Input.destroy();
 
         if (window != null) {
             window.destroy();
         }
+        ResourceLoader.getPool().clear();
+        ResourceTracker.getInstance().reportLeaks();
         if (errorCallback != null) {
             errorCallback.free();
         }
@@ -238,6 +941,12 @@ public class GraphicsApp {
     }
 
     public static void main(String[] args) {
-        GraphicsApp.getInstance().run();
+        if (Boolean.getBoolean(DEBUG_RESOURCES_PROPERTY)) {
+            // LWJGL reports leaked MemoryUtil allocations with their stacks on exit. Must be set
+            // before the first allocation.
+            Configuration.DEBUG_MEMORY_ALLOCATOR.set(true);
+            ResourceTracker.getInstance().setCaptureStacks(true);
+        }
+        GraphicsApp.getInstance().run(LaunchOptions.parse(args));
     }
 }
@@ -1,14 +1,23 @@
 package com.alexjmohr.graphics;
 
 import org.joml.Vector2f;
+import org.lwjgl.glfw.GLFWCursorPosCallback;
+import org.lwjgl.glfw.GLFWKeyCallback;
 import org.lwjgl.system.MemoryStack;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.DoubleBuffer;
 
 import static org.lwjgl.glfw.GLFW.*;
 
 public class Input {
 
+    /**
+     * Maximum number of input events queued between updates
+     */
+    private static final int QUEUE_CAPACITY = 1024;
+
     /**
      * GLFW window handle, set by init()
      */
@@ -24,6 +33,22 @@ public class Input {
      */
     private static boolean[] keysPressedLastUpdate = new boolean[GLFW_KEY_LAST + 1];
 
+    /**
+     * Keys that are physically held down, as of the last applied event
+     */
+    private static boolean[] keysHeld = new boolean[GLFW_KEY_LAST + 1];
+
+    /**
+     * The update in which each key was last pressed, so a press and release between two updates
+     * still counts as pressed for one update
+     */
+    private static int[] keyPressUpdate = new int[GLFW_KEY_LAST + 1];
+
+    /**
+     * The number of updates so far
+     */
+    private static int updateCount;
+
     /**
      * Current mouse position
      */
@@ -39,6 +64,37 @@ public class Input {
      */
     private static boolean mouseInitialized = false;
 
+    /**
+     * Events queued by the GLFW callbacks until the next update
+     */
+    private static InputEventQueue events = new InputEventQueue(QUEUE_CAPACITY);
+
+    /**
+     * Scratch space for the event being applied
+     */
+    private static int[] event = new int[3];
+
+    /**
+     * The GLFW callbacks, freed by destroy()
+     */
+    private static GLFWKeyCallback keyCallback;
+    private static GLFWCursorPosCallback cursorPosCallback;
+
+    /**
+     * Records the applied events when set
+     */
+    private static InputRecorder recorder;
+
+    /**
+     * Record the cursor position at the start of the next recorded update, so replays start from it
+     */
+    private static boolean recordCursor;
+
+    /**
+     * Replays recorded events instead of live input when set
+     */
+    private static InputReplay replay;
+
 
     /**
      * Set up the callbacks
@@ -50,10 +106,85 @@ public class Input {
         // Hide the cursor and lock it inside the window
         glfwSetInputMode(win, GLFW_CURSOR, GLFW_CURSOR_DISABLED);
 
-        // Polling all keys every frame instead of using a callback for most keys, so keys should
-        // remain in GLFW_PRESS state until glfwGetKey is called, at which point they will change
-        // to GLFW_RELEASE state. This is to prevent missing key events between frames.
-        glfwSetInputMode(win, GLFW_STICKY_KEYS, GLFW_TRUE);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            DoubleBuffer xpos = stack.mallocDouble(1);
+            DoubleBuffer ypos = stack.mallocDouble(1);
+            glfwGetCursorPos(win, xpos, ypos);
+            mousePosition.set((float) xpos.get(), (float) ypos.get());
+        }
+
+        // Key and cursor changes are queued by callbacks during glfwPollEvents and applied in
+        // update(), instead of polling every key every update. Repeats carry no new state.
+        keyCallback = GLFWKeyCallback.create((handle, key, scancode, action, mods) -> {
+            if (key >= 0 && key <= GLFW_KEY_LAST && action != GLFW_REPEAT) {
+                events.offer(InputEventQueue.KEY, key, action);
+            }
+        });
+        cursorPosCallback = GLFWCursorPosCallback.create((handle, x, y) ->
+                events.offer(InputEventQueue.CURSOR, Float.floatToRawIntBits((float) x), Float.floatToRawIntBits((float) y)));
+        glfwSetKeyCallback(win, keyCallback);
+        glfwSetCursorPosCallback(win, cursorPosCallback);
+    }
+
+    /**
+     * Removes and frees the callbacks
+     */
+    public static void destroy() {
+        if (keyCallback != null) {
+            glfwSetKeyCallback(win, null);
+            keyCallback.free();
+            keyCallback = null;
+        }
+        if (cursorPosCallback != null) {
+            glfwSetCursorPosCallback(win, null);
+            cursorPosCallback.free();
+            cursorPosCallback = null;
+        }
+    }
+
+    /**
+     * Record the events applied in every update until stopRecording()
+     * @param inputRecorder the recorder
+     */
+    public static void startRecording(InputRecorder inputRecorder) {
+        recorder = inputRecorder;
+        recordCursor = true;
+    }
+
+    /**
+     * Stop recording
+     * @return the recorder, to be closed by the caller, or null if not recording
+     */
+    public static InputRecorder stopRecording() {
+        InputRecorder stopped = recorder;
+        recorder = null;
+        return stopped;
+    }
+
+    /**
+     * Replay recorded input instead of live input. Live events are discarded while replaying.
+     * @param inputReplay the replay
+     */
+    public static void startReplay(InputReplay inputReplay) {
+        replay = inputReplay;
+    }
+
+    /**
+     * Stop replaying and return to live input
+     * @return the replay, to be closed by the caller, or null if not replaying
+     */
+    public static InputReplay stopReplay() {
+        InputReplay stopped = replay;
+        replay = null;
+        return stopped;
+    }
+
+    /**
+     * Returns true if a replay has run out of recorded updates
+     * @return true if the replay is finished
+     */
+    public static boolean isReplayFinished() {
+        return replay != null && replay.isFinished();
     }
 
     /**
@@ -102,36 +233,84 @@ public class Input {
     }
 
     /**
-     * Poll for mouse movement and key state changes
+     * Apply the input events since the last update, or the next recorded update when replaying
+     * @param delta time since last update
+     * @return the delta to update with, the recorded delta when replaying
      */
-    public static void update() {
-
+    public static float update(float delta) {
         // Save last mouse position
         lastMousePosition.set(mousePosition);
 
-        // Get new mouse position
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            DoubleBuffer xpos = stack.mallocDouble(1);
-            DoubleBuffer ypos = stack.mallocDouble(1);
-            glfwGetCursorPos(win, xpos, ypos);
-
-            mousePosition.set((float) xpos.get(), (float) ypos.get());
-        }
-
-        // Swap key buffers
+        // Swap key buffers. Keys start the update in their held state and the events update it.
         boolean[] temp = keysPressed;
         keysPressed = keysPressedLastUpdate;
         keysPressedLastUpdate = temp;
+        System.arraycopy(keysHeld, 0, keysPressed, 0, keysHeld.length);
+        updateCount++;
 
-        // Poll for key state changes. GLFW_KEY_SPACE is the first valid key and GLFW_KEY_LAST is
-        // the last valid key.
-        for (int key = GLFW_KEY_SPACE; key <= GLFW_KEY_LAST; key++) {
-            int status = glfwGetKey(win, key);
+        try {
+            if (replay != null) {
+                // Discard live input, then apply the recorded update
+                while (events.poll(event)) {
+                    // Dropped
+                }
+                if (replay.nextUpdate()) {
+                    delta = replay.getDelta();
+                }
+                if (recorder != null) {
+                    recorder.beginUpdate(delta);
+                }
+                while (replay.nextEvent(event)) {
+                    apply(event);
+                }
+            } else {
+                if (recorder != null) {
+                    recorder.beginUpdate(delta);
+                    if (recordCursor) {
+                        recorder.cursor(mousePosition.x, mousePosition.y);
+                        recordCursor = false;
+                    }
+                }
+                while (events.poll(event)) {
+                    apply(event);
+                }
+            }
+            if (recorder != null) {
+                recorder.endUpdate();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to record or replay input", ex);
+        }
+        return delta;
+    }
 
-            if (status == GLFW_PRESS) {
+    /**
+     * Apply an event to the key and mouse state, and record it if recording
+     * @param event the event type and arguments
+     */
+    private static void apply(int[] event) throws IOException {
+        if (event[0] == InputEventQueue.KEY) {
+            int key = event[1];
+            if (event[2] == GLFW_PRESS) {
+                keysHeld[key] = true;
                 keysPressed[key] = true;
-            } else if (status == GLFW_RELEASE) {
-                keysPressed[key] = false;
+                keyPressUpdate[key] = updateCount;
+            } else if (event[2] == GLFW_RELEASE) {
+                keysHeld[key] = false;
+                // Like sticky keys, a key pressed since the last update stays pressed for this one
+                if (keyPressUpdate[key] != updateCount) {
+                    keysPressed[key] = false;
+                }
+            }
+            if (recorder != null) {
+                recorder.key(key, event[2]);
+            }
+        } else if (event[0] == InputEventQueue.CURSOR) {
+            float x = Float.intBitsToFloat(event[1]);
+            float y = Float.intBitsToFloat(event[2]);
+            mousePosition.set(x, y);
+            if (recorder != null) {
+                recorder.cursor(x, y);
             }
         }
     }
@@ -0,0 +1,104 @@
+package com.alexjmohr.graphics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single producer, single consumer queue of input events. Events are stored as primitive
+ * ints in a ring, so queueing them from GLFW callbacks never allocates.
+ *
+ * Each event is a type and two int arguments: the key and action for key events, and the float
+ * bits of x and y for cursor events.
+ */
+public class InputEventQueue {
+
+    /**
+     * Event types
+     */
+    public static final int KEY = 1;
+    public static final int CURSOR = 2;
+
+    /**
+     * Ints per event, a power of two so events never wrap around the end of the ring
+     */
+    private static final int STRIDE = 4;
+
+    /**
+     * The events
+     */
+    private final int[] ring;
+
+    /**
+     * The capacity in events minus one, the capacity is a power of two
+     */
+    private final int mask;
+
+    /**
+     * The number of events ever written and read. The producer only writes tail and the consumer
+     * only writes head.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Number of events dropped because the queue was full
+     */
+    private volatile long dropped;
+
+    /**
+     * Creates a queue
+     * @param capacity the maximum number of queued events, rounded up to a power of two
+     */
+    public InputEventQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new int[size * STRIDE];
+        mask = size - 1;
+    }
+
+    /**
+     * Queue an event. Only call from the producer thread.
+     * @param type the event type
+     * @param a    the first argument
+     * @param b    the second argument
+     * @return false if the queue is full and the event was dropped
+     */
+    public boolean offer(int type, int a, int b) {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            dropped++;
+            return false;
+        }
+        int i = (int) (t & mask) * STRIDE;
+        ring[i] = type;
+        ring[i + 1] = a;
+        ring[i + 2] = b;
+        // Publish the event after its contents
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest event. Only call from the consumer thread.
+     * @param event receives the type and two arguments
+     * @return false if the queue is empty
+     */
+    public boolean poll(int[] event) {
+        long h = head.get();
+        if (h == tail.get()) {
+            return false;
+        }
+        int i = (int) (h & mask) * STRIDE;
+        event[0] = ring[i];
+        event[1] = ring[i + 1];
+        event[2] = ring[i + 2];
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /**
+     * Get the number of events dropped because the queue was full
+     * @return the number of dropped events
+     */
+    public long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,115 @@
+package com.alexjmohr.graphics;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes the input events applied each update to a compact binary log, which InputReplay can
+ * replay exactly.
+ *
+ * The log starts with the MAGIC int. Each update is then the update delta as a float and the
+ * number of events as an unsigned short, followed by the events: a type byte, then the key as a
+ * short and action as a byte for key events, or x and y as floats for cursor events. All values
+ * are big-endian.
+ */
+public class InputRecorder implements AutoCloseable {
+
+    /**
+     * Identifies input logs, "INP1"
+     */
+    public static final int MAGIC = 0x494E5031;
+
+    /**
+     * Maximum events recorded in one update, later events of the update are dropped
+     */
+    public static final int MAX_EVENTS_PER_UPDATE = 0xFFFF;
+
+    /**
+     * The log
+     */
+    private final DataOutputStream out;
+
+    /**
+     * The events of the current update, written when it ends
+     */
+    private final ByteArrayOutputStream tickBytes;
+    private final DataOutputStream tick;
+
+    /**
+     * The delta and number of events of the current update
+     */
+    private float delta;
+    private int eventCount;
+
+    /**
+     * Creates the log file
+     * @param file the file to write
+     * @throws IOException if the file can't be created
+     */
+    public InputRecorder(Path file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+        out.writeInt(MAGIC);
+        tickBytes = new ByteArrayOutputStream();
+        tick = new DataOutputStream(tickBytes);
+    }
+
+    /**
+     * Start recording an update
+     * @param delta the update delta
+     */
+    void beginUpdate(float delta) {
+        this.delta = delta;
+        this.eventCount = 0;
+        tickBytes.reset();
+    }
+
+    /**
+     * Record a key event
+     * @param key    the GLFW key code
+     * @param action GLFW_PRESS or GLFW_RELEASE
+     */
+    void key(int key, int action) throws IOException {
+        if (eventCount < MAX_EVENTS_PER_UPDATE) {
+            tick.writeByte(InputEventQueue.KEY);
+            tick.writeShort(key);
+            tick.writeByte(action);
+            eventCount++;
+        }
+    }
+
+    /**
+     * Record a cursor event
+     * @param x the cursor x position
+     * @param y the cursor y position
+     */
+    void cursor(float x, float y) throws IOException {
+        if (eventCount < MAX_EVENTS_PER_UPDATE) {
+            tick.writeByte(InputEventQueue.CURSOR);
+            tick.writeFloat(x);
+            tick.writeFloat(y);
+            eventCount++;
+        }
+    }
+
+    /**
+     * Write the update to the log
+     */
+    void endUpdate() throws IOException {
+        out.writeFloat(delta);
+        out.writeShort(eventCount);
+        tickBytes.writeTo(out);
+    }
+
+    /**
+     * Flushes and closes the log
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,118 @@
+package com.alexjmohr.graphics;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads an input log written by InputRecorder, one update at a time
+ */
+public class InputReplay implements AutoCloseable {
+
+    /**
+     * The log
+     */
+    private final DataInputStream in;
+
+    /**
+     * The delta and events of the current update
+     */
+    private float delta;
+    private int eventCount;
+    private int eventIndex;
+
+    /**
+     * Scratch space for skipping unread events
+     */
+    private final int[] skipped = new int[3];
+
+    /**
+     * True once the log has no more updates
+     */
+    private boolean finished;
+
+    /**
+     * Opens the log
+     * @param file the file to read
+     * @throws IOException if the file can't be read or is not an input log
+     */
+    public InputReplay(Path file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        if (in.readInt() != InputRecorder.MAGIC) {
+            in.close();
+            throw new IOException(file + " is not an input log");
+        }
+    }
+
+    /**
+     * Read the next update's delta and event count. Skips any unread events of the previous update.
+     * @return false if the log has no more updates
+     */
+    boolean nextUpdate() throws IOException {
+        while (eventIndex < eventCount) {
+            nextEvent(skipped);
+        }
+        try {
+            delta = in.readFloat();
+            eventCount = in.readUnsignedShort();
+            eventIndex = 0;
+            return true;
+        } catch (EOFException ex) {
+            finished = true;
+            eventCount = 0;
+            eventIndex = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Get the delta of the current update
+     * @return the recorded delta
+     */
+    float getDelta() {
+        return delta;
+    }
+
+    /**
+     * Read the next event of the current update
+     * @param event receives the type and two arguments in InputEventQueue's encoding
+     * @return false if the update has no more events
+     */
+    boolean nextEvent(int[] event) throws IOException {
+        if (eventIndex == eventCount) {
+            return false;
+        }
+        eventIndex++;
+        event[0] = in.readUnsignedByte();
+        if (event[0] == InputEventQueue.KEY) {
+            event[1] = in.readShort();
+            event[2] = in.readUnsignedByte();
+        } else if (event[0] == InputEventQueue.CURSOR) {
+            event[1] = Float.floatToRawIntBits(in.readFloat());
+            event[2] = Float.floatToRawIntBits(in.readFloat());
+        } else {
+            throw new IOException("Corrupt input log, unknown event type " + event[0]);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true once every update in the log has been replayed
+     * @return true if finished
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Closes the log
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
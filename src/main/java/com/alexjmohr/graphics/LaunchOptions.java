@@ -0,0 +1,350 @@
+package com.alexjmohr.graphics;
+
+import static org.lwjgl.glfw.GLFW.*;
+
+/**
+ * Command line options of the app.
+ *
+ * <pre>
+ * --headless             render offscreen without showing a window
+ * --context API          GLFW context creation API: native, egl or osmesa
+ * --frames N             stop after N frames, 0 to run until the window is closed
+ * --stats FILE           write the frame times to a CSV file
+ * --dump DIR             write frames to PNG files in a directory
+ * --dump-interval N      dump every Nth frame, default 1
+ * --model NAME           the model under src/main/resources/models to load, default bricks
+ * --camera-path PATH     drive the camera along a path file or resource instead of input. The run
+ *                        stops at the end of the path unless --frames is given.
+ * --record-input FILE    record the input of every update to a binary log
+ * --replay-input FILE    replay a recorded input log instead of live input, then exit
+ * --metrics-port PORT    serve Prometheus metrics on localhost:PORT/metrics, 0 for any free port
+ * --gpu-budget-mb MB     warn when tracked GPU memory goes over this many megabytes
+ * --watch                reload shaders, textures and the model when their files under
+ *                        src/main/resources change
+ * --archive FILE         load resources and the model from a packed asset archive
+ * --world PATH           stream the cells of a world manifest file or resource around the camera
+ *                        instead of loading a single model
+ * --texture-budget-mb MB stream texture mips in as draws need them, keeping at most this many
+ *                        megabytes resident. 0 (default) loads every texture in full.
+ * --occlusion MODE       occlusion culling of draws inside the view frustum: none to only cull
+ *                        by frustum (default), hiz to test them against the previous frame's
+ *                        depth pyramid, or software to rasterize the meshes' largest triangles
+ *                        on the CPU
+ * --target-frame-ms MS   render the scene at a resolution scaled to keep the GPU frame time near
+ *                        MS milliseconds, then upscale it to the window. 0 (default) renders at
+ *                        the window resolution.
+ * --indirect             draw the static batch with glMultiDrawElementsIndirect, with per-draw
+ *                        materials and texture arrays, when OpenGL 4.3 or ARB_multi_draw_indirect
+ *                        is available
+ * </pre>
+ */
+public class LaunchOptions {
+
+    /**
+     * Frames rendered in headless mode if --frames is not given
+     */
+    public static final int DEFAULT_HEADLESS_FRAMES = 600;
+
+    /**
+     * Memory budget of streamed textures if --texture-budget-mb is not given, 0 to load textures
+     * in full without streaming
+     */
+    public static final int DEFAULT_TEXTURE_BUDGET_MB = 0;
+
+    /**
+     * The occlusion culling modes
+     */
+    public static final String OCCLUSION_NONE = "none";
+    public static final String OCCLUSION_HIZ = "hiz";
+    public static final String OCCLUSION_SOFTWARE = "software";
+
+    /**
+     * Render offscreen without showing a window
+     */
+    private boolean headless;
+
+    /**
+     * The GLFW context creation API
+     */
+    private int contextApi = GLFW_NATIVE_CONTEXT_API;
+
+    /**
+     * The number of frames to run, 0 for no limit, -1 if not given
+     */
+    private int frames = -1;
+
+    /**
+     * The frame time CSV file, may be null
+     */
+    private String statsFile;
+
+    /**
+     * The frame dump directory, may be null
+     */
+    private String dumpDirectory;
+
+    /**
+     * Dump every Nth frame
+     */
+    private int dumpInterval = 1;
+
+    /**
+     * The model name
+     */
+    private String model = "bricks";
+
+    /**
+     * The camera path file or resource, may be null
+     */
+    private String cameraPath;
+
+    /**
+     * The input log to record to or replay, may be null
+     */
+    private String recordInputFile;
+    private String replayInputFile;
+
+    /**
+     * The metrics HTTP port, -1 to not serve metrics
+     */
+    private int metricsPort = -1;
+
+    /**
+     * The GPU memory budget in megabytes, 0 for no budget
+     */
+    private int gpuBudgetMB;
+
+    /**
+     * Reload assets when their files change
+     */
+    private boolean watchAssets;
+
+    /**
+     * The packed asset archive to mount, null to load loose files
+     */
+    private String archiveFile;
+
+    /**
+     * The world manifest file or resource, null to load the model
+     */
+    private String worldFile;
+
+    /**
+     * The streamed texture budget in megabytes, 0 to load textures in full
+     */
+    private int textureBudgetMB = DEFAULT_TEXTURE_BUDGET_MB;
+
+    /**
+     * The occlusion culling mode
+     */
+    private String occlusion = OCCLUSION_NONE;
+
+    /**
+     * The GPU frame time dynamic resolution aims for in milliseconds, 0 for a fixed resolution
+     */
+    private float targetFrameMs;
+
+    /**
+     * Draw the static batch with indirect multi-draws
+     */
+    private boolean indirect;
+
+    /**
+     * Parse the command line
+     * @param args the command line arguments
+     * @return the options
+     */
+    public static LaunchOptions parse(String[] args) {
+        LaunchOptions options = new LaunchOptions();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--headless":
+                    options.headless = true;
+                    break;
+                case "--context":
+                    options.contextApi = parseContextApi(value(args, ++i));
+                    break;
+                case "--frames":
+                    options.frames = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--stats":
+                    options.statsFile = value(args, ++i);
+                    break;
+                case "--dump":
+                    options.dumpDirectory = value(args, ++i);
+                    break;
+                case "--dump-interval":
+                    options.dumpInterval = Math.max(1, Integer.parseInt(value(args, ++i)));
+                    break;
+                case "--model":
+                    options.model = value(args, ++i);
+                    break;
+                case "--camera-path":
+                    options.cameraPath = value(args, ++i);
+                    break;
+                case "--record-input":
+                    options.recordInputFile = value(args, ++i);
+                    break;
+                case "--replay-input":
+                    options.replayInputFile = value(args, ++i);
+                    break;
+                case "--metrics-port":
+                    options.metricsPort = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--gpu-budget-mb":
+                    options.gpuBudgetMB = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--watch":
+                    options.watchAssets = true;
+                    break;
+                case "--archive":
+                    options.archiveFile = value(args, ++i);
+                    break;
+                case "--world":
+                    options.worldFile = value(args, ++i);
+                    break;
+                case "--texture-budget-mb":
+                    options.textureBudgetMB = Math.max(0, Integer.parseInt(value(args, ++i)));
+                    break;
+                case "--occlusion":
+                    options.occlusion = parseOcclusion(value(args, ++i));
+                    break;
+                case "--target-frame-ms":
+                    options.targetFrameMs = Math.max(0, Float.parseFloat(value(args, ++i)));
+                    break;
+                case "--indirect":
+                    options.indirect = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Get the value of an option
+     */
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    /**
+     * Get the GLFW context creation API for a name
+     */
+    private static int parseContextApi(String name) {
+        switch (name) {
+            case "native":
+                return GLFW_NATIVE_CONTEXT_API;
+            case "egl":
+                return GLFW_EGL_CONTEXT_API;
+            case "osmesa":
+                return GLFW_OSMESA_CONTEXT_API;
+            default:
+                throw new IllegalArgumentException("Unknown context API " + name);
+        }
+    }
+
+    /**
+     * Check an occlusion culling mode name
+     */
+    private static String parseOcclusion(String name) {
+        switch (name) {
+            case OCCLUSION_NONE:
+            case OCCLUSION_HIZ:
+            case OCCLUSION_SOFTWARE:
+                return name;
+            default:
+                throw new IllegalArgumentException("Unknown occlusion mode " + name);
+        }
+    }
+
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    public int getContextApi() {
+        return contextApi;
+    }
+
+    /**
+     * Get the number of frames to run
+     * @return the frame count, 0 for no limit, -1 to run to the end of the camera path
+     */
+    public int getFrames() {
+        if (frames < 0) {
+            if (cameraPath != null) {
+                return -1;
+            }
+            return headless ? DEFAULT_HEADLESS_FRAMES : 0;
+        }
+        return frames;
+    }
+
+    public String getStatsFile() {
+        return statsFile;
+    }
+
+    public String getDumpDirectory() {
+        return dumpDirectory;
+    }
+
+    public int getDumpInterval() {
+        return dumpInterval;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public String getCameraPath() {
+        return cameraPath;
+    }
+
+    public String getRecordInputFile() {
+        return recordInputFile;
+    }
+
+    public String getReplayInputFile() {
+        return replayInputFile;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public int getGpuBudgetMB() {
+        return gpuBudgetMB;
+    }
+
+    public boolean isWatchAssets() {
+        return watchAssets;
+    }
+
+    public String getArchiveFile() {
+        return archiveFile;
+    }
+
+    public String getWorldFile() {
+        return worldFile;
+    }
+
+    public int getTextureBudgetMB() {
+        return textureBudgetMB;
+    }
+
+    public String getOcclusion() {
+        return occlusion;
+    }
+
+    public float getTargetFrameMs() {
+        return targetFrameMs;
+    }
+
+    public boolean isIndirect() {
+        return indirect;
+    }
+}
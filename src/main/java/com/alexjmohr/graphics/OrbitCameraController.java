@@ -0,0 +1,62 @@
+package com.alexjmohr.graphics;
+
+import org.joml.Vector3f;
+
+/**
+ * Scripted camera that circles a target point at a fixed radius and height, looking at the
+ * target. The path only depends on the update deltas, so runs with a fixed delta are repeatable.
+ * @author Alex Mohr
+ *
+ */
+public class OrbitCameraController implements CameraController {
+
+	/**
+	 * The point circled and looked at
+	 */
+	private final Vector3f target;
+
+	/**
+	 * The distance from the target in the xz plane
+	 */
+	private final float radius;
+
+	/**
+	 * The height above the target
+	 */
+	private final float height;
+
+	/**
+	 * The angular speed in radians per second
+	 */
+	private final float speed;
+
+	/**
+	 * The current angle about the target
+	 */
+	private float angle;
+
+	/**
+	 * Creates a controller circling the target
+	 * @param target the point to circle and look at
+	 * @param radius the distance from the target in the xz plane
+	 * @param height the height above the target
+	 * @param speed  the angular speed in radians per second
+	 */
+	public OrbitCameraController(Vector3f target, float radius, float height, float speed) {
+		this.target = new Vector3f(target);
+		this.radius = radius;
+		this.height = height;
+		this.speed = speed;
+	}
+
+	@Override
+	public void update(Camera camera, float delta) {
+		angle += speed * delta;
+		Vector3f position = new Vector3f(
+				target.x + radius * (float) Math.sin(angle),
+				target.y + height,
+				target.z + radius * (float) Math.cos(angle));
+		camera.setPosition(position);
+		camera.setForward(new Vector3f(target).sub(position).normalize());
+	}
+}
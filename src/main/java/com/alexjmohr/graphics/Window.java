@@ -1,6 +1,7 @@
 package com.alexjmohr.graphics;
 
 
+import com.alexjmohr.graphics.rendering.Framebuffer;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.*;
 
@@ -36,6 +37,32 @@ public class Window {
      */
     private String title;
 
+    /**
+     * The OpenGL context version to request. Falls back to 3.2 if it cannot be created.
+     */
+    private int contextMajor = 3;
+    private int contextMinor = 2;
+
+    /**
+     * The capabilities of the window's OpenGL context, set by init()
+     */
+    private GLCapabilities capabilities;
+
+    /**
+     * Render into an offscreen framebuffer of a window that is never shown
+     */
+    private boolean headless;
+
+    /**
+     * The GLFW context creation API, e.g. GLFW_EGL_CONTEXT_API or GLFW_OSMESA_CONTEXT_API
+     */
+    private int contextApi = GLFW_NATIVE_CONTEXT_API;
+
+    /**
+     * The offscreen framebuffer rendered into in headless mode, null otherwise
+     */
+    private Framebuffer framebuffer;
+
     /**
      * Create a window with specified title, width, height, and whether v-sync is enabled or not.
      * <code>init()</code> must be called
@@ -52,59 +79,70 @@ public class Window {
     }
 
     /**
-     * Checks that an OpenGL 3.2+ context can be created on the graphics adapter
-     * @return true if OpenGL 3.2+ is available, false if not.
+     * Request a newer OpenGL core context than 3.2, e.g. 4.3 for indirect drawing. Must be called
+     * before <code>init()</code>. If the version is not available a 3.2 context is created instead,
+     * so check <code>getCapabilities()</code> before using newer features.
+     * @param major the major version
+     * @param minor the minor version
      */
-    private boolean isOpenGL32() {
-        // Reset window hints
-        glfwDefaultWindowHints();
-        glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE); // the window will stay hidden after creation
-
-        // Create temporary window and OpenGL context
-        long temp = glfwCreateWindow(1, 1, "", NULL, NULL);
-        if (temp == NULL) {
-            throw new RuntimeException("Could not create temporary GLFW window");
-        }
-        glfwMakeContextCurrent(temp);
-        GL.createCapabilities();
-
-        // Get the capabilities of the created context
-        GLCapabilities caps = GL.getCapabilities();
-
-        // Destroy the temporary window
-        glfwDestroyWindow(temp);
-
-        // return whether opengl 3.2 is available
-        return caps.OpenGL32;
+    public void requestContextVersion(int major, int minor) {
+        this.contextMajor = major;
+        this.contextMinor = minor;
     }
 
     /**
-     * Create and show the window
+     * Render into an offscreen framebuffer instead of showing the window. Must be called before
+     * <code>init()</code>. Frames are finished instead of swapped, so frame times include the GPU work.
+     * @param headless   whether to run headless
+     * @param contextApi the GLFW context creation API, GLFW_NATIVE_CONTEXT_API, GLFW_EGL_CONTEXT_API
+     *                   or GLFW_OSMESA_CONTEXT_API
      */
-    public void init() {
-        // First check that OpenGL 3.2 context can be created. If this happens on a laptop with dual graphics
-        // adapters, then the discrete GPU should be used to run the program.
-        if (!isOpenGL32()) {
-            throw new RuntimeException("Could not create a modern OpenGL 3.2 context on your graphics adapter.");
-        }
+    public void setHeadless(boolean headless, int contextApi) {
+        this.headless = headless;
+        this.contextApi = contextApi;
+    }
 
+    /**
+     * Create the window with a forward compatible core context of the specified version
+     * @param major the major version
+     * @param minor the minor version
+     * @return the window handle, or NULL if it could not be created
+     */
+    private long createWindow(int major, int minor) {
         // Set window hints
         glfwDefaultWindowHints();
         glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE); // window will be hidden when it is created
-        // Request a forward compatible OpenGL 3.2 Core context
-        glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
-        glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 2);
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, major);
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, minor);
         glfwWindowHint(GLFW_OPENGL_PROFILE, GLFW_OPENGL_CORE_PROFILE);
         glfwWindowHint(GLFW_OPENGL_FORWARD_COMPAT, GLFW_TRUE);
-        glfwWindowHint(GLFW_SAMPLES, 4);
+        glfwWindowHint(GLFW_CONTEXT_CREATION_API, contextApi);
+        glfwWindowHint(GLFW_SAMPLES, headless ? 0 : 4);
         glfwWindowHint(GLFW_RESIZABLE, GLFW_FALSE);
 
-        // Create the window and set OpenGL context
-        window = glfwCreateWindow(width, height, title, NULL, NULL);
+        return glfwCreateWindow(width, height, title, NULL, NULL);
+    }
+
+    /**
+     * Create and show the window, or create the offscreen framebuffer in headless mode
+     */
+    public void init() {
+        // Create the window with the requested context, falling back to a forward compatible
+        // OpenGL 3.2 Core context
+        window = createWindow(contextMajor, contextMinor);
+        if (window == NULL && (contextMajor != 3 || contextMinor != 2)) {
+            window = createWindow(3, 2);
+        }
+        // If this happens on a laptop with dual graphics adapters, then the discrete GPU should be
+        // used to run the program.
         if (window == NULL) {
-            throw new RuntimeException("Failed to create the window");
+            throw new RuntimeException("Could not create a modern OpenGL 3.2 context on your graphics adapter.");
         }
         glfwMakeContextCurrent(window);
+        capabilities = GL.createCapabilities();
+        if (!capabilities.OpenGL32) {
+            throw new RuntimeException("Could not create a modern OpenGL 3.2 context on your graphics adapter.");
+        }
 
         setVsyncEnabled(vsyncEnabled);
 
@@ -115,7 +153,12 @@ public class Window {
 
         glViewport(0, 0, width, height);
 
-        glfwShowWindow(window);
+        if (headless) {
+            framebuffer = new Framebuffer(width, height);
+            framebuffer.bind();
+        } else {
+            glfwShowWindow(window);
+        }
     }
 
     /**
@@ -132,10 +175,15 @@ public class Window {
     }
 
     /**
-     * Swap render buffers and poll for events
+     * Swap render buffers and poll for events. In headless mode there is nothing to swap, so wait
+     * for the frame to finish instead.
      */
     public void update() {
-        glfwSwapBuffers(window);
+        if (headless) {
+            glFinish();
+        } else {
+            glfwSwapBuffers(window);
+        }
         glfwPollEvents();
     }
 
@@ -151,6 +199,9 @@ public class Window {
      * Destroys the window and releases callbacks
      */
     public void destroy() {
+        if (framebuffer != null) {
+            framebuffer.delete();
+        }
         glfwDestroyWindow(window);
     }
 
@@ -170,6 +221,30 @@ public class Window {
         return height;
     }
 
+    /**
+     * Get the capabilities of the window's OpenGL context
+     * @return the context capabilities
+     */
+    public GLCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Returns true if rendering into an offscreen framebuffer
+     * @return true if headless
+     */
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    /**
+     * Get the offscreen framebuffer
+     * @return the framebuffer, or null if not headless
+     */
+    public Framebuffer getFramebuffer() {
+        return framebuffer;
+    }
+
     /**
      * Get the GLFW window handle
      * @return the GLFW window handle
@@ -0,0 +1,231 @@
+package com.alexjmohr.graphics.culling;
+
+import com.alexjmohr.graphics.metrics.MetricsRegistry;
+import com.alexjmohr.graphics.rendering.Mesh;
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Decides which draws of a frame are submitted. Each mesh's bounding box is transformed to world
+ * space and tested against the view frustum, then against the occlusion culler if there is one.
+ * The number of draws culled by each test is counted per frame.
+ *
+ * Draws may be tested from several threads between beginFrame() and endFrame(), each with its own
+ * Context.
+ */
+public class CullingStage {
+
+    /**
+     * Tests draws on one thread, with its own scratch bounds and counts
+     */
+    public class Context {
+
+        /**
+         * Scratch world space bounds
+         */
+        private final Vector3f min = new Vector3f();
+        private final Vector3f max = new Vector3f();
+
+        /**
+         * The counts not yet added to the frame's
+         */
+        private int tested;
+        private int frustumCulled;
+        private int occluded;
+
+        private Context() {
+        }
+
+        /**
+         * Check whether a mesh drawn with a model matrix may be visible
+         * @param mesh  the mesh
+         * @param model the model matrix
+         * @return false if the draw can be skipped
+         */
+        public boolean isVisible(Mesh mesh, Matrix4f model) {
+            tested++;
+            model.transformAab(mesh.getBoundsMin(), mesh.getBoundsMax(), min, max);
+            if (!frustum.testAab(min, max)) {
+                frustumCulled++;
+                return false;
+            }
+            if (occlusionCuller != null && occlusionCuller.isOccluded(min, max)) {
+                occluded++;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Add the context's counts to the frame's. Call once the thread is done testing.
+         */
+        public void flush() {
+            synchronized (CullingStage.this) {
+                CullingStage.this.tested += tested;
+                CullingStage.this.frustumCulled += frustumCulled;
+                CullingStage.this.occluded += occluded;
+            }
+            tested = 0;
+            frustumCulled = 0;
+            occluded = 0;
+        }
+    }
+
+    /**
+     * The frame's view frustum
+     */
+    private final FrustumIntersection frustum;
+
+    /**
+     * The frame's view projection
+     */
+    private final Matrix4f viewProjection;
+
+    /**
+     * Tests the draws inside the frustum for occlusion, null to only cull by frustum
+     */
+    private OcclusionCuller occlusionCuller;
+
+    /**
+     * The context of isVisible(), for draws tested on the calling thread
+     */
+    private final Context context;
+
+    /**
+     * The counts of the frame in progress
+     */
+    private int tested;
+    private int frustumCulled;
+    private int occluded;
+
+    /**
+     * Statistics of the last finished frame and the run, read by the metrics exporters
+     */
+    private volatile int lastTested;
+    private volatile int lastFrustumCulled;
+    private volatile int lastOccluded;
+    private volatile long totalTested;
+    private volatile long totalFrustumCulled;
+    private volatile long totalOccluded;
+    private long frames;
+
+    /**
+     * Creates a stage that culls by frustum only
+     */
+    public CullingStage() {
+        this.frustum = new FrustumIntersection();
+        this.viewProjection = new Matrix4f();
+        this.context = new Context();
+    }
+
+    /**
+     * Create a context for testing draws on another thread
+     * @return the context
+     */
+    public Context createContext() {
+        return new Context();
+    }
+
+    /**
+     * Set the occlusion culler
+     * @param occlusionCuller the culler, null to only cull by frustum
+     */
+    public void setOcclusionCuller(OcclusionCuller occlusionCuller) {
+        this.occlusionCuller = occlusionCuller;
+    }
+
+    public OcclusionCuller getOcclusionCuller() {
+        return occlusionCuller;
+    }
+
+    /**
+     * Start a frame
+     * @param projection the frame's projection matrix
+     * @param view       the frame's view matrix
+     */
+    public void beginFrame(Matrix4f projection, Matrix4f view) {
+        projection.mul(view, viewProjection);
+        frustum.set(viewProjection);
+        tested = 0;
+        frustumCulled = 0;
+        occluded = 0;
+        if (occlusionCuller != null) {
+            occlusionCuller.beginFrame(viewProjection);
+        }
+    }
+
+    /**
+     * Check whether a mesh drawn with a model matrix may be visible
+     * @param mesh  the mesh
+     * @param model the model matrix
+     * @return false if the draw can be skipped
+     */
+    public boolean isVisible(Mesh mesh, Matrix4f model) {
+        return context.isVisible(mesh, model);
+    }
+
+    /**
+     * Finish the frame after its draws, publishing its counts. The contexts of other threads must
+     * have been flushed.
+     */
+    public synchronized void endFrame() {
+        context.flush();
+        lastTested = tested;
+        lastFrustumCulled = frustumCulled;
+        lastOccluded = occluded;
+        totalTested += tested;
+        totalFrustumCulled += frustumCulled;
+        totalOccluded += occluded;
+        frames++;
+        if (occlusionCuller != null) {
+            occlusionCuller.endFrame();
+        }
+    }
+
+    /**
+     * Register the culling metrics
+     * @param metrics the registry to add the metrics to
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        metrics.gauge("culling_draws_tested", "Draws tested for culling in the last frame", () -> lastTested);
+        metrics.gauge("culling_draws_frustum_culled", "Draws outside the view frustum in the last frame", () -> lastFrustumCulled);
+        metrics.gauge("culling_draws_occluded", "Draws hidden behind occluders in the last frame", () -> lastOccluded);
+        metrics.counter("culling_draws_frustum_culled_total", "Draws skipped because they were outside the view frustum", () -> totalFrustumCulled);
+        metrics.counter("culling_draws_occluded_total", "Draws skipped because they were occluded", () -> totalOccluded);
+    }
+
+    /**
+     * Get the number of draws tested in the last frame
+     * @return the draw count
+     */
+    public int getTested() {
+        return lastTested;
+    }
+
+    /**
+     * Get the number of draws outside the view frustum in the last frame
+     * @return the draw count
+     */
+    public int getFrustumCulled() {
+        return lastFrustumCulled;
+    }
+
+    /**
+     * Get the number of occluded draws in the last frame
+     * @return the draw count
+     */
+    public int getOccluded() {
+        return lastOccluded;
+    }
+
+    /**
+     * Summarize the culling statistics of the run
+     * @return the summary
+     */
+    public String getSummary() {
+        return String.format("Culling: %.1f draws tested per frame, %.1f outside the frustum, %.1f occluded",
+                frames > 0 ? totalTested / (double) frames : 0.0, frames > 0 ? totalFrustumCulled / (double) frames : 0.0,
+                frames > 0 ? totalOccluded / (double) frames : 0.0);
+    }
+}
@@ -0,0 +1,414 @@
+package com.alexjmohr.graphics.culling;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL14.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import com.alexjmohr.graphics.rendering.GLResource;
+import com.alexjmohr.graphics.rendering.GpuMemoryTracker;
+import com.alexjmohr.graphics.rendering.ResourceTracker;
+import com.alexjmohr.graphics.rendering.Shader;
+import com.alexjmohr.graphics.rendering.ShaderProgram;
+import com.alexjmohr.graphics.rendering.VertexArrayObject;
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Occlusion culling against a hierarchical depth buffer (Hi-Z) built from the previous frame.
+ *
+ * At the end of each frame the depth buffer is resolved into a texture and reduced on the GPU to
+ * a pyramid of levels that each keep the farthest depth of the 2x2 texels below them. The first
+ * level no wider than MAX_READBACK_WIDTH is read back asynchronously into a pixel buffer, and the
+ * next frame that finds the copy finished tests bounds against it on the CPU with the view
+ * projection it was rendered with. The tests therefore use depths one or two frames old: boxes
+ * past the old view's edges or crossing its near plane are never occluded, so disocclusion from
+ * camera motion shows objects at most a couple of frames late rather than hiding them.
+ */
+public class HiZOcclusionCuller implements OcclusionCuller, GLResource {
+
+    /**
+     * The widest pyramid level read back for the CPU tests
+     */
+    public static final int MAX_READBACK_WIDTH = 128;
+
+    /**
+     * Readbacks in flight, so mapping a finished one never waits for the GPU
+     */
+    private static final int READBACK_BUFFERS = 2;
+
+    /**
+     * The reduction program and the empty VAO its fullscreen triangle is drawn with
+     */
+    private final ShaderProgram program;
+    private final VertexArrayObject emptyArray;
+
+    /**
+     * The framebuffer the depth buffer is resolved into and the one the pyramid levels are
+     * rendered into
+     */
+    private final int depthFramebuffer;
+    private final int pyramidFramebuffer;
+
+    /**
+     * The resolved depth texture and the reduced pyramid, 0 until the first capture
+     */
+    private int depthTexture;
+    private int pyramid;
+
+    /**
+     * The size of the depth texture, the largest viewport captured so far
+     */
+    private int width;
+    private int height;
+
+    /**
+     * The pyramid level read back and its size
+     */
+    private int readbackLevel;
+    private int readbackWidth;
+    private int readbackHeight;
+
+    /**
+     * The pixel pack buffers of the readbacks, with the fence, view projection and size of the
+     * copy in each. A fence of 0 means the buffer holds no pending copy.
+     */
+    private final int[] pixelBuffers;
+    private final long[] fences;
+    private final Matrix4f[] viewProjections;
+    private final int[] readbackWidths;
+    private final int[] readbackHeights;
+
+    /**
+     * The buffer the next readback is written to
+     */
+    private int nextReadback;
+
+    /**
+     * The view projection of the frame in progress, stored with its readback
+     */
+    private final Matrix4f viewProjection;
+
+    /**
+     * The depths the frame's bounds are tested against
+     */
+    private final OcclusionBuffer buffer;
+
+    /**
+     * Creates the culler. Nothing is occluded until the first readback finishes.
+     */
+    public HiZOcclusionCuller() {
+        program = new ShaderProgram();
+        Shader vertexShader = Shader.loadShader(GL_VERTEX_SHADER, "/shaders/hiz.vert");
+        Shader fragmentShader = Shader.loadShader(GL_FRAGMENT_SHADER, "/shaders/hiz.frag");
+        program.attachShader(vertexShader);
+        program.attachShader(fragmentShader);
+        program.link();
+        vertexShader.delete();
+        fragmentShader.delete();
+        emptyArray = new VertexArrayObject();
+        emptyArray.setOwner("HiZOcclusionCuller");
+
+        int readBinding = glGetInteger(GL_READ_FRAMEBUFFER_BINDING);
+        int drawBinding = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+        depthFramebuffer = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, depthFramebuffer);
+        glDrawBuffer(GL_NONE);
+        glReadBuffer(GL_NONE);
+        pyramidFramebuffer = glGenFramebuffers();
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, readBinding);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, drawBinding);
+
+        pixelBuffers = new int[READBACK_BUFFERS];
+        fences = new long[READBACK_BUFFERS];
+        viewProjections = new Matrix4f[READBACK_BUFFERS];
+        readbackWidths = new int[READBACK_BUFFERS];
+        readbackHeights = new int[READBACK_BUFFERS];
+        for (int i = 0; i < READBACK_BUFFERS; i++) {
+            pixelBuffers[i] = glGenBuffers();
+            viewProjections[i] = new Matrix4f();
+        }
+        viewProjection = new Matrix4f();
+        buffer = new OcclusionBuffer();
+        buffer.setEdgesVisible(true);
+        ResourceTracker.getInstance().track(this, "HiZOcclusionCuller");
+    }
+
+    /**
+     * Map the newest finished readback into the occlusion buffer, dropping older ones
+     * @param viewProjection the frame's view projection
+     */
+    @Override
+    public void beginFrame(Matrix4f viewProjection) {
+        this.viewProjection.set(viewProjection);
+        for (int age = 1; age <= READBACK_BUFFERS; age++) {
+            int slot = Math.floorMod(nextReadback - age, READBACK_BUFFERS);
+            if (fences[slot] == 0) {
+                continue;
+            }
+            int status = glClientWaitSync(fences[slot], 0, 0);
+            if (status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED) {
+                continue;
+            }
+            read(slot);
+            for (int older = age; older <= READBACK_BUFFERS; older++) {
+                releaseFence(Math.floorMod(nextReadback - older, READBACK_BUFFERS));
+            }
+            break;
+        }
+    }
+
+    /**
+     * Copy a finished readback into the occlusion buffer
+     * @param slot the readback's buffer index
+     */
+    private void read(int slot) {
+        int count = readbackWidths[slot] * readbackHeights[slot];
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, pixelBuffers[slot]);
+        ByteBuffer data = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, count * 4L, GL_MAP_READ_BIT);
+        if (data != null) {
+            buffer.reset(readbackWidths[slot], readbackHeights[slot], viewProjections[slot]);
+            data.asFloatBuffer().get(buffer.getDepths(), 0, count);
+            glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+        }
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    /**
+     * Delete a readback's fence, marking its buffer free
+     * @param slot the readback's buffer index
+     */
+    private void releaseFence(int slot) {
+        if (fences[slot] != 0) {
+            glDeleteSync(fences[slot]);
+            fences[slot] = 0;
+        }
+    }
+
+    @Override
+    public boolean isOccluded(Vector3f min, Vector3f max) {
+        return buffer.isOccluded(min, max);
+    }
+
+    /**
+     * Build the pyramid from the bound framebuffer's depth and start reading it back. Skipped if
+     * the GPU hasn't finished the readback that would be overwritten.
+     */
+    @Override
+    public void endFrame() {
+        if (fences[nextReadback] != 0) {
+            return;
+        }
+        int readBinding = glGetInteger(GL_READ_FRAMEBUFFER_BINDING);
+        int drawBinding = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+        boolean depthTest = glIsEnabled(GL_DEPTH_TEST);
+        int viewportX;
+        int viewportY;
+        int viewportWidth;
+        int viewportHeight;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer viewport = stack.mallocInt(4);
+            glGetIntegerv(GL_VIEWPORT, viewport);
+            viewportX = viewport.get(0);
+            viewportY = viewport.get(1);
+            viewportWidth = viewport.get(2);
+            viewportHeight = viewport.get(3);
+        }
+        if (viewportWidth < 2 || viewportHeight < 2) {
+            return;
+        }
+        // The textures only grow, so a dynamic resolution viewport doesn't reallocate them
+        if (depthTexture == 0 || viewportWidth > width || viewportHeight > height) {
+            allocate(Math.max(viewportWidth, width), Math.max(viewportHeight, height), readBinding == 0 ? GL_DEPTH : GL_DEPTH_ATTACHMENT);
+        }
+
+        // Resolve the viewport's depth, which also resolves multisampling. A smaller viewport is
+        // stretched over the texture: nearest filtering repeats source texels and skips none, so
+        // the farthest depths are kept.
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, depthFramebuffer);
+        glBlitFramebuffer(viewportX, viewportY, viewportX + viewportWidth, viewportY + viewportHeight, 0, 0, width, height,
+                GL_DEPTH_BUFFER_BIT, GL_NEAREST);
+
+        // Reduce it level by level, each level sampling only the one before it
+        glDisable(GL_DEPTH_TEST);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, pyramidFramebuffer);
+        program.use();
+        program.setUniform("source", 0);
+        emptyArray.bind();
+        glActiveTexture(GL_TEXTURE0);
+        int sourceWidth = width;
+        int sourceHeight = height;
+        for (int level = 0; level <= readbackLevel; level++) {
+            int levelWidth = Math.max(1, sourceWidth / 2);
+            int levelHeight = Math.max(1, sourceHeight / 2);
+            glFramebufferTexture2D(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, pyramid, level);
+            glViewport(0, 0, levelWidth, levelHeight);
+            if (level == 0) {
+                glBindTexture(GL_TEXTURE_2D, depthTexture);
+            } else {
+                glBindTexture(GL_TEXTURE_2D, pyramid);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, level - 1);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, level - 1);
+            }
+            program.setUniform("sourceSize", new Vector2f(sourceWidth, sourceHeight));
+            glDrawArrays(GL_TRIANGLES, 0, 3);
+            sourceWidth = levelWidth;
+            sourceHeight = levelHeight;
+        }
+        glBindTexture(GL_TEXTURE_2D, pyramid);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, readbackLevel);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        emptyArray.unbind();
+        program.unuse();
+
+        // Copy the last level into a pixel buffer, read once its fence signals
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, pyramidFramebuffer);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, pixelBuffers[nextReadback]);
+        glBufferData(GL_PIXEL_PACK_BUFFER, readbackWidth * readbackHeight * 4L, GL_STREAM_READ);
+        glReadPixels(0, 0, readbackWidth, readbackHeight, GL_RED, GL_FLOAT, 0L);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        fences[nextReadback] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        viewProjections[nextReadback].set(viewProjection);
+        readbackWidths[nextReadback] = readbackWidth;
+        readbackHeights[nextReadback] = readbackHeight;
+        nextReadback = (nextReadback + 1) % READBACK_BUFFERS;
+
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, readBinding);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, drawBinding);
+        glViewport(viewportX, viewportY, viewportWidth, viewportHeight);
+        if (depthTest) {
+            glEnable(GL_DEPTH_TEST);
+        }
+    }
+
+    /**
+     * Create the depth texture and pyramid for a new depth buffer size, matching the depth format
+     * of the bound read framebuffer so it can be blitted
+     * @param width      the depth buffer width
+     * @param height     the depth buffer height
+     * @param attachment the read framebuffer's depth attachment, GL_DEPTH for the default one
+     */
+    private void allocate(int width, int height, int attachment) {
+        int depthBits = glGetFramebufferAttachmentParameteri(GL_READ_FRAMEBUFFER, attachment, GL_FRAMEBUFFER_ATTACHMENT_DEPTH_SIZE);
+        int stencilBits = glGetFramebufferAttachmentParameteri(GL_READ_FRAMEBUFFER, attachment, GL_FRAMEBUFFER_ATTACHMENT_STENCIL_SIZE);
+        int componentType = glGetFramebufferAttachmentParameteri(GL_READ_FRAMEBUFFER, attachment, GL_FRAMEBUFFER_ATTACHMENT_COMPONENT_TYPE);
+        boolean floating = componentType == GL_FLOAT;
+        int internalFormat;
+        int format = GL_DEPTH_COMPONENT;
+        int type = GL_FLOAT;
+        if (stencilBits > 0) {
+            internalFormat = floating ? GL_DEPTH32F_STENCIL8 : GL_DEPTH24_STENCIL8;
+            format = GL_DEPTH_STENCIL;
+            type = floating ? GL_FLOAT_32_UNSIGNED_INT_24_8_REV : GL_UNSIGNED_INT_24_8;
+        } else if (floating) {
+            internalFormat = GL_DEPTH_COMPONENT32F;
+        } else if (depthBits == 16) {
+            internalFormat = GL_DEPTH_COMPONENT16;
+        } else if (depthBits == 32) {
+            internalFormat = GL_DEPTH_COMPONENT32;
+        } else {
+            internalFormat = GL_DEPTH_COMPONENT24;
+        }
+
+        releaseTextures();
+        this.width = width;
+        this.height = height;
+        depthTexture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, depthTexture);
+        glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, type, (ByteBuffer) null);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, 0);
+
+        // Levels down to the first one narrow enough to read back
+        pyramid = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, pyramid);
+        int levelWidth = width;
+        int levelHeight = height;
+        int level = 0;
+        long pyramidBytes = 0;
+        while (true) {
+            levelWidth = Math.max(1, levelWidth / 2);
+            levelHeight = Math.max(1, levelHeight / 2);
+            glTexImage2D(GL_TEXTURE_2D, level, GL_R32F, levelWidth, levelHeight, 0, GL_RED, GL_FLOAT, (ByteBuffer) null);
+            pyramidBytes += levelWidth * levelHeight * 4L;
+            if (levelWidth <= MAX_READBACK_WIDTH) {
+                break;
+            }
+            level++;
+        }
+        readbackLevel = level;
+        readbackWidth = levelWidth;
+        readbackHeight = levelHeight;
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, readbackLevel);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, depthFramebuffer);
+        glFramebufferTexture2D(GL_DRAW_FRAMEBUFFER, stencilBits > 0 ? GL_DEPTH_STENCIL_ATTACHMENT : GL_DEPTH_ATTACHMENT,
+                GL_TEXTURE_2D, depthTexture, 0);
+        GpuMemoryTracker.getInstance().register(this, width * height * 4L + pyramidBytes,
+                GpuMemoryTracker.Category.RENDER_TARGET, "HiZOcclusionCuller");
+    }
+
+    /**
+     * Delete the depth texture and pyramid
+     */
+    private void releaseTextures() {
+        if (depthTexture != 0) {
+            glDeleteTextures(depthTexture);
+            depthTexture = 0;
+        }
+        if (pyramid != 0) {
+            glDeleteTextures(pyramid);
+            pyramid = 0;
+        }
+    }
+
+    /**
+     * Get the size of the depths the bounds are tested against
+     * @return the readback width in texels, 0 before the first capture
+     */
+    public int getReadbackWidth() {
+        return readbackWidth;
+    }
+
+    public int getReadbackHeight() {
+        return readbackHeight;
+    }
+
+    /**
+     * Deletes the textures, framebuffers, pixel buffers and program
+     */
+    @Override
+    public void delete() {
+        if (pixelBuffers[0] == 0) {
+            return;
+        }
+        for (int i = 0; i < READBACK_BUFFERS; i++) {
+            releaseFence(i);
+            glDeleteBuffers(pixelBuffers[i]);
+            pixelBuffers[i] = 0;
+        }
+        releaseTextures();
+        glDeleteFramebuffers(depthFramebuffer);
+        glDeleteFramebuffers(pyramidFramebuffer);
+        emptyArray.delete();
+        program.delete();
+        buffer.invalidate();
+        GpuMemoryTracker.getInstance().unregister(this);
+        ResourceTracker.getInstance().release(this);
+    }
+}
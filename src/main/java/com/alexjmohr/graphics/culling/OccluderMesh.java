@@ -0,0 +1,148 @@
+package com.alexjmohr.graphics.culling;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.joml.Vector3f;
+
+/**
+ * A simplified copy of a mesh's triangles for software occlusion rasterization. Only the largest
+ * triangles are kept: a subset of a mesh's surface hides no more than the mesh does, so the
+ * simplification never makes the occlusion tests less conservative.
+ */
+public class OccluderMesh {
+
+    /**
+     * An occluder without triangles, for meshes whose positions aren't available
+     */
+    public static final OccluderMesh EMPTY = new OccluderMesh(new float[0], new int[0]);
+
+    /**
+     * The model space positions, 3 floats per vertex
+     */
+    private final float[] positions;
+
+    /**
+     * The triangle indices, 3 per triangle
+     */
+    private final int[] indices;
+
+    /**
+     * The bounding box of the kept vertices
+     */
+    private final Vector3f boundsMin = new Vector3f();
+    private final Vector3f boundsMax = new Vector3f();
+
+    /**
+     * Creates an occluder from positions and triangle indices
+     * @param positions the model space positions, 3 floats per vertex
+     * @param indices   the triangle indices, 3 per triangle
+     */
+    public OccluderMesh(float[] positions, int[] indices) {
+        this.positions = positions;
+        this.indices = indices;
+        if (positions.length > 0) {
+            boundsMin.set(Float.MAX_VALUE);
+            boundsMax.set(-Float.MAX_VALUE);
+            Vector3f position = new Vector3f();
+            for (int i = 0; i < positions.length; i += 3) {
+                position.set(positions[i], positions[i + 1], positions[i + 2]);
+                boundsMin.min(position);
+                boundsMax.max(position);
+            }
+        }
+    }
+
+    /**
+     * Build an occluder from a mesh's largest triangles
+     * @param positions    the mesh positions, 3 floats per vertex
+     * @param elements     the mesh's triangle indices
+     * @param maxTriangles the most triangles to keep
+     * @return the occluder, with only the vertices of the kept triangles
+     */
+    public static OccluderMesh simplify(FloatBuffer positions, IntBuffer elements, int maxTriangles) {
+        int numTriangles = elements.remaining() / 3;
+        int base = elements.position();
+        int positionBase = positions.position();
+        Vector3f a = new Vector3f();
+        Vector3f b = new Vector3f();
+        Vector3f c = new Vector3f();
+
+        // Sort the triangles by area, largest first. Doubled areas are enough to compare.
+        float[] areas = new float[numTriangles];
+        Integer[] order = new Integer[numTriangles];
+        for (int t = 0; t < numTriangles; t++) {
+            get(positions, positionBase, elements.get(base + 3 * t), a);
+            get(positions, positionBase, elements.get(base + 3 * t + 1), b);
+            get(positions, positionBase, elements.get(base + 3 * t + 2), c);
+            b.sub(a);
+            c.sub(a);
+            areas[t] = b.cross(c).length();
+            order[t] = t;
+        }
+        Arrays.sort(order, (t1, t2) -> Float.compare(areas[t2], areas[t1]));
+
+        // Keep the largest ones that have an area, renumbering their vertices
+        int kept = 0;
+        while (kept < Math.min(maxTriangles, numTriangles) && areas[order[kept]] > 0) {
+            kept++;
+        }
+        int[] remap = new int[positions.remaining() / 3];
+        Arrays.fill(remap, -1);
+        int[] indices = new int[kept * 3];
+        float[] keptPositions = new float[kept * 9];
+        int numVertices = 0;
+        for (int i = 0; i < kept * 3; i++) {
+            int vertex = elements.get(base + 3 * order[i / 3] + i % 3);
+            if (remap[vertex] == -1) {
+                remap[vertex] = numVertices;
+                keptPositions[3 * numVertices] = positions.get(positionBase + 3 * vertex);
+                keptPositions[3 * numVertices + 1] = positions.get(positionBase + 3 * vertex + 1);
+                keptPositions[3 * numVertices + 2] = positions.get(positionBase + 3 * vertex + 2);
+                numVertices++;
+            }
+            indices[i] = remap[vertex];
+        }
+        return new OccluderMesh(Arrays.copyOf(keptPositions, numVertices * 3), indices);
+    }
+
+    /**
+     * Read a vertex position
+     */
+    private static void get(FloatBuffer positions, int base, int vertex, Vector3f dest) {
+        dest.set(positions.get(base + 3 * vertex), positions.get(base + 3 * vertex + 1), positions.get(base + 3 * vertex + 2));
+    }
+
+    /**
+     * Get the model space positions
+     * @return the positions, 3 floats per vertex
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * Get the triangle indices
+     * @return the indices, 3 per triangle
+     */
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public int getNumVertices() {
+        return positions.length / 3;
+    }
+
+    public int getNumTriangles() {
+        return indices.length / 3;
+    }
+
+    public Vector3f getBoundsMin() {
+        return boundsMin;
+    }
+
+    public Vector3f getBoundsMax() {
+        return boundsMax;
+    }
+}
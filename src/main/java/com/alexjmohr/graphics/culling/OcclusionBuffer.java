@@ -0,0 +1,190 @@
+package com.alexjmohr.graphics.culling;
+
+import java.util.Arrays;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * A low resolution depth buffer that bounding boxes are tested against, with the view projection
+ * it was rendered with. Each texel holds the farthest window space depth, 0 to 1, of the occluders
+ * it covers, so a box is occluded if its nearest depth is behind every texel it covers.
+ *
+ * Bounds are tested in the buffer's own view projection, which may be from an earlier frame. A
+ * box that crosses the near plane is never occluded.
+ */
+public class OcclusionBuffer {
+
+    /**
+     * Clip space w below which a corner is treated as crossing the near plane
+     */
+    private static final float MIN_CLIP_W = 1e-4f;
+
+    /**
+     * The size in texels
+     */
+    private int width;
+    private int height;
+
+    /**
+     * The depths, row by row from the bottom, 1 where nothing was drawn
+     */
+    private float[] depths;
+
+    /**
+     * The view projection the depths were rendered with
+     */
+    private final Matrix4f viewProjection;
+
+    /**
+     * Whether the buffer holds depths yet
+     */
+    private boolean valid;
+
+    /**
+     * Whether boxes reaching past the buffer's edges are never occluded. Set for buffers from
+     * earlier frames, since what is past the edges may be on screen now.
+     */
+    private boolean edgesVisible;
+
+    /**
+     * Texels added to each side of a box's screen rectangle before testing it
+     */
+    private int dilation;
+
+    /**
+     * Creates an empty buffer, which occludes nothing until it is given depths
+     */
+    public OcclusionBuffer() {
+        this.depths = new float[0];
+        this.viewProjection = new Matrix4f();
+    }
+
+    /**
+     * Resize the buffer and clear it to the far plane
+     * @param width          the width in texels
+     * @param height         the height in texels
+     * @param viewProjection the view projection the depths will be rendered with
+     */
+    public void reset(int width, int height, Matrix4f viewProjection) {
+        if (depths.length != width * height) {
+            depths = new float[width * height];
+        }
+        this.width = width;
+        this.height = height;
+        this.viewProjection.set(viewProjection);
+        Arrays.fill(depths, 1);
+        valid = true;
+    }
+
+    /**
+     * Stop occluding anything until the buffer is reset
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Check whether a world space box is hidden behind the buffer's depths. Safe to call from
+     * several threads while the buffer isn't being written.
+     * @param min the box's minimum corner
+     * @param max the box's maximum corner
+     * @return true if the box is occluded
+     */
+    public boolean isOccluded(Vector3f min, Vector3f max) {
+        if (!valid) {
+            return false;
+        }
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        float nearest = Float.POSITIVE_INFINITY;
+        Matrix4f m = viewProjection;
+        for (int i = 0; i < 8; i++) {
+            float cx = (i & 1) == 0 ? min.x : max.x;
+            float cy = (i & 2) == 0 ? min.y : max.y;
+            float cz = (i & 4) == 0 ? min.z : max.z;
+            float w = m.m03() * cx + m.m13() * cy + m.m23() * cz + m.m33();
+            if (w < MIN_CLIP_W) {
+                return false;
+            }
+            float x = (m.m00() * cx + m.m10() * cy + m.m20() * cz + m.m30()) / w;
+            float y = (m.m01() * cx + m.m11() * cy + m.m21() * cz + m.m31()) / w;
+            float z = (m.m02() * cx + m.m12() * cy + m.m22() * cz + m.m32()) / w;
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+            nearest = Math.min(nearest, z * 0.5f + 0.5f);
+        }
+        if (edgesVisible && (minX < -1 || maxX > 1 || minY < -1 || maxY > 1)) {
+            return false;
+        }
+
+        // The texels the box's screen rectangle touches
+        int x0 = Math.max((int) Math.floor((minX * 0.5f + 0.5f) * width) - dilation, 0);
+        int x1 = Math.min((int) Math.ceil((maxX * 0.5f + 0.5f) * width) + dilation, width) - 1;
+        int y0 = Math.max((int) Math.floor((minY * 0.5f + 0.5f) * height) - dilation, 0);
+        int y1 = Math.min((int) Math.ceil((maxY * 0.5f + 0.5f) * height) + dilation, height) - 1;
+        if (x0 > x1 || y0 > y1) {
+            // Off screen, which is for the frustum test to decide
+            return false;
+        }
+        for (int y = y0; y <= y1; y++) {
+            int row = y * width;
+            for (int x = x0; x <= x1; x++) {
+                if (depths[row + x] >= nearest) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the depths to write them. Row y starts at index y * getWidth(), rows from the bottom.
+     * @return the depths
+     */
+    public float[] getDepths() {
+        return depths;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Get the view projection the depths were rendered with
+     * @return the matrix
+     */
+    public Matrix4f getViewProjection() {
+        return viewProjection;
+    }
+
+    /**
+     * Set whether boxes reaching past the buffer's edges are never occluded
+     * @param edgesVisible true for buffers from earlier frames
+     */
+    public void setEdgesVisible(boolean edgesVisible) {
+        this.edgesVisible = edgesVisible;
+    }
+
+    /**
+     * Set the texels added to each side of a box's screen rectangle. A buffer whose texels take
+     * an occluder's depth when only their centre is covered needs 1: the texel just past an
+     * occluder's edge, which its centre test leaves uncovered, is then always tested.
+     * @param dilation the texels to add, 0 for buffers reduced from full resolution depths
+     */
+    public void setDilation(int dilation) {
+        this.dilation = dilation;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+}
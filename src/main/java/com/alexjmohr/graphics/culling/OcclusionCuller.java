@@ -0,0 +1,31 @@
+package com.alexjmohr.graphics.culling;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Tests bounding boxes that passed the frustum test for occlusion, see CullingStage
+ */
+public interface OcclusionCuller {
+
+    /**
+     * Prepare the occlusion data for the frame's tests
+     * @param viewProjection the frame's view projection
+     */
+    void beginFrame(Matrix4f viewProjection);
+
+    /**
+     * Check whether a world space box is hidden behind the occluders. Must be conservative: a box
+     * that may be visible must not be reported occluded. May be called from several threads
+     * between beginFrame() and endFrame().
+     * @param min the box's minimum corner
+     * @param max the box's maximum corner
+     * @return true if the box is occluded
+     */
+    boolean isOccluded(Vector3f min, Vector3f max);
+
+    /**
+     * Called after the frame's draws, with the frame's framebuffer still bound
+     */
+    void endFrame();
+}
@@ -0,0 +1,527 @@
+package com.alexjmohr.graphics.culling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.alexjmohr.graphics.metrics.MetricsRegistry;
+import com.alexjmohr.graphics.rendering.Mesh;
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Occlusion culling against a low resolution depth buffer rasterized on the CPU, for when reading
+ * back the GPU's depth would stall. Needs no GL context.
+ *
+ * Each frame the occluders added since the last frame are transformed, clipped to the near plane
+ * and binned into screen tiles by their bounding rectangles, then worker threads rasterize the
+ * tiles in parallel, each tile by one thread, so no texel is written by two threads. Depths are
+ * written conservatively: the farthest depth of the triangle over each covered texel, sampled at
+ * texel centres. Bounds are then tested against the result in the same frame, so unlike
+ * HiZOcclusionCuller there is no latency.
+ *
+ * Coverage is still tested at texel centres, so a texel an occluder only partly covers takes its
+ * depth, and a box seen just past the occluder's edge could be hidden by it. Requiring the whole
+ * texel to be inside each triangle would instead leave holes along every edge shared by two
+ * triangles of a mesh. Boxes are tested with their screen rectangle grown by a texel instead,
+ * which always reaches a texel past the edge whose centre is uncovered.
+ */
+public class SoftwareOcclusionCuller implements OcclusionCuller {
+
+    /**
+     * The size of the depth buffer in texels, 16:9 like the window
+     */
+    public static final int WIDTH = 256;
+    public static final int HEIGHT = 144;
+
+    /**
+     * The size of a tile in texels
+     */
+    private static final int TILE_WIDTH = 32;
+    private static final int TILE_HEIGHT = 16;
+    private static final int TILES_X = WIDTH / TILE_WIDTH;
+    private static final int TILES_Y = HEIGHT / TILE_HEIGHT;
+
+    /**
+     * The most triangles kept of each mesh used as an occluder
+     */
+    public static final int MAX_OCCLUDER_TRIANGLES = 256;
+
+    /**
+     * The most rasterizer threads
+     */
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * Floats per binned triangle: x, y and depth of each vertex in texels
+     */
+    private static final int TRIANGLE_FLOATS = 9;
+
+    /**
+     * Vertices are snapped to 1/SUBPIXELS of a texel, so the edge functions are exact integers
+     */
+    private static final int SUBPIXELS = 256;
+
+    /**
+     * The largest vertex coordinate in texels rasterized, keeping the edge functions within a
+     * long. Triangles reaching further are skipped, which can only leave more boxes visible.
+     */
+    private static final float GUARD_BAND = 1 << 22;
+
+    /**
+     * The depth buffer the bounds are tested against
+     */
+    private final OcclusionBuffer buffer;
+
+    /**
+     * The occluders of the coming frame and their model matrices
+     */
+    private final List<OccluderMesh> occluders = new ArrayList<>();
+    private final List<Matrix4f> models = new ArrayList<>();
+    private int numOccluders;
+
+    /**
+     * The simplified occluder of each mesh, weakly held so unloaded meshes are dropped
+     */
+    private final Map<Mesh, OccluderMesh> meshOccluders = new WeakHashMap<>();
+
+    /**
+     * The frame's screen space triangles
+     */
+    private float[] triangles = new float[1024 * TRIANGLE_FLOATS];
+    private int numTriangles;
+
+    /**
+     * The triangles overlapping each tile, as indices into triangles
+     */
+    private final int[][] bins = new int[TILES_X * TILES_Y][64];
+    private final int[] binCounts = new int[TILES_X * TILES_Y];
+
+    /**
+     * Scratch clip space vertices of the occluder being binned, 4 floats per vertex
+     */
+    private float[] clipVertices = new float[1024 * 4];
+
+    /**
+     * Scratch polygons for near plane clipping, up to 4 vertices of 4 floats
+     */
+    private final float[] polygon = new float[16];
+    private final float[] clipped = new float[16];
+
+    /**
+     * Scratch matrices, bounds and frustum for the occluders
+     */
+    private final Matrix4f modelViewProjection = new Matrix4f();
+    private final FrustumIntersection frustum = new FrustumIntersection();
+    private final Vector3f min = new Vector3f();
+    private final Vector3f max = new Vector3f();
+
+    /**
+     * The rasterizer threads, null to rasterize on the calling thread
+     */
+    private final ExecutorService rasterizers;
+
+    /**
+     * One task per rasterizer thread, each taking tiles until there are none left
+     */
+    private final List<Callable<Void>> tasks = new ArrayList<>();
+    private final AtomicInteger nextTile = new AtomicInteger();
+
+    /**
+     * Triangles rasterized in the last frame, read by the metrics exporters
+     */
+    private volatile int lastTriangles;
+
+    /**
+     * Creates a culler with a rasterizer thread per core, up to MAX_THREADS
+     */
+    public SoftwareOcclusionCuller() {
+        this(Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates a culler
+     * @param threads the number of rasterizer threads, 1 to rasterize on the calling thread
+     */
+    public SoftwareOcclusionCuller(int threads) {
+        buffer = new OcclusionBuffer();
+        buffer.setDilation(1);
+        if (threads > 1) {
+            AtomicInteger index = new AtomicInteger();
+            rasterizers = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "occlusion-rasterizer-" + index.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int i = 0; i < threads; i++) {
+                tasks.add(() -> {
+                    rasterizeTiles();
+                    return null;
+                });
+            }
+        } else {
+            rasterizers = null;
+        }
+    }
+
+    /**
+     * Add an occluder to the coming frame. Occluders are cleared at the end of each frame.
+     * @param occluder the occluder
+     * @param model    its model matrix, copied
+     */
+    public void addOccluder(OccluderMesh occluder, Matrix4f model) {
+        if (occluder.getNumTriangles() == 0) {
+            return;
+        }
+        if (numOccluders == models.size()) {
+            occluders.add(occluder);
+            models.add(new Matrix4f(model));
+        } else {
+            occluders.set(numOccluders, occluder);
+            models.get(numOccluders).set(model);
+        }
+        numOccluders++;
+    }
+
+    /**
+     * Add a mesh's largest triangles to the coming frame as an occluder. The mesh's positions
+     * must be retained, see Mesh.Residency; GPU_ONLY meshes don't occlude anything.
+     * @param mesh  the mesh
+     * @param model its model matrix, copied
+     */
+    public void addOccluder(Mesh mesh, Matrix4f model) {
+        OccluderMesh occluder = meshOccluders.get(mesh);
+        if (occluder == null) {
+            if (mesh.getResidency() == Mesh.Residency.GPU_ONLY) {
+                occluder = OccluderMesh.EMPTY;
+            } else {
+                occluder = OccluderMesh.simplify(mesh.getPositions(), mesh.getElements(), MAX_OCCLUDER_TRIANGLES);
+            }
+            meshOccluders.put(mesh, occluder);
+        }
+        addOccluder(occluder, model);
+    }
+
+    /**
+     * Rasterize the frame's occluders
+     * @param viewProjection the frame's view projection
+     */
+    @Override
+    public void beginFrame(Matrix4f viewProjection) {
+        buffer.reset(WIDTH, HEIGHT, viewProjection);
+        frustum.set(viewProjection);
+        numTriangles = 0;
+        Arrays.fill(binCounts, 0);
+        for (int i = 0; i < numOccluders; i++) {
+            OccluderMesh occluder = occluders.get(i);
+            Matrix4f model = models.get(i);
+            model.transformAab(occluder.getBoundsMin(), occluder.getBoundsMax(), min, max);
+            if (frustum.testAab(min, max)) {
+                viewProjection.mul(model, modelViewProjection);
+                bin(occluder);
+            }
+        }
+        lastTriangles = numTriangles;
+
+        nextTile.set(0);
+        if (rasterizers == null || numTriangles == 0) {
+            rasterizeTiles();
+            return;
+        }
+        try {
+            for (Future<Void> result : rasterizers.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            buffer.invalidate();
+        } catch (ExecutionException ex) {
+            Logger.getLogger(SoftwareOcclusionCuller.class.getName()).warning("Occlusion rasterization failed: " + ex.getCause());
+            buffer.invalidate();
+        }
+    }
+
+    /**
+     * Transform an occluder to clip space, clip its triangles to the near plane and bin them
+     * @param occluder the occluder, transformed by modelViewProjection
+     */
+    private void bin(OccluderMesh occluder) {
+        float[] positions = occluder.getPositions();
+        int numVertices = occluder.getNumVertices();
+        if (clipVertices.length < numVertices * 4) {
+            clipVertices = new float[numVertices * 4];
+        }
+        Matrix4f m = modelViewProjection;
+        for (int v = 0; v < numVertices; v++) {
+            float x = positions[3 * v];
+            float y = positions[3 * v + 1];
+            float z = positions[3 * v + 2];
+            clipVertices[4 * v] = m.m00() * x + m.m10() * y + m.m20() * z + m.m30();
+            clipVertices[4 * v + 1] = m.m01() * x + m.m11() * y + m.m21() * z + m.m31();
+            clipVertices[4 * v + 2] = m.m02() * x + m.m12() * y + m.m22() * z + m.m32();
+            clipVertices[4 * v + 3] = m.m03() * x + m.m13() * y + m.m23() * z + m.m33();
+        }
+
+        int[] indices = occluder.getIndices();
+        for (int t = 0; t < indices.length; t += 3) {
+            int inside = 0;
+            for (int k = 0; k < 3; k++) {
+                int vertex = indices[t + k];
+                System.arraycopy(clipVertices, 4 * vertex, polygon, 4 * k, 4);
+                if (polygon[4 * k + 2] >= -polygon[4 * k + 3]) {
+                    inside++;
+                }
+            }
+            if (inside == 0) {
+                continue;
+            }
+            int count = inside == 3 ? 3 : clipNear(polygon, 3, clipped);
+            float[] vertices = inside == 3 ? polygon : clipped;
+            // Fan the clipped polygon into triangles
+            for (int k = 1; k + 1 < count; k++) {
+                addTriangle(vertices, 0, k, k + 1);
+            }
+        }
+    }
+
+    /**
+     * Clip a convex polygon to the near plane, z >= -w
+     * @param in    the polygon, 4 floats per vertex
+     * @param count the vertex count
+     * @param out   receives the clipped polygon
+     * @return the clipped vertex count
+     */
+    private static int clipNear(float[] in, int count, float[] out) {
+        int result = 0;
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1) % count;
+            float di = in[4 * i + 2] + in[4 * i + 3];
+            float dj = in[4 * j + 2] + in[4 * j + 3];
+            if (di >= 0) {
+                System.arraycopy(in, 4 * i, out, 4 * result++, 4);
+            }
+            if ((di >= 0) != (dj >= 0)) {
+                float t = di / (di - dj);
+                for (int c = 0; c < 4; c++) {
+                    out[4 * result + c] = in[4 * i + c] + t * (in[4 * j + c] - in[4 * i + c]);
+                }
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Project a clip space triangle to texels and add it to the bins of the tiles its bounding
+     * rectangle overlaps
+     */
+    private void addTriangle(float[] vertices, int a, int b, int c) {
+        if (triangles.length < (numTriangles + 1) * TRIANGLE_FLOATS) {
+            triangles = Arrays.copyOf(triangles, triangles.length * 2);
+        }
+        int offset = numTriangles * TRIANGLE_FLOATS;
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        for (int k = 0; k < 3; k++) {
+            int v = 4 * (k == 0 ? a : k == 1 ? b : c);
+            float w = vertices[v + 3];
+            float x = (vertices[v] / w * 0.5f + 0.5f) * WIDTH;
+            float y = (vertices[v + 1] / w * 0.5f + 0.5f) * HEIGHT;
+            triangles[offset + 3 * k] = x;
+            triangles[offset + 3 * k + 1] = y;
+            triangles[offset + 3 * k + 2] = vertices[v + 2] / w * 0.5f + 0.5f;
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+        if (maxX < 0 || maxY < 0 || minX >= WIDTH || minY >= HEIGHT) {
+            return;
+        }
+        int tileX0 = Math.max(0, (int) minX / TILE_WIDTH);
+        int tileX1 = Math.min(TILES_X - 1, (int) maxX / TILE_WIDTH);
+        int tileY0 = Math.max(0, (int) minY / TILE_HEIGHT);
+        int tileY1 = Math.min(TILES_Y - 1, (int) maxY / TILE_HEIGHT);
+        for (int ty = tileY0; ty <= tileY1; ty++) {
+            for (int tx = tileX0; tx <= tileX1; tx++) {
+                int tile = ty * TILES_X + tx;
+                if (binCounts[tile] == bins[tile].length) {
+                    bins[tile] = Arrays.copyOf(bins[tile], bins[tile].length * 2);
+                }
+                bins[tile][binCounts[tile]++] = numTriangles;
+            }
+        }
+        numTriangles++;
+    }
+
+    /**
+     * Rasterize tiles until every tile has been taken
+     */
+    private void rasterizeTiles() {
+        float[] depths = buffer.getDepths();
+        for (int tile = nextTile.getAndIncrement(); tile < bins.length; tile = nextTile.getAndIncrement()) {
+            int x0 = (tile % TILES_X) * TILE_WIDTH;
+            int y0 = (tile / TILES_X) * TILE_HEIGHT;
+            int[] bin = bins[tile];
+            for (int i = 0; i < binCounts[tile]; i++) {
+                rasterize(depths, bin[i] * TRIANGLE_FLOATS, x0, y0);
+            }
+        }
+    }
+
+    /**
+     * Rasterize a triangle into a tile, keeping the nearest depth in each texel
+     * @param depths the depth buffer
+     * @param offset the triangle's offset in triangles
+     * @param tileX  the tile's first column
+     * @param tileY  the tile's first row
+     */
+    private void rasterize(float[] depths, int offset, int tileX, int tileY) {
+        float x0 = triangles[offset];
+        float y0 = triangles[offset + 1];
+        float z0 = triangles[offset + 2];
+        float x1 = triangles[offset + 3];
+        float y1 = triangles[offset + 4];
+        float z1 = triangles[offset + 5];
+        float x2 = triangles[offset + 6];
+        float y2 = triangles[offset + 7];
+        float z2 = triangles[offset + 8];
+        if (Math.max(Math.abs(x0), Math.max(Math.abs(x1), Math.abs(x2))) > GUARD_BAND
+                || Math.max(Math.abs(y0), Math.max(Math.abs(y1), Math.abs(y2))) > GUARD_BAND) {
+            return;
+        }
+
+        // Snap to fixed point. An edge shared by two triangles then has exactly opposite edge
+        // functions in each, so a texel centre on it is covered by at least one of them.
+        long fx0 = Math.round(x0 * SUBPIXELS);
+        long fy0 = Math.round(y0 * SUBPIXELS);
+        long fx1 = Math.round(x1 * SUBPIXELS);
+        long fy1 = Math.round(y1 * SUBPIXELS);
+        long fx2 = Math.round(x2 * SUBPIXELS);
+        long fy2 = Math.round(y2 * SUBPIXELS);
+        long fixedArea = (fx1 - fx0) * (fy2 - fy0) - (fx2 - fx0) * (fy1 - fy0);
+        if (fixedArea == 0) {
+            return;
+        }
+        // Occluders may be seen from either side, wind every triangle counter-clockwise
+        if (fixedArea < 0) {
+            long fx = fx1;
+            long fy = fy1;
+            fx1 = fx2;
+            fy1 = fy2;
+            fx2 = fx;
+            fy2 = fy;
+            float z = z1;
+            z1 = z2;
+            z2 = z;
+        }
+        x0 = fx0 / (float) SUBPIXELS;
+        y0 = fy0 / (float) SUBPIXELS;
+        x1 = fx1 / (float) SUBPIXELS;
+        y1 = fy1 / (float) SUBPIXELS;
+        x2 = fx2 / (float) SUBPIXELS;
+        y2 = fy2 / (float) SUBPIXELS;
+        float area = Math.abs(fixedArea) / (float) SUBPIXELS / SUBPIXELS;
+
+        // Depth is linear in screen space, so its farthest value over a texel is at a corner
+        float dzdx = ((z1 - z0) * (y2 - y0) - (z2 - z0) * (y1 - y0)) / area;
+        float dzdy = ((z2 - z0) * (x1 - x0) - (z1 - z0) * (x2 - x0)) / area;
+        float texelSlope = 0.5f * (Math.abs(dzdx) + Math.abs(dzdy));
+        float farthest = Math.max(z0, Math.max(z1, z2));
+
+        int minX = Math.max(tileX, (int) Math.floor(Math.min(x0, Math.min(x1, x2))));
+        int maxX = Math.min(tileX + TILE_WIDTH - 1, (int) Math.ceil(Math.max(x0, Math.max(x1, x2))));
+        int minY = Math.max(tileY, (int) Math.floor(Math.min(y0, Math.min(y1, y2))));
+        int maxY = Math.min(tileY + TILE_HEIGHT - 1, (int) Math.ceil(Math.max(y0, Math.max(y1, y2))));
+        if (minX > maxX || minY > maxY) {
+            return;
+        }
+
+        // Edge functions at the first texel centre and their steps per column, in fixed point
+        long px = (long) minX * SUBPIXELS + SUBPIXELS / 2;
+        long stepX0 = (fy1 - fy2) * SUBPIXELS;
+        long stepX1 = (fy2 - fy0) * SUBPIXELS;
+        long stepX2 = (fy0 - fy1) * SUBPIXELS;
+        for (int y = minY; y <= maxY; y++) {
+            long py = (long) y * SUBPIXELS + SUBPIXELS / 2;
+            long e0 = (fx2 - fx1) * (py - fy1) - (fy2 - fy1) * (px - fx1);
+            long e1 = (fx0 - fx2) * (py - fy2) - (fy0 - fy2) * (px - fx2);
+            long e2 = (fx1 - fx0) * (py - fy0) - (fy1 - fy0) * (px - fx0);
+            float z = z0 + dzdx * (minX + 0.5f - x0) + dzdy * (y + 0.5f - y0) + texelSlope;
+            int row = y * WIDTH;
+            for (int x = minX; x <= maxX; x++) {
+                if (e0 >= 0 && e1 >= 0 && e2 >= 0) {
+                    float depth = Math.min(z, farthest);
+                    if (depth < depths[row + x]) {
+                        depths[row + x] = depth;
+                    }
+                }
+                e0 += stepX0;
+                e1 += stepX1;
+                e2 += stepX2;
+                z += dzdx;
+            }
+        }
+    }
+
+    @Override
+    public boolean isOccluded(Vector3f min, Vector3f max) {
+        return buffer.isOccluded(min, max);
+    }
+
+    /**
+     * Clear the frame's occluders
+     */
+    @Override
+    public void endFrame() {
+        for (int i = 0; i < numOccluders; i++) {
+            occluders.set(i, null);
+        }
+        numOccluders = 0;
+    }
+
+    /**
+     * Get the rasterized depths, e.g. to inspect them
+     * @return the depth buffer
+     */
+    public OcclusionBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the number of triangles rasterized in the last frame
+     * @return the triangle count
+     */
+    public int getTriangles() {
+        return lastTriangles;
+    }
+
+    /**
+     * Register the rasterizer metrics
+     * @param metrics the registry to add the metrics to
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        metrics.gauge("culling_occluder_triangles", "Occluder triangles rasterized in the last frame", () -> lastTriangles);
+    }
+
+    /**
+     * Stop the rasterizer threads
+     */
+    public void delete() {
+        if (rasterizers != null) {
+            rasterizers.shutdownNow();
+        }
+    }
+}
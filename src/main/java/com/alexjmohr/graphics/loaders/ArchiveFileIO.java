@@ -0,0 +1,195 @@
+package com.alexjmohr.graphics.loaders;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.lwjgl.assimp.AIFile;
+import org.lwjgl.assimp.AIFileCloseProc;
+import org.lwjgl.assimp.AIFileFlushProc;
+import org.lwjgl.assimp.AIFileIO;
+import org.lwjgl.assimp.AIFileOpenProc;
+import org.lwjgl.assimp.AIFileReadProc;
+import org.lwjgl.assimp.AIFileSeek;
+import org.lwjgl.assimp.AIFileTellProc;
+import org.lwjgl.assimp.AIFileWriteProc;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * An Assimp IO system that reads files from an AssetArchive, so models can be imported with
+ * aiImportFileEx without touching the file system. Each open file is a buffer over the entry's
+ * data whose position is the file pointer. The callbacks are shared by all files, which are told
+ * apart by the address of their AIFile.
+ */
+class ArchiveFileIO {
+
+    /**
+     * The archive files are read from
+     */
+    private final AssetArchive archive;
+
+    /**
+     * The IO system passed to Assimp
+     */
+    private final AIFileIO fileIO;
+
+    /**
+     * The callbacks, freed with the IO system
+     */
+    private final AIFileOpenProc openProc;
+    private final AIFileCloseProc closeProc;
+    private final AIFileReadProc readProc;
+    private final AIFileWriteProc writeProc;
+    private final AIFileTellProc tellProc;
+    private final AIFileTellProc sizeProc;
+    private final AIFileSeek seekProc;
+    private final AIFileFlushProc flushProc;
+
+    /**
+     * The data of the open files by AIFile address
+     */
+    private final Map<Long, ByteBuffer> files;
+
+    /**
+     * Creates the IO system and its callbacks
+     * @param archive the archive to read from
+     */
+    ArchiveFileIO(AssetArchive archive) {
+        this.archive = archive;
+        this.files = new ConcurrentHashMap<>();
+
+        openProc = AIFileOpenProc.create((pFileIO, fileName, openMode) -> open(MemoryUtil.memUTF8(fileName)));
+        closeProc = AIFileCloseProc.create((pFileIO, pFile) -> close(pFile));
+        readProc = AIFileReadProc.create(this::read);
+        // Archives are read-only
+        writeProc = AIFileWriteProc.create((pFile, pBuffer, size, count) -> 0);
+        tellProc = AIFileTellProc.create(pFile -> files.get(pFile).position());
+        sizeProc = AIFileTellProc.create(pFile -> files.get(pFile).limit());
+        seekProc = AIFileSeek.create(this::seek);
+        flushProc = AIFileFlushProc.create(pFile -> { });
+
+        fileIO = AIFileIO.calloc();
+        fileIO.set(openProc, closeProc, MemoryUtil.NULL);
+    }
+
+    /**
+     * Get the IO system to pass to aiImportFileEx
+     * @return the IO system
+     */
+    AIFileIO getFileIO() {
+        return fileIO;
+    }
+
+    /**
+     * Open a file for Assimp
+     * @param name the file name Assimp asked for
+     * @return the AIFile address, or NULL if the archive has no such file
+     */
+    private long open(String name) {
+        ByteBuffer data;
+        try {
+            data = archive.read(normalize(name));
+        } catch (IOException ex) {
+            // Assimp probes for optional files, a missing file is not an error
+            return MemoryUtil.NULL;
+        }
+        AIFile file = AIFile.calloc();
+        file.set(readProc, writeProc, tellProc, sizeProc, seekProc, flushProc, MemoryUtil.NULL);
+        files.put(file.address(), data);
+        return file.address();
+    }
+
+    /**
+     * Close a file opened by open()
+     * @param pFile the AIFile address
+     */
+    private void close(long pFile) {
+        files.remove(pFile);
+        AIFile.create(pFile).free();
+    }
+
+    /**
+     * Read up to count items of size bytes
+     * @return the number of whole items read
+     */
+    private long read(long pFile, long pBuffer, long size, long count) {
+        ByteBuffer data = files.get(pFile);
+        if (size == 0) {
+            return 0;
+        }
+        long items = Math.min(count, data.remaining() / size);
+        long bytes = items * size;
+        MemoryUtil.memCopy(MemoryUtil.memAddress(data), pBuffer, bytes);
+        data.position(data.position() + (int) bytes);
+        return items;
+    }
+
+    /**
+     * Move the file pointer
+     * @param origin aiOrigin_SET, aiOrigin_CUR or aiOrigin_END
+     * @return aiReturn_SUCCESS, or aiReturn_FAILURE if the position is outside the file
+     */
+    private int seek(long pFile, long offset, int origin) {
+        ByteBuffer data = files.get(pFile);
+        long position;
+        switch (origin) {
+            case aiOrigin_SET:
+                position = offset;
+                break;
+            case aiOrigin_CUR:
+                position = data.position() + offset;
+                break;
+            case aiOrigin_END:
+                position = data.limit() + offset;
+                break;
+            default:
+                return aiReturn_FAILURE;
+        }
+        if (position < 0 || position > data.limit()) {
+            return aiReturn_FAILURE;
+        }
+        data.position((int) position);
+        return aiReturn_SUCCESS;
+    }
+
+    /**
+     * Turn a name Assimp built into an archive path: forward slashes, a leading slash, and no
+     * "." or ".." segments. Assimp joins referenced files to the model's directory itself.
+     * @param name the file name
+     * @return the archive path
+     */
+    static String normalize(String name) {
+        Deque<String> segments = new ArrayDeque<>();
+        for (String segment : name.replace('\\', '/').split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                segments.pollLast();
+            } else {
+                segments.addLast(segment);
+            }
+        }
+        return "/" + String.join("/", segments);
+    }
+
+    /**
+     * Free the IO system and the callbacks. Files must not be open.
+     */
+    void free() {
+        fileIO.free();
+        openProc.free();
+        closeProc.free();
+        readProc.free();
+        writeProc.free();
+        tellProc.free();
+        sizeProc.free();
+        seekProc.free();
+        flushProc.free();
+    }
+}
@@ -0,0 +1,334 @@
+package com.alexjmohr.graphics.loaders;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.lwjgl.assimp.AIFileIO;
+
+/**
+ * A packed archive of asset files, written by AssetArchiveWriter. The whole archive is memory
+ * mapped once when opened, and stored entries are returned as slices of the mapping, so reading
+ * them copies nothing. Deflated entries are inflated into a new direct buffer on each read.
+ *
+ * The archive starts with a header: the MAGIC int, the number of entries as an int and the offset
+ * of the table of contents as a long. Entry data follows, each entry starting at a multiple of
+ * ALIGNMENT. The table of contents lists each entry's path as modified UTF-8, its offset, stored
+ * size and size as longs, and its compression method as a byte. All values are big-endian.
+ *
+ * Paths are resource paths, e.g. /models/bricks/bricks.obj. Archives are limited to 2 GB, the
+ * most a single mapping can hold.
+ */
+public class AssetArchive implements Closeable {
+
+    /**
+     * Identifies asset archives, "PAK1"
+     */
+    public static final int MAGIC = 0x50414B31;
+
+    /**
+     * Size of the header in bytes
+     */
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * Alignment of entry data in bytes
+     */
+    public static final int ALIGNMENT = 64;
+
+    /**
+     * Compression method of entries stored as is
+     */
+    public static final byte STORED = 0;
+
+    /**
+     * Compression method of zlib deflated entries
+     */
+    public static final byte DEFLATED = 1;
+
+    /**
+     * Size in bytes of a table of contents record after its path: the offset, stored size and
+     * size longs and the method byte
+     */
+    private static final int RECORD_SIZE = 3 * Long.BYTES + 1;
+
+    /**
+     * An entry in the table of contents
+     */
+    public static class Entry {
+
+        private final String path;
+        private final long offset;
+        private final long storedSize;
+        private final long size;
+        private final byte method;
+
+        Entry(String path, long offset, long storedSize, long size, byte method) {
+            this.path = path;
+            this.offset = offset;
+            this.storedSize = storedSize;
+            this.size = size;
+            this.method = method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Get the size of the entry's data in the archive
+         * @return the stored size in bytes
+         */
+        public long getStoredSize() {
+            return storedSize;
+        }
+
+        /**
+         * Get the size of the file the entry was packed from
+         * @return the size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public boolean isCompressed() {
+            return method == DEFLATED;
+        }
+    }
+
+    /**
+     * The archive file
+     */
+    private final Path file;
+
+    /**
+     * The read-only mapping of the whole archive
+     */
+    private volatile MappedByteBuffer mapping;
+
+    /**
+     * The entries by path, in archive order
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * The Assimp IO system reading from this archive, created on first use
+     */
+    private ArchiveFileIO fileIO;
+
+    /**
+     * Maps the archive and reads its table of contents
+     * @param file the archive file
+     * @throws IOException if the file can't be mapped or isn't an asset archive
+     */
+    private AssetArchive(Path file) throws IOException {
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Asset archive " + file + " is larger than 2 GB");
+            }
+            // The mapping stays valid after the channel is closed
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (mapping.capacity() < HEADER_SIZE || mapping.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not an asset archive");
+        }
+        int count = mapping.getInt(4);
+        long tocOffset = mapping.getLong(8);
+        if (count < 0 || tocOffset < HEADER_SIZE || tocOffset > mapping.capacity()) {
+            throw new IOException("Asset archive " + file + " has a corrupt header");
+        }
+
+        entries = new LinkedHashMap<>();
+        ByteBuffer toc = mapping.duplicate();
+        toc.position((int) tocOffset);
+        for (int i = 0; i < count; i++) {
+            if (toc.remaining() < Short.BYTES) {
+                throw new IOException("Asset archive " + file + " has a truncated table of contents");
+            }
+            byte[] pathBytes = new byte[toc.getShort() & 0xFFFF];
+            if (toc.remaining() < pathBytes.length + RECORD_SIZE) {
+                throw new IOException("Asset archive " + file + " has a truncated table of contents");
+            }
+            toc.get(pathBytes);
+            // Paths are written with writeUTF, which is plain UTF-8 for the characters in file names
+            String path = new String(pathBytes, StandardCharsets.UTF_8);
+            Entry entry = new Entry(path, toc.getLong(), toc.getLong(), toc.getLong(), toc.get());
+            if (entry.storedSize < 0 || entry.size < 0 || entry.size > Integer.MAX_VALUE
+                    || (entry.method != STORED && entry.method != DEFLATED)) {
+                throw new IOException("Asset archive " + file + " entry " + path + " is corrupt");
+            }
+            // Written so a huge offset can't overflow past the check
+            if (entry.offset < HEADER_SIZE || entry.storedSize > tocOffset - entry.offset) {
+                throw new IOException("Asset archive " + file + " entry " + path + " is out of bounds");
+            }
+            entries.put(path, entry);
+        }
+    }
+
+    /**
+     * Open an asset archive
+     * @param file the archive file
+     * @return the archive
+     * @throws IOException if the file can't be mapped or isn't an asset archive
+     */
+    public static AssetArchive open(Path file) throws IOException {
+        return new AssetArchive(file);
+    }
+
+    /**
+     * Get the archive file
+     * @return the file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Check whether the archive has an entry
+     * @param path the resource path
+     * @return true if the entry exists
+     */
+    public boolean contains(String path) {
+        return entries.containsKey(path);
+    }
+
+    /**
+     * Get an entry
+     * @param path the resource path
+     * @return the entry, or null if there is none
+     */
+    public Entry getEntry(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Get all entries
+     * @return an unmodifiable view of the entries in archive order
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Read an entry. Stored entries are returned as a read-only slice of the mapping without
+     * copying, deflated entries are inflated into a new direct buffer. Either way the buffer is
+     * managed by the GC and must not be freed. Safe to call from any thread.
+     * @param path the resource path
+     * @return the entry's data, from position 0 to its size
+     * @throws IOException if there is no such entry or it is corrupt
+     */
+    public ByteBuffer read(String path) throws IOException {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            throw new NoSuchFileException(path, null, "not in asset archive " + file);
+        }
+        ByteBuffer stored = slice(entry);
+        if (!entry.isCompressed()) {
+            return stored;
+        }
+        return inflate(stored, (int) entry.size, path);
+    }
+
+    /**
+     * Get the stored data of an entry as a slice of the mapping
+     * @param entry the entry
+     * @return the read-only slice
+     */
+    private ByteBuffer slice(Entry entry) {
+        MappedByteBuffer mapped = mapping;
+        if (mapped == null) {
+            throw new IllegalStateException("Asset archive " + file + " is closed");
+        }
+        ByteBuffer slice = mapped.duplicate();
+        slice.limit((int) (entry.offset + entry.storedSize));
+        slice.position((int) entry.offset);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Inflate a deflated entry
+     * @param stored the deflated data
+     * @param size   the inflated size
+     * @param path   the entry path, for errors
+     * @return a direct buffer with the inflated data
+     */
+    private static ByteBuffer inflate(ByteBuffer stored, int size, String path) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect(size);
+        Inflater inflater = new Inflater();
+        byte[] input = new byte[Math.min(stored.remaining(), 64 * 1024)];
+        byte[] output = new byte[Math.min(size, 64 * 1024)];
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (!stored.hasRemaining()) {
+                        break;
+                    }
+                    int length = Math.min(input.length, stored.remaining());
+                    stored.get(input, 0, length);
+                    inflater.setInput(input, 0, length);
+                }
+                int length = inflater.inflate(output);
+                if (length == 0 && inflater.needsDictionary()) {
+                    throw new IOException("Asset archive entry " + path + " needs a preset dictionary");
+                }
+                if (length > data.remaining()) {
+                    throw new IOException("Asset archive entry " + path + " inflates past its size");
+                }
+                data.put(output, 0, length);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Asset archive entry " + path + " is corrupt", ex);
+        } finally {
+            inflater.end();
+        }
+        if (data.hasRemaining()) {
+            throw new IOException("Asset archive entry " + path + " is truncated");
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Get an Assimp IO system that opens files from this archive, for aiImportFileEx. Files
+     * referenced by a model, like an OBJ's material library, are resolved relative to the model
+     * and must be in the archive too.
+     * @return the IO system, valid until the archive is closed
+     */
+    public synchronized AIFileIO getFileIO() {
+        if (fileIO == null) {
+            fileIO = new ArchiveFileIO(this);
+        }
+        return fileIO.getFileIO();
+    }
+
+    /**
+     * Release the Assimp IO system and the mapping. Slices already returned stay readable until
+     * they are garbage collected, since Java can't unmap a file explicitly.
+     */
+    @Override
+    public synchronized void close() {
+        if (fileIO != null) {
+            fileIO.free();
+            fileIO = null;
+        }
+        mapping = null;
+    }
+}
@@ -0,0 +1,148 @@
+package com.alexjmohr.graphics.loaders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Packs a directory of assets into an AssetArchive. Each file is deflated if that saves at least
+ * MIN_SAVING of its size, otherwise it is stored, so already compressed images stay directly
+ * mappable.
+ *
+ * Usage: AssetArchiveWriter DIRECTORY ARCHIVE [--store]
+ */
+public class AssetArchiveWriter {
+
+    /**
+     * Fraction of a file's size deflating must save for the file to be stored deflated
+     */
+    public static final double MIN_SAVING = 0.125;
+
+    /**
+     * Whether files may be deflated
+     */
+    private final boolean compress;
+
+    /**
+     * Creates a writer
+     * @param compress false to store every file as is
+     */
+    public AssetArchiveWriter(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Pack every file under a directory. Entry paths are the file paths relative to the
+     * directory with a leading slash, so packing src/main/resources gives the resource paths.
+     * @param directory the directory to pack
+     * @param archive   the archive file to write
+     * @return the number of entries written
+     * @throws IOException if a file can't be read or the archive can't be written
+     */
+    public int pack(Path directory, Path archive) throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+
+        ByteArrayOutputStream tocBytes = new ByteArrayOutputStream();
+        DataOutputStream toc = new DataOutputStream(tocBytes);
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(AssetArchive.HEADER_SIZE);
+            for (Path file : files) {
+                byte[] data = Files.readAllBytes(file);
+                byte[] deflated = compress ? deflate(data) : null;
+                boolean useDeflated = deflated != null && deflated.length <= data.length * (1 - MIN_SAVING);
+                byte[] stored = useDeflated ? deflated : data;
+
+                long offset = align(channel.position());
+                channel.position(offset);
+                writeFully(channel, ByteBuffer.wrap(stored));
+
+                StringBuilder path = new StringBuilder();
+                Iterator<Path> it = directory.relativize(file).iterator();
+                while (it.hasNext()) {
+                    path.append('/').append(it.next());
+                }
+                toc.writeUTF(path.toString());
+                toc.writeLong(offset);
+                toc.writeLong(stored.length);
+                toc.writeLong(data.length);
+                toc.writeByte(useDeflated ? AssetArchive.DEFLATED : AssetArchive.STORED);
+            }
+
+            long tocOffset = channel.position();
+            toc.flush();
+            writeFully(channel, ByteBuffer.wrap(tocBytes.toByteArray()));
+
+            ByteBuffer header = ByteBuffer.allocate(AssetArchive.HEADER_SIZE);
+            header.putInt(AssetArchive.MAGIC).putInt(files.size()).putLong(tocOffset).flip();
+            channel.position(0);
+            writeFully(channel, header);
+        }
+        return files.size();
+    }
+
+    /**
+     * Round an offset up to the entry alignment
+     * @param offset the offset
+     * @return the aligned offset
+     */
+    private static long align(long offset) {
+        return (offset + AssetArchive.ALIGNMENT - 1) / AssetArchive.ALIGNMENT * AssetArchive.ALIGNMENT;
+    }
+
+    /**
+     * Write all remaining bytes of a buffer at the channel's position
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Deflate data with zlib
+     * @param data the data
+     * @return the deflated data
+     */
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] chunk = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(chunk);
+            out.write(chunk, 0, length);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: AssetArchiveWriter DIRECTORY ARCHIVE [--store]");
+            System.exit(1);
+        }
+        boolean compress = !(args.length > 2 && args[2].equals("--store"));
+        Path archive = Paths.get(args[1]);
+        if (archive.getParent() != null) {
+            Files.createDirectories(archive.getParent());
+        }
+        int count = new AssetArchiveWriter(compress).pack(Paths.get(args[0]), archive);
+        System.out.println("Packed " + count + " files into " + archive + " (" + Files.size(archive) + " bytes)");
+    }
+}
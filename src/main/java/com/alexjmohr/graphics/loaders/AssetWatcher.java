@@ -0,0 +1,294 @@
+package com.alexjmohr.graphics.loaders;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Watches asset files for changes and reloads them without restarting the app.
+ *
+ * A background thread waits on a WatchService for the directory tree under the root. Editors
+ * often write a file several times when saving, so a file is only reloaded once it has stopped
+ * changing for DEBOUNCE_MILLIS. The reload runs on the watcher thread and does the work that
+ * doesn't need OpenGL, such as reading and decoding the file. It returns the step that swaps the
+ * new resource in, which is queued and run on the GL thread by applyPending() between frames.
+ * Steps still queued when the watcher is closed are discarded, freeing what was loaded.
+ */
+public class AssetWatcher implements Closeable {
+
+    /**
+     * Reloads a changed asset
+     */
+    public interface Reloader {
+
+        /**
+         * Load the changed file. Called on the watcher thread, so must not make GL calls.
+         * @param file the changed file
+         * @return the step that swaps the new resource in, or null if there is nothing to swap
+         * @throws Exception if the file could not be loaded, the old resource is kept
+         */
+        Swap load(Path file) throws Exception;
+    }
+
+    /**
+     * A loaded asset waiting to be swapped in on the GL thread
+     */
+    @FunctionalInterface
+    public interface Swap {
+
+        /**
+         * Swap the new resource in and release the old one. Called on the GL thread.
+         */
+        void apply();
+
+        /**
+         * Free the new resource without swapping it in, when the watcher is closed first. Does
+         * nothing by default, for resources that only hold heap memory.
+         */
+        default void discard() {
+        }
+
+        /**
+         * Create a swap whose loaded resource needs freeing if it is never applied
+         * @param apply   swaps the new resource in and releases the old one
+         * @param discard frees the new resource
+         * @return the swap
+         */
+        static Swap of(Runnable apply, Runnable discard) {
+            return new Swap() {
+                @Override
+                public void apply() {
+                    apply.run();
+                }
+
+                @Override
+                public void discard() {
+                    discard.run();
+                }
+            };
+        }
+    }
+
+    /**
+     * How long a file must be unchanged before it is reloaded
+     */
+    public static final long DEBOUNCE_MILLIS = 200;
+
+    /**
+     * The root of the watched directory tree
+     */
+    private final Path root;
+
+    /**
+     * The watch service
+     */
+    private final WatchService watchService;
+
+    /**
+     * The watched directories by their watch key
+     */
+    private final Map<WatchKey, Path> directories;
+
+    /**
+     * The reloaders by absolute file path
+     */
+    private final Map<Path, Reloader> reloaders;
+
+    /**
+     * The time in nanoseconds each changed file last changed, only used by the watcher thread
+     */
+    private final Map<Path, Long> changed;
+
+    /**
+     * The swap steps waiting for the GL thread
+     */
+    private final ConcurrentLinkedQueue<Swap> pending;
+
+    /**
+     * The watcher thread, null until started
+     */
+    private Thread thread;
+
+    /**
+     * Watches every directory under the root
+     * @param root the root directory
+     * @throws IOException if the directories could not be registered
+     */
+    public AssetWatcher(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.directories = new HashMap<>();
+        this.reloaders = new ConcurrentHashMap<>();
+        this.changed = new HashMap<>();
+        this.pending = new ConcurrentLinkedQueue<>();
+        registerTree(this.root);
+    }
+
+    /**
+     * Register a directory and all directories below it with the watch service
+     * @param directory the directory
+     */
+    private void registerTree(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            Iterator<Path> it = paths.filter(Files::isDirectory).iterator();
+            while (it.hasNext()) {
+                Path dir = it.next();
+                directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), dir);
+            }
+        }
+    }
+
+    /**
+     * Get the root of the watched directory tree
+     * @return the absolute root directory
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Reload a file with the given reloader when it changes. Replaces any earlier reloader of the
+     * file.
+     * @param file     the file, relative to the working directory or absolute
+     * @param reloader the reloader
+     */
+    public void watch(Path file, Reloader reloader) {
+        reloaders.put(file.toAbsolutePath().normalize(), reloader);
+    }
+
+    /**
+     * Start the watcher thread
+     */
+    public void start() {
+        thread = new Thread(this::run, "asset-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait for changes and reload files once they have settled, until closed
+     */
+    private void run() {
+        long debounceNanos = TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = changed.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    collect(key);
+                }
+
+                long now = System.nanoTime();
+                Iterator<Map.Entry<Path, Long>> it = changed.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Path, Long> entry = it.next();
+                    if (now - entry.getValue() >= debounceNanos) {
+                        it.remove();
+                        reload(entry.getKey());
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Closed
+        }
+    }
+
+    /**
+     * Record the watched files changed in the events of a key, and watch new directories
+     * @param key the signalled key
+     */
+    private void collect(WatchKey key) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || directory == null) {
+                continue;
+            }
+            Path file = directory.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(file)) {
+                try {
+                    registerTree(file);
+                } catch (IOException ex) {
+                    Logger.getLogger(AssetWatcher.class.getName()).warning("Failed to watch " + file + ": " + ex.getMessage());
+                }
+            } else if (reloaders.containsKey(file)) {
+                changed.put(file, System.nanoTime());
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    /**
+     * Run the reloader of a file and queue its swap step
+     * @param file the changed file
+     */
+    private void reload(Path file) {
+        try {
+            Swap swap = reloaders.get(file).load(file);
+            if (swap != null) {
+                pending.add(swap);
+            }
+            System.out.println("Reloading " + root.relativize(file));
+        } catch (Exception ex) {
+            Logger.getLogger(AssetWatcher.class.getName()).warning("Failed to reload " + file + ": " + ex);
+        }
+    }
+
+    /**
+     * Run the swap steps of reloaded assets. Must be called on the GL thread between frames.
+     * @return the number of assets swapped in
+     */
+    public int applyPending() {
+        int applied = 0;
+        Swap swap;
+        while ((swap = pending.poll()) != null) {
+            try {
+                swap.apply();
+                applied++;
+            } catch (RuntimeException ex) {
+                Logger.getLogger(AssetWatcher.class.getName()).warning("Failed to swap in reloaded asset: " + ex);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Stop the watcher thread and discard reloads that were not applied
+     */
+    @Override
+    public void close() throws IOException {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        watchService.close();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Swap swap;
+        while ((swap = pending.poll()) != null) {
+            swap.discard();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.alexjmohr.graphics.loaders;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * A pool of reusable native buffers for reading resources that can't be memory mapped. Buffers
+ * are allocated with MemoryUtil in power of two sizes, and up to maxRetainedBytes of released
+ * buffers are kept for reuse, so loading many files of similar size allocates only a few times.
+ */
+public class DirectBufferPool {
+
+    /**
+     * The smallest buffer handed out
+     */
+    public static final int MIN_CAPACITY = 4096;
+
+    /**
+     * The largest buffer size that is rounded up to a power of two and pooled
+     */
+    private static final int MAX_POOLED_CAPACITY = 1 << 30;
+
+    /**
+     * The most memory kept in released buffers
+     */
+    private final long maxRetainedBytes;
+
+    /**
+     * The released buffers by capacity
+     */
+    private final Map<Integer, ArrayDeque<ByteBuffer>> free;
+
+    /**
+     * The total capacity of the released buffers
+     */
+    private long retainedBytes;
+
+    /**
+     * Creates an empty pool
+     * @param maxRetainedBytes the most memory to keep in released buffers
+     */
+    public DirectBufferPool(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.free = new HashMap<>();
+    }
+
+    /**
+     * Get a buffer of at least the given size, positioned at 0 with its limit at its capacity
+     * @param size the minimum size in bytes
+     * @return the buffer, which must be given back with release()
+     */
+    public synchronized ByteBuffer acquire(int size) {
+        int capacity = capacityFor(size);
+        ArrayDeque<ByteBuffer> buffers = free.get(capacity);
+        ByteBuffer buffer = buffers != null ? buffers.poll() : null;
+        if (buffer == null) {
+            return MemoryUtil.memAlloc(capacity);
+        }
+        retainedBytes -= capacity;
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool, or free it if the pool is full
+     * @param buffer a buffer returned by acquire()
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > MAX_POOLED_CAPACITY || retainedBytes + capacity > maxRetainedBytes) {
+            MemoryUtil.memFree(buffer);
+            return;
+        }
+        free.computeIfAbsent(capacity, c -> new ArrayDeque<>()).push(buffer);
+        retainedBytes += capacity;
+    }
+
+    /**
+     * Get the total capacity of the buffers waiting for reuse
+     * @return the retained size in bytes
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * Free every buffer waiting for reuse
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<ByteBuffer> buffers : free.values()) {
+            for (ByteBuffer buffer : buffers) {
+                MemoryUtil.memFree(buffer);
+            }
+        }
+        free.clear();
+        retainedBytes = 0;
+    }
+
+    /**
+     * Round a size up to the pooled capacity
+     * @param size the size in bytes
+     * @return the capacity
+     */
+    private static int capacityFor(int size) {
+        if (size <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        if (size > MAX_POOLED_CAPACITY) {
+            return size;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+}
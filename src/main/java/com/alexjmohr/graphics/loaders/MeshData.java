@@ -0,0 +1,132 @@
+package com.alexjmohr.graphics.loaders;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * CPU-side vertex and index data of an imported mesh, converted from Assimp and optimized, ready
+ * to be uploaded to a Mesh. The buffers are allocated with MemoryUtil and owned by whoever holds
+ * this object until they are passed to a Mesh or freed with free().
+ */
+public class MeshData {
+
+    /**
+     * The vertex attribute buffers, texCoords may be empty
+     */
+    private final FloatBuffer positions;
+    private final FloatBuffer normals;
+    private final FloatBuffer texCoords;
+    private final FloatBuffer tangents;
+    private final FloatBuffer bitangents;
+
+    /**
+     * The triangle list index buffer
+     */
+    private final IntBuffer indices;
+
+    /**
+     * The index of the mesh's material in the scene
+     */
+    private final int materialIndex;
+
+    /**
+     * The vertex count before welding
+     */
+    private final int importedVertexCount;
+
+    /**
+     * The ACMR of the welded mesh before and after the vertex cache optimization
+     */
+    private final float acmrBefore;
+    private final float acmrAfter;
+
+    public MeshData(FloatBuffer positions, FloatBuffer normals, FloatBuffer texCoords, FloatBuffer tangents,
+                    FloatBuffer bitangents, IntBuffer indices, int materialIndex, int importedVertexCount,
+                    float acmrBefore, float acmrAfter) {
+        this.positions = positions;
+        this.normals = normals;
+        this.texCoords = texCoords;
+        this.tangents = tangents;
+        this.bitangents = bitangents;
+        this.indices = indices;
+        this.materialIndex = materialIndex;
+        this.importedVertexCount = importedVertexCount;
+        this.acmrBefore = acmrBefore;
+        this.acmrAfter = acmrAfter;
+    }
+
+    public FloatBuffer getPositions() {
+        return positions;
+    }
+
+    public FloatBuffer getNormals() {
+        return normals;
+    }
+
+    public FloatBuffer getTexCoords() {
+        return texCoords;
+    }
+
+    public FloatBuffer getTangents() {
+        return tangents;
+    }
+
+    public FloatBuffer getBitangents() {
+        return bitangents;
+    }
+
+    public IntBuffer getIndices() {
+        return indices;
+    }
+
+    public int getMaterialIndex() {
+        return materialIndex;
+    }
+
+    /**
+     * Get the number of vertices after optimization
+     * @return the vertex count
+     */
+    public int getVertexCount() {
+        return positions.limit() / 3;
+    }
+
+    /**
+     * Get the number of vertices Assimp imported, before welding
+     * @return the imported vertex count
+     */
+    public int getImportedVertexCount() {
+        return importedVertexCount;
+    }
+
+    public float getAcmrBefore() {
+        return acmrBefore;
+    }
+
+    public float getAcmrAfter() {
+        return acmrAfter;
+    }
+
+    /**
+     * Get the total size of the buffers in bytes
+     * @return the size in bytes
+     */
+    public long getSizeBytes() {
+        return 4L * (positions.limit() + normals.limit() + texCoords.limit() + tangents.limit()
+                + bitangents.limit() + indices.limit());
+    }
+
+    /**
+     * Frees the buffers. Only call this if they were not passed to a Mesh.
+     */
+    public void free() {
+        MemoryUtil.memFree(positions);
+        MemoryUtil.memFree(normals);
+        MemoryUtil.memFree(texCoords);
+        MemoryUtil.memFree(tangents);
+        MemoryUtil.memFree(bitangents);
+        MemoryUtil.memFree(indices);
+    }
+}
@@ -0,0 +1,384 @@
+package com.alexjmohr.graphics.loaders;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Post-import optimization stage for indexed triangle meshes. Welds identical vertices, reorders
+ * triangles for the post-transform vertex cache (Tom Forsyth's linear-speed algorithm), then
+ * reorders vertices in the order they are first referenced so vertex fetches are sequential.
+ *
+ * Vertex attributes are added as separate streams (e.g. positions, normals, texcoords) which are
+ * all rewritten in place. Each stream's limit is set to the new vertex count when welding.
+ */
+public class MeshOptimizer {
+
+    /**
+     * The vertex cache size that is simulated when optimizing and when computing the ACMR
+     */
+    public static final int CACHE_SIZE = 32;
+
+    /**
+     * The largest vertex count that can be addressed with 16-bit indices
+     */
+    public static final int MAX_SHORT_INDEX_VERTICES = 65536;
+
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+
+    /**
+     * The index buffer, three indices per triangle
+     */
+    private final IntBuffer indices;
+
+    /**
+     * The vertex attribute streams
+     */
+    private final List<FloatBuffer> streams;
+
+    /**
+     * The number of floats per vertex for each stream
+     */
+    private final List<Integer> components;
+
+    /**
+     * The current number of vertices
+     */
+    private int vertexCount;
+
+    /**
+     * Creates an optimizer for the given index buffer. Indices are read from 0 to the buffer's
+     * limit.
+     * @param indices     the triangle list index buffer
+     * @param vertexCount the number of vertices referenced by the index buffer
+     */
+    public MeshOptimizer(IntBuffer indices, int vertexCount) {
+        this.indices = indices;
+        this.vertexCount = vertexCount;
+        this.streams = new ArrayList<>();
+        this.components = new ArrayList<>();
+    }
+
+    /**
+     * Add a vertex attribute stream to be welded and reordered along with the indices. Streams
+     * that are null or hold no data for this mesh are ignored.
+     * @param stream     the attribute data
+     * @param components the number of floats per vertex
+     */
+    public void addStream(FloatBuffer stream, int components) {
+        if (stream == null || stream.limit() < vertexCount * components) {
+            return;
+        }
+        streams.add(stream);
+        this.components.add(components);
+    }
+
+    /**
+     * Run weld, vertex cache and vertex fetch optimization
+     * @return the new vertex count
+     */
+    public int optimize() {
+        weldVertices();
+        optimizeVertexCache();
+        optimizeVertexFetch();
+        return vertexCount;
+    }
+
+    /**
+     * Merge vertices whose attributes are bitwise identical in every stream and remap the indices.
+     * @return the new vertex count
+     */
+    public int weldVertices() {
+        int tableSize = Integer.highestOneBit(Math.max(vertexCount, 1) * 2) * 2;
+        int[] table = new int[tableSize];
+        Arrays.fill(table, -1);
+        int[] remap = new int[vertexCount];
+        int unique = 0;
+
+        for (int v = 0; v < vertexCount; v++) {
+            int slot = hashVertex(v) & (tableSize - 1);
+            while (table[slot] != -1 && !verticesEqual(table[slot], v)) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            if (table[slot] == -1) {
+                // First occurrence. New indices are never larger than old ones, so the streams
+                // can be compacted in place.
+                copyVertex(v, unique);
+                table[slot] = unique;
+                remap[v] = unique++;
+            } else {
+                remap[v] = table[slot];
+            }
+        }
+
+        for (int i = 0; i < indices.limit(); i++) {
+            indices.put(i, remap[indices.get(i)]);
+        }
+        setVertexCount(unique);
+        return unique;
+    }
+
+    /**
+     * Reorder the triangles to maximize post-transform vertex cache hits
+     */
+    public void optimizeVertexCache() {
+        int triangleCount = indices.limit() / 3;
+        if (triangleCount == 0) {
+            return;
+        }
+
+        // Build vertex to triangle adjacency
+        int[] valence = new int[vertexCount];
+        for (int i = 0; i < triangleCount * 3; i++) {
+            valence[indices.get(i)]++;
+        }
+        int[] adjacencyOffset = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) {
+            adjacencyOffset[v + 1] = adjacencyOffset[v] + valence[v];
+        }
+        int[] adjacency = new int[triangleCount * 3];
+        int[] fill = Arrays.copyOf(adjacencyOffset, vertexCount);
+        for (int t = 0; t < triangleCount; t++) {
+            for (int k = 0; k < 3; k++) {
+                adjacency[fill[indices.get(t * 3 + k)]++] = t;
+            }
+        }
+
+        // remaining[v] counts the triangles using v that have not been emitted yet
+        int[] remaining = Arrays.copyOf(valence, vertexCount);
+        int[] cachePosition = new int[vertexCount];
+        Arrays.fill(cachePosition, -1);
+        float[] vertexScore = new float[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            vertexScore[v] = scoreVertex(cachePosition[v], remaining[v]);
+        }
+        float[] triangleScore = new float[triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            triangleScore[t] = vertexScore[indices.get(t * 3)] + vertexScore[indices.get(t * 3 + 1)]
+                    + vertexScore[indices.get(t * 3 + 2)];
+        }
+
+        boolean[] emitted = new boolean[triangleCount];
+        int[] output = new int[triangleCount * 3];
+        int[] cache = new int[CACHE_SIZE + 3];
+        int[] newCache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int nextScan = 0;
+
+        int best = 0;
+        for (int t = 1; t < triangleCount; t++) {
+            if (triangleScore[t] > triangleScore[best]) {
+                best = t;
+            }
+        }
+
+        for (int emittedCount = 0; emittedCount < triangleCount; emittedCount++) {
+            if (best < 0) {
+                // Nothing in the cache is adjacent to an unemitted triangle, take the next one
+                while (emitted[nextScan]) {
+                    nextScan++;
+                }
+                best = nextScan;
+            }
+
+            emitted[best] = true;
+            int newCount = 0;
+            for (int k = 0; k < 3; k++) {
+                int v = indices.get(best * 3 + k);
+                output[emittedCount * 3 + k] = v;
+                newCache[newCount++] = v;
+                remaining[v]--;
+            }
+            // Push the triangle's vertices to the front of the LRU cache
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                if (v != newCache[0] && v != newCache[1] && v != newCache[2]) {
+                    newCache[newCount++] = v;
+                }
+            }
+            int[] swap = cache;
+            cache = newCache;
+            newCache = swap;
+            cacheCount = Math.min(newCount, CACHE_SIZE);
+            for (int i = cacheCount; i < newCount; i++) {
+                cachePosition[cache[i]] = -1;
+            }
+
+            // Rescore the vertices that were in the cache and the triangles that use them
+            best = -1;
+            float bestScore = -1;
+            for (int i = 0; i < newCount; i++) {
+                int v = cache[i];
+                if (i < cacheCount) {
+                    cachePosition[v] = i;
+                }
+                float score = scoreVertex(cachePosition[v], remaining[v]);
+                float diff = score - vertexScore[v];
+                vertexScore[v] = score;
+                for (int a = adjacencyOffset[v]; a < adjacencyOffset[v + 1]; a++) {
+                    int t = adjacency[a];
+                    if (emitted[t]) {
+                        continue;
+                    }
+                    triangleScore[t] += diff;
+                    if (triangleScore[t] > bestScore) {
+                        bestScore = triangleScore[t];
+                        best = t;
+                    }
+                }
+            }
+        }
+
+        indices.put(output, 0, output.length).rewind();
+    }
+
+    /**
+     * Reorder vertices in the order they are first referenced by the index buffer, so vertex
+     * fetch is as linear as possible. Unreferenced vertices are moved to the end.
+     */
+    public void optimizeVertexFetch() {
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        int next = 0;
+        for (int i = 0; i < indices.limit(); i++) {
+            int v = indices.get(i);
+            if (remap[v] == -1) {
+                remap[v] = next++;
+            }
+            indices.put(i, remap[v]);
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            if (remap[v] == -1) {
+                remap[v] = next++;
+            }
+        }
+
+        for (int s = 0; s < streams.size(); s++) {
+            FloatBuffer stream = streams.get(s);
+            int n = components.get(s);
+            float[] copy = new float[vertexCount * n];
+            stream.get(copy, 0, copy.length).rewind();
+            for (int v = 0; v < vertexCount; v++) {
+                int dst = remap[v] * n;
+                for (int c = 0; c < n; c++) {
+                    stream.put(dst + c, copy[v * n + c]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the current vertex count
+     * @return the vertex count
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * Calculate the average cache miss ratio (transformed vertices per triangle) of the given
+     * index buffer with a FIFO cache of the given size. 3.0 is the worst case, ~0.5 is ideal.
+     * @param indices   the triangle list index buffer
+     * @param cacheSize the simulated cache size
+     * @return the ACMR
+     */
+    public static float computeACMR(IntBuffer indices, int cacheSize) {
+        int triangleCount = indices.limit() / 3;
+        if (triangleCount == 0) {
+            return 0;
+        }
+        int[] fifo = new int[cacheSize];
+        Arrays.fill(fifo, -1);
+        int head = 0;
+        int misses = 0;
+        for (int i = 0; i < triangleCount * 3; i++) {
+            int v = indices.get(i);
+            boolean hit = false;
+            for (int c = 0; c < cacheSize; c++) {
+                if (fifo[c] == v) {
+                    hit = true;
+                    break;
+                }
+            }
+            if (!hit) {
+                fifo[head] = v;
+                head = (head + 1) % cacheSize;
+                misses++;
+            }
+        }
+        return misses / (float) triangleCount;
+    }
+
+    /**
+     * Score a vertex by its position in the LRU cache and how many triangles still use it
+     */
+    private static float scoreVertex(int cachePosition, int remainingTriangles) {
+        if (remainingTriangles == 0) {
+            return -1;
+        }
+        float score = 0;
+        if (cachePosition >= 0) {
+            if (cachePosition < 3) {
+                // The vertices of the last triangle get a fixed score so they are not reused
+                // right away, which would produce strips instead of a good cache pattern
+                score = LAST_TRIANGLE_SCORE;
+            } else {
+                float scaler = 1.0f / (CACHE_SIZE - 3);
+                score = (float) Math.pow(1.0f - (cachePosition - 3) * scaler, CACHE_DECAY_POWER);
+            }
+        }
+        // Boost vertices with few triangles left so lone triangles are not left behind
+        score += VALENCE_BOOST_SCALE * (float) Math.pow(remainingTriangles, -VALENCE_BOOST_POWER);
+        return score;
+    }
+
+    private int hashVertex(int v) {
+        int hash = 17;
+        for (int s = 0; s < streams.size(); s++) {
+            FloatBuffer stream = streams.get(s);
+            int n = components.get(s);
+            for (int c = 0; c < n; c++) {
+                hash = hash * 31 + Float.floatToIntBits(stream.get(v * n + c));
+            }
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean verticesEqual(int a, int b) {
+        for (int s = 0; s < streams.size(); s++) {
+            FloatBuffer stream = streams.get(s);
+            int n = components.get(s);
+            for (int c = 0; c < n; c++) {
+                if (Float.floatToIntBits(stream.get(a * n + c)) != Float.floatToIntBits(stream.get(b * n + c))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void copyVertex(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        for (int s = 0; s < streams.size(); s++) {
+            FloatBuffer stream = streams.get(s);
+            int n = components.get(s);
+            for (int c = 0; c < n; c++) {
+                stream.put(to * n + c, stream.get(from * n + c));
+            }
+        }
+    }
+
+    private void setVertexCount(int count) {
+        vertexCount = count;
+        for (int s = 0; s < streams.size(); s++) {
+            streams.get(s).limit(count * components.get(s));
+        }
+    }
+}
@@ -5,7 +5,14 @@ import static org.lwjgl.assimp.Assimp.*;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
 
+import com.alexjmohr.graphics.rendering.GLResource;
 import com.alexjmohr.graphics.rendering.Material;
 import com.alexjmohr.graphics.rendering.Mesh;
 import com.alexjmohr.graphics.rendering.Texture;
@@ -20,7 +27,7 @@ import org.lwjgl.system.MemoryUtil;
  * @author Alex Mohr
  *
  */
-public class ModelLoader {
+public class ModelLoader implements GLResource {
 
 	/**
 	 * List of loaded meshes
@@ -31,45 +38,274 @@ public class ModelLoader {
 	 * List of loaded materials
 	 */
 	private ArrayList<Material> materials;
+
+	/**
+	 * What loaded meshes keep in CPU memory after upload
+	 */
+	private Mesh.Residency residency;
+
+	/**
+	 * Looks up the textures of materials
+	 */
+	private TextureSource textureSource;
+
+	/**
+	 * Provides the texture for a texture file path
+	 */
+	public interface TextureSource {
+
+		/**
+		 * Get a texture
+		 * @param path the resource path of the texture file
+		 * @return the texture, or null to leave the material untextured
+		 * @throws Exception if the texture could not be loaded
+		 */
+		Texture getTexture(String path) throws Exception;
+	}
 	
 	public ModelLoader() {
 		meshes = new ArrayList<Mesh>();
 		materials = new ArrayList<Material>();
+		residency = Mesh.Residency.GPU_ONLY;
+		textureSource = path -> TextureCache.getInstance().getTexture(path);
+	}
+
+	/**
+	 * Set what meshes loaded from now on keep in CPU memory after upload. Defaults to GPU_ONLY.
+	 * @param residency the residency policy
+	 */
+	public void setResidency(Mesh.Residency residency) {
+		this.residency = residency;
+	}
+
+	/**
+	 * Set where material textures come from. Defaults to the TextureCache, which loads each
+	 * texture on first use and keeps it until exit.
+	 * @param textureSource the texture source
+	 */
+	public void setTextureSource(TextureSource textureSource) {
+		this.textureSource = textureSource;
+	}
+
+	/**
+	 * Get the CPU memory retained by the loaded meshes
+	 * @return the size in bytes
+	 */
+	public long getCpuSizeBytes() {
+		long size = 0;
+		for (Mesh mesh : meshes) {
+			size += mesh.getCpuSizeBytes();
+		}
+		return size;
 	}
 	
 	/**
-	 * Loads a model from the given file path, and saves it in this object's data structures.
-	 * @param resourcePath the file to load the model from
+	 * A model imported by Assimp with its meshes converted and optimized, waiting for its
+	 * materials and meshes to be created by load(). Importing does not need an OpenGL context, so
+	 * it can happen on a background thread.
 	 */
-	public void loadModel(String resourcePath, String texturesDir) throws Exception {
+	public static class ImportedModel {
+
+		/**
+		 * The model file
+		 */
+		private final String path;
 
-		// Import file from absolute path
-		AIScene aiScene = aiImportFile(
-			resourcePath,
+		/**
+		 * The imported scene, holding the materials
+		 */
+		private final AIScene aiScene;
+
+		/**
+		 * The converted triangle meshes that have not been loaded yet
+		 */
+		private final List<MeshData> meshes;
+
+		private ImportedModel(String path, AIScene aiScene, List<MeshData> meshes) {
+			this.path = path;
+			this.aiScene = aiScene;
+			this.meshes = meshes;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Get the texture files referenced by the model's materials, so they can be decoded
+		 * before load() needs them
+		 * @param texturesDir the resource directory of the model's textures
+		 * @return the resource paths of the textures
+		 */
+		public Set<String> getTexturePaths(String texturesDir) {
+			Set<String> paths = new LinkedHashSet<>();
+			int numMaterials = aiScene.mNumMaterials();
+			PointerBuffer aiMaterials = aiScene.mMaterials();
+			for (int i = 0; i < numMaterials; i++) {
+				AIMaterial aiMaterial = AIMaterial.create(aiMaterials.get(i));
+				String texture = getTexturePath(aiMaterial, aiTextureType_DIFFUSE, texturesDir);
+				if (texture != null) {
+					paths.add(texture);
+				}
+				String normalMap = getTexturePath(aiMaterial, aiTextureType_NORMALS, texturesDir);
+				if (normalMap != null) {
+					paths.add(normalMap);
+				}
+			}
+			return paths;
+		}
+
+		/**
+		 * Get the size of the mesh data that has not been loaded yet
+		 * @return the size in bytes
+		 */
+		public long getSizeBytes() {
+			long size = 0;
+			for (MeshData data : meshes) {
+				size += data.getSizeBytes();
+			}
+			return size;
+		}
+
+		/**
+		 * Release the scene and free the mesh data that was not loaded
+		 */
+		public void free() {
+			for (MeshData data : meshes) {
+				data.free();
+			}
+			meshes.clear();
+			aiReleaseImport(aiScene);
+		}
+	}
+
+	/**
+	 * Import a model file and convert and optimize its meshes. Does not need an OpenGL context.
+	 * @param resourcePath the path of the model in the mounted asset archive, or its file path
+	 * @return the imported model, which must be passed to load() or freed
+	 */
+	public static ImportedModel importModel(String resourcePath) {
+
+		int flags =
 			aiProcess_CalcTangentSpace |
 			aiProcess_GenNormals |
 			// aiProcess_GenUVCoords |
+			// Identical vertices are welded by MeshOptimizer in processMesh
 			// aiProcess_JoinIdenticalVertices |
 			aiProcess_OptimizeMeshes |
-			// aiProcess_SortByPType |
-			aiProcess_Triangulate
-		);
+			aiProcess_SortByPType |
+			aiProcess_Triangulate;
+
+		// Import from the mounted asset archive if it has the model, otherwise from the file system
+		AssetArchive archive = ResourceLoader.getArchive();
+		AIScene aiScene;
+		if (archive != null && archive.contains(resourcePath)) {
+			aiScene = aiImportFileEx(resourcePath, flags, archive.getFileIO());
+		} else {
+			aiScene = aiImportFile(resourcePath, flags);
+		}
 		if (aiScene == null) {
 			throw new RuntimeException("Failed to load model: " + aiGetErrorString());
 		}
 
-		int numMaterials = aiScene.mNumMaterials();
-		PointerBuffer aiMaterials = aiScene.mMaterials();
-		for (int i = 0; i < numMaterials; i++) {
-			AIMaterial aiMaterial = AIMaterial.create(aiMaterials.get(i));
-			processMaterial(aiMaterial, texturesDir);
+		ImportedModel model = new ImportedModel(resourcePath, aiScene, new ArrayList<>());
+		try {
+			int numMeshes = aiScene.mNumMeshes();
+			PointerBuffer aiMeshes = aiScene.mMeshes();
+			for (int i = 0; i < numMeshes; i++) {
+				AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
+				// Point and line meshes are split off by aiProcess_SortByPType, only render triangles
+				if ((aiMesh.mPrimitiveTypes() & ~aiPrimitiveType_TRIANGLE) != 0) {
+					continue;
+				}
+				model.meshes.add(readMesh(aiMesh));
+			}
+		} catch (RuntimeException ex) {
+			model.free();
+			throw ex;
 		}
-		
-		int numMeshes = aiScene.mNumMeshes();
-		PointerBuffer aiMeshes = aiScene.mMeshes();
-		for (int i = 0; i < numMeshes; i++) {
-			AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
-			processMesh(aiMesh);
+		return model;
+	}
+
+	/**
+	 * Loads a model from the given file path, and saves it in this object's data structures.
+	 * @param resourcePath the file to load the model from
+	 */
+	public void loadModel(String resourcePath, String texturesDir) throws Exception {
+		load(importModel(resourcePath), texturesDir);
+	}
+
+	/**
+	 * Create the materials and meshes of an imported model and add them to this object's data
+	 * structures. Frees the imported model.
+	 * @param model       the imported model
+	 * @param texturesDir the resource directory of the model's textures
+	 */
+	public void load(ImportedModel model, String texturesDir) throws Exception {
+		try {
+			// The meshes' material indices are relative to their own scene, while the list also
+			// holds the materials of every model loaded before this one
+			int materialOffset = materials.size();
+			int numMaterials = model.aiScene.mNumMaterials();
+			PointerBuffer aiMaterials = model.aiScene.mMaterials();
+			for (int i = 0; i < numMaterials; i++) {
+				AIMaterial aiMaterial = AIMaterial.create(aiMaterials.get(i));
+				processMaterial(aiMaterial, texturesDir);
+			}
+
+			// Meshes take ownership of their data, so remove it from the model as it is used
+			int numMeshes = 0;
+			long importedVertices = 0;
+			long vertices = 0;
+			double missesBefore = 0;
+			double missesAfter = 0;
+			long triangles = 0;
+			Iterator<MeshData> it = model.meshes.iterator();
+			while (it.hasNext()) {
+				MeshData data = it.next();
+				it.remove();
+				// Weight each mesh's ACMR by its triangles, for the model's overall ACMR
+				int meshTriangles = data.getIndices().limit() / 3;
+				numMeshes++;
+				importedVertices += data.getImportedVertexCount();
+				vertices += data.getVertexCount();
+				missesBefore += data.getAcmrBefore() * meshTriangles;
+				missesAfter += data.getAcmrAfter() * meshTriangles;
+				triangles += meshTriangles;
+				processMesh(data, materialOffset, model.path);
+			}
+			Logger.getLogger(ModelLoader.class.getName()).info(String.format(
+					"Optimized %d meshes of %s: %d -> %d vertices after welding, ACMR %.3f -> %.3f after vertex cache ordering",
+					numMeshes, model.path, importedVertices, vertices,
+					triangles > 0 ? missesBefore / triangles : 0.0, triangles > 0 ? missesAfter / triangles : 0.0));
+		} finally {
+			// The meshes and materials have been copied out of the scene
+			model.free();
+		}
+	}
+
+	/**
+	 * Replace the loaded meshes and materials with those of a re-imported model, e.g. after the
+	 * file changed. The old meshes are deleted once the new ones are created; if loading fails
+	 * the old ones are kept.
+	 * @param model       the imported model, freed by this call
+	 * @param texturesDir the resource directory of the model's textures
+	 */
+	public void reload(ImportedModel model, String texturesDir) throws Exception {
+		ArrayList<Mesh> oldMeshes = meshes;
+		ArrayList<Material> oldMaterials = materials;
+		meshes = new ArrayList<Mesh>();
+		materials = new ArrayList<Material>();
+		try {
+			load(model, texturesDir);
+		} catch (Exception ex) {
+			delete();
+			meshes = oldMeshes;
+			materials = oldMaterials;
+			throw ex;
+		}
+		for (Mesh mesh : oldMeshes) {
+			mesh.delete();
 		}
 	}
 
@@ -81,25 +317,17 @@ public class ModelLoader {
 		AIColor4D colour = AIColor4D.create();
 
 		// Load texture
-		AIString path = AIString.calloc();
-		aiGetMaterialTexture(aiMaterial, aiTextureType_DIFFUSE, 0, path, (IntBuffer) null, null, null, null, null, null);
-		String texPath = path.dataString();
 		Texture texture = null;
-		if (texPath != null && texPath.length() > 0) {
-			String textureFile = texturesDir + "/" + texPath;
-			textureFile = textureFile.replace("//", "/");
-			texture = TextureCache.getInstance().getTexture(textureFile);
+		String textureFile = getTexturePath(aiMaterial, aiTextureType_DIFFUSE, texturesDir);
+		if (textureFile != null) {
+			texture = textureSource.getTexture(textureFile);
 		}
 
 		// Load normal map
-		path.clear();
-		aiGetMaterialTexture(aiMaterial, aiTextureType_NORMALS, 0, path, (IntBuffer) null, null, null, null, null, null);
-		String normMapPath = path.dataString();
 		Texture normalMap = null;
-		if (normMapPath != null && normMapPath.length() > 0) {
-			String normalMapFile = texturesDir + "/" + normMapPath;
-			normalMapFile = normalMapFile.replace("//", "/");
-			normalMap = TextureCache.getInstance().getTexture(normalMapFile);
+		String normalMapFile = getTexturePath(aiMaterial, aiTextureType_NORMALS, texturesDir);
+		if (normalMapFile != null) {
+			normalMap = textureSource.getTexture(normalMapFile);
 		}
 
 		// Get ambient colour
@@ -137,10 +365,53 @@ public class ModelLoader {
 	}
 	
 	/**
-	 * Process the given AIMesh and saves it the list of meshes
-	 * @param aiMesh the AIMesh to process
+	 * Get the resource path of a material's first texture of a type
+	 * @param aiMaterial  the material
+	 * @param type        the Assimp texture type
+	 * @param texturesDir the resource directory of the model's textures
+	 * @return the texture path, or null if the material has no such texture
 	 */
-	private void processMesh(AIMesh aiMesh) {
+	private static String getTexturePath(AIMaterial aiMaterial, int type, String texturesDir) {
+		try (AIString path = AIString.calloc()) {
+			aiGetMaterialTexture(aiMaterial, type, 0, path, (IntBuffer) null, null, null, null, null, null);
+			String texPath = path.dataString();
+			if (texPath == null || texPath.length() == 0) {
+				return null;
+			}
+			return (texturesDir + "/" + texPath).replace("//", "/");
+		}
+	}
+	
+	/**
+	 * Create a mesh from converted mesh data and save it in the list of meshes
+	 * @param data           the mesh data, owned by the mesh afterwards
+	 * @param materialOffset the index of the model's first material in the list of materials
+	 * @param owner          the model file, for GPU memory accounting
+	 */
+	private void processMesh(MeshData data, int materialOffset, String owner) {
+		// Get the mesh's material
+		Material material;
+		int materialIndex = materialOffset + data.getMaterialIndex();
+		if (data.getMaterialIndex() >= 0 && materialIndex < materials.size()) {
+			material = materials.get(materialIndex);
+		} else {
+			material = new Material();
+		}
+		
+		// Create the mesh and add it to the meshes array
+		Mesh mesh = new Mesh(data.getPositions(), data.getNormals(), data.getTexCoords(), data.getTangents(),
+				data.getBitangents(), data.getIndices(), residency);
+		mesh.setMaterial(material);
+		mesh.setOwner(owner);
+		meshes.add(mesh);
+	}
+
+	/**
+	 * Convert the given AIMesh to native buffers and optimize it. Does not need an OpenGL context.
+	 * @param aiMesh the AIMesh to convert
+	 * @return the mesh data
+	 */
+	public static MeshData readMesh(AIMesh aiMesh) {
 		FloatBuffer vertBuffer = MemoryUtil.memAllocFloat(aiMesh.mNumVertices() * 3);
 		FloatBuffer normBuffer = MemoryUtil.memAllocFloat(aiMesh.mNumVertices() * 3);
 		FloatBuffer texCoordBuffer = MemoryUtil.memAllocFloat(aiMesh.mNumVertices() * 2);
@@ -210,19 +481,22 @@ public class ModelLoader {
 		}
 		indexBuffer.flip();
 
-		// Get the mesh's material
-		Material material;
-		int materialIndex = aiMesh.mMaterialIndex();
-		if (materialIndex >= 0 && materialIndex < materials.size()) {
-			material = materials.get(materialIndex);
-		} else {
-			material = new Material();
-		}
-		
-		// Create the mesh and add it to the meshes array
-		Mesh mesh = new Mesh(vertBuffer, normBuffer, texCoordBuffer, tangentBuffer, bitangentbuffer, indexBuffer);
-		mesh.setMaterial(material);
-		meshes.add(mesh);
+		// Weld identical vertices, then reorder triangles for the vertex cache and vertices for fetch
+		// locality. The ACMR is measured after welding so it only compares the cache ordering.
+		MeshOptimizer optimizer = new MeshOptimizer(indexBuffer, aiMesh.mNumVertices());
+		optimizer.addStream(vertBuffer, 3);
+		optimizer.addStream(normBuffer, 3);
+		optimizer.addStream(texCoordBuffer, 2);
+		optimizer.addStream(tangentBuffer, 3);
+		optimizer.addStream(bitangentbuffer, 3);
+		optimizer.weldVertices();
+		float acmrBefore = MeshOptimizer.computeACMR(indexBuffer, MeshOptimizer.CACHE_SIZE);
+		optimizer.optimizeVertexCache();
+		optimizer.optimizeVertexFetch();
+		float acmrAfter = MeshOptimizer.computeACMR(indexBuffer, MeshOptimizer.CACHE_SIZE);
+
+		return new MeshData(vertBuffer, normBuffer, texCoordBuffer, tangentBuffer, bitangentbuffer, indexBuffer,
+				aiMesh.mMaterialIndex(), aiMesh.mNumVertices(), acmrBefore, acmrAfter);
 	}
 	
 	/**
@@ -248,12 +522,22 @@ public class ModelLoader {
 	}
 
 	/**
-	 * Deletes the loaded meshes and materials
+	 * Get all loaded meshes
+	 * @return an unmodifiable view of the loaded meshes
+	 */
+	public List<Mesh> getMeshes() {
+		return Collections.unmodifiableList(meshes);
+	}
+
+	/**
+	 * Deletes the loaded meshes. Material textures belong to the TextureCache.
 	 */
+	@Override
 	public void delete() {
 		for (Mesh mesh : meshes) {
 			mesh.delete();
 		}
 		meshes.clear();
+		materials.clear();
 	}
 }
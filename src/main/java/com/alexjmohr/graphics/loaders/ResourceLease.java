@@ -0,0 +1,151 @@
+package com.alexjmohr.graphics.loaders;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * The data of a loaded resource, held until the lease is closed. Depending on where the resource
+ * came from, the data is a slice of the mounted asset archive, a memory mapping of the file, or a
+ * pooled native buffer. Closing the lease unmaps the file or returns the buffer to the pool right
+ * away instead of waiting for the GC, so the data must not be used after close().
+ */
+public final class ResourceLease implements AutoCloseable {
+
+    /**
+     * Where the data of a lease lives
+     */
+    public enum Source {
+        /**
+         * A slice or inflated copy of an entry in the mounted asset archive
+         */
+        ARCHIVE,
+        /**
+         * A memory mapping of the file, unmapped on close
+         */
+        MAPPED,
+        /**
+         * A buffer from the pool, returned to it on close
+         */
+        POOLED
+    }
+
+    /**
+     * sun.misc.Unsafe.invokeCleaner, which unmaps a mapped buffer, or null if it isn't available
+     */
+    private static final Method INVOKE_CLEANER;
+
+    /**
+     * The sun.misc.Unsafe instance to call INVOKE_CLEANER on
+     */
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Logger.getLogger(ResourceLease.class.getName()).warning("Mapped resources will be unmapped by the GC: " + ex);
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * The data, null once closed
+     */
+    private ByteBuffer data;
+
+    /**
+     * Where the data lives
+     */
+    private final Source source;
+
+    /**
+     * The pool of a POOLED lease
+     */
+    private final DirectBufferPool pool;
+
+    /**
+     * Creates a lease
+     * @param data   the data
+     * @param source where the data lives
+     * @param pool   the pool the buffer came from, for POOLED leases
+     */
+    ResourceLease(ByteBuffer data, Source source, DirectBufferPool pool) {
+        this.data = data;
+        this.source = source;
+        this.pool = pool;
+    }
+
+    /**
+     * Get the data, from position 0 to the resource's size. Valid until the lease is closed.
+     * @return the data
+     */
+    public ByteBuffer getData() {
+        if (data == null) {
+            throw new IllegalStateException("Resource lease is closed");
+        }
+        return data;
+    }
+
+    /**
+     * Get the size of the resource
+     * @return the size in bytes
+     */
+    public int size() {
+        return getData().limit();
+    }
+
+    /**
+     * Get where the data lives
+     * @return the source
+     */
+    public Source getSource() {
+        return source;
+    }
+
+    /**
+     * Release the data. Calls after the first do nothing.
+     */
+    @Override
+    public void close() {
+        if (data == null) {
+            return;
+        }
+        ByteBuffer released = data;
+        data = null;
+        switch (source) {
+            case MAPPED:
+                unmap(released);
+                break;
+            case POOLED:
+                pool.release(released);
+                break;
+            default:
+                // Archive slices live as long as the archive
+                break;
+        }
+    }
+
+    /**
+     * Unmap a mapped buffer now rather than when it is garbage collected
+     * @param buffer the mapped buffer, not a slice or duplicate
+     */
+    private static void unmap(ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException ex) {
+            Logger.getLogger(ResourceLease.class.getName()).warning("Failed to unmap resource: " + ex);
+        }
+    }
+}
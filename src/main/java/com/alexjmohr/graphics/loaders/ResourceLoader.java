@@ -2,25 +2,180 @@ package com.alexjmohr.graphics.loaders;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import org.lwjgl.system.MemoryUtil;
 
 /**
- * ResourceLoader
+ * ResourceLoader loads resources from the mounted asset archive, or from the classpath if the
+ * archive doesn't have them.
+ *
+ * open() and openFile() avoid copying where they can: archive entries are slices of the archive's
+ * mapping, large files and resources in exploded classpath directories are memory mapped, and
+ * everything else, like resources packed in a jar, is streamed into a pooled native buffer. The
+ * returned lease releases the memory when closed.
  */
 public class ResourceLoader {
 
     /**
-     * Loads a resource to a ByteBuffer from the given path
+     * Files smaller than this are read into a pooled buffer rather than mapped, since a mapping
+     * costs a system call and at least a page
+     */
+    public static final int MAP_THRESHOLD = 64 * 1024;
+
+    /**
+     * The most memory the buffer pool keeps for reuse
+     */
+    private static final long POOL_RETAINED_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The mounted asset archive, null to load everything from the classpath
+     */
+    private static volatile AssetArchive archive;
+
+    /**
+     * Buffers for resources that can't be mapped
+     */
+    private static final DirectBufferPool pool = new DirectBufferPool(POOL_RETAINED_BYTES);
+
+    /**
+     * Mount an asset archive, so resources it contains are loaded from it
+     * @param archive the archive, or null to unmount
+     */
+    public static void mount(AssetArchive archive) {
+        ResourceLoader.archive = archive;
+    }
+
+    /**
+     * Get the mounted asset archive
+     * @return the archive, or null if none is mounted
+     */
+    public static AssetArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Get the pool of buffers used for resources that can't be mapped
+     * @return the pool
+     */
+    public static DirectBufferPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Load a resource without copying it where possible
+     * @param path the resource path
+     * @return the lease on the resource's data, which must be closed
+     * @throws IOException if the resource doesn't exist or can't be read
+     */
+    public static ResourceLease open(String path) throws IOException {
+        AssetArchive mounted = archive;
+        if (mounted != null && mounted.contains(path)) {
+            return new ResourceLease(mounted.read(path), ResourceLease.Source.ARCHIVE, null);
+        }
+
+        URL url = ResourceLoader.class.getResource(path);
+        if (url == null) {
+            throw new IOException("Resource not found: " + path);
+        }
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return openFile(Paths.get(url.toURI()));
+            } catch (URISyntaxException ex) {
+                throw new IOException("Invalid resource URL " + url, ex);
+            }
+        }
+
+        // Packed in a jar, stream it into a pooled buffer
+        URLConnection connection = url.openConnection();
+        long length = connection.getContentLengthLong();
+        try (InputStream in = connection.getInputStream()) {
+            return new ResourceLease(read(Channels.newChannel(in), length), ResourceLease.Source.POOLED, pool);
+        }
+    }
+
+    /**
+     * Load a file, mapping it unless it is small
+     * @param file the file
+     * @return the lease on the file's data, which must be closed
+     * @throws IOException if the file can't be read
+     */
+    public static ResourceLease openFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is larger than 2 GB");
+            }
+            if (size >= MAP_THRESHOLD) {
+                // The mapping stays valid after the channel is closed
+                return new ResourceLease(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), ResourceLease.Source.MAPPED, null);
+            }
+            return new ResourceLease(read(channel, size), ResourceLease.Source.POOLED, pool);
+        }
+    }
+
+    /**
+     * Read a channel to the end into a pooled buffer, growing it if the length was wrong or unknown
+     * @param channel the channel
+     * @param length  the expected length, or -1 if unknown
+     * @return the buffer from the pool, flipped
+     */
+    private static ByteBuffer read(ReadableByteChannel channel, long length) throws IOException {
+        ByteBuffer buffer = pool.acquire(length >= 0 ? (int) length : DirectBufferPool.MIN_CAPACITY);
+        ByteBuffer probe = null;
+        try {
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    // A full buffer usually holds the whole resource, so check for the end
+                    // before copying it into a larger one
+                    if (probe == null) {
+                        probe = ByteBuffer.allocate(1);
+                    }
+                    probe.clear();
+                    if (channel.read(probe) < 0) {
+                        break;
+                    }
+                    ByteBuffer larger = pool.acquire(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    probe.flip();
+                    larger.put(probe);
+                    pool.release(buffer);
+                    buffer = larger;
+                }
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            pool.release(buffer);
+            throw ex;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Loads a resource to a ByteBuffer from the given path. The buffer is allocated with
+     * MemoryUtil, the caller must free it with MemoryUtil.memFree. Prefer open(), which avoids
+     * the copy.
      * @param path the path to the resource file to load
+     * @return the resource data
      */
     public static ByteBuffer loadResource(String path) throws IOException {
-        ByteBuffer buffer = null;
-        try (InputStream in = ResourceLoader.class.getResourceAsStream(path)) {
-            byte[] data = in.readAllBytes();
-            buffer = MemoryUtil.memAlloc(data.length);
-            buffer.put(data).flip();
+        try (ResourceLease lease = open(path)) {
+            ByteBuffer data = lease.getData();
+            ByteBuffer buffer = MemoryUtil.memAlloc(data.remaining());
+            buffer.put(data.duplicate()).flip();
+            return buffer;
         }
-        return buffer;
     }
-}
\ No newline at end of file
+}
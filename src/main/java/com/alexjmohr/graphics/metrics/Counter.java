@@ -0,0 +1,53 @@
+package com.alexjmohr.graphics.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A count that only goes up. Either incremented directly, or read from a function returning a
+ * monotonic total that is kept elsewhere, e.g. a renderer's draw call count.
+ */
+public class Counter extends Metric {
+
+    /**
+     * The count when incremented directly
+     */
+    private final LongAdder count;
+
+    /**
+     * The function returning the count, null when incremented directly
+     */
+    private final LongSupplier supplier;
+
+    Counter(String name, String help, LongSupplier supplier) {
+        super(name, help);
+        this.supplier = supplier;
+        this.count = supplier == null ? new LongAdder() : null;
+    }
+
+    /**
+     * Increment the count by one
+     */
+    public void inc() {
+        add(1);
+    }
+
+    /**
+     * Increment the count
+     * @param amount the amount to add, must not be negative
+     */
+    public void add(long amount) {
+        if (count == null) {
+            throw new IllegalStateException("Counter " + getName() + " is read from a function");
+        }
+        count.add(amount);
+    }
+
+    /**
+     * Get the count
+     * @return the count
+     */
+    public long get() {
+        return supplier != null ? supplier.getAsLong() : count.sum();
+    }
+}
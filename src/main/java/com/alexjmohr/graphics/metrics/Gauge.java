@@ -0,0 +1,43 @@
+package com.alexjmohr.graphics.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value that can go up and down. Either set directly, or read from a function when exported.
+ */
+public class Gauge extends Metric {
+
+    /**
+     * The value when set directly
+     */
+    private volatile double value;
+
+    /**
+     * The function returning the value, null when set directly
+     */
+    private final DoubleSupplier supplier;
+
+    Gauge(String name, String help, DoubleSupplier supplier) {
+        super(name, help);
+        this.supplier = supplier;
+    }
+
+    /**
+     * Set the value
+     * @param value the new value
+     */
+    public void set(double value) {
+        if (supplier != null) {
+            throw new IllegalStateException("Gauge " + getName() + " is read from a function");
+        }
+        this.value = value;
+    }
+
+    /**
+     * Get the value
+     * @return the value
+     */
+    public double get() {
+        return supplier != null ? supplier.getAsDouble() : value;
+    }
+}
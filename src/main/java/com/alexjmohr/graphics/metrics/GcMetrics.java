@@ -0,0 +1,71 @@
+package com.alexjmohr.graphics.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Registers garbage collection metrics: the total collection count and time over all collectors,
+ * and a histogram of the stop-the-world pauses reported by GC notifications
+ */
+public class GcMetrics {
+
+    /**
+     * Histogram buckets for pause durations in seconds
+     */
+    private static final double[] PAUSE_BUCKETS = { 0.0005, 0.001, 0.002, 0.005, 0.01, 0.02, 0.05, 0.1, 0.5, 1 };
+
+    private GcMetrics() {
+    }
+
+    /**
+     * Register the metrics and start listening for GC notifications
+     * @param registry the registry to add the metrics to
+     */
+    public static void register(MetricsRegistry registry) {
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        registry.counter("gc_collections_total", "Garbage collections by all collectors", () -> {
+            long total = 0;
+            for (GarbageCollectorMXBean collector : collectors) {
+                total += Math.max(0, collector.getCollectionCount());
+            }
+            return total;
+        });
+        registry.counter("gc_collection_milliseconds_total", "Accumulated collection time of all collectors", () -> {
+            long total = 0;
+            for (GarbageCollectorMXBean collector : collectors) {
+                total += Math.max(0, collector.getCollectionTime());
+            }
+            return total;
+        });
+
+        Histogram pauses = registry.histogram("gc_pause_seconds", "Garbage collection pauses", PAUSE_BUCKETS);
+        for (GarbageCollectorMXBean collector : collectors) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(
+                        (notification, handback) -> onNotification(notification, pauses), null, null);
+            }
+        }
+    }
+
+    /**
+     * Record the duration of a finished collection. Concurrent cycles don't stop the app, so they
+     * aren't counted as pauses.
+     */
+    private static void onNotification(Notification notification, Histogram pauses) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        if (info.getGcName().contains("Concurrent") || info.getGcName().contains("Cycles")) {
+            return;
+        }
+        pauses.observe(info.getGcInfo().getDuration() / 1000.0);
+    }
+}
@@ -0,0 +1,91 @@
+package com.alexjmohr.graphics.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts observations into buckets with fixed upper bounds, and keeps their count and sum
+ */
+public class Histogram extends Metric {
+
+    /**
+     * The bucket upper bounds, increasing. Observations above the last go in an implicit +Inf bucket.
+     */
+    private final double[] bounds;
+
+    /**
+     * The number of observations in each bucket, not cumulative, with the +Inf bucket last
+     */
+    private final AtomicLongArray buckets;
+
+    /**
+     * The number and sum of all observations
+     */
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram(String name, String help, double[] bounds) {
+        super(name, help);
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Histogram " + name + " bucket bounds must increase");
+            }
+        }
+        this.bounds = bounds.clone();
+        this.buckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Record an observation
+     * @param value the observed value
+     */
+    public void observe(double value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Get the bucket upper bounds, without +Inf
+     * @return a copy of the bounds
+     */
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Get the cumulative bucket counts: the number of observations less than or equal to each
+     * bound, then the total for +Inf
+     * @return the cumulative counts, one longer than the bounds
+     */
+    public long[] getCumulativeCounts() {
+        long[] counts = new long[buckets.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += buckets.get(i);
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    /**
+     * Get the number of observations
+     * @return the count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the sum of all observations
+     * @return the sum
+     */
+    public double getSum() {
+        return sum.sum();
+    }
+}
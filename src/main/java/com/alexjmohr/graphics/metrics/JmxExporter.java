@@ -0,0 +1,148 @@
+package com.alexjmohr.graphics.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes every metric in a registry as read-only attributes of one MBean. Counters and gauges are
+ * attributes with the metric's name; histograms are NAME_count, NAME_sum and NAME_mean.
+ * The attributes follow the registry, so metrics registered later show up too.
+ */
+public class JmxExporter implements DynamicMBean {
+
+    /**
+     * The MBean's object name
+     */
+    public static final String OBJECT_NAME = "com.alexjmohr.graphics:type=Metrics";
+
+    /**
+     * The registry exposed
+     */
+    private final MetricsRegistry registry;
+
+    /**
+     * The registered name, null if not registered
+     */
+    private ObjectName objectName;
+
+    /**
+     * Creates an exporter for the registry
+     * @param registry the metrics to expose
+     */
+    public JmxExporter(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Register the MBean with the platform MBean server
+     * @throws JMException if registration fails
+     */
+    public void register() throws JMException {
+        if (objectName == null) {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        }
+    }
+
+    /**
+     * Unregister the MBean
+     */
+    public void unregister() {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException ignored) {
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Metric metric = registry.get(attribute);
+        if (metric instanceof Counter) {
+            return ((Counter) metric).get();
+        }
+        if (metric instanceof Gauge) {
+            return ((Gauge) metric).get();
+        }
+        int suffix = attribute.lastIndexOf('_');
+        if (suffix > 0) {
+            Metric histogram = registry.get(attribute.substring(0, suffix));
+            if (histogram instanceof Histogram) {
+                Histogram h = (Histogram) histogram;
+                switch (attribute.substring(suffix + 1)) {
+                    case "count":
+                        return h.getCount();
+                    case "sum":
+                        return h.getSum();
+                    case "mean":
+                        long count = h.getCount();
+                        return count == 0 ? 0.0 : h.getSum() / count;
+                    default:
+                        break;
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException ignored) {
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Metric metric : registry.getMetrics()) {
+            String name = metric.getName();
+            if (metric instanceof Counter) {
+                attributes.add(new MBeanAttributeInfo(name, "long", metric.getHelp(), true, false, false));
+            } else if (metric instanceof Gauge) {
+                attributes.add(new MBeanAttributeInfo(name, "double", metric.getHelp(), true, false, false));
+            } else if (metric instanceof Histogram) {
+                attributes.add(new MBeanAttributeInfo(name + "_count", "long", metric.getHelp() + " (count)", true, false, false));
+                attributes.add(new MBeanAttributeInfo(name + "_sum", "double", metric.getHelp() + " (sum)", true, false, false));
+                attributes.add(new MBeanAttributeInfo(name + "_mean", "double", metric.getHelp() + " (mean)", true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Graphics runtime metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
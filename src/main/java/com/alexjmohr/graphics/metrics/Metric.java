@@ -0,0 +1,30 @@
+package com.alexjmohr.graphics.metrics;
+
+/**
+ * Base class of the metrics in a MetricsRegistry
+ */
+public abstract class Metric {
+
+    /**
+     * The name, in Prometheus form, e.g. draw_calls_total
+     */
+    private final String name;
+
+    /**
+     * The description
+     */
+    private final String help;
+
+    protected Metric(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+}
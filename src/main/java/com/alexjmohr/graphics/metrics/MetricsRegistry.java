@@ -0,0 +1,143 @@
+package com.alexjmohr.graphics.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Singleton registry of the app's runtime metrics. Metrics are registered once, updated on the
+ * render thread and read by the JMX and Prometheus exporters on their own threads.
+ *
+ * Registering a name that already exists returns the existing metric if it has the same type.
+ */
+public class MetricsRegistry {
+
+    /**
+     * Default histogram buckets for durations in seconds, 1ms to 1s
+     */
+    public static final double[] DURATION_BUCKETS = { 0.001, 0.002, 0.004, 0.008, 0.0167, 0.033, 0.05, 0.1, 0.25, 0.5, 1 };
+
+    /**
+     * The singleton instance
+     */
+    private static MetricsRegistry instance;
+
+    /**
+     * The metrics by name
+     */
+    private final Map<String, Metric> metrics;
+
+    /**
+     * The metrics in registration order
+     */
+    private final List<Metric> ordered;
+
+    /**
+     * Initializes the registry
+     */
+    private MetricsRegistry() {
+        metrics = new ConcurrentHashMap<>();
+        ordered = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Get the registry instance. Initializes it if this is the first call.
+     * @return the singleton instance
+     */
+    public static synchronized MetricsRegistry getInstance() {
+        if (instance == null) {
+            instance = new MetricsRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Register a counter that is incremented directly
+     * @param name the metric name, ending in _total by convention
+     * @param help the description
+     * @return the counter
+     */
+    public Counter counter(String name, String help) {
+        return register(new Counter(name, help, null), Counter.class);
+    }
+
+    /**
+     * Register a counter read from a function returning a monotonic total
+     * @param name     the metric name, ending in _total by convention
+     * @param help     the description
+     * @param supplier the function returning the count
+     * @return the counter
+     */
+    public Counter counter(String name, String help, LongSupplier supplier) {
+        return register(new Counter(name, help, supplier), Counter.class);
+    }
+
+    /**
+     * Register a gauge that is set directly
+     * @param name the metric name
+     * @param help the description
+     * @return the gauge
+     */
+    public Gauge gauge(String name, String help) {
+        return register(new Gauge(name, help, null), Gauge.class);
+    }
+
+    /**
+     * Register a gauge read from a function
+     * @param name     the metric name
+     * @param help     the description
+     * @param supplier the function returning the value
+     * @return the gauge
+     */
+    public Gauge gauge(String name, String help, DoubleSupplier supplier) {
+        return register(new Gauge(name, help, supplier), Gauge.class);
+    }
+
+    /**
+     * Register a histogram
+     * @param name   the metric name
+     * @param help   the description
+     * @param bounds the bucket upper bounds, increasing
+     * @return the histogram
+     */
+    public Histogram histogram(String name, String help, double... bounds) {
+        return register(new Histogram(name, help, bounds), Histogram.class);
+    }
+
+    /**
+     * Add the metric, or return the existing metric with its name
+     */
+    private synchronized <T extends Metric> T register(T metric, Class<T> type) {
+        Metric existing = metrics.get(metric.getName());
+        if (existing != null) {
+            if (!type.isInstance(existing)) {
+                throw new IllegalArgumentException("Metric " + metric.getName() + " is already registered as a " + existing.getClass().getSimpleName());
+            }
+            return type.cast(existing);
+        }
+        metrics.put(metric.getName(), metric);
+        ordered.add(metric);
+        return metric;
+    }
+
+    /**
+     * Get a metric by name
+     * @param name the metric name
+     * @return the metric, or null if there is none
+     */
+    public Metric get(String name) {
+        return metrics.get(name);
+    }
+
+    /**
+     * Get all metrics in registration order
+     * @return a snapshot of the metrics
+     */
+    public List<Metric> getMetrics() {
+        return new ArrayList<>(ordered);
+    }
+}
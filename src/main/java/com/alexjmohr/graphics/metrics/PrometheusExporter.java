@@ -0,0 +1,155 @@
+package com.alexjmohr.graphics.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of a registry at /metrics in the Prometheus text exposition format. The
+ * server only binds to the loopback address, so it can't be reached from other machines.
+ */
+public class PrometheusExporter {
+
+    /**
+     * The content type of the text format
+     */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * The registry served
+     */
+    private final MetricsRegistry registry;
+
+    /**
+     * The HTTP server, null until started
+     */
+    private HttpServer server;
+
+    /**
+     * The thread handling requests
+     */
+    private ExecutorService executor;
+
+    /**
+     * Creates an exporter for the registry
+     * @param registry the metrics to serve
+     */
+    public PrometheusExporter(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Start serving on the loopback address
+     * @param port the port, or 0 for any free port
+     * @throws IOException if the server can't be started
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Get the port being served on
+     * @return the port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop serving
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+            server = null;
+        }
+    }
+
+    /**
+     * Respond to a scrape
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = format(registry).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Format every metric of a registry in the Prometheus text format
+     * @param registry the registry
+     * @return the formatted metrics
+     */
+    public static String format(MetricsRegistry registry) {
+        StringBuilder text = new StringBuilder();
+        for (Metric metric : registry.getMetrics()) {
+            String name = metric.getName();
+            text.append("# HELP ").append(name).append(' ').append(escapeHelp(metric.getHelp())).append('\n');
+            if (metric instanceof Counter) {
+                text.append("# TYPE ").append(name).append(" counter\n");
+                text.append(name).append(' ').append(((Counter) metric).get()).append('\n');
+            } else if (metric instanceof Gauge) {
+                text.append("# TYPE ").append(name).append(" gauge\n");
+                text.append(name).append(' ').append(formatDouble(((Gauge) metric).get())).append('\n');
+            } else if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+                text.append("# TYPE ").append(name).append(" histogram\n");
+                double[] bounds = histogram.getBounds();
+                long[] counts = histogram.getCumulativeCounts();
+                for (int i = 0; i < counts.length; i++) {
+                    String bound = i < bounds.length ? formatDouble(bounds[i]) : "+Inf";
+                    text.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(counts[i]).append('\n');
+                }
+                text.append(name).append("_sum ").append(formatDouble(histogram.getSum())).append('\n');
+                text.append(name).append("_count ").append(counts[counts.length - 1]).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Format a sample value
+     */
+    private static String formatDouble(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * Escape a HELP line
+     */
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,119 @@
+package com.alexjmohr.graphics.profiling;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records the time of every frame of a run, for reporting frame-time statistics of automated
+ * performance runs. Frames can be tagged with a scripted time, so frames of runs along the same
+ * camera path can be compared.
+ */
+public class FrameStats {
+
+    /**
+     * The frame times in milliseconds
+     */
+    private double[] times;
+
+    /**
+     * The scripted time of each frame in seconds, e.g. the time along a camera path, NaN if not given
+     */
+    private float[] scriptTimes;
+
+    /**
+     * The number of frames recorded
+     */
+    private int count;
+
+    /**
+     * Creates the stats with room for the expected number of frames
+     * @param expectedFrames the expected number of frames, the stats grow past it if needed
+     */
+    public FrameStats(int expectedFrames) {
+        times = new double[Math.max(16, expectedFrames)];
+        scriptTimes = new float[times.length];
+    }
+
+    /**
+     * Record a frame
+     * @param nanos the frame time in nanoseconds
+     */
+    public void add(long nanos) {
+        add(nanos, Float.NaN);
+    }
+
+    /**
+     * Record a frame of a scripted run
+     * @param nanos      the frame time in nanoseconds
+     * @param scriptTime the scripted time of the frame in seconds, e.g. the time along a camera path
+     */
+    public void add(long nanos, float scriptTime) {
+        if (count == times.length) {
+            times = Arrays.copyOf(times, count * 2);
+            scriptTimes = Arrays.copyOf(scriptTimes, count * 2);
+        }
+        times[count] = nanos / 1e6;
+        scriptTimes[count] = scriptTime;
+        count++;
+    }
+
+    /**
+     * Get the number of frames recorded
+     * @return the frame count
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the time of a frame
+     * @param frame the frame index
+     * @return the frame time in milliseconds
+     */
+    public double getTime(int frame) {
+        return times[frame];
+    }
+
+    /**
+     * Get a histogram of all recorded frame times
+     * @return the histogram
+     */
+    public RollingHistogram toHistogram() {
+        RollingHistogram histogram = new RollingHistogram(Math.max(1, count));
+        for (int i = 0; i < count; i++) {
+            histogram.add(times[i]);
+        }
+        return histogram;
+    }
+
+    /**
+     * Get a one line summary of the frame times
+     * @return the summary
+     */
+    public String getSummary() {
+        RollingHistogram histogram = toHistogram();
+        return String.format(Locale.ROOT, "%d frames, min %.3f avg %.3f p50 %.3f p95 %.3f p99 %.3f max %.3f ms",
+                count, histogram.getMin(), histogram.getAverage(), histogram.getPercentile(50),
+                histogram.getPercentile(95), histogram.getPercentile(99), histogram.getMax());
+    }
+
+    /**
+     * Write the frame times as CSV, one frame per line
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void write(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("frame,t,ms\n");
+            for (int i = 0; i < count; i++) {
+                String scriptTime = Float.isNaN(scriptTimes[i]) ? "" : String.format(Locale.ROOT, "%.4f", scriptTimes[i]);
+                writer.write(String.format(Locale.ROOT, "%d,%s,%.4f\n", i, scriptTime, times[i]));
+            }
+        }
+    }
+}
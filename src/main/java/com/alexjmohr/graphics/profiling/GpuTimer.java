@@ -0,0 +1,183 @@
+package com.alexjmohr.graphics.profiling;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.*;
+
+import java.util.Arrays;
+
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Measures GPU zones with GL_TIME_ELAPSED queries. The queries of each frame are read BUFFERED_FRAMES
+ * frames later, and only if their results are available, so reading them never stalls the CPU.
+ * Results that still aren't available are dropped and counted rather than waited for.
+ */
+class GpuTimer {
+
+    /**
+     * Number of frames of queries in flight
+     */
+    static final int BUFFERED_FRAMES = 2;
+
+    /**
+     * The profiler results are reported to
+     */
+    private final Profiler profiler;
+
+    /**
+     * The queries of each buffered frame
+     */
+    private final Frame[] frames;
+
+    /**
+     * The frame queries are being issued for
+     */
+    private Frame current;
+
+    /**
+     * True while a query is active
+     */
+    private boolean active;
+
+    /**
+     * Number of results dropped because they weren't available
+     */
+    private long dropped;
+
+    /**
+     * Creates the timer. Queries are generated as zones are opened.
+     * @param profiler the profiler to report results to
+     */
+    GpuTimer(Profiler profiler) {
+        this.profiler = profiler;
+        this.frames = new Frame[BUFFERED_FRAMES];
+        for (int i = 0; i < BUFFERED_FRAMES; i++) {
+            frames[i] = new Frame();
+        }
+    }
+
+    /**
+     * Returns true if the context supports timer queries
+     * @param capabilities the context capabilities
+     * @return true if GPU zones can be measured
+     */
+    static boolean isSupported(GLCapabilities capabilities) {
+        return capabilities.OpenGL33 || capabilities.GL_ARB_timer_query;
+    }
+
+    /**
+     * Read the available results of the frame that used the next set of queries, then reuse them
+     * for this frame
+     * @param frameIndex the index of the frame
+     * @param frameStart the CPU start time of the frame
+     */
+    void beginFrame(long frameIndex, long frameStart) {
+        current = frames[(int) (frameIndex % BUFFERED_FRAMES)];
+
+        // GPU start times are estimated by placing the zones back to back from the CPU frame start
+        long start = current.start;
+        for (int i = 0; i < current.count; i++) {
+            int query = current.queries[i];
+            if (glGetQueryObjecti(query, GL_QUERY_RESULT_AVAILABLE) == GL_FALSE) {
+                dropped++;
+                continue;
+            }
+            long duration = glGetQueryObjectui64(query, GL_QUERY_RESULT);
+            profiler.recordGpu(current.names[i], start, duration);
+            start += duration;
+        }
+        current.count = 0;
+        current.start = frameStart;
+    }
+
+    /**
+     * Begin a query for a zone
+     * @param name the zone name
+     */
+    void begin(String name) {
+        if (active) {
+            throw new IllegalStateException("GPU zones can't nest");
+        }
+        if (current == null) {
+            throw new IllegalStateException("GPU zone " + name + " opened outside a frame");
+        }
+        if (current.count == current.queries.length) {
+            int capacity = Math.max(4, current.count * 2);
+            current.queries = Arrays.copyOf(current.queries, capacity);
+            current.names = Arrays.copyOf(current.names, capacity);
+            for (int i = current.count; i < capacity; i++) {
+                current.queries[i] = glGenQueries();
+            }
+        }
+        glBeginQuery(GL_TIME_ELAPSED, current.queries[current.count]);
+        current.names[current.count] = name;
+        current.count++;
+        active = true;
+    }
+
+    /**
+     * End the active query
+     */
+    void end() {
+        if (active) {
+            glEndQuery(GL_TIME_ELAPSED);
+            active = false;
+        }
+    }
+
+    /**
+     * End the frame
+     */
+    void endFrame() {
+        if (active) {
+            throw new IllegalStateException("GPU zone " + current.names[current.count - 1] + " was not closed");
+        }
+    }
+
+    /**
+     * Get the number of results dropped because they weren't available in time
+     * @return the number of dropped results
+     */
+    long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Deletes all queries
+     */
+    void delete() {
+        for (Frame frame : frames) {
+            if (frame.queries.length > 0) {
+                glDeleteQueries(frame.queries);
+            }
+            frame.queries = new int[0];
+            frame.count = 0;
+        }
+    }
+
+    /**
+     * The queries issued in one frame
+     */
+    private static class Frame {
+
+        /**
+         * The query objects, grown as needed
+         */
+        int[] queries = new int[0];
+
+        /**
+         * The zone name of each issued query
+         */
+        String[] names = new String[0];
+
+        /**
+         * The number of queries issued
+         */
+        int count;
+
+        /**
+         * The CPU start time of the frame
+         */
+        long start;
+    }
+}
@@ -0,0 +1,345 @@
+package com.alexjmohr.graphics.profiling;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Per-frame profiler with nested, named CPU zones and GPU timer query zones.
+ *
+ * CPU zones are opened with zone(name) in a try-with-resources block and may nest. GPU zones are
+ * opened with gpuZone(name) and measure the GPU time of the commands submitted inside them. They
+ * can't nest, since only one GL_TIME_ELAPSED query may be active at a time.
+ *
+ * Every zone's duration in milliseconds is added to a rolling histogram named after the zone. The
+ * zones can also be recorded to a Chrome trace-event file, which can be opened in chrome://tracing.
+ *
+ * Usage each frame: beginFrame(), zones, endFrame().
+ */
+public class Profiler {
+
+    /**
+     * Number of samples kept by each histogram
+     */
+    public static final int HISTOGRAM_WINDOW = 300;
+
+    /**
+     * Name of the histogram of whole frame times
+     */
+    public static final String FRAME = "frame";
+
+    /**
+     * Maximum depth of nested CPU zones
+     */
+    private static final int MAX_DEPTH = 32;
+
+    /**
+     * The time all trace timestamps are relative to
+     */
+    private final long origin;
+
+    /**
+     * The CPU histograms by zone name, in the order the zones were first seen
+     */
+    private final Map<String, RollingHistogram> cpuHistograms;
+
+    /**
+     * The GPU histograms by zone name, in the order the zones were first seen
+     */
+    private final Map<String, RollingHistogram> gpuHistograms;
+
+    /**
+     * The preallocated zones, indexed by depth, so profiling doesn't allocate every frame
+     */
+    private final Zone[] stack;
+
+    /**
+     * The number of open CPU zones
+     */
+    private int depth;
+
+    /**
+     * The start time of the current frame
+     */
+    private long frameStart;
+
+    /**
+     * The number of frames begun
+     */
+    private long frameIndex;
+
+    /**
+     * The GPU timer, null if timer queries are not supported or not enabled
+     */
+    private GpuTimer gpuTimer;
+
+    /**
+     * The GPU zone handed out by gpuZone, there's only ever one open
+     */
+    private final GpuZone gpuZone;
+
+    /**
+     * The trace being recorded, null if not recording
+     */
+    private TraceRecorder trace;
+
+    /**
+     * Creates a CPU-only profiler. Call enableGpu once there is a GL context to add GPU zones.
+     */
+    public Profiler() {
+        origin = System.nanoTime();
+        cpuHistograms = new LinkedHashMap<>();
+        gpuHistograms = new LinkedHashMap<>();
+        stack = new Zone[MAX_DEPTH];
+        for (int i = 0; i < MAX_DEPTH; i++) {
+            stack[i] = new Zone();
+        }
+        gpuZone = new GpuZone();
+    }
+
+    /**
+     * Enable GPU zones if the context supports timer queries. Without them gpuZone does nothing.
+     * @param capabilities the context capabilities
+     * @return true if GPU zones are enabled
+     */
+    public boolean enableGpu(GLCapabilities capabilities) {
+        if (gpuTimer == null && GpuTimer.isSupported(capabilities)) {
+            gpuTimer = new GpuTimer(this);
+        }
+        return gpuTimer != null;
+    }
+
+    /**
+     * Start recording zones to a trace
+     */
+    public void startTrace() {
+        if (trace == null) {
+            trace = new TraceRecorder();
+        }
+    }
+
+    /**
+     * Returns true if a trace is being recorded
+     * @return true if recording
+     */
+    public boolean isTracing() {
+        return trace != null;
+    }
+
+    /**
+     * Stop recording and write the trace in Chrome trace-event JSON format
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void writeTrace(Path file) throws IOException {
+        if (trace == null) {
+            throw new IllegalStateException("No trace is being recorded");
+        }
+        trace.write(file);
+        trace = null;
+    }
+
+    /**
+     * Start a frame. Collects the results of GPU zones from earlier frames that are available.
+     */
+    public void beginFrame() {
+        if (depth != 0) {
+            throw new IllegalStateException("Zone " + stack[depth - 1].name + " was not closed");
+        }
+        frameStart = System.nanoTime();
+        if (gpuTimer != null) {
+            gpuTimer.beginFrame(frameIndex, frameStart);
+        }
+        frameIndex++;
+    }
+
+    /**
+     * End the frame and record its total time
+     */
+    public void endFrame() {
+        long end = System.nanoTime();
+        record(cpuHistograms, FRAME, end - frameStart);
+        if (trace != null) {
+            trace.add(FRAME, TraceRecorder.CPU_THREAD, frameStart - origin, end - frameStart);
+        }
+        if (gpuTimer != null) {
+            gpuTimer.endFrame();
+        }
+    }
+
+    /**
+     * Open a CPU zone. Close it, preferably with try-with-resources, before its parent.
+     * @param name the zone name
+     * @return the open zone
+     */
+    public Zone zone(String name) {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("Zones nested deeper than " + MAX_DEPTH);
+        }
+        Zone zone = stack[depth++];
+        zone.name = name;
+        zone.start = System.nanoTime();
+        return zone;
+    }
+
+    /**
+     * Open a GPU zone, measuring the GPU time of the commands submitted until it is closed
+     * @param name the zone name
+     * @return the open zone
+     */
+    public GpuZone gpuZone(String name) {
+        if (gpuTimer != null) {
+            gpuTimer.begin(name);
+        }
+        return gpuZone;
+    }
+
+    /**
+     * Close the innermost CPU zone
+     * @param zone the zone being closed
+     */
+    private void close(Zone zone) {
+        long end = System.nanoTime();
+        if (depth == 0 || stack[depth - 1] != zone) {
+            throw new IllegalStateException("Zone " + zone.name + " closed out of order");
+        }
+        depth--;
+        record(cpuHistograms, zone.name, end - zone.start);
+        if (trace != null) {
+            trace.add(zone.name, TraceRecorder.CPU_THREAD, zone.start - origin, end - zone.start);
+        }
+    }
+
+    /**
+     * Record the result of a GPU zone. Called by the GPU timer once the result is available.
+     * @param name       the zone name
+     * @param start      the estimated start time, in System.nanoTime() time
+     * @param duration   the GPU time in nanoseconds
+     */
+    void recordGpu(String name, long start, long duration) {
+        record(gpuHistograms, name, duration);
+        if (trace != null) {
+            trace.add(name, TraceRecorder.GPU_THREAD, start - origin, duration);
+        }
+    }
+
+    /**
+     * Add a duration in milliseconds to the named histogram, creating it if necessary
+     */
+    private static void record(Map<String, RollingHistogram> histograms, String name, long nanos) {
+        RollingHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new RollingHistogram(HISTOGRAM_WINDOW);
+            histograms.put(name, histogram);
+        }
+        histogram.add(nanos / 1e6);
+    }
+
+    /**
+     * Get the histogram of a CPU zone's time in milliseconds
+     * @param name the zone name
+     * @return the histogram, or null if the zone has never closed
+     */
+    public RollingHistogram getCpuHistogram(String name) {
+        return cpuHistograms.get(name);
+    }
+
+    /**
+     * Get the histogram of a GPU zone's time in milliseconds
+     * @param name the zone name
+     * @return the histogram, or null if no result for the zone has been read
+     */
+    public RollingHistogram getGpuHistogram(String name) {
+        return gpuHistograms.get(name);
+    }
+
+    /**
+     * Get all CPU histograms by zone name
+     * @return an unmodifiable view of the histograms
+     */
+    public Map<String, RollingHistogram> getCpuHistograms() {
+        return Collections.unmodifiableMap(cpuHistograms);
+    }
+
+    /**
+     * Get all GPU histograms by zone name
+     * @return an unmodifiable view of the histograms
+     */
+    public Map<String, RollingHistogram> getGpuHistograms() {
+        return Collections.unmodifiableMap(gpuHistograms);
+    }
+
+    /**
+     * Get the number of GPU zone results dropped because they weren't available in time
+     * @return the number of dropped results
+     */
+    public long getDroppedGpuResults() {
+        return gpuTimer == null ? 0 : gpuTimer.getDropped();
+    }
+
+    /**
+     * Print every histogram to standard out
+     */
+    public void printSummary() {
+        for (Map.Entry<String, RollingHistogram> entry : cpuHistograms.entrySet()) {
+            System.out.println(String.format("CPU %-12s %s ms", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<String, RollingHistogram> entry : gpuHistograms.entrySet()) {
+            System.out.println(String.format("GPU %-12s %s ms", entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Deletes the GPU queries
+     */
+    public void delete() {
+        if (gpuTimer != null) {
+            gpuTimer.delete();
+            gpuTimer = null;
+        }
+    }
+
+    /**
+     * An open CPU zone, closed by close()
+     */
+    public class Zone implements AutoCloseable {
+
+        /**
+         * The zone name
+         */
+        private String name;
+
+        /**
+         * The time the zone was opened
+         */
+        private long start;
+
+        private Zone() {
+        }
+
+        @Override
+        public void close() {
+            Profiler.this.close(this);
+        }
+    }
+
+    /**
+     * An open GPU zone, closed by close()
+     */
+    public class GpuZone implements AutoCloseable {
+
+        private GpuZone() {
+        }
+
+        @Override
+        public void close() {
+            if (gpuTimer != null) {
+                gpuTimer.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.alexjmohr.graphics.profiling;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the last N samples of a value and reports their min, average and percentiles
+ */
+public class RollingHistogram {
+
+    /**
+     * The samples, used as a ring buffer
+     */
+    private final double[] samples;
+
+    /**
+     * Scratch space for sorting when computing percentiles
+     */
+    private final double[] sorted;
+
+    /**
+     * The index the next sample is written to
+     */
+    private int next;
+
+    /**
+     * The number of valid samples, at most samples.length
+     */
+    private int count;
+
+    /**
+     * The total number of samples ever added
+     */
+    private long totalCount;
+
+    /**
+     * Creates a histogram of the given window size
+     * @param window the number of most recent samples to keep
+     */
+    public RollingHistogram(int window) {
+        samples = new double[window];
+        sorted = new double[window];
+    }
+
+    /**
+     * Add a sample, replacing the oldest if the window is full
+     * @param value the sample
+     */
+    public void add(double value) {
+        samples[next] = value;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        totalCount++;
+    }
+
+    /**
+     * Get the number of samples in the window
+     * @return the sample count
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the number of samples ever added
+     * @return the total sample count
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Get the most recent sample
+     * @return the last sample, or 0 if there are none
+     */
+    public double getLast() {
+        return count == 0 ? 0 : samples[(next - 1 + samples.length) % samples.length];
+    }
+
+    /**
+     * Get the smallest sample in the window
+     * @return the minimum, or 0 if there are no samples
+     */
+    public double getMin() {
+        if (count == 0) {
+            return 0;
+        }
+        double min = Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            min = Math.min(min, samples[i]);
+        }
+        return min;
+    }
+
+    /**
+     * Get the largest sample in the window
+     * @return the maximum, or 0 if there are no samples
+     */
+    public double getMax() {
+        double max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, samples[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Get the average of the samples in the window
+     * @return the average, or 0 if there are no samples
+     */
+    public double getAverage() {
+        if (count == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += samples[i];
+        }
+        return sum / count;
+    }
+
+    /**
+     * Get a percentile of the samples in the window, using the nearest-rank method
+     * @param percentile the percentile, 0 to 100
+     * @return the value at the percentile, or 0 if there are no samples
+     */
+    public double getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        System.arraycopy(samples, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+        return sorted[Math.max(0, Math.min(count - 1, rank - 1))];
+    }
+
+    /**
+     * Remove all samples
+     */
+    public void clear() {
+        next = 0;
+        count = 0;
+        totalCount = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("min %.3f avg %.3f p99 %.3f max %.3f (n=%d)", getMin(), getAverage(), getPercentile(99), getMax(), count);
+    }
+}
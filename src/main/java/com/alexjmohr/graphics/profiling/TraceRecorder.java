@@ -0,0 +1,111 @@
+package com.alexjmohr.graphics.profiling;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records complete events and writes them in the Chrome trace-event JSON format. CPU zones are
+ * written as one thread and GPU zones as another, so they show as separate tracks.
+ */
+class TraceRecorder {
+
+    /**
+     * The thread IDs of the CPU and GPU tracks
+     */
+    static final int CPU_THREAD = 1;
+    static final int GPU_THREAD = 2;
+
+    /**
+     * Maximum number of events recorded, later events are dropped
+     */
+    private static final int MAX_EVENTS = 1 << 20;
+
+    /**
+     * The event names
+     */
+    private String[] names = new String[1024];
+
+    /**
+     * The event thread IDs
+     */
+    private int[] threads = new int[1024];
+
+    /**
+     * The event start times and durations in nanoseconds
+     */
+    private long[] starts = new long[1024];
+    private long[] durations = new long[1024];
+
+    /**
+     * The number of events recorded
+     */
+    private int count;
+
+    /**
+     * Record a complete event
+     * @param name     the event name
+     * @param thread   the thread ID of the track
+     * @param start    the start time in nanoseconds
+     * @param duration the duration in nanoseconds
+     */
+    void add(String name, int thread, long start, long duration) {
+        if (count == MAX_EVENTS) {
+            return;
+        }
+        if (count == names.length) {
+            int capacity = count * 2;
+            names = Arrays.copyOf(names, capacity);
+            threads = Arrays.copyOf(threads, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+        }
+        names[count] = name;
+        threads[count] = thread;
+        starts[count] = start;
+        durations[count] = duration;
+        count++;
+    }
+
+    /**
+     * Write the events to a file
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    void write(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + CPU_THREAD + ",\"args\":{\"name\":\"CPU\"}},\n");
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + GPU_THREAD + ",\"args\":{\"name\":\"GPU\"}}");
+            for (int i = 0; i < count; i++) {
+                writer.write(",\n{\"name\":\"");
+                writer.write(escape(names[i]));
+                writer.write(String.format(Locale.ROOT, "\",\"cat\":\"%s\",\"ph\":\"X\",\"ts\":%.3f,\"dur\":%.3f,\"pid\":1,\"tid\":%d}",
+                        threads[i] == GPU_THREAD ? "gpu" : "cpu", starts[i] / 1e3, durations[i] / 1e3, threads[i]));
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    /**
+     * Escape a string for a JSON string literal
+     */
+    private static String escape(String s) {
+        StringBuilder escaped = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,548 @@
+package com.alexjmohr.graphics.rendergraph;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.alexjmohr.graphics.metrics.MetricsRegistry;
+import com.alexjmohr.graphics.rendering.Framebuffer;
+import com.alexjmohr.graphics.rendering.GLResource;
+import com.alexjmohr.graphics.rendering.GpuMemoryTracker;
+import com.alexjmohr.graphics.rendering.ResourceTracker;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * A frame's passes, declared by the targets they read and write rather than wired to framebuffers
+ * by hand.
+ *
+ * Compiling the graph culls the passes whose output never reaches an imported target or a pass
+ * with side effects, orders the rest so each runs after the passes writing what it reads, and
+ * gives the transient targets textures. A texture is shared by targets of the same size and
+ * format whose lifetimes, from the first pass using them to the last, don't overlap, so adding
+ * passes only adds memory for the targets that are alive at the same time. The graph is compiled
+ * again before the next execute() whenever a pass or target is added.
+ */
+public class RenderGraph implements GLResource {
+
+    /**
+     * The declared passes
+     */
+    private final List<RenderPass> passes = new ArrayList<>();
+
+    /**
+     * The live passes in execution order
+     */
+    private final List<RenderPass> schedule = new ArrayList<>();
+
+    /**
+     * The texture slot of each transient target used by a live pass
+     */
+    private final Map<RenderTarget, Integer> slots = new IdentityHashMap<>();
+
+    /**
+     * The first target given each slot, which has the slot's size and format
+     */
+    private final List<RenderTarget> slotTargets = new ArrayList<>();
+
+    /**
+     * The texture of each slot and the framebuffer of each scheduled pass, 0 for passes writing an
+     * imported target
+     */
+    private int[] textures = new int[0];
+    private int[] framebuffers = new int[0];
+
+    /**
+     * The memory of the slot textures
+     */
+    private long textureBytes;
+
+    /**
+     * The memory the transient targets would need without aliasing
+     */
+    private long unaliasedBytes;
+
+    /**
+     * Whether the graph has changed since it was compiled
+     */
+    private boolean dirty = true;
+
+    /**
+     * Declare a transient target
+     * @param name           the name
+     * @param width          the width in pixels
+     * @param height         the height in pixels
+     * @param internalFormat the GL internal format, such as GL_RGBA16F or GL_DEPTH_COMPONENT24
+     * @return the target
+     */
+    public RenderTarget createTarget(String name, int width, int height, int internalFormat) {
+        dirty = true;
+        return new RenderTarget(name, width, height, internalFormat);
+    }
+
+    /**
+     * Declare an existing framebuffer as a target. Passes writing it are never culled.
+     * @param name        the name
+     * @param framebuffer the framebuffer, null for the default framebuffer
+     * @param width       the width in pixels
+     * @param height      the height in pixels
+     * @return the target
+     */
+    public RenderTarget importFramebuffer(String name, Framebuffer framebuffer, int width, int height) {
+        dirty = true;
+        return new RenderTarget(name, framebuffer, width, height);
+    }
+
+    /**
+     * Add a pass. Declare its targets with read() and write() on the returned pass.
+     * @param name     the name
+     * @param executor draws the pass
+     * @return the pass
+     */
+    public RenderPass addPass(String name, RenderPass.Executor executor) {
+        RenderPass pass = new RenderPass(this, name, passes.size(), executor);
+        passes.add(pass);
+        dirty = true;
+        return pass;
+    }
+
+    /**
+     * Mark the graph for compiling before the next execute()
+     */
+    void invalidate() {
+        dirty = true;
+    }
+
+    /**
+     * Cull, order and allocate the passes, replacing the textures and framebuffers of the last
+     * compile
+     */
+    public void compile() {
+        schedule();
+        release();
+        allocate();
+        dirty = false;
+    }
+
+    /**
+     * Cull and order the passes, and assign the transient targets to texture slots. Touches no GL
+     * state.
+     */
+    void schedule() {
+        // The passes writing each target, in the order they were added
+        Map<RenderTarget, List<RenderPass>> writers = new HashMap<>();
+        for (RenderPass pass : passes) {
+            for (RenderTarget target : pass.getWrites()) {
+                if (pass.getReads().contains(target)) {
+                    throw new IllegalStateException("Pass " + pass + " both reads and writes " + target);
+                }
+                writers.computeIfAbsent(target, t -> new ArrayList<>()).add(pass);
+            }
+        }
+
+        // A pass depends on every writer of what it reads, and on the writer of each of its
+        // targets added before it
+        List<List<RenderPass>> dependencies = new ArrayList<>();
+        for (RenderPass pass : passes) {
+            List<RenderPass> before = new ArrayList<>();
+            for (RenderTarget target : pass.getReads()) {
+                List<RenderPass> targetWriters = writers.get(target);
+                if (targetWriters == null) {
+                    throw new IllegalStateException("Pass " + pass + " reads " + target + ", which no pass writes");
+                }
+                before.addAll(targetWriters);
+            }
+            for (RenderTarget target : pass.getWrites()) {
+                List<RenderPass> targetWriters = writers.get(target);
+                int position = targetWriters.indexOf(pass);
+                if (position > 0) {
+                    before.add(targetWriters.get(position - 1));
+                }
+            }
+            dependencies.add(before);
+        }
+
+        // Keep the passes that an output depends on
+        boolean[] live = new boolean[passes.size()];
+        List<RenderPass> pending = new ArrayList<>();
+        for (RenderPass pass : passes) {
+            if (pass.hasSideEffects() || writesImported(pass)) {
+                live[pass.getIndex()] = true;
+                pending.add(pass);
+            }
+        }
+        while (!pending.isEmpty()) {
+            RenderPass pass = pending.remove(pending.size() - 1);
+            for (RenderPass before : dependencies.get(pass.getIndex())) {
+                if (!live[before.getIndex()]) {
+                    live[before.getIndex()] = true;
+                    pending.add(before);
+                }
+            }
+        }
+
+        // Order them, running ready passes in the order they were added
+        int[] waiting = new int[passes.size()];
+        List<List<RenderPass>> dependents = new ArrayList<>();
+        for (int i = 0; i < passes.size(); i++) {
+            dependents.add(new ArrayList<>());
+        }
+        PriorityQueue<RenderPass> ready = new PriorityQueue<>((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+        int numLive = 0;
+        for (RenderPass pass : passes) {
+            if (!live[pass.getIndex()]) {
+                continue;
+            }
+            numLive++;
+            for (RenderPass before : dependencies.get(pass.getIndex())) {
+                // A pass reading a target twice depends on its writers once per read
+                waiting[pass.getIndex()]++;
+                dependents.get(before.getIndex()).add(pass);
+            }
+            if (waiting[pass.getIndex()] == 0) {
+                ready.add(pass);
+            }
+        }
+        schedule.clear();
+        while (!ready.isEmpty()) {
+            RenderPass pass = ready.poll();
+            schedule.add(pass);
+            for (RenderPass after : dependents.get(pass.getIndex())) {
+                if (--waiting[after.getIndex()] == 0) {
+                    ready.add(after);
+                }
+            }
+        }
+        if (schedule.size() != numLive) {
+            throw new IllegalStateException("Render graph has a cycle");
+        }
+
+        // The lifetime of each transient target, in scheduled passes
+        Map<RenderTarget, Integer> first = new IdentityHashMap<>();
+        Map<RenderTarget, Integer> last = new IdentityHashMap<>();
+        for (int i = 0; i < schedule.size(); i++) {
+            RenderPass pass = schedule.get(i);
+            validateWrites(pass);
+            for (RenderTarget target : pass.getWrites()) {
+                if (!target.isImported()) {
+                    first.putIfAbsent(target, i);
+                    last.put(target, i);
+                }
+            }
+            for (RenderTarget target : pass.getReads()) {
+                last.put(target, i);
+            }
+        }
+
+        // Give each target a free compatible slot when its lifetime starts, and free the slot
+        // after its last pass
+        slots.clear();
+        slotTargets.clear();
+        List<Integer> free = new ArrayList<>();
+        unaliasedBytes = 0;
+        for (int i = 0; i < schedule.size(); i++) {
+            for (RenderTarget target : schedule.get(i).getWrites()) {
+                if (target.isImported() || first.get(target) != i || slots.containsKey(target)) {
+                    continue;
+                }
+                unaliasedBytes += target.getSizeBytes();
+                int slot = -1;
+                for (int f = 0; f < free.size(); f++) {
+                    if (slotTargets.get(free.get(f)).isCompatible(target)) {
+                        slot = free.remove(f);
+                        break;
+                    }
+                }
+                if (slot == -1) {
+                    slot = slotTargets.size();
+                    slotTargets.add(target);
+                }
+                slots.put(target, slot);
+            }
+            for (RenderTarget target : lifetimeEnds(schedule.get(i), i, last)) {
+                free.add(slots.get(target));
+            }
+        }
+    }
+
+    /**
+     * Find the transient targets whose last use is a pass
+     * @param pass     the pass
+     * @param position the pass's position in the schedule
+     * @param last     the position of each transient target's last use
+     * @return the targets, each once
+     */
+    private static List<RenderTarget> lifetimeEnds(RenderPass pass, int position, Map<RenderTarget, Integer> last) {
+        List<RenderTarget> ends = new ArrayList<>();
+        List<RenderTarget> used = new ArrayList<>(pass.getReads());
+        used.addAll(pass.getWrites());
+        for (RenderTarget target : used) {
+            if (!target.isImported() && last.get(target) == position && !ends.contains(target)) {
+                ends.add(target);
+            }
+        }
+        return ends;
+    }
+
+    /**
+     * Check whether a pass writes an imported target
+     * @param pass the pass
+     * @return true if its output leaves the graph
+     */
+    private static boolean writesImported(RenderPass pass) {
+        for (RenderTarget target : pass.getWrites()) {
+            if (target.isImported()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check that a pass's attachments can form one framebuffer
+     * @param pass the pass
+     */
+    private static void validateWrites(RenderPass pass) {
+        List<RenderTarget> writes = pass.getWrites();
+        if (writes.isEmpty()) {
+            if (!pass.hasSideEffects()) {
+                throw new IllegalStateException("Pass " + pass + " writes nothing");
+            }
+            return;
+        }
+        if (writesImported(pass) && writes.size() > 1) {
+            throw new IllegalStateException("Pass " + pass + " writes an imported target and other targets");
+        }
+        int depths = 0;
+        for (RenderTarget target : writes) {
+            if (target.getWidth() != writes.get(0).getWidth() || target.getHeight() != writes.get(0).getHeight()) {
+                throw new IllegalStateException("Pass " + pass + " writes targets of different sizes");
+            }
+            if (target.isDepth()) {
+                depths++;
+            }
+        }
+        if (depths > 1) {
+            throw new IllegalStateException("Pass " + pass + " writes more than one depth target");
+        }
+    }
+
+    /**
+     * Create the slot textures and the framebuffers of the scheduled passes
+     */
+    private void allocate() {
+        int readBinding = glGetInteger(GL_READ_FRAMEBUFFER_BINDING);
+        int drawBinding = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+
+        textures = new int[slotTargets.size()];
+        textureBytes = 0;
+        for (int slot = 0; slot < textures.length; slot++) {
+            RenderTarget target = slotTargets.get(slot);
+            textures[slot] = glGenTextures();
+            glBindTexture(GL_TEXTURE_2D, textures[slot]);
+            int format = target.hasStencil() ? GL_DEPTH_STENCIL : target.isDepth() ? GL_DEPTH_COMPONENT : GL_RGBA;
+            int type = target.isDepth() ? depthType(target.getInternalFormat()) : GL_UNSIGNED_BYTE;
+            glTexImage2D(GL_TEXTURE_2D, 0, target.getInternalFormat(), target.getWidth(), target.getHeight(), 0, format, type, 0);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+            textureBytes += target.getSizeBytes();
+        }
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        framebuffers = new int[schedule.size()];
+        for (int i = 0; i < schedule.size(); i++) {
+            RenderPass pass = schedule.get(i);
+            if (writesImported(pass) || pass.getWrites().isEmpty()) {
+                continue;
+            }
+            framebuffers[i] = glGenFramebuffers();
+            glBindFramebuffer(GL_FRAMEBUFFER, framebuffers[i]);
+            int colors = 0;
+            for (RenderTarget target : pass.getWrites()) {
+                int texture = textures[slots.get(target)];
+                if (target.isDepth()) {
+                    int attachment = target.hasStencil() ? GL_DEPTH_STENCIL_ATTACHMENT : GL_DEPTH_ATTACHMENT;
+                    glFramebufferTexture2D(GL_FRAMEBUFFER, attachment, GL_TEXTURE_2D, texture, 0);
+                } else {
+                    glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0 + colors++, GL_TEXTURE_2D, texture, 0);
+                }
+            }
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                if (colors == 0) {
+                    glDrawBuffer(GL_NONE);
+                } else {
+                    glDrawBuffers(stack.ints(colorAttachments(colors)));
+                }
+            }
+            int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+            if (status != GL_FRAMEBUFFER_COMPLETE) {
+                glBindFramebuffer(GL_READ_FRAMEBUFFER, readBinding);
+                glBindFramebuffer(GL_DRAW_FRAMEBUFFER, drawBinding);
+                throw new RuntimeException("Framebuffer of pass " + pass + " is incomplete: 0x" + Integer.toHexString(status));
+            }
+        }
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, readBinding);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, drawBinding);
+
+        if (textures.length > 0) {
+            GpuMemoryTracker.getInstance().register(this, textureBytes, GpuMemoryTracker.Category.RENDER_TARGET, "RenderGraph");
+            ResourceTracker.getInstance().track(this, "RenderGraph");
+        }
+    }
+
+    /**
+     * Get the pixel type matching a depth format, since a packed depth-stencil format only accepts
+     * its own packed type
+     * @param internalFormat the depth internal format
+     * @return the pixel type to pass to glTexImage2D
+     */
+    private static int depthType(int internalFormat) {
+        switch (internalFormat) {
+            case GL_DEPTH32F_STENCIL8:
+                return GL_FLOAT_32_UNSIGNED_INT_24_8_REV;
+            case GL_DEPTH24_STENCIL8:
+                return GL_UNSIGNED_INT_24_8;
+            default:
+                return GL_FLOAT;
+        }
+    }
+
+    /**
+     * Get the draw buffers of a number of colour attachments
+     * @param colors the number of colour attachments
+     * @return GL_COLOR_ATTACHMENT0 onwards
+     */
+    private static int[] colorAttachments(int colors) {
+        int[] attachments = new int[colors];
+        for (int i = 0; i < colors; i++) {
+            attachments[i] = GL_COLOR_ATTACHMENT0 + i;
+        }
+        return attachments;
+    }
+
+    /**
+     * Run the scheduled passes, compiling the graph first if it has changed. The framebuffer of the
+     * last pass is left bound.
+     */
+    public void execute() {
+        if (dirty) {
+            compile();
+        }
+        for (int i = 0; i < schedule.size(); i++) {
+            RenderPass pass = schedule.get(i);
+            if (!pass.getWrites().isEmpty()) {
+                RenderTarget target = pass.getWrites().get(0);
+                if (target.isImported()) {
+                    target.bindImported();
+                } else {
+                    glBindFramebuffer(GL_FRAMEBUFFER, framebuffers[i]);
+                }
+                glViewport(0, 0, pass.getViewportWidth(target), pass.getViewportHeight(target));
+                if (pass.getClearMask() != 0) {
+                    glClear(pass.getClearMask());
+                }
+            }
+            pass.execute();
+        }
+    }
+
+    /**
+     * Get the texture of a transient target, for passes that sample it
+     * @param target the target
+     * @return the GL texture name, shared with targets whose lifetimes don't overlap
+     */
+    public int getTexture(RenderTarget target) {
+        Integer slot = slots.get(target);
+        if (slot == null) {
+            throw new IllegalStateException("Target " + target + " isn't used by a scheduled pass");
+        }
+        return textures[slot];
+    }
+
+    /**
+     * Get the passes that run, in order
+     * @return the scheduled passes
+     */
+    public List<RenderPass> getSchedule() {
+        return schedule;
+    }
+
+    /**
+     * Get the number of textures the transient targets share
+     * @return the texture count
+     */
+    public int getNumTextures() {
+        return slotTargets.size();
+    }
+
+    /**
+     * Get the memory of the transient textures
+     * @return the size in bytes
+     */
+    public long getTextureBytes() {
+        return textureBytes;
+    }
+
+    /**
+     * Register the render graph metrics
+     * @param metrics the registry to add the metrics to
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        metrics.gauge("render_graph_passes", "Render graph passes run each frame", () -> schedule.size());
+        metrics.gauge("render_graph_passes_culled", "Render graph passes culled because nothing uses their output", () -> passes.size() - schedule.size());
+        metrics.gauge("render_graph_transient_bytes", "GPU memory of the render graph's transient targets after aliasing", () -> textureBytes);
+    }
+
+    /**
+     * Get a summary of the compiled graph
+     * @return the passes run and culled, and the transient target memory with and without aliasing
+     */
+    public String getSummary() {
+        StringBuilder order = new StringBuilder();
+        for (RenderPass pass : schedule) {
+            order.append(order.length() > 0 ? " > " : "").append(pass.getName());
+        }
+        return String.format("Render graph: %s, %d of %d passes culled, %d transient targets in %d textures, %.1f MB (%.1f MB unaliased)",
+                order, passes.size() - schedule.size(), passes.size(), slots.size(), slotTargets.size(),
+                textureBytes / (1024.0 * 1024.0), unaliasedBytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Delete the textures and framebuffers of the last compile
+     */
+    private void release() {
+        for (int framebuffer : framebuffers) {
+            if (framebuffer != 0) {
+                glDeleteFramebuffers(framebuffer);
+            }
+        }
+        for (int texture : textures) {
+            glDeleteTextures(texture);
+        }
+        if (textures.length > 0) {
+            GpuMemoryTracker.getInstance().unregister(this);
+            ResourceTracker.getInstance().release(this);
+        }
+        framebuffers = new int[0];
+        textures = new int[0];
+        textureBytes = 0;
+    }
+
+    /**
+     * Delete the graph's textures and framebuffers. Imported framebuffers are left alone.
+     */
+    @Override
+    public void delete() {
+        release();
+        dirty = true;
+    }
+}
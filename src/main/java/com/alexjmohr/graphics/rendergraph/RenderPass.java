@@ -0,0 +1,199 @@
+package com.alexjmohr.graphics.rendergraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntSupplier;
+
+/**
+ * A pass of a RenderGraph: the targets it samples, the attachments it draws into and the code that
+ * draws. The graph binds a framebuffer with the written targets attached and sets the viewport to
+ * their size, or to the pass's viewport, before running the pass.
+ */
+public class RenderPass {
+
+    /**
+     * Draws a pass
+     */
+    @FunctionalInterface
+    public interface Executor {
+
+        /**
+         * Draw the pass with its attachments bound
+         * @param graph the graph, for the textures of the targets the pass reads
+         */
+        void execute(RenderGraph graph);
+    }
+
+    /**
+     * The name, for errors and the summary
+     */
+    private final String name;
+
+    /**
+     * The order the pass was added in
+     */
+    private final int index;
+
+    /**
+     * Draws the pass
+     */
+    private final Executor executor;
+
+    /**
+     * The targets sampled and the targets drawn into
+     */
+    private final List<RenderTarget> reads = new ArrayList<>();
+    private final List<RenderTarget> writes = new ArrayList<>();
+
+    /**
+     * The glClear() bits applied to the attachments before the pass, 0 to keep their contents
+     */
+    private int clearMask;
+
+    /**
+     * The size of the region drawn, null to draw over the whole attachments
+     */
+    private IntSupplier viewportWidth;
+    private IntSupplier viewportHeight;
+
+    /**
+     * Whether the pass must run even if nothing reads what it writes
+     */
+    private boolean sideEffects;
+
+    /**
+     * The graph the pass belongs to, recompiled when the pass changes
+     */
+    private final RenderGraph graph;
+
+    /**
+     * Creates a pass
+     * @param graph    the graph
+     * @param name     the name
+     * @param index    the order the pass was added in
+     * @param executor draws the pass
+     */
+    RenderPass(RenderGraph graph, String name, int index, Executor executor) {
+        this.graph = graph;
+        this.name = name;
+        this.index = index;
+        this.executor = executor;
+    }
+
+    /**
+     * Declare a target the pass samples. The pass runs after every pass that writes it.
+     * @param target the target
+     * @return this pass
+     */
+    public RenderPass read(RenderTarget target) {
+        if (target.isImported()) {
+            throw new IllegalArgumentException("Pass " + name + " can't sample imported target " + target);
+        }
+        reads.add(target);
+        graph.invalidate();
+        return this;
+    }
+
+    /**
+     * Declare an attachment the pass draws into. Passes writing the same target run in the order
+     * they were added. A pass may write either one imported target or transient targets with the
+     * same size.
+     * @param target the target
+     * @return this pass
+     */
+    public RenderPass write(RenderTarget target) {
+        writes.add(target);
+        graph.invalidate();
+        return this;
+    }
+
+    /**
+     * Clear the attachments before the pass. A transient target's contents are undefined before
+     * the first pass that writes it, so that pass should clear it or cover it entirely.
+     * @param clearMask the glClear() bits
+     * @return this pass
+     */
+    public RenderPass clear(int clearMask) {
+        this.clearMask = clearMask;
+        return this;
+    }
+
+    /**
+     * Draw into a region at the lower left corner of the attachments, such as for rendering at a
+     * dynamic resolution. The size is read each time the pass runs.
+     * @param width  the region width in pixels
+     * @param height the region height in pixels
+     * @return this pass
+     */
+    public RenderPass viewport(IntSupplier width, IntSupplier height) {
+        this.viewportWidth = width;
+        this.viewportHeight = height;
+        return this;
+    }
+
+    /**
+     * Get the width drawn
+     * @param target the first attachment
+     * @return the viewport width in pixels
+     */
+    int getViewportWidth(RenderTarget target) {
+        return viewportWidth != null ? Math.min(viewportWidth.getAsInt(), target.getWidth()) : target.getWidth();
+    }
+
+    /**
+     * Get the height drawn
+     * @param target the first attachment
+     * @return the viewport height in pixels
+     */
+    int getViewportHeight(RenderTarget target) {
+        return viewportHeight != null ? Math.min(viewportHeight.getAsInt(), target.getHeight()) : target.getHeight();
+    }
+
+    /**
+     * Keep the pass even if nothing reads what it writes, for passes that read back or publish
+     * results outside the graph
+     * @return this pass
+     */
+    public RenderPass setSideEffects() {
+        this.sideEffects = true;
+        graph.invalidate();
+        return this;
+    }
+
+    /**
+     * Run the pass
+     */
+    void execute() {
+        executor.execute(graph);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    public List<RenderTarget> getReads() {
+        return Collections.unmodifiableList(reads);
+    }
+
+    public List<RenderTarget> getWrites() {
+        return Collections.unmodifiableList(writes);
+    }
+
+    public int getClearMask() {
+        return clearMask;
+    }
+
+    public boolean hasSideEffects() {
+        return sideEffects;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,176 @@
+package com.alexjmohr.graphics.rendergraph;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL14.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import com.alexjmohr.graphics.rendering.Framebuffer;
+
+/**
+ * An attachment declared in a RenderGraph. A transient target has no storage of its own: the
+ * graph gives it a texture for the passes between its first write and its last read, and may
+ * hand the same texture to another target of the same size and format outside that span. An
+ * imported target is an existing framebuffer, such as the window's, that outlives the graph.
+ */
+public class RenderTarget {
+
+    /**
+     * The name, for errors and the summary
+     */
+    private final String name;
+
+    /**
+     * The size in pixels
+     */
+    private final int width;
+    private final int height;
+
+    /**
+     * The GL internal format of a transient target, 0 for an imported one
+     */
+    private final int internalFormat;
+
+    /**
+     * Whether the target is an existing framebuffer
+     */
+    private final boolean imported;
+
+    /**
+     * The imported framebuffer, null for the default framebuffer or a transient target
+     */
+    private final Framebuffer framebuffer;
+
+    /**
+     * Creates a transient target
+     * @param name           the name
+     * @param width          the width in pixels
+     * @param height         the height in pixels
+     * @param internalFormat the GL internal format
+     */
+    RenderTarget(String name, int width, int height, int internalFormat) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.internalFormat = internalFormat;
+        this.imported = false;
+        this.framebuffer = null;
+    }
+
+    /**
+     * Creates an imported target
+     * @param name        the name
+     * @param framebuffer the framebuffer, null for the default framebuffer
+     * @param width       the width in pixels
+     * @param height      the height in pixels
+     */
+    RenderTarget(String name, Framebuffer framebuffer, int width, int height) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.internalFormat = 0;
+        this.imported = true;
+        this.framebuffer = framebuffer;
+    }
+
+    /**
+     * Bind an imported target for drawing
+     */
+    void bindImported() {
+        if (framebuffer != null) {
+            framebuffer.bind();
+        } else {
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        }
+    }
+
+    /**
+     * Whether a transient target can use the texture of another
+     * @param other the other target
+     * @return true if they have the same size and format
+     */
+    boolean isCompatible(RenderTarget other) {
+        return width == other.width && height == other.height && internalFormat == other.internalFormat;
+    }
+
+    /**
+     * Whether the target has a depth format
+     * @return true for depth and depth-stencil formats
+     */
+    public boolean isDepth() {
+        switch (internalFormat) {
+            case GL_DEPTH_COMPONENT16:
+            case GL_DEPTH_COMPONENT24:
+            case GL_DEPTH_COMPONENT32:
+            case GL_DEPTH_COMPONENT32F:
+            case GL_DEPTH24_STENCIL8:
+            case GL_DEPTH32F_STENCIL8:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether the target has a stencil as well as a depth
+     * @return true for depth-stencil formats
+     */
+    public boolean hasStencil() {
+        return internalFormat == GL_DEPTH24_STENCIL8 || internalFormat == GL_DEPTH32F_STENCIL8;
+    }
+
+    /**
+     * Estimate the memory of a texture of the target's size and format
+     * @return the size in bytes
+     */
+    public long getSizeBytes() {
+        int bytesPerPixel;
+        switch (internalFormat) {
+            case GL_R8:
+                bytesPerPixel = 1;
+                break;
+            case GL_RG8:
+            case GL_R16F:
+            case GL_DEPTH_COMPONENT16:
+                bytesPerPixel = 2;
+                break;
+            case GL_RGBA16F:
+            case GL_RG32F:
+            case GL_DEPTH32F_STENCIL8:
+                bytesPerPixel = 8;
+                break;
+            case GL_RGBA32F:
+                bytesPerPixel = 16;
+                break;
+            default:
+                // RGBA8, R32F, RG16F, R11F_G11F_B10F and the 24 and 32 bit depths, padded to 32 bits
+                bytesPerPixel = 4;
+                break;
+        }
+        return (long) bytesPerPixel * width * height;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getInternalFormat() {
+        return internalFormat;
+    }
+
+    public boolean isImported() {
+        return imported;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
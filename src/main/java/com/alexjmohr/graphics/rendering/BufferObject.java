@@ -7,7 +7,7 @@ import static org.lwjgl.opengl.GL20.*;
  * @author Alex Mohr
  *
  */
-public abstract class BufferObject {
+public abstract class BufferObject implements GLResource {
 	/**
 	 * The VBO id
 	 */
@@ -18,6 +18,16 @@ public abstract class BufferObject {
 	 */
 	protected int target;
 	
+	/**
+	 * The size of the data store in bytes, 0 until data is uploaded
+	 */
+	private long size;
+	
+	/**
+	 * The asset or subsystem the buffer belongs to, for GPU memory accounting
+	 */
+	private String owner;
+	
 	/**
 	 * Generates the VBO with the specified target.
 	 * @param target GL_ARRAY_OBJECT or GL_ELEMENT_ARRAY_OBJECT
@@ -25,6 +35,8 @@ public abstract class BufferObject {
 	protected BufferObject(int target) {
 		buffer = glGenBuffers();
 		this.target = target;
+		this.owner = getClass().getSimpleName();
+		ResourceTracker.getInstance().track(this, owner);
 	}
 	
 	/**
@@ -41,10 +53,87 @@ public abstract class BufferObject {
 		glBindBuffer(target, 0);
 	}
 	
+	/**
+	 * Gets the buffer object id
+	 * @return the buffer object id
+	 */
+	public int getId() {
+		return buffer;
+	}
+	
+	/**
+	 * Record the size of a newly allocated data store with the GPU memory tracker. Must be called
+	 * after every glBufferData or glBufferStorage call.
+	 * @param size the size in bytes
+	 */
+	protected void setAllocatedSize(long size) {
+		this.size = size;
+		GpuMemoryTracker.getInstance().register(this, size, getCategory(), owner);
+	}
+	
+	/**
+	 * Get the size of the data store
+	 * @return the size in bytes, 0 if nothing has been uploaded
+	 */
+	public long getAllocatedSize() {
+		return size;
+	}
+	
+	/**
+	 * Get the GPU memory category of the buffer, based on its target
+	 * @return the category
+	 */
+	protected GpuMemoryTracker.Category getCategory() {
+		switch (target) {
+			case GL_ARRAY_BUFFER:
+				return GpuMemoryTracker.Category.VERTEX_BUFFER;
+			case GL_ELEMENT_ARRAY_BUFFER:
+				return GpuMemoryTracker.Category.INDEX_BUFFER;
+			default:
+				return GpuMemoryTracker.Category.OTHER;
+		}
+	}
+	
+	/**
+	 * Set the asset or subsystem the buffer belongs to, e.g. the model file
+	 * @param owner the owner name
+	 */
+	public void setOwner(String owner) {
+		this.owner = owner;
+		ResourceTracker.getInstance().setOwner(this, owner);
+		if (size > 0) {
+			GpuMemoryTracker.getInstance().register(this, size, getCategory(), owner);
+		}
+	}
+	
+	/**
+	 * Get the asset or subsystem the buffer belongs to
+	 * @return the owner name
+	 */
+	public String getOwner() {
+		return owner;
+	}
+	
+	/**
+	 * Check whether the buffer object has been deleted
+	 * @return true if delete() has been called
+	 */
+	public boolean isDeleted() {
+		return buffer == 0;
+	}
+	
 	/**
 	 * Deletes the buffer object
 	 */
+	@Override
 	public void delete() {
+		if (buffer == 0) {
+			return;
+		}
 		glDeleteBuffers(buffer);
+		buffer = 0;
+		GpuMemoryTracker.getInstance().unregister(this);
+		ResourceTracker.getInstance().release(this);
+		size = 0;
 	}
 }
@@ -0,0 +1,230 @@
+package com.alexjmohr.graphics.rendering;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * A compact binary list of draw commands, recorded on any thread and executed on the GL thread
+ * by MeshRenderer.execute(). Each command is an int opcode followed by inline data in native
+ * memory; meshes and materials are referenced by index into a table of the list's objects.
+ *
+ * The memory and the table are reused by reset(), so recording allocates nothing once the list
+ * has grown to the frame's size.
+ */
+public class CommandList {
+
+    /**
+     * Switch to the program of a feature mask: opcode, features
+     */
+    public static final int USE_PROGRAM = 1;
+
+    /**
+     * Set a material's uniforms and bind its textures: opcode, material reference
+     */
+    public static final int SET_MATERIAL = 2;
+
+    /**
+     * Request a resolution of a material's streamed textures: opcode, material reference, texture
+     * coordinates per pixel as float bits
+     */
+    public static final int REQUEST_MIPS = 3;
+
+    /**
+     * Set the model and normal matrices: opcode, then the matrices in the std140 layout of the
+     * shader's Transform block, see MeshRenderer.getTransform()
+     */
+    public static final int SET_TRANSFORM = 4;
+
+    /**
+     * Draw a mesh: opcode, mesh reference
+     */
+    public static final int DRAW = 5;
+
+    /**
+     * The floats of a transform: the model matrix and then the normal matrix's columns, each
+     * padded to four floats
+     */
+    public static final int TRANSFORM_FLOATS = 28;
+
+    /**
+     * The size in bytes of each command
+     */
+    public static final int USE_PROGRAM_SIZE = 8;
+    public static final int SET_MATERIAL_SIZE = 8;
+    public static final int REQUEST_MIPS_SIZE = 12;
+    public static final int SET_TRANSFORM_SIZE = 4 + TRANSFORM_FLOATS * 4;
+    public static final int DRAW_SIZE = 8;
+
+    /**
+     * The recorded commands
+     */
+    private ByteBuffer data;
+
+    /**
+     * The bytes recorded
+     */
+    private int size;
+
+    /**
+     * The meshes and materials the commands reference
+     */
+    private Object[] references;
+    private int numReferences;
+
+    /**
+     * The number of DRAW commands
+     */
+    private int numDraws;
+
+    /**
+     * Creates an empty list
+     * @param capacity the initial capacity in bytes, grown as needed
+     */
+    public CommandList(int capacity) {
+        data = MemoryUtil.memAlloc(Math.max(capacity, SET_TRANSFORM_SIZE));
+        references = new Object[64];
+        ResourceTracker.getInstance().track(this, "CommandList");
+    }
+
+    /**
+     * Clear the list for recording, dropping its references
+     */
+    public void reset() {
+        size = 0;
+        Arrays.fill(references, 0, numReferences, null);
+        numReferences = 0;
+        numDraws = 0;
+    }
+
+    /**
+     * Record a program switch
+     * @param features the shader feature bits
+     */
+    public void useProgram(int features) {
+        long address = reserve(USE_PROGRAM_SIZE);
+        MemoryUtil.memPutInt(address, USE_PROGRAM);
+        MemoryUtil.memPutInt(address + 4, features);
+    }
+
+    /**
+     * Record a material switch
+     * @param material the material
+     */
+    public void setMaterial(Material material) {
+        long address = reserve(SET_MATERIAL_SIZE);
+        MemoryUtil.memPutInt(address, SET_MATERIAL);
+        MemoryUtil.memPutInt(address + 4, addReference(material));
+    }
+
+    /**
+     * Record a request for the resolution of a material's streamed textures, see
+     * Texture.requestResolution()
+     * @param material   the material
+     * @param uvPerPixel the texture coordinates per screen pixel
+     */
+    public void requestMips(Material material, float uvPerPixel) {
+        long address = reserve(REQUEST_MIPS_SIZE);
+        MemoryUtil.memPutInt(address, REQUEST_MIPS);
+        MemoryUtil.memPutInt(address + 4, addReference(material));
+        MemoryUtil.memPutFloat(address + 8, uvPerPixel);
+    }
+
+    /**
+     * Record a transform
+     * @param transform the transform, see MeshRenderer.getTransform()
+     * @param offset    the index of the first float
+     */
+    public void setTransform(float[] transform, int offset) {
+        long address = reserve(SET_TRANSFORM_SIZE);
+        MemoryUtil.memPutInt(address, SET_TRANSFORM);
+        for (int i = 0; i < TRANSFORM_FLOATS; i++) {
+            MemoryUtil.memPutFloat(address + 4 + 4 * i, transform[offset + i]);
+        }
+    }
+
+    /**
+     * Record a mesh draw
+     * @param mesh the mesh
+     */
+    public void draw(Mesh mesh) {
+        long address = reserve(DRAW_SIZE);
+        MemoryUtil.memPutInt(address, DRAW);
+        MemoryUtil.memPutInt(address + 4, addReference(mesh));
+        numDraws++;
+    }
+
+    /**
+     * Make room for a command, growing the memory if needed
+     * @param commandSize the command's size in bytes
+     * @return the command's address
+     */
+    private long reserve(int commandSize) {
+        if (size + commandSize > data.capacity()) {
+            data = MemoryUtil.memRealloc(data, Math.max(data.capacity() * 2, size + commandSize));
+        }
+        long address = MemoryUtil.memAddress0(data) + size;
+        size += commandSize;
+        return address;
+    }
+
+    /**
+     * Add an object to the reference table
+     * @param reference the mesh or material
+     * @return its index
+     */
+    private int addReference(Object reference) {
+        if (numReferences == references.length) {
+            references = Arrays.copyOf(references, references.length * 2);
+        }
+        references[numReferences] = reference;
+        return numReferences++;
+    }
+
+    /**
+     * Get the address of the first command
+     * @return the address
+     */
+    public long getAddress() {
+        return MemoryUtil.memAddress0(data);
+    }
+
+    /**
+     * Get the number of bytes recorded
+     * @return the size in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Get a referenced mesh or material
+     * @param index the reference index recorded in a command
+     * @return the object
+     */
+    public Object getReference(int index) {
+        return references[index];
+    }
+
+    /**
+     * Get the number of draws recorded
+     * @return the DRAW command count
+     */
+    public int getNumDraws() {
+        return numDraws;
+    }
+
+    /**
+     * Free the command memory
+     */
+    public void delete() {
+        if (data == null) {
+            return;
+        }
+        MemoryUtil.memFree(data);
+        data = null;
+        reset();
+        ResourceTracker.getInstance().release(this);
+    }
+}
@@ -0,0 +1,347 @@
+package com.alexjmohr.graphics.rendering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.alexjmohr.graphics.culling.CullingStage;
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+/**
+ * Records the per-draw work of the submitted meshes into command lists on worker threads, so the
+ * GL thread only executes the lists.
+ *
+ * The submitted draws are split into contiguous slices, one per worker. Each worker calculates
+ * the model and normal matrices of its draws, culls them, estimates the texture resolution they
+ * need and sorts them by shader features, material and distance, then records the sorted draws
+ * into its own CommandList with a state change only where the program or material changes. The
+ * lists are executed in slice order.
+ */
+public class DrawRecorder {
+
+    /**
+     * The fewest draws worth giving a worker of its own
+     */
+    public static final int MIN_DRAWS_PER_SLICE = 64;
+
+    /**
+     * The most recording threads
+     */
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * The bits of a sort key: shader features, material, distance and the draw's index in the
+     * slice, from the most significant
+     */
+    private static final int INDEX_BITS = 22;
+    private static final int DISTANCE_BITS = 16;
+    private static final int MATERIAL_BITS = 20;
+
+    /**
+     * A slice of the submitted draws and the worker state that records it
+     */
+    private class Slice implements Callable<Void> {
+
+        /**
+         * The commands recorded for the slice
+         */
+        private final CommandList commands = new CommandList(64 * 1024);
+
+        /**
+         * The first submitted draw and the number of draws in the slice
+         */
+        private int first;
+        private int count;
+
+        /**
+         * Tests the slice's draws, null if nothing is culled
+         */
+        private CullingStage.Context culling;
+        private CullingStage cullingStage;
+
+        /**
+         * Scratch matrices and vector
+         */
+        private final Matrix4f model = new Matrix4f();
+        private final Matrix3f normalMatrix = new Matrix3f();
+        private final Vector3f scratch = new Vector3f();
+
+        /**
+         * The visible draws: sort keys, submitted indices, transforms and texture resolutions
+         */
+        private long[] keys = new long[256];
+        private int[] draws = new int[256];
+        private float[] transforms = new float[256 * CommandList.TRANSFORM_FLOATS];
+        private float[] uvPerPixel = new float[256];
+
+        @Override
+        public Void call() {
+            record();
+            return null;
+        }
+
+        /**
+         * Record the slice's visible draws, sorted
+         */
+        private void record() {
+            commands.reset();
+            if (cullingStage != frameCulling) {
+                cullingStage = frameCulling;
+                culling = frameCulling != null ? frameCulling.createContext() : null;
+            }
+            int visible = 0;
+            for (int i = first; i < first + count; i++) {
+                Mesh mesh = meshes[i];
+                MeshRenderer.calculateModelMatrices(positions[i], rotations[i], scales[i], model, normalMatrix);
+                if (culling != null && !culling.isVisible(mesh, model)) {
+                    continue;
+                }
+                if (visible == keys.length) {
+                    grow();
+                }
+                MeshRenderer.getTransform(model, normalMatrix, transforms, visible * CommandList.TRANSFORM_FLOATS);
+                uvPerPixel[visible] = MeshRenderer.getUvPerPixel(mesh, model, cameraPosition, projection, viewportHeight, scratch);
+                float distance = model.transformPosition(mesh.getBoundsCenter(), scratch).distance(cameraPosition);
+                keys[visible] = getSortKey(mesh.getMaterial(), distance) | visible;
+                draws[visible] = i;
+                visible++;
+            }
+            if (culling != null) {
+                culling.flush();
+            }
+
+            Arrays.sort(keys, 0, visible);
+            int features = -1;
+            Material material = null;
+            for (int k = 0; k < visible; k++) {
+                int draw = (int) (keys[k] & ((1 << INDEX_BITS) - 1));
+                Mesh mesh = meshes[draws[draw]];
+                if (mesh.getMaterial() != material) {
+                    material = mesh.getMaterial();
+                    if (ShaderLibrary.getFeatures(material) != features) {
+                        features = ShaderLibrary.getFeatures(material);
+                        commands.useProgram(features);
+                    }
+                    commands.setMaterial(material);
+                }
+                if (uvPerPixel[draw] > 0) {
+                    commands.requestMips(material, uvPerPixel[draw]);
+                }
+                commands.setTransform(transforms, draw * CommandList.TRANSFORM_FLOATS);
+                commands.draw(mesh);
+            }
+        }
+
+        /**
+         * Double the room for visible draws
+         */
+        private void grow() {
+            if (keys.length * 2 > 1 << INDEX_BITS) {
+                throw new IllegalStateException("Too many draws in a slice");
+            }
+            keys = Arrays.copyOf(keys, keys.length * 2);
+            draws = Arrays.copyOf(draws, draws.length * 2);
+            transforms = Arrays.copyOf(transforms, transforms.length * 2);
+            uvPerPixel = Arrays.copyOf(uvPerPixel, uvPerPixel.length * 2);
+        }
+    }
+
+    /**
+     * The submitted draws, held until the end of the frame's recording
+     */
+    private Mesh[] meshes = new Mesh[256];
+    private Vector3f[] positions = new Vector3f[256];
+    private Quaternionf[] rotations = new Quaternionf[256];
+    private Vector3f[] scales = new Vector3f[256];
+    private int numSubmitted;
+
+    /**
+     * The frame being recorded, read by the workers
+     */
+    private CullingStage frameCulling;
+    private final Vector3f cameraPosition = new Vector3f();
+    private final Matrix4f projection = new Matrix4f();
+    private int viewportHeight;
+
+    /**
+     * One slice per recording thread
+     */
+    private final List<Slice> slices = new ArrayList<>();
+    private int numSlices;
+
+    /**
+     * The first n slices at index n - 1, built once so recording doesn't allocate the task list
+     * handed to the workers
+     */
+    private final List<List<Slice>> sliceTasks = new ArrayList<>();
+
+    /**
+     * The recording threads, null to record on the calling thread
+     */
+    private final ExecutorService workers;
+
+    /**
+     * Creates a recorder with a thread per core, up to MAX_THREADS
+     */
+    public DrawRecorder() {
+        this(Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates a recorder
+     * @param threads the number of recording threads, 1 to record on the calling thread
+     */
+    public DrawRecorder(int threads) {
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            slices.add(new Slice());
+        }
+        for (int i = 1; i <= slices.size(); i++) {
+            sliceTasks.add(slices.subList(0, i));
+        }
+        if (threads > 1) {
+            AtomicInteger index = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "draw-recorder-" + index.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            workers = null;
+        }
+    }
+
+    /**
+     * Submit a draw. The transform objects are read when the draws are recorded, not copied.
+     * @param mesh     the mesh
+     * @param position the mesh position
+     * @param rotation the mesh rotation
+     * @param scale    the mesh scale
+     */
+    public void submit(Mesh mesh, Vector3f position, Quaternionf rotation, Vector3f scale) {
+        if (numSubmitted == meshes.length) {
+            meshes = Arrays.copyOf(meshes, numSubmitted * 2);
+            positions = Arrays.copyOf(positions, numSubmitted * 2);
+            rotations = Arrays.copyOf(rotations, numSubmitted * 2);
+            scales = Arrays.copyOf(scales, numSubmitted * 2);
+        }
+        meshes[numSubmitted] = mesh;
+        positions[numSubmitted] = position;
+        rotations[numSubmitted] = rotation;
+        scales[numSubmitted] = scale;
+        numSubmitted++;
+    }
+
+    /**
+     * Record the submitted draws into the command lists, in parallel if there are enough of them
+     * @param culling        the culling stage, null to draw everything
+     * @param cameraPosition the camera position
+     * @param projection     the projection matrix
+     * @param viewportHeight the viewport height in pixels, for texture resolution requests
+     */
+    public void record(CullingStage culling, Vector3f cameraPosition, Matrix4f projection, int viewportHeight) {
+        this.frameCulling = culling;
+        this.cameraPosition.set(cameraPosition);
+        this.projection.set(projection);
+        this.viewportHeight = viewportHeight;
+
+        numSlices = Math.max(1, Math.min(slices.size(), numSubmitted / MIN_DRAWS_PER_SLICE));
+        for (int i = 0; i < numSlices; i++) {
+            Slice slice = slices.get(i);
+            slice.first = (int) ((long) numSubmitted * i / numSlices);
+            slice.count = (int) ((long) numSubmitted * (i + 1) / numSlices) - slice.first;
+        }
+        if (numSlices == 1 || workers == null) {
+            for (int i = 0; i < numSlices; i++) {
+                slices.get(i).record();
+            }
+            return;
+        }
+        try {
+            for (Future<Void> result : workers.invokeAll(sliceTasks.get(numSlices - 1))) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while recording draws", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Failed to record draws", ex.getCause());
+        }
+    }
+
+    /**
+     * Get the number of command lists recorded by the last record()
+     * @return the list count
+     */
+    public int getNumLists() {
+        return numSlices;
+    }
+
+    /**
+     * Get a command list recorded by the last record()
+     * @param index the slice index
+     * @return the commands, in execution order
+     */
+    public CommandList getList(int index) {
+        return slices.get(index).commands;
+    }
+
+    /**
+     * Get the number of draws submitted since the last clear()
+     * @return the draw count
+     */
+    public int getNumSubmitted() {
+        return numSubmitted;
+    }
+
+    /**
+     * Drop the submitted draws and the lists' references once they have been executed
+     */
+    public void clear() {
+        Arrays.fill(meshes, 0, numSubmitted, null);
+        Arrays.fill(positions, 0, numSubmitted, null);
+        Arrays.fill(rotations, 0, numSubmitted, null);
+        Arrays.fill(scales, 0, numSubmitted, null);
+        numSubmitted = 0;
+        for (int i = 0; i < numSlices; i++) {
+            slices.get(i).commands.reset();
+        }
+        numSlices = 0;
+    }
+
+    /**
+     * Build a sort key grouping draws by shader features, then material, then front to back
+     * @param material the draw's material
+     * @param distance the draw's distance from the camera
+     * @return the key, with the index bits clear
+     */
+    private static long getSortKey(Material material, float distance) {
+        long features = ShaderLibrary.getFeatures(material);
+        long materialBits = System.identityHashCode(material) & ((1 << MATERIAL_BITS) - 1);
+        // Non-negative float bits sort like the floats
+        long distanceBits = Float.floatToIntBits(Math.max(distance, 0)) >>> (31 - DISTANCE_BITS);
+        return features << (INDEX_BITS + DISTANCE_BITS + MATERIAL_BITS)
+                | materialBits << (INDEX_BITS + DISTANCE_BITS)
+                | distanceBits << INDEX_BITS;
+    }
+
+    /**
+     * Stop the recording threads and free the command lists
+     */
+    public void delete() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        for (Slice slice : slices) {
+            slice.commands.delete();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.alexjmohr.graphics.rendering;
+
+import com.alexjmohr.graphics.metrics.MetricsRegistry;
+import com.alexjmohr.graphics.profiling.RollingHistogram;
+
+/**
+ * Scales the resolution the scene is rendered at to keep the GPU frame time near a target.
+ *
+ * GPU frame times are smoothed with an exponential moving average. Since the GPU time of a frame
+ * is mostly proportional to its pixel count, the scale that would meet the target is estimated as
+ * the current scale times the square root of the target over the smoothed time, and the scale
+ * moves part of the way there each frame, by at most MAX_STEP. Errors within DEADBAND of the
+ * target are left alone so the resolution doesn't hunt around a steady load.
+ */
+public class DynamicResolution {
+
+    /**
+     * The scale range, relative to the output size
+     */
+    public static final float MIN_SCALE = 0.5f;
+    public static final float MAX_SCALE = 1.0f;
+
+    /**
+     * The weight of the newest GPU time in the moving average
+     */
+    private static final float SMOOTHING = 0.3f;
+
+    /**
+     * The fraction of the target the smoothed time may be off by without changing the scale
+     */
+    private static final float DEADBAND = 0.05f;
+
+    /**
+     * The fraction of the way to the estimated scale moved each frame, and the largest change
+     */
+    private static final float GAIN = 0.15f;
+    private static final float MAX_STEP = 0.03f;
+
+    /**
+     * The target GPU frame time in milliseconds
+     */
+    private final float targetMs;
+
+    /**
+     * The output size in pixels
+     */
+    private final int outputWidth;
+    private final int outputHeight;
+
+    /**
+     * The current scale
+     */
+    private float scale = MAX_SCALE;
+
+    /**
+     * The smoothed GPU frame time in milliseconds, NaN before the first sample
+     */
+    private float smoothedMs = Float.NaN;
+
+    /**
+     * The number of GPU times of the histogram already used
+     */
+    private long samplesSeen;
+
+    /**
+     * Totals for the summary
+     */
+    private long frames;
+    private double scaleTotal;
+    private float minScale = MAX_SCALE;
+    private double errorTotal;
+    private long framesOverTarget;
+
+    /**
+     * Creates a controller starting at full resolution
+     * @param targetMs     the target GPU frame time in milliseconds
+     * @param outputWidth  the output width in pixels
+     * @param outputHeight the output height in pixels
+     */
+    public DynamicResolution(float targetMs, int outputWidth, int outputHeight) {
+        this.targetMs = targetMs;
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+    }
+
+    /**
+     * Adjust the scale for the coming frame from the GPU times read since the last update
+     * @param gpuTimes the GPU frame times in milliseconds, null if they aren't measured
+     */
+    public void update(RollingHistogram gpuTimes) {
+        if (gpuTimes == null || gpuTimes.getTotalCount() == samplesSeen) {
+            return;
+        }
+        samplesSeen = gpuTimes.getTotalCount();
+        addSample((float) gpuTimes.getLast());
+    }
+
+    /**
+     * Adjust the scale for a measured GPU frame time
+     * @param gpuMs the GPU time of a recent frame in milliseconds
+     */
+    public void addSample(float gpuMs) {
+        smoothedMs = Float.isNaN(smoothedMs) ? gpuMs : smoothedMs + SMOOTHING * (gpuMs - smoothedMs);
+        float error = smoothedMs - targetMs;
+
+        frames++;
+        scaleTotal += scale;
+        minScale = Math.min(minScale, scale);
+        errorTotal += error;
+        if (gpuMs > targetMs) {
+            framesOverTarget++;
+        }
+
+        if (Math.abs(error) <= DEADBAND * targetMs || smoothedMs <= 0) {
+            return;
+        }
+        float estimate = scale * (float) Math.sqrt(targetMs / smoothedMs);
+        float step = Math.max(-MAX_STEP, Math.min(MAX_STEP, GAIN * (estimate - scale)));
+        scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale + step));
+    }
+
+    /**
+     * Get the current scale
+     * @return the fraction of the output size rendered in each dimension
+     */
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * Get the smoothed GPU frame time minus the target
+     * @return the error in milliseconds, positive when over the target, NaN before the first sample
+     */
+    public float getFrameTimeError() {
+        return smoothedMs - targetMs;
+    }
+
+    /**
+     * Get the width to render at
+     * @return the scaled width in pixels
+     */
+    public int getRenderWidth() {
+        return Math.max(1, Math.round(outputWidth * scale));
+    }
+
+    /**
+     * Get the height to render at
+     * @return the scaled height in pixels
+     */
+    public int getRenderHeight() {
+        return Math.max(1, Math.round(outputHeight * scale));
+    }
+
+    public float getTargetMs() {
+        return targetMs;
+    }
+
+    /**
+     * Register the dynamic resolution metrics
+     * @param metrics the registry to add the metrics to
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        metrics.gauge("resolution_scale", "Fraction of the window size the scene is rendered at", () -> scale);
+        metrics.gauge("resolution_frame_time_error_seconds", "Smoothed GPU frame time minus the target",
+                () -> Float.isNaN(smoothedMs) ? 0 : (smoothedMs - targetMs) / 1000.0);
+    }
+
+    /**
+     * Get a summary of the scaling
+     * @return the average and lowest scale and the average frame time error
+     */
+    public String getSummary() {
+        return String.format("Dynamic resolution: target %.1f ms, scale %.2f average (%.2f lowest), frame time error %+.2f ms average, %.1f%% of frames over target",
+                targetMs, frames > 0 ? scaleTotal / frames : scale, minScale, frames > 0 ? errorTotal / frames : 0.0,
+                frames > 0 ? 100.0 * framesOverTarget / frames : 0.0);
+    }
+}
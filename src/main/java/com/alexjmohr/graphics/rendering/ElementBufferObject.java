@@ -5,6 +5,7 @@ import com.alexjmohr.graphics.rendering.BufferObject;
 import static org.lwjgl.opengl.GL20.*;
 
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 public class ElementBufferObject extends BufferObject {
 	
@@ -28,6 +29,18 @@ public class ElementBufferObject extends BufferObject {
 	public void uploadData(IntBuffer data, int usage) {
 		bind();
 		glBufferData(TARGET, data, usage);
+		setAllocatedSize(data.remaining() * 4L);
+	}
+
+	/**
+	 * Uploads 16-bit index data to the VBO with the specified usage
+	 * @param data	the data to upload
+	 * @param usage see glBufferData
+	 */
+	public void uploadData(ShortBuffer data, int usage) {
+		bind();
+		glBufferData(TARGET, data, usage);
+		setAllocatedSize(data.remaining() * 2L);
 	}
 	
 	/**
@@ -38,6 +51,7 @@ public class ElementBufferObject extends BufferObject {
 	public void uploadNullData(long size, int usage) {
 		bind();
 		glBufferData(TARGET, size, usage);
+		setAllocatedSize(size);
 	}
 	
 	/**
@@ -0,0 +1,144 @@
+package com.alexjmohr.graphics.rendering;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.stb.STBImageWrite.*;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Wrapper class for a Framebuffer Object (FBO) with an RGBA8 colour renderbuffer and a 24 bit
+ * depth renderbuffer, used to render without a visible window
+ * @author Alex Mohr
+ *
+ */
+public class Framebuffer implements GLResource {
+
+	/**
+	 * The FBO id
+	 */
+	private int framebuffer;
+
+	/**
+	 * The colour and depth renderbuffer ids
+	 */
+	private int colorBuffer;
+	private int depthBuffer;
+
+	/**
+	 * The size in pixels
+	 */
+	private int width;
+	private int height;
+
+	/**
+	 * Generates the FBO and its renderbuffers
+	 * @param width  the width in pixels
+	 * @param height the height in pixels
+	 */
+	public Framebuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+
+		colorBuffer = glGenRenderbuffers();
+		glBindRenderbuffer(GL_RENDERBUFFER, colorBuffer);
+		glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, width, height);
+
+		depthBuffer = glGenRenderbuffers();
+		glBindRenderbuffer(GL_RENDERBUFFER, depthBuffer);
+		glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT24, width, height);
+		glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+		framebuffer = glGenFramebuffers();
+		glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+		glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, colorBuffer);
+		glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depthBuffer);
+		int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+		glBindFramebuffer(GL_FRAMEBUFFER, 0);
+		if (status != GL_FRAMEBUFFER_COMPLETE) {
+			delete();
+			throw new RuntimeException("Framebuffer is incomplete: 0x" + Integer.toHexString(status));
+		}
+		// 4 bytes per pixel for each of RGBA8 and DEPTH_COMPONENT24, which is padded to 32 bits
+		GpuMemoryTracker.getInstance().register(this, 8L * width * height, GpuMemoryTracker.Category.RENDER_TARGET, "Framebuffer");
+		ResourceTracker.getInstance().track(this, "Framebuffer");
+	}
+
+	/**
+	 * Binds the FBO for drawing and reading
+	 */
+	public void bind() {
+		glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+	}
+
+	/**
+	 * Binds the default framebuffer
+	 */
+	public void unbind() {
+		glBindFramebuffer(GL_FRAMEBUFFER, 0);
+	}
+
+	/**
+	 * Reads the colour buffer into the specified buffer, bottom row first
+	 * @param pixels a buffer of at least width * height * 4 bytes
+	 */
+	public void readPixels(ByteBuffer pixels) {
+		bind();
+		glReadBuffer(GL_COLOR_ATTACHMENT0);
+		glPixelStorei(GL_PACK_ALIGNMENT, 1);
+		glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+	}
+
+	/**
+	 * Writes the colour buffer to a PNG file
+	 * @param file the file path
+	 */
+	public void savePNG(String file) {
+		ByteBuffer pixels = MemoryUtil.memAlloc(width * height * 4);
+		try {
+			readPixels(pixels);
+			stbi_flip_vertically_on_write(true);
+			if (!stbi_write_png(file, width, height, 4, pixels, width * 4)) {
+				throw new RuntimeException("Failed to write image " + file);
+			}
+		} finally {
+			MemoryUtil.memFree(pixels);
+		}
+	}
+
+	/**
+	 * Get the width
+	 * @return the width in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Get the height
+	 * @return the height in pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Deletes the FBO and its renderbuffers
+	 */
+	@Override
+	public void delete() {
+		if (framebuffer == 0) {
+			return;
+		}
+		glDeleteFramebuffers(framebuffer);
+		glDeleteRenderbuffers(colorBuffer);
+		glDeleteRenderbuffers(depthBuffer);
+		framebuffer = 0;
+		colorBuffer = 0;
+		depthBuffer = 0;
+		GpuMemoryTracker.getInstance().unregister(this);
+		ResourceTracker.getInstance().release(this);
+	}
+}
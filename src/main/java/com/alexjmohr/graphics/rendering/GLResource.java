@@ -0,0 +1,22 @@
+package com.alexjmohr.graphics.rendering;
+
+/**
+ * An object that owns OpenGL handles or off-heap memory and must be released explicitly. close()
+ * deletes the resource, so short-lived resources can be scoped with try-with-resources. delete()
+ * may be called more than once, calls after the first do nothing.
+ */
+public interface GLResource extends AutoCloseable {
+
+    /**
+     * Deletes the GL objects and frees the native memory owned by the resource
+     */
+    void delete();
+
+    /**
+     * Deletes the resource
+     */
+    @Override
+    default void close() {
+        delete();
+    }
+}
@@ -0,0 +1,267 @@
+package com.alexjmohr.graphics.rendering;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Singleton GpuMemoryTracker accounts for the GPU memory of every buffer, texture and render
+ * target. Allocations register their size, category and owner, e.g. the model or texture file
+ * they belong to, and unregister when deleted. Sizes of textures are estimates, since the driver
+ * decides their layout.
+ *
+ * When a budget is set, a warning naming the largest owners is logged each time the total goes
+ * over it.
+ */
+public class GpuMemoryTracker {
+
+    /**
+     * What an allocation is used for
+     */
+    public enum Category {
+        VERTEX_BUFFER,
+        INDEX_BUFFER,
+        TEXTURE,
+        RENDER_TARGET,
+        STREAMING,
+        OTHER
+    }
+
+    /**
+     * A registered allocation
+     */
+    public static class Allocation {
+
+        private final long size;
+        private final Category category;
+        private final String owner;
+
+        private Allocation(long size, Category category, String owner) {
+            this.size = size;
+            this.category = category;
+            this.owner = owner;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public Category getCategory() {
+            return category;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+    }
+
+    /**
+     * Number of owners named in budget warnings
+     */
+    private static final int WARNING_OWNERS = 5;
+
+    /**
+     * The singleton instance
+     */
+    private static GpuMemoryTracker instance;
+
+    /**
+     * The allocations by the object that owns the GL handle
+     */
+    private final Map<Object, Allocation> allocations;
+
+    /**
+     * The total size of each category
+     */
+    private final Map<Category, Long> totals;
+
+    /**
+     * The total size of all allocations
+     */
+    private long total;
+
+    /**
+     * The budget in bytes, 0 for no budget
+     */
+    private long budget;
+
+    /**
+     * True while the total is over the budget, so the warning is logged once per crossing
+     */
+    private boolean overBudget;
+
+    /**
+     * Initializes the tracker
+     */
+    private GpuMemoryTracker() {
+        allocations = new IdentityHashMap<>();
+        totals = new EnumMap<>(Category.class);
+        for (Category category : Category.values()) {
+            totals.put(category, 0L);
+        }
+    }
+
+    /**
+     * Get the tracker instance. Initializes it if this is the first call.
+     * @return the singleton instance
+     */
+    public static synchronized GpuMemoryTracker getInstance() {
+        if (instance == null) {
+            instance = new GpuMemoryTracker();
+        }
+        return instance;
+    }
+
+    /**
+     * Register an allocation, replacing the previous allocation of the same handle, e.g. when a
+     * buffer's data store is reallocated
+     * @param handle   the object owning the GL handle
+     * @param size     the size in bytes
+     * @param category what the allocation is used for
+     * @param owner    the asset or subsystem the allocation belongs to
+     */
+    public synchronized void register(Object handle, long size, Category category, String owner) {
+        remove(handle);
+        Allocation allocation = new Allocation(size, category, owner);
+        allocations.put(handle, allocation);
+        totals.put(category, totals.get(category) + size);
+        total += size;
+        checkBudget();
+    }
+
+    /**
+     * Unregister the allocation of a handle, if it has one
+     * @param handle the object owning the GL handle
+     */
+    public synchronized void unregister(Object handle) {
+        remove(handle);
+        if (overBudget && total <= budget) {
+            overBudget = false;
+        }
+    }
+
+    /**
+     * Remove an allocation from the totals
+     */
+    private void remove(Object handle) {
+        Allocation allocation = allocations.remove(handle);
+        if (allocation != null) {
+            totals.put(allocation.category, totals.get(allocation.category) - allocation.size);
+            total -= allocation.size;
+        }
+    }
+
+    /**
+     * Log a warning if the total has just gone over the budget
+     */
+    private void checkBudget() {
+        if (budget <= 0 || total <= budget) {
+            overBudget = false;
+            return;
+        }
+        if (!overBudget) {
+            overBudget = true;
+            StringBuilder message = new StringBuilder(String.format("GPU memory budget exceeded: %.1f of %.1f MB, largest owners:",
+                    total / 1048576.0, budget / 1048576.0));
+            for (Map.Entry<String, Long> owner : getTopOwners(WARNING_OWNERS).entrySet()) {
+                message.append(String.format(" %s (%.1f MB)", owner.getKey(), owner.getValue() / 1048576.0));
+            }
+            Logger.getLogger(GpuMemoryTracker.class.getName()).warning(message.toString());
+        }
+    }
+
+    /**
+     * Set the budget. A warning is logged whenever the total goes over it.
+     * @param budget the budget in bytes, 0 for no budget
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        this.overBudget = false;
+        checkBudget();
+    }
+
+    /**
+     * Get the budget
+     * @return the budget in bytes, 0 if there is none
+     */
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Get the total size of all allocations
+     * @return the size in bytes
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * Get the total size of a category
+     * @param category the category
+     * @return the size in bytes
+     */
+    public synchronized long getTotal(Category category) {
+        return totals.get(category);
+    }
+
+    /**
+     * Get the number of registered allocations
+     * @return the allocation count
+     */
+    public synchronized int getAllocationCount() {
+        return allocations.size();
+    }
+
+    /**
+     * Get the largest allocations
+     * @param n the maximum number of allocations to return
+     * @return the allocations, largest first
+     */
+    public synchronized List<Allocation> getTopAllocations(int n) {
+        List<Allocation> sorted = new ArrayList<>(allocations.values());
+        sorted.sort((a, b) -> Long.compare(b.size, a.size));
+        return new ArrayList<>(sorted.subList(0, Math.min(n, sorted.size())));
+    }
+
+    /**
+     * Get the owners using the most memory, summed over their allocations
+     * @param n the maximum number of owners to return
+     * @return the size in bytes by owner, largest first
+     */
+    public synchronized Map<String, Long> getTopOwners(int n) {
+        Map<String, Long> byOwner = new HashMap<>();
+        for (Allocation allocation : allocations.values()) {
+            byOwner.merge(allocation.owner, allocation.size, Long::sum);
+        }
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(byOwner.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        Map<String, Long> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : sorted.subList(0, Math.min(n, sorted.size()))) {
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return Collections.unmodifiableMap(top);
+    }
+
+    /**
+     * Print the totals by category and the largest owners to standard out
+     * @param n the number of owners to print
+     */
+    public synchronized void printReport(int n) {
+        System.out.println(String.format("GPU memory: %.1f MB in %d allocations", total / 1048576.0, allocations.size()));
+        for (Category category : Category.values()) {
+            if (totals.get(category) > 0) {
+                System.out.println(String.format("  %-14s %10.1f MB", category, totals.get(category) / 1048576.0));
+            }
+        }
+        for (Map.Entry<String, Long> owner : getTopOwners(n).entrySet()) {
+            System.out.println(String.format("  %-40s %10.1f MB", owner.getKey(), owner.getValue() / 1048576.0));
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.alexjmohr.graphics.rendering;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL40.*;
+import static org.lwjgl.opengl.GL44.*;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Buffer of DrawElementsIndirectCommand records for glMultiDrawElementsIndirect. The buffer is
+ * persistently mapped when the context supports buffer storage, otherwise the commands are staged
+ * in native memory and uploaded by flush().
+ * @author Alex Mohr
+ *
+ */
+public class IndirectDrawBuffer extends BufferObject {
+
+	/**
+	 * The size in bytes of one command: count, instanceCount, firstIndex, baseVertex, baseInstance
+	 */
+	public static final int COMMAND_SIZE = 5 * 4;
+
+	/**
+	 * The target to use when binding or uploading data for all indirect buffers
+	 */
+	private static final int TARGET = GL_DRAW_INDIRECT_BUFFER;
+
+	/**
+	 * Flags for the persistent mapping
+	 */
+	private static final int PERSISTENT_FLAGS = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+
+	/**
+	 * Storage flags of a persistent buffer, which also allows glBufferSubData for instance count
+	 * updates
+	 */
+	private static final int STORAGE_FLAGS = PERSISTENT_FLAGS | GL_DYNAMIC_STORAGE_BIT;
+
+	/**
+	 * The maximum number of commands
+	 */
+	private final int capacity;
+
+	/**
+	 * True if the buffer is persistently mapped
+	 */
+	private final boolean persistent;
+
+	/**
+	 * The persistent mapping, or the staging buffer if the buffer is not persistently mapped
+	 */
+	private ByteBuffer commands;
+
+	/**
+	 * The number of commands written
+	 */
+	private int numCommands;
+
+	/**
+	 * The instance count of every command, so unchanged counts aren't uploaded again
+	 */
+	private final int[] instanceCounts;
+
+	/**
+	 * True if staged commands have changed since the last flush()
+	 */
+	private boolean dirty;
+
+	/**
+	 * Scratch buffer for uploading one instance count to a persistent buffer
+	 */
+	private ByteBuffer instanceCountScratch;
+
+	/**
+	 * Creates the buffer with room for the specified number of commands
+	 * @param capacity     the maximum number of commands
+	 * @param capabilities the context capabilities
+	 */
+	public IndirectDrawBuffer(int capacity, GLCapabilities capabilities) {
+		super(TARGET);
+		this.capacity = capacity;
+		this.persistent = capabilities.OpenGL44 || capabilities.GL_ARB_buffer_storage;
+		this.instanceCounts = new int[capacity];
+
+		long size = (long) capacity * COMMAND_SIZE;
+		bind();
+		if (persistent) {
+			glBufferStorage(TARGET, size, STORAGE_FLAGS);
+			commands = glMapBufferRange(TARGET, 0, size, PERSISTENT_FLAGS);
+			instanceCountScratch = MemoryUtil.memAlloc(4);
+		} else {
+			glBufferData(TARGET, size, GL_STATIC_DRAW);
+			commands = MemoryUtil.memAlloc((int) size);
+		}
+		unbind();
+		setAllocatedSize(size);
+	}
+
+	/**
+	 * Returns true if the context can draw from indirect buffers with a base instance, which is
+	 * needed to fetch per-draw data by draw ID.
+	 * @param capabilities the context capabilities
+	 * @return true if indirect drawing is supported
+	 */
+	public static boolean isSupported(GLCapabilities capabilities) {
+		return capabilities.OpenGL43
+				|| (capabilities.GL_ARB_multi_draw_indirect && capabilities.GL_ARB_base_instance);
+	}
+
+	/**
+	 * Write a command
+	 * @param count         the number of elements
+	 * @param instanceCount the number of instances
+	 * @param firstIndex    the first index in the EBO
+	 * @param baseVertex    the base vertex
+	 * @param baseInstance  the base instance, used as the draw ID
+	 * @return the index of the command
+	 */
+	public int addCommand(int count, int instanceCount, int firstIndex, int baseVertex, int baseInstance) {
+		if (numCommands == capacity) {
+			throw new IllegalStateException("Indirect draw buffer is full");
+		}
+		int offset = numCommands * COMMAND_SIZE;
+		commands.putInt(offset, count);
+		commands.putInt(offset + 4, instanceCount);
+		commands.putInt(offset + 8, firstIndex);
+		commands.putInt(offset + 12, baseVertex);
+		commands.putInt(offset + 16, baseInstance);
+		instanceCounts[numCommands] = instanceCount;
+		dirty = true;
+		return numCommands++;
+	}
+
+	/**
+	 * Change the instance count of a command, e.g. to 0 to skip a culled draw. A persistent buffer
+	 * is updated with glBufferSubData rather than through the mapping, so draws already submitted
+	 * from the buffer still read their old count; staged commands are uploaded by flush().
+	 * @param command       the command index
+	 * @param instanceCount the number of instances
+	 */
+	public void setInstanceCount(int command, int instanceCount) {
+		if (instanceCounts[command] == instanceCount) {
+			return;
+		}
+		instanceCounts[command] = instanceCount;
+		int offset = command * COMMAND_SIZE + 4;
+		if (persistent) {
+			instanceCountScratch.putInt(0, instanceCount);
+			bind();
+			glBufferSubData(TARGET, offset, instanceCountScratch);
+			unbind();
+		} else {
+			commands.putInt(offset, instanceCount);
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Upload the staged commands if they changed. Does nothing if the buffer is persistently mapped.
+	 */
+	public void flush() {
+		if (persistent || !dirty) {
+			return;
+		}
+		bind();
+		commands.limit(numCommands * COMMAND_SIZE);
+		glBufferSubData(TARGET, 0, commands);
+		commands.clear();
+		unbind();
+		dirty = false;
+	}
+
+	/**
+	 * Get the byte offset of the given command, for glMultiDrawElementsIndirect
+	 * @param command the command index
+	 * @return the byte offset into the buffer
+	 */
+	public long getOffset(int command) {
+		return (long) command * COMMAND_SIZE;
+	}
+
+	/**
+	 * Get the number of commands written
+	 * @return the number of commands
+	 */
+	public int getNumCommands() {
+		return numCommands;
+	}
+
+	/**
+	 * Unmaps or frees the commands and deletes the buffer object
+	 */
+	@Override
+	public void delete() {
+		if (isDeleted()) {
+			return;
+		}
+		if (persistent) {
+			bind();
+			glUnmapBuffer(TARGET);
+			unbind();
+			MemoryUtil.memFree(instanceCountScratch);
+		} else {
+			MemoryUtil.memFree(commands);
+		}
+		super.delete();
+	}
+}
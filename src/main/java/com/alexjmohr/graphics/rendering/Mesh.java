@@ -2,7 +2,10 @@ package com.alexjmohr.graphics.rendering;
 
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
+import com.alexjmohr.graphics.loaders.MeshOptimizer;
+import org.joml.Vector3f;
 import org.lwjgl.system.MemoryUtil;
 
 import static org.lwjgl.opengl.GL20.*;
@@ -12,7 +15,26 @@ import static org.lwjgl.opengl.GL20.*;
  * @author Alex Mohr
  *
  */
-public class Mesh {
+public class Mesh implements GLResource {
+
+	/**
+	 * What a mesh keeps in CPU memory after its buffers have been uploaded
+	 */
+	public enum Residency {
+		/**
+		 * Free all CPU-side buffers once they are uploaded
+		 */
+		GPU_ONLY,
+		/**
+		 * Keep the positions and indices in native memory, for picking or physics
+		 */
+		CPU_RETAINED,
+		/**
+		 * Keep the positions and indices losslessly compressed on the heap. They are decompressed
+		 * on each request, trading CPU time for memory.
+		 */
+		COMPRESSED_RETAINED
+	}
 	
 	/**
 	 * The VAO
@@ -83,18 +105,81 @@ public class Mesh {
 	 * The material used to render the mesh
 	 */
 	private Material material;
+
+	/**
+	 * The type of the uploaded indices, GL_UNSIGNED_SHORT if the mesh has less than 65536 vertices,
+	 * otherwise GL_UNSIGNED_INT
+	 */
+	private int indexType;
+
+	/**
+	 * Bit mask of the vertex attributes that hold data, bit n is set if attribute location n has data
+	 */
+	private int attributeMask;
+
+	/**
+	 * The number of vertices and elements, kept after the buffers are freed
+	 */
+	private int numVertices;
+	private int numElements;
+
+	/**
+	 * What the mesh keeps in CPU memory after upload
+	 */
+	private Residency residency;
+
+	/**
+	 * The compressed positions and indices of a COMPRESSED_RETAINED mesh
+	 */
+	private byte[] compressedPositions;
+	private byte[] compressedElements;
+
+	/**
+	 * The corners of the vertices' bounding box, in model space
+	 */
+	private Vector3f boundsMin = new Vector3f();
+	private Vector3f boundsMax = new Vector3f();
+
+	/**
+	 * The centre and radius of a sphere around the vertices, in model space
+	 */
+	private Vector3f boundsCenter = new Vector3f();
+	private float boundsRadius;
+
+	/**
+	 * The average texture coordinate distance per unit of model space distance, 0 if the mesh
+	 * has no texture coordinates. Used to estimate which texture mip a draw needs.
+	 */
+	private float texelDensity;
 	
 	/**
-	 * Creates a mesh with specified positions, normals, texCoords, elements. normals and texcoords
-	 * can be omitted by passing null. The buffers are saved, so they should not be freed by the
-	 * caller.
+	 * Creates a GPU_ONLY mesh with specified positions, normals, texCoords, elements. normals and
+	 * texcoords can be omitted by passing null. The mesh takes ownership of the buffers, so they
+	 * should not be freed or used by the caller.
 	 * @param positions the positions buffer
 	 * @param normals   the normals buffer
 	 * @param texCoords the texture coordinates buffer
-	 * @param elements  the index buffer. The number of elements is assumed to be this buffer's capacity.
+	 * @param elements  the index buffer. The number of elements is assumed to be this buffer's limit.
 	 */
 	public Mesh(FloatBuffer positions, FloatBuffer normals, FloatBuffer texCoords, FloatBuffer tangents, FloatBuffer bitangents, IntBuffer elements) {
+		this(positions, normals, texCoords, tangents, bitangents, elements, Residency.GPU_ONLY);
+	}
+
+	/**
+	 * Creates a mesh with specified positions, normals, texCoords, elements and residency. The
+	 * mesh takes ownership of the buffers, and frees the ones the residency doesn't keep once
+	 * they are uploaded.
+	 * @param positions the positions buffer
+	 * @param normals   the normals buffer
+	 * @param texCoords the texture coordinates buffer
+	 * @param elements  the index buffer. The number of elements is assumed to be this buffer's limit.
+	 * @param residency what to keep in CPU memory after upload
+	 */
+	public Mesh(FloatBuffer positions, FloatBuffer normals, FloatBuffer texCoords, FloatBuffer tangents, FloatBuffer bitangents, IntBuffer elements, Residency residency) {
 		this.material = new Material();
+		this.residency = residency;
+		this.numVertices = positions.limit() / 3;
+		this.numElements = elements.limit();
 		// save buffers
 		this.positions = positions;
 		this.normals = normals;
@@ -102,9 +187,94 @@ public class Mesh {
 		this.tangents = tangents;
 		this.bitangents = bitangents;
 		this.elements = elements;
+
+		calculateBounds();
+		calculateTexelDensity();
 		
 		// upload buffers to VBOs and EBO
 		upload();
+		releaseStagingBuffers();
+		ResourceTracker.getInstance().track(this, "Mesh");
+	}
+
+	/**
+	 * Free the uploaded buffers the residency policy doesn't keep, compressing the retained ones
+	 * if requested
+	 */
+	private void releaseStagingBuffers() {
+		MemoryUtil.memFree(normals);
+		MemoryUtil.memFree(texCoords);
+		MemoryUtil.memFree(tangents);
+		MemoryUtil.memFree(bitangents);
+		normals = null;
+		texCoords = null;
+		tangents = null;
+		bitangents = null;
+
+		if (residency == Residency.CPU_RETAINED) {
+			return;
+		}
+		if (residency == Residency.COMPRESSED_RETAINED) {
+			compressedPositions = VertexStreamCodec.compress(MemoryUtil.memByteBuffer(MemoryUtil.memAddress(positions), positions.remaining() * 4));
+			compressedElements = VertexStreamCodec.compress(MemoryUtil.memByteBuffer(MemoryUtil.memAddress(elements), elements.remaining() * 4));
+		}
+		MemoryUtil.memFree(positions);
+		MemoryUtil.memFree(elements);
+		positions = null;
+		elements = null;
+	}
+	
+	/**
+	 * Calculate the vertices' bounding box, and a bounding sphere around its centre
+	 */
+	private void calculateBounds() {
+		if (numVertices == 0) {
+			return;
+		}
+		boundsMin.set(Float.MAX_VALUE);
+		boundsMax.set(-Float.MAX_VALUE);
+		Vector3f position = new Vector3f();
+		for (int i = 0; i < numVertices; i++) {
+			position.set(positions.get(3 * i), positions.get(3 * i + 1), positions.get(3 * i + 2));
+			boundsMin.min(position);
+			boundsMax.max(position);
+		}
+		boundsMin.add(boundsMax, boundsCenter).mul(0.5f);
+		float radiusSquared = 0;
+		for (int i = 0; i < numVertices; i++) {
+			radiusSquared = Math.max(radiusSquared, boundsCenter.distanceSquared(positions.get(3 * i), positions.get(3 * i + 1), positions.get(3 * i + 2)));
+		}
+		boundsRadius = (float) Math.sqrt(radiusSquared);
+	}
+
+	/**
+	 * Calculate the texel density from the ratio of the triangles' total texture coordinate area
+	 * to their total model space area
+	 */
+	private void calculateTexelDensity() {
+		if (texCoords == null || !texCoords.hasRemaining()) {
+			return;
+		}
+		Vector3f edge1 = new Vector3f();
+		Vector3f edge2 = new Vector3f();
+		double worldArea = 0;
+		double uvArea = 0;
+		for (int i = 0; i + 2 < numElements; i += 3) {
+			int a = elements.get(i);
+			int b = elements.get(i + 1);
+			int c = elements.get(i + 2);
+			edge1.set(positions.get(3 * b) - positions.get(3 * a), positions.get(3 * b + 1) - positions.get(3 * a + 1), positions.get(3 * b + 2) - positions.get(3 * a + 2));
+			edge2.set(positions.get(3 * c) - positions.get(3 * a), positions.get(3 * c + 1) - positions.get(3 * a + 1), positions.get(3 * c + 2) - positions.get(3 * a + 2));
+			worldArea += edge1.cross(edge2).length() / 2;
+			float u1 = texCoords.get(2 * b) - texCoords.get(2 * a);
+			float v1 = texCoords.get(2 * b + 1) - texCoords.get(2 * a + 1);
+			float u2 = texCoords.get(2 * c) - texCoords.get(2 * a);
+			float v2 = texCoords.get(2 * c + 1) - texCoords.get(2 * a + 1);
+			uvArea += Math.abs(u1 * v2 - u2 * v1) / 2;
+		}
+		if (worldArea > 0) {
+			texelDensity = (float) Math.sqrt(uvArea / worldArea);
+		}
 	}
 	
 	/**
@@ -153,13 +323,38 @@ public class Mesh {
 			glVertexAttribPointer(4, 3, GL_FLOAT, false, 0, 0);
 		}
 		
-		// elements
+		// elements. Use 16-bit indices when every vertex can be addressed with them.
 		ebo = new ElementBufferObject();
 		ebo.bind();
-		ebo.uploadData(elements, GL_STATIC_DRAW);
+		if (numVertices < MeshOptimizer.MAX_SHORT_INDEX_VERTICES) {
+			ShortBuffer shortElements = MemoryUtil.memAllocShort(elements.limit());
+			for (int i = 0; i < elements.limit(); i++) {
+				shortElements.put(i, (short) elements.get(i));
+			}
+			ebo.uploadData(shortElements, GL_STATIC_DRAW);
+			MemoryUtil.memFree(shortElements);
+			indexType = GL_UNSIGNED_SHORT;
+		} else {
+			ebo.uploadData(elements, GL_STATIC_DRAW);
+			indexType = GL_UNSIGNED_INT;
+		}
 		
 		// unbind
 		unbind();
+
+		attributeMask = 1;
+		if (normals != null && normals.hasRemaining()) {
+			attributeMask |= 1 << 1;
+		}
+		if (texCoords != null && texCoords.hasRemaining()) {
+			attributeMask |= 1 << 2;
+		}
+		if (tangents != null && tangents.hasRemaining()) {
+			attributeMask |= 1 << 3;
+		}
+		if (bitangents != null && bitangents.hasRemaining()) {
+			attributeMask |= 1 << 4;
+		}
 	}
 	
 	/**
@@ -167,7 +362,167 @@ public class Mesh {
 	 * @return the number of elements
 	 */
 	public int getNumElements() {
-		return elements.capacity();
+		return numElements;
+	}
+
+	/**
+	 * Get the number of vertices
+	 * @return the number of vertices
+	 */
+	public int getNumVertices() {
+		return numVertices;
+	}
+
+	/**
+	 * Get what the mesh keeps in CPU memory after upload
+	 * @return the residency policy
+	 */
+	public Residency getResidency() {
+		return residency;
+	}
+
+	/**
+	 * Get the retained vertex positions, 3 floats per vertex. A CPU_RETAINED mesh returns a
+	 * read-only view of its buffer, a COMPRESSED_RETAINED mesh decompresses them into a new heap
+	 * buffer on each call.
+	 * @return the positions
+	 * @throws IllegalStateException if the mesh is GPU_ONLY or deleted
+	 */
+	public FloatBuffer getPositions() {
+		if (positions != null) {
+			return positions.asReadOnlyBuffer();
+		}
+		if (compressedPositions != null) {
+			return VertexStreamCodec.decompress(compressedPositions, numVertices * 3).asFloatBuffer();
+		}
+		throw new IllegalStateException("Mesh positions are not retained, residency is " + residency);
+	}
+
+	/**
+	 * Get the retained triangle indices. A CPU_RETAINED mesh returns a read-only view of its
+	 * buffer, a COMPRESSED_RETAINED mesh decompresses them into a new heap buffer on each call.
+	 * @return the indices
+	 * @throws IllegalStateException if the mesh is GPU_ONLY or deleted
+	 */
+	public IntBuffer getElements() {
+		if (elements != null) {
+			return elements.asReadOnlyBuffer();
+		}
+		if (compressedElements != null) {
+			return VertexStreamCodec.decompress(compressedElements, numElements).asIntBuffer();
+		}
+		throw new IllegalStateException("Mesh elements are not retained, residency is " + residency);
+	}
+
+	/**
+	 * Get the CPU memory held by the mesh's retained data
+	 * @return the size in bytes, native buffers and compressed arrays
+	 */
+	public long getCpuSizeBytes() {
+		long size = 0;
+		if (positions != null) {
+			size += 4L * positions.limit() + 4L * elements.limit();
+		}
+		if (compressedPositions != null) {
+			size += compressedPositions.length + compressedElements.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Get the minimum corner of the mesh's bounding box
+	 * @return the corner in model space
+	 */
+	public Vector3f getBoundsMin() {
+		return boundsMin;
+	}
+
+	/**
+	 * Get the maximum corner of the mesh's bounding box
+	 * @return the corner in model space
+	 */
+	public Vector3f getBoundsMax() {
+		return boundsMax;
+	}
+
+	/**
+	 * Get the centre of the mesh's bounding sphere
+	 * @return the centre in model space
+	 */
+	public Vector3f getBoundsCenter() {
+		return boundsCenter;
+	}
+
+	/**
+	 * Get the radius of the mesh's bounding sphere
+	 * @return the radius in model space
+	 */
+	public float getBoundsRadius() {
+		return boundsRadius;
+	}
+
+	/**
+	 * Get the average texture coordinate distance per unit of model space distance
+	 * @return the texel density, 0 if the mesh has no texture coordinates
+	 */
+	public float getTexelDensity() {
+		return texelDensity;
+	}
+
+	/**
+	 * Get the type of the indices in the EBO
+	 * @return GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+	 */
+	public int getIndexType() {
+		return indexType;
+	}
+
+	/**
+	 * Get the vertex attributes that hold data
+	 * @return bit mask where bit n is set if attribute location n has data
+	 */
+	public int getAttributeMask() {
+		return attributeMask;
+	}
+
+	/**
+	 * Get the VBO for the given attribute location
+	 * @param attribute the attribute location, 0 to 4
+	 * @return the VBO, or null if the mesh does not have the attribute
+	 */
+	VertexBufferObject getVertexBuffer(int attribute) {
+		switch (attribute) {
+			case 0: return vboPositions;
+			case 1: return vboNormals;
+			case 2: return vboTexCoords;
+			case 3: return vboTangents;
+			case 4: return vboBitangents;
+			default: return null;
+		}
+	}
+
+	/**
+	 * Get the EBO
+	 * @return the EBO
+	 */
+	ElementBufferObject getElementBuffer() {
+		return ebo;
+	}
+
+	/**
+	 * Set the asset the mesh belongs to for GPU memory accounting, e.g. the model file
+	 * @param owner the owner name
+	 */
+	public void setOwner(String owner) {
+		for (int attribute = 0; attribute < 5; attribute++) {
+			VertexBufferObject vbo = getVertexBuffer(attribute);
+			if (vbo != null) {
+				vbo.setOwner(owner);
+			}
+		}
+		ebo.setOwner(owner);
+		vao.setOwner(owner);
+		ResourceTracker.getInstance().setOwner(this, owner);
 	}
 
 	/**
@@ -203,16 +558,30 @@ public class Mesh {
 	}
 	
 	/**
-	 * Frees the buffers
+	 * Deletes the VAO, VBOs and EBO and frees the buffers
 	 */
+	@Override
 	public void delete() {
-		MemoryUtil.memFree(positions);
-		if (normals != null) {
-			MemoryUtil.memFree(normals);	
+		if (vao == null) {
+			return;
 		}
-		if (texCoords != null) {
-			MemoryUtil.memFree(texCoords);	
+		vao.delete();
+		for (int attribute = 0; attribute < 5; attribute++) {
+			VertexBufferObject vbo = getVertexBuffer(attribute);
+			if (vbo != null) {
+				vbo.delete();
+			}
 		}
+		ebo.delete();
+		vao = null;
+
+		// memFree ignores null buffers, only retained ones are left
+		MemoryUtil.memFree(positions);
 		MemoryUtil.memFree(elements);
+		positions = null;
+		elements = null;
+		compressedPositions = null;
+		compressedElements = null;
+		ResourceTracker.getInstance().release(this);
 	}
 }
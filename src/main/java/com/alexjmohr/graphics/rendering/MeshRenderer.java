@@ -2,38 +2,130 @@ package com.alexjmohr.graphics.rendering;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.GL_TEXTURE_2D_ARRAY;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT;
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memCopy;
+import static org.lwjgl.system.MemoryUtil.memGetFloat;
+import static org.lwjgl.system.MemoryUtil.memGetInt;
 
 import com.alexjmohr.graphics.Camera;
 import com.alexjmohr.graphics.GraphicsApp;
 import com.alexjmohr.graphics.Window;
+import com.alexjmohr.graphics.culling.CullingStage;
 import com.alexjmohr.graphics.lights.DirectionalLight;
 import com.alexjmohr.graphics.lights.PointLight;
+import com.alexjmohr.graphics.profiling.Profiler;
 import org.joml.Matrix3f;
 import org.joml.Matrix4f;
 import org.joml.Quaternionf;
 import org.joml.Vector3f;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.function.Predicate;
+
 /**
  * Holds a shader program, and renders meshes with that program
  * @author Alex Mohr
  *
  */
-public class MeshRenderer {
+public class MeshRenderer implements GLResource {
+
+	/**
+	 * The shader variants used to render meshes
+	 */
+	private ShaderLibrary shaders;
 
 	/**
-	 * The shader program used to render meshes
+	 * The shader program in use, null between renders
 	 */
 	private ShaderProgram program;
 
+	/**
+	 * The texture unit of the per-draw material buffer used by indirect batches
+	 */
+	private static final int PER_DRAW_MATERIAL_UNIT = 2;
+
+	/**
+	 * The texture units of the texture arrays of indirect batches, and of their per-draw bindless
+	 * handle buffer
+	 */
+	private static final int TEXTURE_ARRAY_UNIT = 3;
+	private static final int NORMAL_MAP_ARRAY_UNIT = 4;
+	private static final int PER_DRAW_HANDLE_UNIT = 5;
+
+	/**
+	 * The uniform buffer binding of the Transform block, and its size in bytes
+	 */
+	private static final int TRANSFORM_BINDING = 0;
+	private static final int TRANSFORM_SIZE = CommandList.TRANSFORM_FLOATS * 4;
+
 	DirectionalLight dirLight;
 	PointLight pointLight;
+
+	/**
+	 * The camera and transform of the current render, uploaded whenever the program changes
+	 */
+	private Camera camera;
+	private Matrix4f projection = new Matrix4f();
+	private Matrix4f view = new Matrix4f();
+	private Matrix4f model = new Matrix4f();
+	private Matrix3f normalMatrix = new Matrix3f();
+
+	/**
+	 * The ring buffer the Transform block of every draw is streamed into
+	 */
+	private StreamBuffer transforms;
+
+	/**
+	 * The offset alignment of uniform buffer ranges
+	 */
+	private int uniformAlignment;
+
+	/**
+	 * Scratch for a transform in the Transform block layout
+	 */
+	private float[] transform = new float[CommandList.TRANSFORM_FLOATS];
+
+	/**
+	 * Scratch vector for the mip requests
+	 */
+	private Vector3f boundsCenter = new Vector3f();
+
+	/**
+	 * Decides which draws are submitted, null to draw everything
+	 */
+	private CullingStage culling;
+
+	/**
+	 * The batch meshes that passed culling in the current render
+	 */
+	private Set<Mesh> visibleMeshes = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	/**
+	 * Records the submitted draws into command lists on worker threads
+	 */
+	private DrawRecorder recorder;
+
+	/**
+	 * Draw calls issued and triangles submitted since the renderer was created
+	 */
+	private long drawCalls;
+	private long trianglesSubmitted;
 	
 	/**
-	 * Creates a mesh renderer with the specified shader program
-	 * @param program
+	 * Creates a mesh renderer with the specified shader variants
+	 * @param shaders    the shader library to select programs from
+	 * @param transforms the uniform stream buffer the draws' transforms are written to. Its
+	 *                   frames must be started and ended around each frame's renders.
 	 */
-	public MeshRenderer(ShaderProgram program) {
-		this.program = program;
+	public MeshRenderer(ShaderLibrary shaders, StreamBuffer transforms) {
+		this.shaders = shaders;
+		this.transforms = transforms;
+		uniformAlignment = glGetInteger(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT);
 
 		dirLight = new DirectionalLight();
 		dirLight.setColor(new Vector3f(135 / 255f, 206 / 255f, 255 / 255f));
@@ -43,8 +135,29 @@ public class MeshRenderer {
 		pointLight.setPosition(new Vector3f(-3, -1, 3));
 		pointLight.setColor(new Vector3f(0.5f, 0.0f, 0.5f));
 
+		recorder = new DrawRecorder();
 	}
 	
+	/**
+	 * Start a frame rendered from the given camera, preparing culling for its draws
+	 * @param camera the camera the frame is rendered from
+	 */
+	public void beginFrame(Camera camera) {
+		if (culling != null) {
+			calculateCameraMatrices(camera);
+			culling.beginFrame(projection, view);
+		}
+	}
+
+	/**
+	 * Finish the frame after its draws, with its framebuffer still bound
+	 */
+	public void endFrame() {
+		if (culling != null) {
+			culling.endFrame();
+		}
+	}
+
 	/**
 	 * Renders the given mesh from the point of view of the given camera, at the given mesh
 	 * position, rotation, and scale
@@ -55,68 +168,437 @@ public class MeshRenderer {
 	 * @param meshScale    the mesh scale
 	 */
 	public void renderMesh(Mesh mesh, Camera camera, Vector3f meshPosition, Quaternionf meshRotation, Vector3f meshScale) {
-		Material material = mesh.getMaterial();
+		begin(camera, meshPosition, meshRotation, meshScale);
+		if (culling != null && !culling.isVisible(mesh, model)) {
+			return;
+		}
+		requestMips(mesh);
+		useProgram(ShaderLibrary.getFeatures(mesh.getMaterial()));
+		setMaterialUniforms(mesh.getMaterial());
+		setTransform(model, normalMatrix);
+		drawMesh(mesh);
+		end();
+	}
 
-		// Use the shader program
-		program.use();
+	/**
+	 * Queue a mesh to be drawn by renderSubmitted(). The transform objects must not change until
+	 * then.
+	 * @param mesh         the mesh to render
+	 * @param meshPosition the mesh position
+	 * @param meshRotation the mesh rotation
+	 * @param meshScale    the mesh scale
+	 */
+	public void submit(Mesh mesh, Vector3f meshPosition, Quaternionf meshRotation, Vector3f meshScale) {
+		recorder.submit(mesh, meshPosition, meshRotation, meshScale);
+	}
+
+	/**
+	 * Renders the submitted meshes from the point of view of the given camera. Worker threads
+	 * cull the draws and record them, sorted by program and material, into command lists which
+	 * are then executed here in order. The recording is timed as the profiler's sort zone.
+	 * @param camera the camera to render from
+	 */
+	@SuppressWarnings("try")
+	public void renderSubmitted(Camera camera) {
+		calculateCameraMatrices(camera);
+		try (Profiler.Zone zone = GraphicsApp.getInstance().getProfiler().zone("sort")) {
+			recorder.record(culling, camera.getPosition(), projection, GraphicsApp.getInstance().getRenderHeight());
+		}
+		for (int i = 0; i < recorder.getNumLists(); i++) {
+			execute(recorder.getList(i));
+		}
+		end();
+		recorder.clear();
+	}
+
+	/**
+	 * Execute a recorded command list
+	 * @param commands the commands
+	 */
+	private void execute(CommandList commands) {
+		long address = commands.getAddress();
+		long last = address + commands.getSize();
+		while (address < last) {
+			switch (memGetInt(address)) {
+			case CommandList.USE_PROGRAM:
+				useProgram(memGetInt(address + 4));
+				address += CommandList.USE_PROGRAM_SIZE;
+				break;
+			case CommandList.SET_MATERIAL:
+				setMaterialUniforms((Material) commands.getReference(memGetInt(address + 4)));
+				address += CommandList.SET_MATERIAL_SIZE;
+				break;
+			case CommandList.REQUEST_MIPS:
+				requestMips((Material) commands.getReference(memGetInt(address + 4)), memGetFloat(address + 8));
+				address += CommandList.REQUEST_MIPS_SIZE;
+				break;
+			case CommandList.SET_TRANSFORM:
+				// The list already holds the block layout, so it is copied straight across
+				memCopy(address + 4, memAddress(transforms.map(TRANSFORM_SIZE, uniformAlignment)), TRANSFORM_SIZE);
+				bindTransform();
+				address += CommandList.SET_TRANSFORM_SIZE;
+				break;
+			case CommandList.DRAW:
+				drawMesh((Mesh) commands.getReference(memGetInt(address + 4)));
+				address += CommandList.DRAW_SIZE;
+				break;
+			default:
+				throw new IllegalStateException("Unknown command " + memGetInt(address));
+			}
+		}
+	}
+
+	/**
+	 * Draw a mesh with the program, material and transform already set
+	 * @param mesh the mesh to draw
+	 */
+	private void drawMesh(Mesh mesh) {
+		// Bind the VAO and the EBO and draw the cube
+		mesh.bind();
+		glEnableVertexAttribArray(0);
+		glEnableVertexAttribArray(1);
+		glEnableVertexAttribArray(2);
+		glEnableVertexAttribArray(3);
+		glEnableVertexAttribArray(4);
+		glDrawElements(GL_TRIANGLES, mesh.getNumElements(), mesh.getIndexType(), 0);
+		drawCalls++;
+		trianglesSubmitted += mesh.getNumElements() / 3;
 		
-		// Calculate projection matrix and set the uniform
+		// Unbind everything
+		glDisableVertexAttribArray(0);
+		glDisableVertexAttribArray(1);
+		glDisableVertexAttribArray(2);
+		glDisableVertexAttribArray(3);
+		glDisableVertexAttribArray(4);
+
+		mesh.unbind();
+	}
+
+	/**
+	 * Renders all meshes in the static batch with a single transform. Each material run is drawn
+	 * with one multi-draw call using the shader variant for the material's features. Meshes that
+	 * fail culling are left out of the multi-draws, and runs or buckets with nothing left aren't
+	 * drawn.
+	 * @param batch        the batch to render
+	 * @param camera       the camera to render from
+	 * @param meshPosition the batch position
+	 * @param meshRotation the batch rotation
+	 * @param meshScale    the batch scale
+	 */
+	public void renderBatch(StaticBatch batch, Camera camera, Vector3f meshPosition, Quaternionf meshRotation, Vector3f meshScale) {
+		begin(camera, meshPosition, meshRotation, meshScale);
+		visibleMeshes.clear();
+		for (StaticBatch.Arena arena : batch.getArenas()) {
+			for (Mesh mesh : arena.getMeshes()) {
+				if (culling == null || culling.isVisible(mesh, model)) {
+					visibleMeshes.add(mesh);
+					requestMips(mesh);
+				}
+			}
+		}
+		Predicate<Mesh> visible = culling != null ? visibleMeshes::contains : null;
+		setTransform(model, normalMatrix);
+
+		if (batch.isIndirect()) {
+			// Culled draws keep their command with an instance count of 0
+			for (StaticBatch.Arena arena : batch.getArenas()) {
+				for (StaticBatch.Bucket bucket : arena.getBuckets()) {
+					batch.cull(bucket, visible);
+				}
+			}
+			batch.flushCommands();
+
+			// Material colours and texture layers come from the per-draw buffer, buckets only
+			// share shader features and texture arrays
+			batch.refreshTextures();
+			batch.bindIndirect(PER_DRAW_MATERIAL_UNIT, PER_DRAW_HANDLE_UNIT);
+			for (StaticBatch.Arena arena : batch.getArenas()) {
+				arena.getVertexArray().bind();
+				for (StaticBatch.Bucket bucket : arena.getBuckets()) {
+					if (bucket.getVisibleElements() == 0) {
+						continue;
+					}
+					useProgram(getBucketFeatures(batch, bucket));
+					if (bucket.getTextureArray() != null) {
+						bucket.getTextureArray().bind(TEXTURE_ARRAY_UNIT);
+					}
+					if (bucket.getNormalMapArray() != null) {
+						bucket.getNormalMapArray().bind(NORMAL_MAP_ARRAY_UNIT);
+					}
+					batch.draw(arena, bucket);
+					drawCalls++;
+					trianglesSubmitted += bucket.getVisibleElements() / 3;
+				}
+				arena.getVertexArray().unbind();
+			}
+			batch.unbindIndirect();
+		} else {
+			for (StaticBatch.Arena arena : batch.getArenas()) {
+				// The arena's VAO holds the attribute pointers, enabled arrays and the EBO binding
+				arena.getVertexArray().bind();
+				for (StaticBatch.Run run : arena.getRuns()) {
+					if (!anyVisible(run, visible)) {
+						continue;
+					}
+					useProgram(ShaderLibrary.getFeatures(run.getMaterial()));
+					setMaterialUniforms(run.getMaterial());
+					long elements = batch.draw(arena, run, visible);
+					drawCalls++;
+					trianglesSubmitted += elements / 3;
+				}
+				arena.getVertexArray().unbind();
+			}
+		}
+
+		end();
+	}
+
+	/**
+	 * Check whether any mesh of a run passed culling, so its program and material aren't set up
+	 * for nothing
+	 * @param run     the run
+	 * @param visible the visibility test, null if nothing is culled
+	 * @return true if the run has something to draw
+	 */
+	private static boolean anyVisible(StaticBatch.Run run, Predicate<Mesh> visible) {
+		if (visible == null) {
+			return true;
+		}
+		for (Mesh mesh : run.getMeshes()) {
+			if (visible.test(mesh)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Build the shader variants the batch will use, so they aren't compiled during the first frame
+	 * @param batch the batch that will be rendered
+	 */
+	public void prepare(StaticBatch batch) {
+		for (StaticBatch.Arena arena : batch.getArenas()) {
+			for (StaticBatch.Run run : arena.getRuns()) {
+				shaders.getProgram(ShaderLibrary.getFeatures(run.getMaterial()));
+			}
+			for (StaticBatch.Bucket bucket : arena.getBuckets()) {
+				shaders.getProgram(getBucketFeatures(batch, bucket));
+			}
+		}
+	}
+
+	/**
+	 * Get the shader features of an indirect bucket
+	 * @param batch  the batch the bucket belongs to
+	 * @param bucket the bucket
+	 * @return the feature bits
+	 */
+	private static int getBucketFeatures(StaticBatch batch, StaticBatch.Bucket bucket) {
+		int features = ShaderLibrary.getFeatures(bucket.getMaterial()) | ShaderLibrary.PER_DRAW_MATERIAL;
+		if (batch.isBindless()) {
+			features |= ShaderLibrary.BINDLESS_TEXTURES;
+		}
+		return features;
+	}
+
+	/**
+	 * Calculate the camera and model matrices for a render
+	 * @param camera       the camera to render from
+	 * @param meshPosition the mesh position
+	 * @param meshRotation the mesh rotation
+	 * @param meshScale    the mesh scale
+	 */
+	private void begin(Camera camera, Vector3f meshPosition, Quaternionf meshRotation, Vector3f meshScale) {
+		calculateCameraMatrices(camera);
+
+		// Calculate the model matrix and normal matrix
+		calculateModelMatrices(meshPosition, meshRotation, meshScale, model, normalMatrix);
+	}
+
+	/**
+	 * Calculate the projection and view matrices of a camera
+	 * @param camera the camera to render from
+	 */
+	private void calculateCameraMatrices(Camera camera) {
+		this.camera = camera;
+
+		// Calculate projection matrix
 		Window window = GraphicsApp.getInstance().getWindow();
-		Matrix4f projection = new Matrix4f().perspective(70.0f, window.getWidth() / (float) window.getHeight(), 0.1f, 100.0f);
-		program.setUniform("projection", projection);
-		
-		// Calculate view matrix and set the uniform
+		projection.setPerspective(70.0f, window.getWidth() / (float) window.getHeight(), 0.1f, 100.0f);
 
-		Vector3f center = new Vector3f(camera.getForward()).sub(camera.getPosition());
-		Matrix4f view = new Matrix4f().lookAlong(camera.getForward(), camera.getUp());
+		// Calculate view matrix
+		view.setLookAlong(camera.getForward(), camera.getUp());
 		view.translate(camera.getPosition().mul(-1));
-		program.setUniform("view", view);
-		
-		// Calculate the model matrix and set the uniform
-		Matrix4f model = new Matrix4f().translate(meshPosition).rotate(meshRotation).scale(meshScale);
-		program.setUniform("model", model);
+	}
 
-		// Calculate normal matrix and set the uniform
-		Matrix3f normalMatrix = new Matrix3f(model);
-		normalMatrix.invert();
-		normalMatrix.transpose();
-		program.setUniform("normalMatrix", normalMatrix);
+	/**
+	 * Request the mip level of the mesh's textures the draw needs, estimated from the texel
+	 * density of the mesh and the screen size of the nearest point of its bounding sphere. Only
+	 * streamed textures use the request.
+	 * @param mesh the mesh being drawn with the current transform
+	 */
+	private void requestMips(Mesh mesh) {
+		float uvPerPixel = getUvPerPixel(mesh, model, camera.getPosition(), projection, GraphicsApp.getInstance().getRenderHeight(), boundsCenter);
+		if (uvPerPixel > 0) {
+			requestMips(mesh.getMaterial(), uvPerPixel);
+		}
+	}
 
-		// Set the material properties
-		program.setUniform("material.ambient", material.getAmbient());
-		program.setUniform("material.diffuse", material.getDiffuse());
-		program.setUniform("material.specular", material.getSpecular());
-		program.setUniform("material.shininess", material.getShininess());
+	/**
+	 * Estimate the texture coordinates per screen pixel of a draw. Only reads its arguments, so it
+	 * may be called from any thread.
+	 * @param mesh           the mesh
+	 * @param model          the mesh's model matrix
+	 * @param cameraPosition the camera position
+	 * @param projection     the projection matrix
+	 * @param viewportHeight the viewport height in pixels
+	 * @param scratch        a scratch vector
+	 * @return the texture coordinates per pixel, 0 if the mesh has no textures or texel density
+	 */
+	public static float getUvPerPixel(Mesh mesh, Matrix4f model, Vector3f cameraPosition, Matrix4f projection, int viewportHeight, Vector3f scratch) {
+		Material material = mesh.getMaterial();
+		if ((!material.hasTexture() && !material.hasNormalMap()) || mesh.getTexelDensity() == 0) {
+			return 0;
+		}
+		model.getScale(scratch);
+		float scale = Math.max(scratch.x, Math.max(scratch.y, scratch.z));
+		model.transformPosition(mesh.getBoundsCenter(), scratch);
+		float distance = Math.max(scratch.distance(cameraPosition) - mesh.getBoundsRadius() * scale, projection.perspectiveNear());
+		// Screen pixels per world unit at that distance, then texture coordinates per pixel
+		float pixelsPerUnit = projection.m11() * viewportHeight / (2 * distance);
+		return mesh.getTexelDensity() / (scale * pixelsPerUnit);
+	}
+
+	/**
+	 * Request the resolution of a material's streamed textures
+	 * @param material   the material
+	 * @param uvPerPixel the texture coordinates per screen pixel
+	 */
+	private void requestMips(Material material, float uvPerPixel) {
+		if (material.hasTexture()) {
+			material.getTexture().requestResolution(uvPerPixel);
+		}
+		if (material.hasNormalMap()) {
+			material.getNormalMap().requestResolution(uvPerPixel);
+		}
+	}
+
+	/**
+	 * Calculate the model matrix and the normal matrix (inverse transpose of the model matrix's
+	 * upper 3x3) for the given transform without allocating
+	 * @param position     the mesh position
+	 * @param rotation     the mesh rotation
+	 * @param scale        the mesh scale
+	 * @param model        receives the model matrix
+	 * @param normalMatrix receives the normal matrix
+	 */
+	public static void calculateModelMatrices(Vector3f position, Quaternionf rotation, Vector3f scale, Matrix4f model, Matrix3f normalMatrix) {
+		model.translation(position).rotate(rotation).scale(scale);
+		normalMatrix.set(model).invert().transpose();
+	}
+
+	/**
+	 * Write a transform in the std140 layout of the shader's Transform block, where each column of
+	 * the mat3 is padded to a vec4
+	 * @param model        the model matrix
+	 * @param normalMatrix the normal matrix
+	 * @param dest         receives CommandList.TRANSFORM_FLOATS floats
+	 * @param offset       the index of the first float
+	 */
+	public static void getTransform(Matrix4f model, Matrix3f normalMatrix, float[] dest, int offset) {
+		model.get(dest, offset);
+		dest[offset + 16] = normalMatrix.m00();
+		dest[offset + 17] = normalMatrix.m01();
+		dest[offset + 18] = normalMatrix.m02();
+		dest[offset + 19] = 0;
+		dest[offset + 20] = normalMatrix.m10();
+		dest[offset + 21] = normalMatrix.m11();
+		dest[offset + 22] = normalMatrix.m12();
+		dest[offset + 23] = 0;
+		dest[offset + 24] = normalMatrix.m20();
+		dest[offset + 25] = normalMatrix.m21();
+		dest[offset + 26] = normalMatrix.m22();
+		dest[offset + 27] = 0;
+	}
+
+	/**
+	 * Stream a transform and bind it to the Transform block for the following draws
+	 * @param model        the model matrix
+	 * @param normalMatrix the normal matrix
+	 */
+	private void setTransform(Matrix4f model, Matrix3f normalMatrix) {
+		getTransform(model, normalMatrix, transform, 0);
+		ByteBuffer data = transforms.map(TRANSFORM_SIZE, uniformAlignment);
+		data.asFloatBuffer().put(transform);
+		bindTransform();
+	}
+
+	/**
+	 * Finish writing the last streamed transform and bind it to the Transform block
+	 */
+	private void bindTransform() {
+		transforms.unmap();
+		transforms.bindRange(TRANSFORM_BINDING, TRANSFORM_SIZE);
+	}
+
+	/**
+	 * Unbind the textures and the program
+	 */
+	private void end() {
+		unbindTextures();
+		if (program != null) {
+			program.unuse();
+			program = null;
+		}
+	}
+
+	/**
+	 * Switch to the program for the given features if it isn't in use, and upload the camera and
+	 * light uniforms to it. The model transform is read from the Transform block.
+	 * @param features the shader feature bits
+	 */
+	private void useProgram(int features) {
+		ShaderProgram next = shaders.getProgram(features);
+		if (next == program) {
+			return;
+		}
+		program = next;
+		program.use();
+
+		program.setUniform("projection", projection);
+		program.setUniform("view", view);
+		program.setUniformBlockBinding("Transform", TRANSFORM_BINDING);
 
 		// Set lights
 		dirLight.setShaderProgramUniforms(program, "dirLight");
-//		program.setUniform("dirLight.direction", new Vector3f(-1, -1, -1));
-//		Vector3f dirLightCol = new Vector3f(135, 206, 235).mul(1.0f / 255.0f);
-//		program.setUniform("dirLight.ambient", new Vector3f(dirLightCol).mul(0.2f));
-//		program.setUniform("dirLight.diffuse", new Vector3f(dirLightCol).mul(0.5f));
-//		program.setUniform("dirLight.specular", new Vector3f(dirLightCol).mul(0.8f));
-
 		pointLight.setShaderProgramUniforms(program, "pointLight");
-//		program.setUniform("pointLight.position", new Vector3f(-10, 10, 2));
-//		program.setUniform("pointLight.constant", 1.0f);
-//		program.setUniform("pointLight.linear", 0.35f);
-//		program.setUniform("pointLight.quadratic", 0.44f);
-//		Vector3f pointLightCol = new Vector3f(0.1f, 0.5f, 0.9f);
-//		program.setUniform("pointLight.ambient", new Vector3f(pointLightCol).mul(0.1f));
-//		program.setUniform("pointLight.diffuse", new Vector3f(pointLightCol).mul(0.3f));
-//		program.setUniform("pointLight.specular", new Vector3f(pointLightCol).mul(0.5f));
 
 		// Set camera's position uniform for specular lighting calculations
 		program.setUniform("viewPosition", camera.getPosition());
-		
+
+		// Samplers of different types may not share a unit
+		program.setUniform("perDrawMaterials", PER_DRAW_MATERIAL_UNIT);
+		program.setUniform("textureArray", TEXTURE_ARRAY_UNIT);
+		program.setUniform("normalMapArray", NORMAL_MAP_ARRAY_UNIT);
+		program.setUniform("perDrawHandles", PER_DRAW_HANDLE_UNIT);
+	}
+
+	/**
+	 * Set the material uniforms and bind its textures. The program must be in use.
+	 * @param material the material to render with
+	 */
+	private void setMaterialUniforms(Material material) {
+		// Set the material properties
+		program.setUniform("material.ambient", material.getAmbient());
+		program.setUniform("material.diffuse", material.getDiffuse());
+		program.setUniform("material.specular", material.getSpecular());
+		program.setUniform("material.shininess", material.getShininess());
+
 		// Bind texture if material has it
 		if (material.hasTexture()) {
 			glActiveTexture(GL_TEXTURE0);
 			material.getTexture().bind();
 			program.setUniform("material.texture", 0);
-			program.setUniform("material.hasTexture", 1);
-		} else {
-			program.setUniform("material.hasTexture", 0);
 		}
 
 		// bind normal map if material has it
@@ -124,48 +606,62 @@ public class MeshRenderer {
 			glActiveTexture(GL_TEXTURE1);
 			material.getNormalMap().bind();
 			program.setUniform("material.normalMap", 1);
-			program.setUniform("material.hasNormalMap", 1);
-		} else {
-			program.setUniform("material.hasNormalMap", 0);
 		}
+	}
 
-		// Bind the VAO and the EBO and draw the cube
-		mesh.bind();
-		glEnableVertexAttribArray(0);
-		glEnableVertexAttribArray(1);
-		glEnableVertexAttribArray(2);
-		glEnableVertexAttribArray(3);
-		glEnableVertexAttribArray(4);
-		glDrawElements(GL_TRIANGLES, mesh.getNumElements(), GL_UNSIGNED_INT, 0);
-		
-		// Unbind everything
-		glDisableVertexAttribArray(0);
-		glDisableVertexAttribArray(1);
-		glDisableVertexAttribArray(2);
-		glDisableVertexAttribArray(3);
-		glDisableVertexAttribArray(4);
-
+	/**
+	 * Unbind the diffuse texture, normal map and texture array units
+	 */
+	private void unbindTextures() {
 		glActiveTexture(GL_TEXTURE0);
 		glBindTexture(GL_TEXTURE_2D, 0);
 		glActiveTexture(GL_TEXTURE1);
 		glBindTexture(GL_TEXTURE_2D, 0);
+		glActiveTexture(GL_TEXTURE0 + TEXTURE_ARRAY_UNIT);
+		glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+		glActiveTexture(GL_TEXTURE0 + NORMAL_MAP_ARRAY_UNIT);
+		glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+		glActiveTexture(GL_TEXTURE0);
+	}
 
-		mesh.unbind();
-		program.unuse();
+	/**
+	 * Get the number of draw calls issued, each multi-draw counting as one
+	 * @return the draw call count
+	 */
+	public long getDrawCalls() {
+		return drawCalls;
+	}
+
+	/**
+	 * Get the number of triangles submitted
+	 * @return the triangle count
+	 */
+	public long getTrianglesSubmitted() {
+		return trianglesSubmitted;
+	}
+
+	/**
+	 * Set the culling stage draws are tested against between beginFrame() and endFrame()
+	 * @param culling the culling stage, null to draw everything
+	 */
+	public void setCulling(CullingStage culling) {
+		this.culling = culling;
 	}
 
 	/**
-	 * Set the shader program
-	 * @param program the new shader program to use for rendering meshes
+	 * Set the shader library
+	 * @param shaders the new shader variants to use for rendering meshes
 	 */
-	public void setProgram(ShaderProgram program) {
-		this.program = program;
+	public void setShaderLibrary(ShaderLibrary shaders) {
+		this.shaders = shaders;
 	}
 
 	/**
 	 * Delete the mesh renderer and its resources
 	 */
+	@Override
 	public void delete() {
-		program.delete();
+		recorder.delete();
+		shaders.delete();
 	}
 }
@@ -0,0 +1,208 @@
+package com.alexjmohr.graphics.rendering;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL41.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Logger;
+
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * On-disk cache of linked shader program binaries. Entries are keyed by a hash of the shader
+ * sources and the driver's vendor, renderer and version strings, so a driver update or a shader
+ * change simply misses the cache.
+ *
+ * Each file holds the binary format as a native-order int followed by the binary.
+ */
+public class ProgramBinaryCache {
+
+    /**
+     * The cache directory
+     */
+    private final Path directory;
+
+    /**
+     * False if the driver can't retrieve program binaries, in which case the cache does nothing
+     */
+    private final boolean supported;
+
+    /**
+     * The driver strings hashed into every key
+     */
+    private final String driver;
+
+    /**
+     * Number of programs loaded from and missed in the cache
+     */
+    private int hits;
+    private int misses;
+
+    /**
+     * Creates the cache in the given directory. The directory is created when the first binary is
+     * saved.
+     * @param directory    the cache directory
+     * @param capabilities the context capabilities
+     */
+    public ProgramBinaryCache(Path directory, GLCapabilities capabilities) {
+        this.directory = directory;
+        this.supported = (capabilities.OpenGL41 || capabilities.GL_ARB_get_program_binary)
+                && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+        this.driver = glGetString(GL_VENDOR) + "\n" + glGetString(GL_RENDERER) + "\n" + glGetString(GL_VERSION);
+    }
+
+    /**
+     * Returns true if program binaries can be cached with this driver
+     * @return true if the cache is supported
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Get the key for a program built from the given shader sources
+     * @param sources the complete shader sources, including defines
+     * @return the cache key
+     */
+    public String getKey(String... sources) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(driver.getBytes(StandardCharsets.UTF_8));
+            for (String source : sources) {
+                digest.update((byte) 0);
+                digest.update(source.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * Load the program with the given key from the cache into the given program
+     * @param key     the cache key
+     * @param program a new, unlinked program
+     * @return true if the program was loaded and linked, false on a cache miss
+     */
+    public boolean load(String key, ShaderProgram program) {
+        if (!supported) {
+            return false;
+        }
+        Path file = directory.resolve(key + ".bin");
+        if (!Files.isRegularFile(file)) {
+            misses++;
+            return false;
+        }
+
+        ByteBuffer data = null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // A truncated or empty entry, such as from a crash while saving, is rebuilt like a
+            // rejected one
+            long size = channel.size();
+            if (size > Integer.BYTES && size <= Integer.MAX_VALUE) {
+                data = MemoryUtil.memAlloc((int) size);
+                while (data.hasRemaining()) {
+                    if (channel.read(data) < 0) {
+                        break;
+                    }
+                }
+                data.flip();
+                if (data.remaining() > Integer.BYTES) {
+                    int format = data.getInt();
+                    if (program.loadBinary(format, data.slice())) {
+                        hits++;
+                        return true;
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ProgramBinaryCache.class.getName()).warning("Failed to read program binary " + file + ": " + ex.getMessage());
+        } finally {
+            if (data != null) {
+                MemoryUtil.memFree(data);
+            }
+        }
+
+        // The entry is damaged or the driver rejected the binary, drop it so it is rebuilt
+        misses++;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+        }
+        return false;
+    }
+
+    /**
+     * Save the given linked program to the cache. The program must have been linked after
+     * ShaderProgram.setBinaryRetrievable().
+     * @param key     the cache key
+     * @param program the linked program
+     */
+    public void save(String key, ShaderProgram program) {
+        if (!supported) {
+            return;
+        }
+        ByteBuffer binary;
+        int format;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer formatBuffer = stack.mallocInt(1);
+            binary = program.getBinary(formatBuffer);
+            format = formatBuffer.get(0);
+        }
+        if (binary == null) {
+            return;
+        }
+
+        Path file = directory.resolve(key + ".bin");
+        Path temp = directory.resolve(key + ".tmp");
+        try {
+            Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(4).order(binary.order());
+                header.putInt(format).flip();
+                channel.write(header);
+                while (binary.hasRemaining()) {
+                    channel.write(binary);
+                }
+            }
+            // Move into place so a crash never leaves a truncated entry
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Logger.getLogger(ProgramBinaryCache.class.getName()).warning("Failed to write program binary " + file + ": " + ex.getMessage());
+        } finally {
+            MemoryUtil.memFree(binary);
+        }
+    }
+
+    /**
+     * Get the number of programs loaded from the cache
+     * @return the number of cache hits
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of programs that had to be compiled from source
+     * @return the number of cache misses
+     */
+    public int getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,169 @@
+package com.alexjmohr.graphics.rendering;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Singleton ResourceTracker keeps track of every live GLResource and the asset or subsystem that
+ * owns it, so resources that were never deleted can be reported at shutdown. When stack capture
+ * is enabled, the stack trace of each allocation is recorded too, which makes leaks easy to find
+ * but is too slow to leave on outside of debugging.
+ */
+public class ResourceTracker {
+
+    /**
+     * A live resource
+     */
+    public static class Entry {
+
+        private final String type;
+        private String owner;
+        private final Throwable allocationSite;
+
+        private Entry(String type, String owner, Throwable allocationSite) {
+            this.type = type;
+            this.owner = owner;
+            this.allocationSite = allocationSite;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * Get the stack trace of the allocation
+         * @return the allocation site, or null if stack capture was disabled when it was created
+         */
+        public Throwable getAllocationSite() {
+            return allocationSite;
+        }
+    }
+
+    /**
+     * The singleton instance
+     */
+    private static ResourceTracker instance;
+
+    /**
+     * The live resources
+     */
+    private final Map<Object, Entry> resources;
+
+    /**
+     * Whether allocation stack traces are recorded
+     */
+    private volatile boolean captureStacks;
+
+    /**
+     * Initializes the tracker
+     */
+    private ResourceTracker() {
+        resources = new IdentityHashMap<>();
+    }
+
+    /**
+     * Get the resource tracker instance. Initializes it if this is the first call.
+     * @return the singleton instance
+     */
+    public static synchronized ResourceTracker getInstance() {
+        if (instance == null) {
+            instance = new ResourceTracker();
+        }
+        return instance;
+    }
+
+    /**
+     * Set whether the stack trace of each allocation is recorded. Only affects resources created
+     * afterwards.
+     * @param captureStacks true to record allocation stack traces
+     */
+    public void setCaptureStacks(boolean captureStacks) {
+        this.captureStacks = captureStacks;
+    }
+
+    /**
+     * Get whether allocation stack traces are recorded
+     * @return true if stack capture is enabled
+     */
+    public boolean isCaptureStacks() {
+        return captureStacks;
+    }
+
+    /**
+     * Start tracking a newly created resource
+     * @param resource the resource
+     * @param owner    the asset or subsystem the resource belongs to
+     */
+    public synchronized void track(Object resource, String owner) {
+        Throwable site = captureStacks ? new Throwable("Allocation site") : null;
+        resources.put(resource, new Entry(resource.getClass().getSimpleName(), owner, site));
+    }
+
+    /**
+     * Change the owner of a tracked resource
+     * @param resource the resource
+     * @param owner    the new owner
+     */
+    public synchronized void setOwner(Object resource, String owner) {
+        Entry entry = resources.get(resource);
+        if (entry != null) {
+            entry.owner = owner;
+        }
+    }
+
+    /**
+     * Stop tracking a resource that was deleted
+     * @param resource the resource
+     */
+    public synchronized void release(Object resource) {
+        resources.remove(resource);
+    }
+
+    /**
+     * Get the number of resources that have not been deleted
+     * @return the live resource count
+     */
+    public synchronized int getLiveCount() {
+        return resources.size();
+    }
+
+    /**
+     * Get a snapshot of the resources that have not been deleted
+     * @return the live resources
+     */
+    public synchronized List<Entry> getLive() {
+        return new ArrayList<>(resources.values());
+    }
+
+    /**
+     * Log a warning for every resource that has not been deleted, with its allocation stack if it
+     * was captured. Call this at shutdown after everything has been deleted.
+     * @return the number of leaked resources
+     */
+    public int reportLeaks() {
+        List<Entry> leaks = getLive();
+        if (leaks.isEmpty()) {
+            return 0;
+        }
+        Logger logger = Logger.getLogger(ResourceTracker.class.getName());
+        logger.warning(leaks.size() + " resources were not deleted"
+                + (captureStacks ? "" : ", enable stack capture to see where they were allocated"));
+        for (Entry leak : leaks) {
+            StringBuilder message = new StringBuilder("Leaked ").append(leak.type).append(" owned by ").append(leak.owner);
+            if (leak.allocationSite != null) {
+                for (StackTraceElement element : leak.allocationSite.getStackTrace()) {
+                    message.append(System.lineSeparator()).append("\tat ").append(element);
+                }
+            }
+            logger.warning(message.toString());
+        }
+        return leaks.size();
+    }
+}
@@ -4,15 +4,20 @@ import static org.lwjgl.opengl.GL11.GL_TRUE;
 import static org.lwjgl.opengl.GL20.*;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.logging.Logger;
 
+import com.alexjmohr.graphics.loaders.AssetArchive;
+import com.alexjmohr.graphics.loaders.ResourceLoader;
+
 /**
  * Wrapper class for a GL shader
  * 
  * @author Alex Mohr
  *
  */
-public class Shader {
+public class Shader implements GLResource {
 	
 	/**
 	 * The shader id
@@ -32,6 +37,7 @@ public class Shader {
 		// Compile and check
 		glCompileShader(shader);
 		checkStatus();
+		ResourceTracker.getInstance().track(this, "Shader");
 	}
 	
 	/**
@@ -52,6 +58,24 @@ public class Shader {
 	 * @return the created shader
 	 */
 	public static Shader loadShader(int type, String file) {
+		return new Shader(type, loadSource(file));
+	}
+
+	/**
+	 * Loads shader source code from the specified file path
+	 * @param  file the file to load from
+	 * @return the source code
+	 */
+	public static String loadSource(String file) {
+		AssetArchive archive = ResourceLoader.getArchive();
+		if (archive != null && archive.contains(file)) {
+			try {
+				return StandardCharsets.UTF_8.decode(archive.read(file)).toString();
+			} catch (IOException ex) {
+				throw new RuntimeException("Failed to load a shader file." + System.lineSeparator() + ex.getMessage());
+			}
+		}
+
 		StringBuilder builder = new StringBuilder();
 		
 		try (InputStream in = Shader.class.getResourceAsStream(file);
@@ -65,15 +89,36 @@ public class Shader {
 			throw new RuntimeException("Failed to load a shader file." + System.lineSeparator() + ex.getMessage());
 		}
 		
-		CharSequence source = builder.toString();
-		return new Shader(type, source);
+		return builder.toString();
+	}
+
+	/**
+	 * Inserts a #define for each of the given names after the #version line of the source
+	 * @param  source  the shader source
+	 * @param  defines the names to define
+	 * @return the source with the defines
+	 */
+	public static String addDefines(String source, Collection<String> defines) {
+		StringBuilder builder = new StringBuilder();
+		for (String define : defines) {
+			builder.append("#define ").append(define).append("\n");
+		}
+		// #version must stay the first statement
+		int versionEnd = source.startsWith("#version") ? source.indexOf('\n') + 1 : 0;
+		return source.substring(0, versionEnd) + builder + source.substring(versionEnd);
 	}
 	
 	/**
 	 * Deletes the shader
 	 */
+	@Override
 	public void delete() {
+		if (shader == 0) {
+			return;
+		}
 		glDeleteShader(shader);
+		shader = 0;
+		ResourceTracker.getInstance().release(this);
 	}
 	
 	/**
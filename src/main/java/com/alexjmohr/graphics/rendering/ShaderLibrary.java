@@ -0,0 +1,237 @@
+package com.alexjmohr.graphics.rendering;
+
+import static org.lwjgl.opengl.GL20.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Compiles variants of a vertex and fragment shader pair with #define based features, and caches
+ * the linked programs, in memory and optionally on disk as program binaries.
+ *
+ * Each material selects the variant matching its features, so the fragment shader doesn't branch
+ * on whether the material has a texture or normal map.
+ */
+public class ShaderLibrary implements GLResource {
+
+    /**
+     * Feature bit for materials with a diffuse texture, defines HAS_TEXTURE
+     */
+    public static final int HAS_TEXTURE = 1;
+
+    /**
+     * Feature bit for materials with a normal map, defines HAS_NORMAL_MAP
+     */
+    public static final int HAS_NORMAL_MAP = 1 << 1;
+
+    /**
+     * Feature bit for indirect draws that fetch material colours and texture array layers by draw
+     * ID, defines PER_DRAW_MATERIAL
+     */
+    public static final int PER_DRAW_MATERIAL = 1 << 2;
+
+    /**
+     * Feature bit for indirect draws that also fetch bindless texture array handles by draw ID,
+     * defines BINDLESS_TEXTURES. Needs ARB_bindless_texture.
+     */
+    public static final int BINDLESS_TEXTURES = 1 << 3;
+
+    /**
+     * The define for each feature bit
+     */
+    private static final String[] DEFINES = { "HAS_TEXTURE", "HAS_NORMAL_MAP", "PER_DRAW_MATERIAL", "BINDLESS_TEXTURES" };
+
+    /**
+     * The GLSL version bindless variants are compiled with, since ARB_bindless_texture is written
+     * against GLSL 4.00
+     */
+    private static final String BINDLESS_VERSION = "#version 400 core";
+
+    /**
+     * The resource paths of the vertex and fragment shaders
+     */
+    private final String vertexPath;
+    private final String fragmentPath;
+
+    /**
+     * The vertex shader source without defines
+     */
+    private String vertexSource;
+
+    /**
+     * The fragment shader source without defines
+     */
+    private String fragmentSource;
+
+    /**
+     * The on-disk program binary cache, may be null
+     */
+    private final ProgramBinaryCache binaryCache;
+
+    /**
+     * The linked programs by feature bits
+     */
+    private final Map<Integer, ShaderProgram> programs;
+
+    /**
+     * Loads the shader sources. Programs are built when first requested.
+     * @param vertPath    the resource path to the vertex shader
+     * @param fragPath    the resource path to the fragment shader
+     * @param binaryCache the program binary cache, or null to always compile from source
+     */
+    public ShaderLibrary(String vertPath, String fragPath, ProgramBinaryCache binaryCache) {
+        this.vertexPath = vertPath;
+        this.fragmentPath = fragPath;
+        this.vertexSource = Shader.loadSource(vertPath);
+        this.fragmentSource = Shader.loadSource(fragPath);
+        this.binaryCache = binaryCache;
+        this.programs = new HashMap<>();
+    }
+
+    /**
+     * Get the resource path of the vertex shader
+     * @return the resource path
+     */
+    public String getVertexPath() {
+        return vertexPath;
+    }
+
+    /**
+     * Get the resource path of the fragment shader
+     * @return the resource path
+     */
+    public String getFragmentPath() {
+        return fragmentPath;
+    }
+
+    /**
+     * Get the feature bits for a material
+     * @param material the material
+     * @return the feature bits
+     */
+    public static int getFeatures(Material material) {
+        int features = 0;
+        if (material.hasTexture()) {
+            features |= HAS_TEXTURE;
+        }
+        if (material.hasNormalMap()) {
+            features |= HAS_NORMAL_MAP;
+        }
+        return features;
+    }
+
+    /**
+     * Get the program for the given features, building it if this is the first request
+     * @param features the feature bits
+     * @return the linked program
+     */
+    public ShaderProgram getProgram(int features) {
+        ShaderProgram program = programs.get(features);
+        if (program == null) {
+            program = build(features);
+            programs.put(features, program);
+        }
+        return program;
+    }
+
+    /**
+     * Rebuild every built variant from new sources, e.g. after the shader files changed. The
+     * programs are only replaced if all variants link, otherwise the old ones are kept so a typo
+     * doesn't break rendering.
+     * @param vertexSource   the new vertex shader source
+     * @param fragmentSource the new fragment shader source
+     * @return true if the programs were replaced
+     */
+    public boolean reload(String vertexSource, String fragmentSource) {
+        Map<Integer, ShaderProgram> rebuilt = new HashMap<>();
+        boolean linked = true;
+        for (int features : programs.keySet()) {
+            ShaderProgram program = build(features, vertexSource, fragmentSource);
+            rebuilt.put(features, program);
+            linked &= program.isLinked();
+        }
+        if (!linked) {
+            for (ShaderProgram program : rebuilt.values()) {
+                program.delete();
+            }
+            Logger.getLogger(ShaderLibrary.class.getName()).warning("Shader reload failed, keeping the previous programs");
+            return false;
+        }
+
+        for (ShaderProgram program : programs.values()) {
+            program.delete();
+        }
+        programs.putAll(rebuilt);
+        this.vertexSource = vertexSource;
+        this.fragmentSource = fragmentSource;
+        return true;
+    }
+
+    /**
+     * Load the program from the binary cache, or compile and link it and save it to the cache
+     * @param features the feature bits
+     * @return the linked program
+     */
+    private ShaderProgram build(int features) {
+        return build(features, vertexSource, fragmentSource);
+    }
+
+    /**
+     * Load the program from the binary cache, or compile and link it and save it to the cache
+     * @param features       the feature bits
+     * @param vertexSource   the vertex shader source without defines
+     * @param fragmentSource the fragment shader source without defines
+     * @return the program, which may have failed to link
+     */
+    private ShaderProgram build(int features, String vertexSource, String fragmentSource) {
+        List<String> defines = new ArrayList<>();
+        for (int i = 0; i < DEFINES.length; i++) {
+            if ((features & (1 << i)) != 0) {
+                defines.add(DEFINES[i]);
+            }
+        }
+        String vertex = Shader.addDefines(vertexSource, defines);
+        String fragment = Shader.addDefines(fragmentSource, defines);
+        if ((features & BINDLESS_TEXTURES) != 0) {
+            fragment = fragment.replaceFirst("^#version [^\\n]*", BINDLESS_VERSION);
+        }
+
+        ShaderProgram program = new ShaderProgram();
+        String key = null;
+        if (binaryCache != null && binaryCache.isSupported()) {
+            key = binaryCache.getKey(vertex, fragment);
+            if (binaryCache.load(key, program)) {
+                return program;
+            }
+            program.setBinaryRetrievable();
+        }
+
+        Shader vertexShader = new Shader(GL_VERTEX_SHADER, vertex);
+        Shader fragmentShader = new Shader(GL_FRAGMENT_SHADER, fragment);
+        program.attachShader(vertexShader);
+        program.attachShader(fragmentShader);
+        program.link();
+        // Can delete the vertex and fragment shaders, since they are linked to the program now.
+        vertexShader.delete();
+        fragmentShader.delete();
+
+        if (key != null && program.isLinked()) {
+            binaryCache.save(key, program);
+        }
+        return program;
+    }
+
+    /**
+     * Deletes all built programs
+     */
+    @Override
+    public void delete() {
+        for (ShaderProgram program : programs.values()) {
+            program.delete();
+        }
+        programs.clear();
+    }
+}
@@ -2,12 +2,17 @@ package com.alexjmohr.graphics.rendering;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL41.*;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.logging.Logger;
 
 import org.joml.*;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 
 /**
  * Wrapper class for a GL shader program.
@@ -17,7 +22,7 @@ import org.lwjgl.system.MemoryStack;
  * @author Alex Mohr
  *
  */
-public class ShaderProgram {
+public class ShaderProgram implements GLResource {
 	
 	/**
 	 * The program id
@@ -29,6 +34,7 @@ public class ShaderProgram {
 	 */
 	public ShaderProgram() {
 		program = glCreateProgram();
+		ResourceTracker.getInstance().track(this, "ShaderProgram");
 	}
 	
 	/**
@@ -48,8 +54,14 @@ public class ShaderProgram {
 	/**
 	 * Deletes the program
 	 */
+	@Override
 	public void delete() {
+		if (program == 0) {
+			return;
+		}
 		glDeleteProgram(program);
+		program = 0;
+		ResourceTracker.getInstance().release(this);
 	}
 	
 	/**
@@ -68,6 +80,41 @@ public class ShaderProgram {
 		checkStatus();
 	}
 	
+	/**
+	 * Hint that the program binary will be retrieved with getBinary(). Must be called before
+	 * link(). Requires OpenGL 4.1 or ARB_get_program_binary.
+	 */
+	public void setBinaryRetrievable() {
+		glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+	}
+
+	/**
+	 * Get the linked program binary. Requires OpenGL 4.1 or ARB_get_program_binary.
+	 * @param format receives the binary format
+	 * @return the program binary, allocated with MemoryUtil.memAlloc, or null if there is none
+	 */
+	public ByteBuffer getBinary(IntBuffer format) {
+		int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+		if (length <= 0) {
+			return null;
+		}
+		ByteBuffer binary = MemoryUtil.memAlloc(length);
+		glGetProgramBinary(program, null, format, binary);
+		return binary;
+	}
+
+	/**
+	 * Load a program binary instead of attaching and linking shaders. Fails silently if the driver
+	 * rejects the binary, e.g. after a driver update.
+	 * @param format the binary format
+	 * @param binary the program binary
+	 * @return true if the program linked successfully
+	 */
+	public boolean loadBinary(int format, ByteBuffer binary) {
+		glProgramBinary(program, format, binary);
+		return glGetProgrami(program, GL_LINK_STATUS) == GL_TRUE;
+	}
+	
 	/**
 	 * Enables and sets the vertex attrib pointer specified by given name
 	 * @param name   the name of the vertex attrib
@@ -82,6 +129,14 @@ public class ShaderProgram {
 		glVertexAttribPointer(location, size, GL_FLOAT, false, stride, offset);
 	}
 	
+	/**
+	 * Check whether the program linked successfully, whether from source or a binary
+	 * @return true if the program can be used
+	 */
+	public boolean isLinked() {
+		return glGetProgrami(program, GL_LINK_STATUS) == GL_TRUE;
+	}
+	
 	/**
 	 * If the program failed to link, log the info log
 	 */
@@ -93,6 +148,19 @@ public class ShaderProgram {
 		}
 	}
 	
+	/**
+	 * Assigns the uniform block specified by the given name to a uniform buffer binding point.
+	 * Does nothing if the program has no such active block.
+	 * @param name    the name of the uniform block
+	 * @param binding the binding point index
+	 */
+	public void setUniformBlockBinding(String name, int binding) {
+		int index = glGetUniformBlockIndex(program, name);
+		if (index != GL_INVALID_INDEX) {
+			glUniformBlockBinding(program, index, binding);
+		}
+	}
+
 	/**
 	 * Sets the uniform specified by the given name to the given value
 	 * @param name  the name of the uniform to set
@@ -0,0 +1,871 @@
+package com.alexjmohr.graphics.rendering;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL43.*;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Packs static meshes that share a vertex layout into large shared vertex and index buffers, so
+ * a whole model can be drawn with one VAO bind and one glMultiDrawElementsBaseVertex call per
+ * material.
+ *
+ * The mesh data is copied on the GPU with glCopyBufferSubData, the meshes can be deleted once the
+ * batch has been built.
+ *
+ * If indirect drawing is enabled with buildIndirectCommands(), draws are instead grouped into
+ * buckets that only share shader features and texture arrays. The materials' textures are copied
+ * into texture arrays, one per texture size, and each bucket is submitted with one
+ * glMultiDrawElementsIndirect call. The per-draw material colours and texture array layers are
+ * fetched in the shader by the drawId attribute. With bindless textures the arrays are selected
+ * per draw too, so a bucket only shares shader features.
+ * @author Alex Mohr
+ *
+ */
+public class StaticBatch implements GLResource {
+
+	/**
+	 * Number of floats per vertex for each attribute location
+	 */
+	private static final int[] ATTRIBUTE_SIZES = { 3, 3, 2, 3, 3 };
+
+	/**
+	 * The attribute location of the per-draw ID, an instanced attribute set by the base instance
+	 */
+	public static final int DRAW_ID_ATTRIBUTE = 5;
+
+	/**
+	 * The number of RGBA texels of per-draw material data: ambient + shininess, diffuse + texture
+	 * layer, specular + normal map layer
+	 */
+	public static final int MATERIAL_TEXELS = 3;
+
+	/**
+	 * The number of RG32UI texels of per-draw bindless handles: the texture array and the normal
+	 * map array
+	 */
+	public static final int HANDLE_TEXELS = 2;
+
+	/**
+	 * The owner of the batch's buffers for GPU memory accounting
+	 */
+	private static final String OWNER = "StaticBatch";
+
+	/**
+	 * The shared buffers for all meshes with the same attribute mask and index type
+	 */
+	public static class Arena {
+
+		/**
+		 * The vertex attributes in this arena, see Mesh.getAttributeMask()
+		 */
+		private final int attributeMask;
+
+		/**
+		 * GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+		 */
+		private final int indexType;
+
+		/**
+		 * The VAO, with the attribute pointers and EBO already set up
+		 */
+		private VertexArrayObject vao;
+
+		/**
+		 * One VBO per attribute location, null if the arena does not have the attribute
+		 */
+		private VertexBufferObject[] vbos = new VertexBufferObject[ATTRIBUTE_SIZES.length];
+
+		/**
+		 * The shared EBO
+		 */
+		private ElementBufferObject ebo;
+
+		/**
+		 * The meshes in the arena
+		 */
+		private List<Mesh> meshes = new ArrayList<>();
+
+		/**
+		 * The runs of meshes sharing a material
+		 */
+		private List<Run> runs = new ArrayList<>();
+
+		/**
+		 * The indirect draw buckets, empty unless indirect drawing is enabled
+		 */
+		private List<Bucket> buckets = new ArrayList<>();
+
+		private int numVertices;
+		private int numElements;
+
+		private Arena(int attributeMask, int indexType) {
+			this.attributeMask = attributeMask;
+			this.indexType = indexType;
+		}
+
+		/**
+		 * Get the VAO
+		 * @return the VAO
+		 */
+		public VertexArrayObject getVertexArray() {
+			return vao;
+		}
+
+		/**
+		 * Get the meshes packed into the arena
+		 * @return the meshes, which may have been deleted since
+		 */
+		public List<Mesh> getMeshes() {
+			return meshes;
+		}
+
+		/**
+		 * Get the runs of meshes sharing a material
+		 * @return the material runs
+		 */
+		public List<Run> getRuns() {
+			return runs;
+		}
+
+		/**
+		 * Get the indirect draw buckets
+		 * @return the buckets, empty unless indirect drawing is enabled
+		 */
+		public List<Bucket> getBuckets() {
+			return buckets;
+		}
+
+		/**
+		 * Get the index type
+		 * @return GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+		 */
+		public int getIndexType() {
+			return indexType;
+		}
+	}
+
+	/**
+	 * A contiguous range of indirect commands in an arena whose materials share the same textures
+	 */
+	public static class Bucket {
+
+		/**
+		 * A material of the bucket, used to select the shader features
+		 */
+		private final Material material;
+
+		/**
+		 * The arrays of the bucket's textures and normal maps, null if the bucket's materials
+		 * don't have them or the arrays are selected per draw with bindless handles
+		 */
+		private final TextureArray textureArray;
+		private final TextureArray normalMapArray;
+
+		/**
+		 * The index and byte offset of the first command in the indirect buffer
+		 */
+		private int firstCommand;
+		private long offset;
+
+		/**
+		 * The mesh of each command
+		 */
+		private final List<Mesh> meshes = new ArrayList<>();
+
+		/**
+		 * The element count of the commands left by the last cull()
+		 */
+		private long visibleElements;
+
+		/**
+		 * The number of commands
+		 */
+		private int numDraws;
+
+		/**
+		 * The total element count of the commands
+		 */
+		private long numElements;
+
+		private Bucket(Material material, TextureArray textureArray, TextureArray normalMapArray) {
+			this.material = material;
+			this.textureArray = textureArray;
+			this.normalMapArray = normalMapArray;
+		}
+
+		/**
+		 * Get a material with the bucket's shader features
+		 * @return the material
+		 */
+		public Material getMaterial() {
+			return material;
+		}
+
+		/**
+		 * Get the array of the bucket's diffuse textures
+		 * @return the texture array, null if there is none to bind
+		 */
+		public TextureArray getTextureArray() {
+			return textureArray;
+		}
+
+		/**
+		 * Get the array of the bucket's normal maps
+		 * @return the texture array, null if there is none to bind
+		 */
+		public TextureArray getNormalMapArray() {
+			return normalMapArray;
+		}
+
+		/**
+		 * Get the number of draws
+		 * @return the number of draws
+		 */
+		public int getNumDraws() {
+			return numDraws;
+		}
+
+		/**
+		 * Get the total number of elements drawn
+		 * @return the element count
+		 */
+		public long getNumElements() {
+			return numElements;
+		}
+
+		/**
+		 * Get the number of elements left to draw by the last cull()
+		 * @return the element count, 0 if the bucket can be skipped
+		 */
+		public long getVisibleElements() {
+			return visibleElements;
+		}
+
+		/**
+		 * Get the mesh of each draw
+		 * @return the meshes, in command order
+		 */
+		public List<Mesh> getMeshes() {
+			return meshes;
+		}
+	}
+
+	/**
+	 * A range of draws in an arena that share a material. Each draw has an element count, a byte
+	 * offset into the arena's EBO and a base vertex.
+	 */
+	public static class Run {
+
+		private final Material material;
+		private final IntBuffer counts;
+		private final PointerBuffer offsets;
+		private final IntBuffer baseVertices;
+		private final IntBuffer firstIndices;
+		private final List<Mesh> meshes;
+		private long numElements;
+
+		/**
+		 * The draws left after culling, compacted by draw(Arena, Run, Predicate)
+		 */
+		private final IntBuffer visibleCounts;
+		private final PointerBuffer visibleOffsets;
+		private final IntBuffer visibleBaseVertices;
+
+		private Run(Material material, int numDraws) {
+			this.material = material;
+			counts = MemoryUtil.memAllocInt(numDraws);
+			offsets = MemoryUtil.memAllocPointer(numDraws);
+			baseVertices = MemoryUtil.memAllocInt(numDraws);
+			firstIndices = MemoryUtil.memAllocInt(numDraws);
+			meshes = new ArrayList<>(numDraws);
+			visibleCounts = MemoryUtil.memAllocInt(numDraws);
+			visibleOffsets = MemoryUtil.memAllocPointer(numDraws);
+			visibleBaseVertices = MemoryUtil.memAllocInt(numDraws);
+		}
+
+		/**
+		 * Get the material
+		 * @return the material
+		 */
+		public Material getMaterial() {
+			return material;
+		}
+
+		/**
+		 * Get the element count of each draw
+		 * @return the element counts
+		 */
+		public IntBuffer getCounts() {
+			return counts;
+		}
+
+		/**
+		 * Get the byte offset into the EBO of each draw
+		 * @return the EBO byte offsets
+		 */
+		public PointerBuffer getOffsets() {
+			return offsets;
+		}
+
+		/**
+		 * Get the first index into the EBO of each draw
+		 * @return the first indices
+		 */
+		public IntBuffer getFirstIndices() {
+			return firstIndices;
+		}
+
+		/**
+		 * Get the base vertex of each draw
+		 * @return the base vertices
+		 */
+		public IntBuffer getBaseVertices() {
+			return baseVertices;
+		}
+
+		/**
+		 * Get the mesh of each draw
+		 * @return the meshes, in draw order
+		 */
+		public List<Mesh> getMeshes() {
+			return meshes;
+		}
+
+		/**
+		 * Get the number of draws
+		 * @return the number of draws
+		 */
+		public int getNumDraws() {
+			return counts.limit();
+		}
+
+		/**
+		 * Get the total number of elements drawn
+		 * @return the element count
+		 */
+		public long getNumElements() {
+			return numElements;
+		}
+
+		private void delete() {
+			MemoryUtil.memFree(counts);
+			MemoryUtil.memFree(offsets);
+			MemoryUtil.memFree(baseVertices);
+			MemoryUtil.memFree(firstIndices);
+			MemoryUtil.memFree(visibleCounts);
+			MemoryUtil.memFree(visibleOffsets);
+			MemoryUtil.memFree(visibleBaseVertices);
+		}
+	}
+
+	/**
+	 * The arenas, one per vertex layout
+	 */
+	private List<Arena> arenas;
+
+	/**
+	 * The indirect commands for all arenas, null unless indirect drawing is enabled
+	 */
+	private IndirectDrawBuffer indirectBuffer;
+
+	/**
+	 * Draw ID for every indirect command, read with a divisor of 1 so the base instance selects it
+	 */
+	private VertexBufferObject drawIdBuffer;
+
+	/**
+	 * Material colours and texture layers for every indirect command, indexed by draw ID
+	 */
+	private TextureBufferObject materialBuffer;
+
+	/**
+	 * The texture arrays the materials' textures are copied into, one per texture size
+	 */
+	private List<TextureArray> textureArrays = new ArrayList<>();
+
+	/**
+	 * The array each texture was copied into
+	 */
+	private Map<Texture, TextureArray> arrayOfTexture = new IdentityHashMap<>();
+
+	/**
+	 * The diffuse texture and normal map of every indirect command, null where a material has none
+	 */
+	private Texture[] drawTextures;
+
+	/**
+	 * Bindless texture array handles for every indirect command, null unless bindless textures are used
+	 */
+	private TextureBufferObject handleBuffer;
+
+	/**
+	 * Builds the batch from the given meshes. The meshes must already be uploaded.
+	 * @param meshes the meshes to pack
+	 */
+	public StaticBatch(List<Mesh> meshes) {
+		arenas = new ArrayList<>();
+
+		// Group meshes by vertex layout
+		Map<Long, Arena> arenasByLayout = new LinkedHashMap<>();
+		for (Mesh mesh : meshes) {
+			long layout = ((long) mesh.getIndexType() << 32) | mesh.getAttributeMask();
+			Arena arena = arenasByLayout.get(layout);
+			if (arena == null) {
+				arena = new Arena(mesh.getAttributeMask(), mesh.getIndexType());
+				arenasByLayout.put(layout, arena);
+				arenas.add(arena);
+			}
+			arena.meshes.add(mesh);
+			arena.numVertices += mesh.getNumVertices();
+			arena.numElements += mesh.getNumElements();
+		}
+
+		for (Arena arena : arenas) {
+			build(arena);
+		}
+	}
+
+	/**
+	 * Allocate the arena's buffers, copy the mesh data into them and build the material runs
+	 * @param arena the arena to build
+	 */
+	private void build(Arena arena) {
+		int indexSize = arena.indexType == GL_UNSIGNED_SHORT ? 2 : 4;
+
+		arena.vao = new VertexArrayObject();
+		arena.vao.setOwner(OWNER);
+		arena.vao.bind();
+
+		for (int attribute = 0; attribute < ATTRIBUTE_SIZES.length; attribute++) {
+			if ((arena.attributeMask & (1 << attribute)) == 0) {
+				continue;
+			}
+			long vertexSize = ATTRIBUTE_SIZES[attribute] * 4L;
+			VertexBufferObject vbo = new VertexBufferObject();
+			vbo.setOwner(OWNER);
+			vbo.uploadNullData(arena.numVertices * vertexSize, GL_STATIC_DRAW);
+			glBindBuffer(GL_COPY_WRITE_BUFFER, vbo.getId());
+			long offset = 0;
+			for (Mesh mesh : arena.meshes) {
+				long size = mesh.getNumVertices() * vertexSize;
+				glBindBuffer(GL_COPY_READ_BUFFER, mesh.getVertexBuffer(attribute).getId());
+				glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, offset, size);
+				offset += size;
+			}
+			vbo.bind();
+			glVertexAttribPointer(attribute, ATTRIBUTE_SIZES[attribute], GL_FLOAT, false, 0, 0);
+			glEnableVertexAttribArray(attribute);
+			arena.vbos[attribute] = vbo;
+		}
+
+		// The EBO binding is part of the VAO state
+		arena.ebo = new ElementBufferObject();
+		arena.ebo.setOwner(OWNER);
+		arena.ebo.uploadNullData((long) arena.numElements * indexSize, GL_STATIC_DRAW);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, arena.ebo.getId());
+		long offset = 0;
+		for (Mesh mesh : arena.meshes) {
+			long size = (long) mesh.getNumElements() * indexSize;
+			glBindBuffer(GL_COPY_READ_BUFFER, mesh.getElementBuffer().getId());
+			glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, offset, size);
+			offset += size;
+		}
+
+		arena.vao.unbind();
+		glBindBuffer(GL_COPY_READ_BUFFER, 0);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+		// Group the draws by material, keeping the first-seen material order
+		Map<Material, List<Mesh>> meshesByMaterial = new LinkedHashMap<>();
+		for (Mesh mesh : arena.meshes) {
+			meshesByMaterial.computeIfAbsent(mesh.getMaterial(), m -> new ArrayList<>()).add(mesh);
+		}
+
+		// Record the base vertex and first index of every mesh
+		Map<Mesh, int[]> ranges = new LinkedHashMap<>();
+		int baseVertex = 0;
+		int firstIndex = 0;
+		for (Mesh mesh : arena.meshes) {
+			ranges.put(mesh, new int[] { baseVertex, firstIndex });
+			baseVertex += mesh.getNumVertices();
+			firstIndex += mesh.getNumElements();
+		}
+
+		for (Map.Entry<Material, List<Mesh>> entry : meshesByMaterial.entrySet()) {
+			Run run = new Run(entry.getKey(), entry.getValue().size());
+			for (int i = 0; i < entry.getValue().size(); i++) {
+				Mesh mesh = entry.getValue().get(i);
+				int[] range = ranges.get(mesh);
+				run.counts.put(i, mesh.getNumElements());
+				run.numElements += mesh.getNumElements();
+				run.offsets.put(i, (long) range[1] * indexSize);
+				run.firstIndices.put(i, range[1]);
+				run.baseVertices.put(i, range[0]);
+				run.meshes.add(mesh);
+			}
+			arena.runs.add(run);
+		}
+	}
+
+	/**
+	 * Write indirect commands for every draw, grouped into buckets of materials with the same
+	 * shader features and texture arrays. The context must support indirect drawing, see
+	 * IndirectDrawBuffer.isSupported().
+	 * @param capabilities the context capabilities
+	 * @param bindless     whether to select the texture arrays per draw with bindless handles,
+	 *                     see TextureArray.isBindlessSupported()
+	 */
+	public void buildIndirectCommands(GLCapabilities capabilities, boolean bindless) {
+		int totalDraws = 0;
+		for (Arena arena : arenas) {
+			for (Run run : arena.runs) {
+				totalDraws += run.getNumDraws();
+			}
+		}
+		buildTextureArrays(bindless);
+		drawTextures = new Texture[totalDraws * 2];
+
+		indirectBuffer = new IndirectDrawBuffer(totalDraws, capabilities);
+		indirectBuffer.setOwner(OWNER);
+		IntBuffer drawIds = MemoryUtil.memAllocInt(totalDraws);
+		FloatBuffer materials = MemoryUtil.memAllocFloat(totalDraws * MATERIAL_TEXELS * 4);
+
+		int drawId = 0;
+		for (Arena arena : arenas) {
+			// Group the runs by their shader features and texture arrays, keeping the first-seen order
+			Map<List<Object>, List<Run>> runsByTextures = new LinkedHashMap<>();
+			for (Run run : arena.runs) {
+				int features = ShaderLibrary.getFeatures(run.material);
+				List<Object> key = bindless ? Arrays.asList(features)
+						: Arrays.asList(features, arrayOfTexture.get(run.material.getTexture()), arrayOfTexture.get(run.material.getNormalMap()));
+				runsByTextures.computeIfAbsent(key, k -> new ArrayList<>()).add(run);
+			}
+
+			for (List<Run> runs : runsByTextures.values()) {
+				Material first = runs.get(0).material;
+				Bucket bucket = bindless ? new Bucket(first, null, null)
+						: new Bucket(first, arrayOfTexture.get(first.getTexture()), arrayOfTexture.get(first.getNormalMap()));
+				bucket.firstCommand = indirectBuffer.getNumCommands();
+				bucket.offset = indirectBuffer.getOffset(bucket.firstCommand);
+				for (Run run : runs) {
+					Material material = run.material;
+					for (int i = 0; i < run.getNumDraws(); i++) {
+						indirectBuffer.addCommand(run.counts.get(i), 1, run.firstIndices.get(i), run.baseVertices.get(i), drawId);
+						drawIds.put(drawId);
+						material.getAmbient().get(materials).position(materials.position() + 3);
+						materials.put(material.getShininess());
+						material.getDiffuse().get(materials).position(materials.position() + 3);
+						materials.put(getLayer(material.getTexture()));
+						material.getSpecular().get(materials).position(materials.position() + 3);
+						materials.put(getLayer(material.getNormalMap()));
+						drawTextures[2 * drawId] = material.getTexture();
+						drawTextures[2 * drawId + 1] = material.getNormalMap();
+						drawId++;
+						bucket.numDraws++;
+						bucket.numElements += run.counts.get(i);
+						bucket.meshes.add(run.meshes.get(i));
+					}
+				}
+				arena.buckets.add(bucket);
+			}
+		}
+		indirectBuffer.flush();
+		drawIds.flip();
+		materials.flip();
+
+		drawIdBuffer = new VertexBufferObject();
+		drawIdBuffer.setOwner(OWNER);
+		drawIdBuffer.uploadData(drawIds, GL_STATIC_DRAW);
+		for (Arena arena : arenas) {
+			arena.vao.bind();
+			drawIdBuffer.bind();
+			glVertexAttribIPointer(DRAW_ID_ATTRIBUTE, 1, GL_INT, 0, 0);
+			glVertexAttribDivisor(DRAW_ID_ATTRIBUTE, 1);
+			glEnableVertexAttribArray(DRAW_ID_ATTRIBUTE);
+			arena.vao.unbind();
+		}
+		drawIdBuffer.unbind();
+
+		materialBuffer = new TextureBufferObject();
+		materialBuffer.setOwner(OWNER);
+		materialBuffer.uploadData(materials, GL_STATIC_DRAW);
+
+		MemoryUtil.memFree(drawIds);
+		MemoryUtil.memFree(materials);
+
+		if (bindless) {
+			handleBuffer = new TextureBufferObject();
+			handleBuffer.setOwner(OWNER);
+			writeHandles();
+		}
+	}
+
+	/**
+	 * Copy the materials' textures into one texture array per texture size
+	 * @param bindless whether the arrays need bindless handles
+	 */
+	private void buildTextureArrays(boolean bindless) {
+		Map<List<Integer>, List<Texture>> texturesBySize = new LinkedHashMap<>();
+		for (Arena arena : arenas) {
+			for (Run run : arena.runs) {
+				for (Texture texture : new Texture[] { run.material.getTexture(), run.material.getNormalMap() }) {
+					if (texture != null) {
+						// Streamed textures are grouped by their full size, which doesn't change as they stream
+						List<Integer> size = Arrays.asList(texture.getLevelWidth(0), texture.getLevelHeight(0));
+						texturesBySize.computeIfAbsent(size, k -> new ArrayList<>()).add(texture);
+					}
+				}
+			}
+		}
+		for (List<Texture> textures : texturesBySize.values()) {
+			TextureArray array = new TextureArray(new ArrayList<>(new LinkedHashSet<>(textures)), bindless, OWNER);
+			array.refresh();
+			textureArrays.add(array);
+			for (Texture texture : textures) {
+				arrayOfTexture.put(texture, array);
+			}
+		}
+	}
+
+	/**
+	 * Get the layer of a texture in its array
+	 * @param texture the texture, may be null
+	 * @return the layer index, 0 if the texture is null
+	 */
+	private int getLayer(Texture texture) {
+		return texture != null ? arrayOfTexture.get(texture).getLayer(texture) : 0;
+	}
+
+	/**
+	 * Write the bindless handles of every command's texture arrays to the handle buffer
+	 */
+	private void writeHandles() {
+		IntBuffer handles = MemoryUtil.memAllocInt(drawTextures.length * 2);
+		for (Texture texture : drawTextures) {
+			long handle = texture != null ? arrayOfTexture.get(texture).getHandle() : 0;
+			handles.put((int) handle).put((int) (handle >>> 32));
+		}
+		handles.flip();
+		if (handleBuffer.getAllocatedSize() == 0) {
+			handleBuffer.uploadData(handles, GL_RG32UI, GL_STATIC_DRAW);
+		} else {
+			handleBuffer.updateData(handles);
+		}
+		MemoryUtil.memFree(handles);
+	}
+
+	/**
+	 * Copy textures that have streamed or been reloaded into their texture arrays again, and
+	 * update the bindless handles of arrays that had to be reallocated. Call before drawing the
+	 * indirect buckets.
+	 */
+	public void refreshTextures() {
+		boolean reallocated = false;
+		for (TextureArray array : textureArrays) {
+			reallocated |= array.refresh();
+		}
+		if (reallocated && handleBuffer != null) {
+			writeHandles();
+		}
+	}
+
+	/**
+	 * Get the size of the shared vertex and index buffers
+	 * @return the size in bytes
+	 */
+	public long getSizeBytes() {
+		long size = 0;
+		for (Arena arena : arenas) {
+			for (int attribute = 0; attribute < ATTRIBUTE_SIZES.length; attribute++) {
+				if (arena.vbos[attribute] != null) {
+					size += arena.numVertices * ATTRIBUTE_SIZES[attribute] * 4L;
+				}
+			}
+			size += (long) arena.numElements * (arena.indexType == GL_UNSIGNED_SHORT ? 2 : 4);
+		}
+		return size;
+	}
+
+	/**
+	 * Returns true if buildIndirectCommands() has been called
+	 * @return true if the batch draws with indirect commands
+	 */
+	public boolean isIndirect() {
+		return indirectBuffer != null;
+	}
+
+	/**
+	 * Returns true if the texture arrays are selected per draw with bindless handles
+	 * @return true if the batch uses bindless textures
+	 */
+	public boolean isBindless() {
+		return handleBuffer != null;
+	}
+
+	/**
+	 * Bind the indirect buffer, the per-draw material buffer and the per-draw handle buffer to the
+	 * given texture units
+	 * @param materialUnit the texture unit for the samplerBuffer of per-draw materials
+	 * @param handleUnit   the texture unit for the usamplerBuffer of per-draw bindless handles,
+	 *                     unused unless the batch is bindless
+	 */
+	public void bindIndirect(int materialUnit, int handleUnit) {
+		indirectBuffer.bind();
+		materialBuffer.bindTexture(materialUnit);
+		if (handleBuffer != null) {
+			handleBuffer.bindTexture(handleUnit);
+		}
+	}
+
+	/**
+	 * Unbind the indirect buffer
+	 */
+	public void unbindIndirect() {
+		indirectBuffer.unbind();
+	}
+
+	/**
+	 * Draw a run of the given arena. The arena's VAO must be bound.
+	 * @param arena the arena the run belongs to
+	 * @param run   the run to draw
+	 */
+	public void draw(Arena arena, Run run) {
+		glMultiDrawElementsBaseVertex(GL_TRIANGLES, run.counts, arena.indexType, run.offsets, run.baseVertices);
+	}
+
+	/**
+	 * Draw the draws of a run whose mesh passes a visibility test, compacting them into one
+	 * multi-draw. The arena's VAO must be bound.
+	 * @param arena   the arena the run belongs to
+	 * @param run     the run to draw
+	 * @param visible the test, null to draw every mesh
+	 * @return the number of elements drawn, 0 if no draw call was made
+	 */
+	public long draw(Arena arena, Run run, Predicate<Mesh> visible) {
+		if (visible == null) {
+			draw(arena, run);
+			return run.numElements;
+		}
+		long elements = 0;
+		run.visibleCounts.clear();
+		run.visibleOffsets.clear();
+		run.visibleBaseVertices.clear();
+		for (int i = 0; i < run.getNumDraws(); i++) {
+			if (visible.test(run.meshes.get(i))) {
+				run.visibleCounts.put(run.counts.get(i));
+				run.visibleOffsets.put(run.offsets.get(i));
+				run.visibleBaseVertices.put(run.baseVertices.get(i));
+				elements += run.counts.get(i);
+			}
+		}
+		run.visibleCounts.flip();
+		run.visibleOffsets.flip();
+		run.visibleBaseVertices.flip();
+		if (elements > 0) {
+			glMultiDrawElementsBaseVertex(GL_TRIANGLES, run.visibleCounts, arena.indexType, run.visibleOffsets, run.visibleBaseVertices);
+		}
+		return elements;
+	}
+
+	/**
+	 * Set the instance count of each of a bucket's commands to 1 if its mesh passes a visibility
+	 * test and to 0 otherwise. Call flushCommands() after culling the buckets and before drawing.
+	 * @param bucket  the bucket to cull
+	 * @param visible the test, null to draw every mesh
+	 * @return the number of elements left to draw, also kept by the bucket
+	 */
+	public long cull(Bucket bucket, Predicate<Mesh> visible) {
+		long elements = 0;
+		for (int i = 0; i < bucket.numDraws; i++) {
+			Mesh mesh = bucket.meshes.get(i);
+			boolean drawn = visible == null || visible.test(mesh);
+			indirectBuffer.setInstanceCount(bucket.firstCommand + i, drawn ? 1 : 0);
+			if (drawn) {
+				elements += mesh.getNumElements();
+			}
+		}
+		bucket.visibleElements = elements;
+		return elements;
+	}
+
+	/**
+	 * Upload the instance counts changed by cull()
+	 */
+	public void flushCommands() {
+		indirectBuffer.flush();
+	}
+
+	/**
+	 * Draw a bucket of the given arena with one indirect multi-draw. The arena's VAO and the
+	 * indirect buffer must be bound.
+	 * @param arena  the arena the bucket belongs to
+	 * @param bucket the bucket to draw
+	 */
+	public void draw(Arena arena, Bucket bucket) {
+		glMultiDrawElementsIndirect(GL_TRIANGLES, arena.indexType, bucket.offset, bucket.numDraws, 0);
+	}
+
+	/**
+	 * Get the arenas
+	 * @return the arenas, one per vertex layout
+	 */
+	public List<Arena> getArenas() {
+		return arenas;
+	}
+
+	/**
+	 * Deletes the shared buffers
+	 */
+	@Override
+	public void delete() {
+		for (Arena arena : arenas) {
+			for (Run run : arena.runs) {
+				run.delete();
+			}
+			for (VertexBufferObject vbo : arena.vbos) {
+				if (vbo != null) {
+					vbo.delete();
+				}
+			}
+			arena.ebo.delete();
+			arena.vao.delete();
+		}
+		arenas.clear();
+		if (indirectBuffer != null) {
+			indirectBuffer.delete();
+			drawIdBuffer.delete();
+			materialBuffer.delete();
+			indirectBuffer = null;
+		}
+		if (handleBuffer != null) {
+			handleBuffer.delete();
+			handleBuffer = null;
+		}
+		for (TextureArray array : textureArrays) {
+			array.delete();
+		}
+		textureArrays.clear();
+		arrayOfTexture.clear();
+	}
+}
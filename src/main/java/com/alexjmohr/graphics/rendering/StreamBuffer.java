@@ -0,0 +1,247 @@
+package com.alexjmohr.graphics.rendering;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL44.*;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Ring buffer for data that is rewritten every frame, such as instance data, uniform blocks and
+ * debug geometry. The buffer is split into one region per frame in flight. A fence is placed
+ * after each frame's draws, and a region is only rewritten once the GPU has passed its fence, so
+ * writes never stall on a buffer the GPU is still reading.
+ *
+ * The buffer is persistently mapped when the context supports buffer storage, otherwise each
+ * allocation is mapped with GL_MAP_UNSYNCHRONIZED_BIT, which is safe because of the fences.
+ *
+ * Usage each frame: beginFrame(), then map(size, alignment), write, unmap() and draw from
+ * getOffset() as many times as needed, then endFrame() after the draws are submitted.
+ * @author Alex Mohr
+ *
+ */
+public class StreamBuffer extends BufferObject {
+
+	/**
+	 * Default number of frames the CPU may run ahead of the GPU
+	 */
+	public static final int DEFAULT_FRAMES_IN_FLIGHT = 3;
+
+	/**
+	 * Flags for the persistent mapping
+	 */
+	private static final int PERSISTENT_FLAGS = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+
+	/**
+	 * Flags for mapping a range when the buffer is not persistently mapped
+	 */
+	private static final int UNSYNCHRONIZED_FLAGS = GL_MAP_WRITE_BIT | GL_MAP_UNSYNCHRONIZED_BIT | GL_MAP_INVALIDATE_RANGE_BIT;
+
+	/**
+	 * Timeout of one glClientWaitSync call in nanoseconds
+	 */
+	private static final long WAIT_TIMEOUT = 1000000;
+
+	/**
+	 * The size in bytes of each frame's region
+	 */
+	private final long frameSize;
+
+	/**
+	 * The fence placed at the end of each region's frame, 0 if there is none
+	 */
+	private final long[] fences;
+
+	/**
+	 * True if the buffer is persistently mapped
+	 */
+	private final boolean persistent;
+
+	/**
+	 * The persistent mapping of the whole buffer, null if not persistent
+	 */
+	private ByteBuffer mapping;
+
+	/**
+	 * The region being written this frame
+	 */
+	private int region;
+
+	/**
+	 * Bytes allocated in the current region
+	 */
+	private long used;
+
+	/**
+	 * The buffer offset of the last allocation
+	 */
+	private long offset;
+
+	/**
+	 * Time spent waiting for fences this frame and last frame, in nanoseconds
+	 */
+	private long stallTime;
+	private long lastStallTime;
+
+	/**
+	 * Bytes streamed last frame
+	 */
+	private long lastBytesStreamed;
+
+	/**
+	 * Creates the buffer with the given region size and number of frames in flight
+	 * @param target         the buffer target, e.g. GL_ARRAY_BUFFER or GL_UNIFORM_BUFFER
+	 * @param frameSize      the maximum number of bytes streamed per frame
+	 * @param framesInFlight the number of regions
+	 * @param capabilities   the context capabilities
+	 */
+	public StreamBuffer(int target, long frameSize, int framesInFlight, GLCapabilities capabilities) {
+		super(target);
+		this.frameSize = frameSize;
+		this.fences = new long[framesInFlight];
+		this.persistent = capabilities.OpenGL44 || capabilities.GL_ARB_buffer_storage;
+
+		long size = frameSize * framesInFlight;
+		bind();
+		if (persistent) {
+			glBufferStorage(target, size, PERSISTENT_FLAGS);
+			mapping = glMapBufferRange(target, 0, size, PERSISTENT_FLAGS);
+		} else {
+			glBufferData(target, size, GL_STREAM_DRAW);
+		}
+		unbind();
+		setAllocatedSize(size);
+	}
+
+	/**
+	 * Stream buffers are accounted separately from static buffers of the same target
+	 * @return GpuMemoryTracker.Category.STREAMING
+	 */
+	@Override
+	protected GpuMemoryTracker.Category getCategory() {
+		return GpuMemoryTracker.Category.STREAMING;
+	}
+
+	/**
+	 * Start a new frame. Waits until the GPU has finished with the next region.
+	 */
+	public void beginFrame() {
+		long fence = fences[region];
+		if (fence != 0) {
+			long start = System.nanoTime();
+			int status = glClientWaitSync(fence, 0, 0);
+			while (status == GL_TIMEOUT_EXPIRED) {
+				status = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_TIMEOUT);
+			}
+			if (status == GL_WAIT_FAILED) {
+				throw new IllegalStateException("Failed to wait for stream buffer fence");
+			}
+			stallTime += System.nanoTime() - start;
+			glDeleteSync(fence);
+			fences[region] = 0;
+		}
+		used = 0;
+	}
+
+	/**
+	 * Allocate and map a range of the current region
+	 * @param size      the number of bytes to allocate
+	 * @param alignment the offset alignment, e.g. GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT for UBOs
+	 * @return a buffer to write the data into, positioned at 0
+	 */
+	public ByteBuffer map(int size, int alignment) {
+		long start = (used + alignment - 1) / alignment * alignment;
+		if (start + size > frameSize) {
+			throw new IllegalStateException("Stream buffer frame size of " + frameSize + " bytes exceeded");
+		}
+		used = start + size;
+		offset = region * frameSize + start;
+
+		if (persistent) {
+			return mapping.duplicate().position((int) offset).limit((int) offset + size).slice().order(mapping.order());
+		}
+		bind();
+		return glMapBufferRange(target, offset, size, UNSYNCHRONIZED_FLAGS);
+	}
+
+	/**
+	 * Finish writing the last mapped range
+	 */
+	public void unmap() {
+		if (!persistent) {
+			bind();
+			glUnmapBuffer(target);
+		}
+	}
+
+	/**
+	 * Get the buffer offset of the last mapped range, to use in attribute pointers, draw calls or
+	 * glBindBufferRange
+	 * @return the byte offset into the buffer
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Bind the last mapped range to an indexed binding point, e.g. a uniform block binding
+	 * @param index the binding point index
+	 * @param size  the size of the range in bytes
+	 */
+	public void bindRange(int index, long size) {
+		glBindBufferRange(target, index, getId(), offset, size);
+	}
+
+	/**
+	 * End the frame. Must be called after all draws that read this frame's data are submitted.
+	 */
+	public void endFrame() {
+		fences[region] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		region = (region + 1) % fences.length;
+
+		lastBytesStreamed = used;
+		lastStallTime = stallTime;
+		stallTime = 0;
+	}
+
+	/**
+	 * Get the time spent waiting for the GPU in the last frame
+	 * @return the stall time in nanoseconds
+	 */
+	public long getLastStallTime() {
+		return lastStallTime;
+	}
+
+	/**
+	 * Get the number of bytes allocated in the last frame, including alignment padding
+	 * @return the bytes streamed
+	 */
+	public long getLastBytesStreamed() {
+		return lastBytesStreamed;
+	}
+
+	/**
+	 * Deletes the fences, unmaps and deletes the buffer object
+	 */
+	@Override
+	public void delete() {
+		if (isDeleted()) {
+			return;
+		}
+		for (int i = 0; i < fences.length; i++) {
+			if (fences[i] != 0) {
+				glDeleteSync(fences[i]);
+				fences[i] = 0;
+			}
+		}
+		if (persistent) {
+			bind();
+			glUnmapBuffer(target);
+			unbind();
+		}
+		super.delete();
+	}
+}
@@ -3,42 +3,189 @@ package com.alexjmohr.graphics.rendering;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL42.glTexStorage2D;
+import static org.lwjgl.opengl.ARBSparseTexture.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 
+import com.alexjmohr.graphics.loaders.ResourceLease;
 import com.alexjmohr.graphics.loaders.ResourceLoader;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 
 import static org.lwjgl.stb.STBImage.*;
 
 /**
  * Texture
+ *
+ * A streamed texture keeps only its coarser mips in GPU memory, from its resident mip down. Draws
+ * request the mip they need with requestResolution(), and a TextureStreamer streams finer mips in
+ * and evicts them. With ARB_sparse_texture the texture is allocated once for the full image and
+ * mip levels are committed and decommitted in place; otherwise the texture is reallocated at the
+ * size of its resident mip.
  */
-public class Texture {
+public class Texture implements GLResource {
 
     /**
-     * The texture id
+     * The requested mip of a texture no draw has requested since the requests were last taken
      */
-    private final int texture;
+    public static final int NO_REQUEST = Integer.MAX_VALUE;
+
+    /**
+     * The texture id, 0 once deleted
+     */
+    private int texture;
 
     /**
      * The texture's width
      */
-    private final int width;
+    private int width;
 
     /**
      * The texture's height
      */
-    private final int height;
+    private int height;
+
+    /**
+     * The asset the texture belongs to
+     */
+    private final String owner;
+
+    /**
+     * The size of the image's mip 0. The resident mips of a streamed texture may be smaller.
+     */
+    private int fullWidth;
+    private int fullHeight;
+
+    /**
+     * The finest mip level in GPU memory, 0 unless the texture is streamed
+     */
+    private int residentMip;
+
+    /**
+     * Whether a TextureStreamer manages the texture's resident mip
+     */
+    private final boolean streamed;
+
+    /**
+     * Whether the texture is a sparse texture with its levels committed as they are streamed in
+     */
+    private boolean sparse;
+
+    /**
+     * The number of sparse levels of a sparse texture. The levels from here on are the mip tail,
+     * which is committed for the texture's life.
+     */
+    private int sparseLevels;
+
+    /**
+     * The finest mip requested by a draw since the requests were last taken
+     */
+    private int requestedMip = NO_REQUEST;
+
+    /**
+     * Incremented when the image is replaced, so mips streamed from the old file are dropped
+     */
+    private int generation;
+
+    /**
+     * RGBA8 pixels decoded by stb_image, waiting to be uploaded
+     */
+    public static class Image {
+
+        private final ByteBuffer pixels;
+        private final int width;
+        private final int height;
+
+        /**
+         * Whether the pixels were allocated by stb_image rather than MemoryUtil
+         */
+        private final boolean decoded;
+
+        private Image(ByteBuffer pixels, int width, int height, boolean decoded) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.decoded = decoded;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Downsample the image by a number of mip levels with a box filter, halving its size
+         * each level. Frees this image. Does not need an OpenGL context.
+         * @param levels the number of levels
+         * @return the downsampled image, this image if levels is 0
+         */
+        public Image reduce(int levels) {
+            Image image = this;
+            for (int i = 0; i < levels; i++) {
+                Image half = image.downsample();
+                image.free();
+                image = half;
+            }
+            return image;
+        }
+
+        /**
+         * Average each 2x2 block of pixels into one. An odd last row or column is dropped,
+         * matching the size of the next GL mip level.
+         * @return the half size image
+         */
+        private Image downsample() {
+            int w = Math.max(1, width / 2);
+            int h = Math.max(1, height / 2);
+            ByteBuffer half = MemoryUtil.memAlloc(w * h * 4);
+            for (int y = 0; y < h; y++) {
+                int y0 = Math.min(2 * y, height - 1) * width * 4;
+                int y1 = Math.min(2 * y + 1, height - 1) * width * 4;
+                for (int x = 0; x < w; x++) {
+                    int x0 = Math.min(2 * x, width - 1) * 4;
+                    int x1 = Math.min(2 * x + 1, width - 1) * 4;
+                    for (int c = 0; c < 4; c++) {
+                        int sum = (pixels.get(y0 + x0 + c) & 0xFF) + (pixels.get(y0 + x1 + c) & 0xFF)
+                                + (pixels.get(y1 + x0 + c) & 0xFF) + (pixels.get(y1 + x1 + c) & 0xFF);
+                        half.put((y * w + x) * 4 + c, (byte) ((sum + 2) >> 2));
+                    }
+                }
+            }
+            return new Image(half, w, h, false);
+        }
+
+        /**
+         * Get the size of the pixels
+         * @return the size in bytes
+         */
+        public long getSizeBytes() {
+            return (long) width * height * 4;
+        }
+
+        /**
+         * Free the pixels
+         */
+        public void free() {
+            if (decoded) {
+                stbi_image_free(pixels);
+            } else {
+                MemoryUtil.memFree(pixels);
+            }
+        }
+    }
 
     /**
      * Loads a texture from the given path
      * @param path the path of the texture file
      */
     public Texture(String path) throws IOException {
-        this(ResourceLoader.loadResource(path));
+        this(decode(path), path);
     }
 
     /**
@@ -46,34 +193,403 @@ public class Texture {
      * @param data file data
      */
     public Texture(ByteBuffer data) {
+        this(data, "Texture");
+    }
+
+    /**
+     * Creates a texture from a bytebuffer which was loaded directly from a file
+     * @param data  file data
+     * @param owner the asset the texture belongs to, for GPU memory accounting
+     */
+    public Texture(ByteBuffer data, String owner) {
+        this(decode(data, owner), owner);
+    }
+
+    /**
+     * Creates a texture from a decoded image, e.g. one decoded on a loader thread
+     * @param image the decoded image, freed once uploaded
+     * @param owner the asset the texture belongs to, for GPU memory accounting
+     */
+    public Texture(Image image, String owner) {
+        this(image, owner, 0, image.width, image.height, false, false);
+    }
+
+    /**
+     * Creates a texture from a decoded mip of an image
+     * @param image      the decoded mip, freed once uploaded
+     * @param owner      the asset the texture belongs to, for GPU memory accounting
+     * @param mip        the mip level of the image
+     * @param fullWidth  the width of mip 0
+     * @param fullHeight the height of mip 0
+     * @param streamed   whether a TextureStreamer manages the resident mip
+     * @param sparse     whether to allocate a sparse texture
+     */
+    private Texture(Image image, String owner, int mip, int fullWidth, int fullHeight, boolean streamed, boolean sparse) {
+        this.owner = owner;
+        this.fullWidth = fullWidth;
+        this.fullHeight = fullHeight;
+        this.streamed = streamed;
+        this.sparse = sparse;
+        allocate(image, mip);
+        ResourceTracker.getInstance().track(this, owner);
+    }
+
+    /**
+     * Creates a streamed texture with only the coarser mips of its image resident
+     * @param image      the decoded mip to start with, freed once uploaded
+     * @param path       the path of the texture file, which the finer mips are decoded from
+     * @param mip        the mip level of the image
+     * @param fullWidth  the width of mip 0
+     * @param fullHeight the height of mip 0
+     * @param sparse     whether to allocate a sparse texture for the full image and commit levels
+     *                   as they are streamed in. Needs ARB_sparse_texture, OpenGL 4.2 and a size
+     *                   that is a multiple of the sparse page size.
+     * @return the texture
+     */
+    public static Texture createStreamed(Image image, String path, int mip, int fullWidth, int fullHeight, boolean sparse) {
+        return new Texture(image, path, mip, fullWidth, fullHeight, true, sparse);
+    }
+
+    /**
+     * Load and decode an image resource. The file is decoded straight from its lease, without
+     * copying it to the heap first. Does not need an OpenGL context.
+     * @param path the path of the texture file
+     * @return the decoded image, which must be uploaded or freed
+     */
+    public static Image decode(String path) throws IOException {
+        try (ResourceLease lease = ResourceLoader.open(path)) {
+            return decode(lease.getData(), path);
+        }
+    }
+
+    /**
+     * Decode image file data to RGBA8 pixels. Does not need an OpenGL context.
+     * @param data file data
+     * @param name the file name, for the error message
+     * @return the decoded image, which must be uploaded or freed
+     */
+    public static Image decode(ByteBuffer data, String name) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
             IntBuffer w = stack.mallocInt(1);
             IntBuffer h = stack.mallocInt(1);
             IntBuffer channels = stack.mallocInt(1);
-            
+
             // Decode the image data, save it's width and height
             ByteBuffer decodedImage = stbi_load_from_memory(data, w, h, channels, 4);
-            this.width = w.get();
-            this.height = h.get();
+            if (decodedImage == null) {
+                throw new RuntimeException("Failed to decode texture " + name + ": " + stbi_failure_reason());
+            }
+            return new Image(decodedImage, w.get(0), h.get(0), true);
+        }
+    }
+
+    /**
+     * Get the number of mip levels of an image down to 1x1
+     * @param width  the image width
+     * @param height the image height
+     * @return the mip count
+     */
+    public static int getMipCount(int width, int height) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+    }
+
+    /**
+     * Create the GL texture for a mip of the image, replacing the current one
+     * @param image the decoded mip, freed by this call
+     * @param mip   the mip level of the image
+     */
+    private void allocate(Image image, int mip) {
+        int replacement = sparse ? uploadSparse(image, mip) : upload(image);
+        if (texture != 0) {
+            glDeleteTextures(texture);
+        }
+        texture = replacement;
+        residentMip = mip;
+        width = image.width;
+        height = image.height;
+        image.free();
+        GpuMemoryTracker.getInstance().register(this, getSizeBytes(), GpuMemoryTracker.Category.TEXTURE, owner);
+    }
+
+    /**
+     * Set the sampling parameters of the bound texture
+     */
+    private static void setParameters() {
+        // Linear filtering, clamp to edges
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
+    }
+
+    /**
+     * Create a GL texture with mipmaps from decoded pixels
+     * @param image the decoded image
+     * @return the texture id
+     */
+    private static int upload(Image image) {
+        // generate teture and bind it to unit 0
+        int texture = glGenTextures();
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, texture);
+        // Tell opengl to unpack RGBA bytes so each channel is 1 byte
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        setParameters();
+        // Upload decoded image data
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, image.width, image.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, image.pixels);
+        // Generate mipmap
+        glGenerateMipmap(GL_TEXTURE_2D);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        return texture;
+    }
 
-            // generate teture and bind it to unit 0
-            texture = glGenTextures();
-            glActiveTexture(GL_TEXTURE0);
+    /**
+     * Create a sparse texture for the full image with the levels from a mip on committed, and
+     * fill them from the mip
+     * @param image the decoded mip
+     * @param mip   the mip level of the image
+     * @return the texture id
+     */
+    private int uploadSparse(Image image, int mip) {
+        int mipCount = getMipCount(fullWidth, fullHeight);
+        int texture = glGenTextures();
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        setParameters();
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_SPARSE_ARB, GL_TRUE);
+        glTexStorage2D(GL_TEXTURE_2D, mipCount, GL_RGBA8, fullWidth, fullHeight);
+        sparseLevels = glGetTexParameteri(GL_TEXTURE_2D, GL_NUM_SPARSE_LEVELS_ARB);
+        if (sparseLevels < mipCount) {
+            // Committing any level of the mip tail commits all of it
+            glTexPageCommitmentARB(GL_TEXTURE_2D, sparseLevels, 0, 0, 0, getLevelWidth(sparseLevels), getLevelHeight(sparseLevels), 1, true);
+        }
+        commitLevels(mip, mipCount, true);
+        fillLevel(image, mip);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        return texture;
+    }
+
+    /**
+     * Commit or decommit the sparse levels in a range of the bound sparse texture. Levels in the
+     * mip tail are skipped.
+     * @param from   the first level
+     * @param to     the level after the last
+     * @param commit true to commit, false to decommit
+     */
+    private void commitLevels(int from, int to, boolean commit) {
+        for (int level = from; level < Math.min(to, sparseLevels); level++) {
+            glTexPageCommitmentARB(GL_TEXTURE_2D, level, 0, 0, 0, getLevelWidth(level), getLevelHeight(level), 1, commit);
+        }
+    }
+
+    /**
+     * Upload a mip into the bound sparse texture, make it the base level and regenerate the
+     * coarser levels from it
+     * @param image the decoded mip
+     * @param mip   the mip level
+     */
+    private static void fillLevel(Image image, int mip) {
+        glTexSubImage2D(GL_TEXTURE_2D, mip, 0, 0, image.width, image.height, GL_RGBA, GL_UNSIGNED_BYTE, image.pixels);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, mip);
+        glGenerateMipmap(GL_TEXTURE_2D);
+    }
+
+    /**
+     * Replace the texture's contents with a newly decoded image, e.g. after the file changed. A
+     * new GL texture is created and the old one deleted, so materials using this object see the
+     * new image from the next draw. A streamed texture is reallocated at full size, and the
+     * streamer evicts mips again as needed.
+     * @param image the decoded image, freed by this call
+     */
+    public void replace(Image image) {
+        if (texture == 0) {
+            image.free();
+            throw new IllegalStateException("Texture " + owner + " has been deleted");
+        }
+        // The new size may not fit the sparse page size
+        sparse = false;
+        fullWidth = image.width;
+        fullHeight = image.height;
+        generation++;
+        allocate(image, 0);
+    }
+
+    /**
+     * Make a finer mip of a streamed texture resident
+     * @param image the decoded mip, freed by this call
+     * @param mip   the mip level of the image, finer than the resident mip
+     */
+    public void streamIn(Image image, int mip) {
+        if (texture == 0) {
+            image.free();
+            throw new IllegalStateException("Texture " + owner + " has been deleted");
+        }
+        if (!sparse) {
+            allocate(image, mip);
+            return;
+        }
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        commitLevels(mip, residentMip, true);
+        fillLevel(image, mip);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        residentMip = mip;
+        width = image.width;
+        height = image.height;
+        image.free();
+        GpuMemoryTracker.getInstance().register(this, getSizeBytes(), GpuMemoryTracker.Category.TEXTURE, owner);
+    }
+
+    /**
+     * Drop the mips of a streamed texture finer than a level. A sparse texture decommits them in
+     * place. Otherwise the level is copied into a new, smaller texture with a framebuffer blit, so
+     * nothing is read back or decoded again.
+     * @param mip the new resident mip, coarser than the current one
+     */
+    public void evict(int mip) {
+        if (texture == 0 || mip <= residentMip) {
+            return;
+        }
+        if (sparse) {
             glBindTexture(GL_TEXTURE_2D, texture);
-            // Tell opengl to unpack RGBA bytes so each channel is 1 byte
-            glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
-            // Linear filtering, clamp to edges
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-            // Upload decoded image data
-            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, decodedImage);
-            // Generate mipmap
-            glGenerateMipmap(GL_TEXTURE_2D);
-            // Free decoded image data
-            stbi_image_free(decodedImage);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, mip);
+            commitLevels(residentMip, mip, false);
+            glBindTexture(GL_TEXTURE_2D, 0);
+        } else {
+            blitLevel(mip);
+        }
+        residentMip = mip;
+        width = getLevelWidth(mip);
+        height = getLevelHeight(mip);
+        GpuMemoryTracker.getInstance().register(this, getSizeBytes(), GpuMemoryTracker.Category.TEXTURE, owner);
+    }
+
+    /**
+     * Replace the texture with a new one whose base level is a copy of one of its mips
+     * @param mip the mip level to keep as the new base level
+     */
+    private void blitLevel(int mip) {
+        int w = getLevelWidth(mip);
+        int h = getLevelHeight(mip);
+        int replacement = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, replacement);
+        setParameters();
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, w, h, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        int readBinding = glGetInteger(GL_READ_FRAMEBUFFER_BINDING);
+        int drawBinding = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+        int readFramebuffer = glGenFramebuffers();
+        int drawFramebuffer = glGenFramebuffers();
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, readFramebuffer);
+        glFramebufferTexture2D(GL_READ_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, texture, mip - residentMip);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, drawFramebuffer);
+        glFramebufferTexture2D(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, replacement, 0);
+        glBlitFramebuffer(0, 0, w, h, 0, 0, w, h, GL_COLOR_BUFFER_BIT, GL_NEAREST);
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, readBinding);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, drawBinding);
+        glDeleteFramebuffers(readFramebuffer);
+        glDeleteFramebuffers(drawFramebuffer);
+
+        glBindTexture(GL_TEXTURE_2D, replacement);
+        glGenerateMipmap(GL_TEXTURE_2D);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        glDeleteTextures(texture);
+        texture = replacement;
+    }
+
+    /**
+     * Request the resolution a draw needs. Does nothing unless the texture is streamed.
+     * @param uvPerPixel the texture coordinate distance one screen pixel covers
+     */
+    public void requestResolution(float uvPerPixel) {
+        if (!streamed) {
+            return;
+        }
+        float texelsPerPixel = Math.max(fullWidth, fullHeight) * uvPerPixel;
+        int mip = 0;
+        if (texelsPerPixel > 1) {
+            mip = Math.min((int) (Math.log(texelsPerPixel) / Math.log(2)), getMipCount() - 1);
         }
+        requestedMip = Math.min(requestedMip, mip);
+    }
+
+    /**
+     * Get the finest mip requested since the last call, and clear the requests
+     * @return the mip level, or NO_REQUEST if no draw requested one
+     */
+    int takeRequestedMip() {
+        int mip = requestedMip;
+        requestedMip = NO_REQUEST;
+        return mip;
+    }
+
+    /**
+     * Get the width of a mip level of the full image
+     * @param mip the mip level
+     * @return the width in texels
+     */
+    public int getLevelWidth(int mip) {
+        return Math.max(1, fullWidth >> mip);
+    }
+
+    /**
+     * Get the height of a mip level of the full image
+     * @param mip the mip level
+     * @return the height in texels
+     */
+    public int getLevelHeight(int mip) {
+        return Math.max(1, fullHeight >> mip);
+    }
+
+    /**
+     * Get the number of mip levels of the full image
+     * @return the mip count
+     */
+    public int getMipCount() {
+        return getMipCount(fullWidth, fullHeight);
+    }
+
+    /**
+     * Get the finest mip level in GPU memory
+     * @return the mip level, 0 unless the texture is streamed
+     */
+    public int getResidentMip() {
+        return residentMip;
+    }
+
+    /**
+     * Get the GL level that holds the resident mip, which a sparse texture keeps at its mip level
+     * and a reallocated texture keeps at level 0
+     * @return the GL texture level
+     */
+    public int getBaseLevel() {
+        return sparse ? residentMip : 0;
+    }
+
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * Get the number of times the image has been replaced
+     * @return the generation
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Check whether the texture has been deleted
+     * @return true if deleted
+     */
+    public boolean isDeleted() {
+        return texture == 0;
     }
 
     /**
@@ -90,6 +606,23 @@ public class Texture {
         glBindTexture(GL_TEXTURE_2D, 0);
     }
 
+    /**
+     * Get the estimated GPU memory used by the texture: RGBA8 texels plus a third for the mipmaps
+     * @return the size in bytes
+     */
+    public long getSizeBytes() {
+        return (long) width * height * 4 * 4 / 3;
+    }
+
+    /**
+     * Get the estimated GPU memory the texture would use with a mip resident
+     * @param mip the resident mip level
+     * @return the size in bytes
+     */
+    public long getSizeBytes(int mip) {
+        return (long) getLevelWidth(mip) * getLevelHeight(mip) * 4 * 4 / 3;
+    }
+
     /**
      * Get the texture id
      * @param the texture id
@@ -97,4 +630,18 @@ public class Texture {
     public int getId() {
         return texture;
     }
+
+    /**
+     * Deletes the texture
+     */
+    @Override
+    public void delete() {
+        if (texture == 0) {
+            return;
+        }
+        glDeleteTextures(texture);
+        texture = 0;
+        GpuMemoryTracker.getInstance().unregister(this);
+        ResourceTracker.getInstance().release(this);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,263 @@
+package com.alexjmohr.graphics.rendering;
+
+import static org.lwjgl.opengl.ARBBindlessTexture.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.glTexImage3D;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * A GL_TEXTURE_2D_ARRAY with a copy of one texture in each layer, so draws with different
+ * textures can share one binding and a per-draw layer index.
+ *
+ * The layers are copied on the GPU from the textures' resident mips with framebuffer blits, and
+ * refresh() copies a layer again when its texture streams a mip in or out or is reloaded. The
+ * array is as large as the finest resident mip of its textures, and coarser mips are scaled up
+ * to fill their layer.
+ *
+ * With ARB_bindless_texture the array also has a resident texture handle, so shaders can select
+ * the array itself per draw.
+ */
+public class TextureArray implements GLResource {
+
+    /**
+     * The array texture id, 0 until the first refresh() and once deleted
+     */
+    private int texture;
+
+    /**
+     * The size of the array's base level
+     */
+    private int width;
+    private int height;
+
+    /**
+     * The texture copied into each layer
+     */
+    private final List<Texture> layers;
+
+    /**
+     * The texture id, resident mip and generation each layer was last copied from, so refresh()
+     * only copies the layers whose texture changed
+     */
+    private final int[] copiedIds;
+    private final int[] copiedMips;
+    private final int[] copiedGenerations;
+
+    /**
+     * Whether the array has a bindless texture handle
+     */
+    private final boolean bindless;
+
+    /**
+     * The resident bindless handle, 0 if the array isn't bindless
+     */
+    private long handle;
+
+    /**
+     * The asset the array belongs to
+     */
+    private final String owner;
+
+    /**
+     * Creates an array for textures. Nothing is allocated until refresh() is called.
+     * @param textures the textures, one per layer
+     * @param bindless whether to make a bindless texture handle for the array
+     * @param owner    the asset the array belongs to, for GPU memory accounting
+     */
+    public TextureArray(List<Texture> textures, boolean bindless, String owner) {
+        this.layers = new ArrayList<>(textures);
+        this.copiedIds = new int[textures.size()];
+        this.copiedMips = new int[textures.size()];
+        this.copiedGenerations = new int[textures.size()];
+        this.bindless = bindless;
+        this.owner = owner;
+        ResourceTracker.getInstance().track(this, owner);
+    }
+
+    /**
+     * Returns true if the context supports bindless texture handles
+     * @param capabilities the context capabilities
+     * @return true if ARB_bindless_texture is supported
+     */
+    public static boolean isBindlessSupported(GLCapabilities capabilities) {
+        return capabilities.GL_ARB_bindless_texture;
+    }
+
+    /**
+     * Copy the layers whose texture changed since they were last copied, reallocating the array
+     * first if the finest resident mip of its textures changed size. Deleted textures keep their
+     * last copy.
+     * @return true if the array was reallocated, which changes its id and bindless handle
+     */
+    public boolean refresh() {
+        if (layers.isEmpty()) {
+            return false;
+        }
+        int finestWidth = 1;
+        int finestHeight = 1;
+        for (Texture layer : layers) {
+            if (!layer.isDeleted()) {
+                finestWidth = Math.max(finestWidth, layer.getLevelWidth(layer.getResidentMip()));
+                finestHeight = Math.max(finestHeight, layer.getLevelHeight(layer.getResidentMip()));
+            }
+        }
+        boolean reallocated = texture == 0 || finestWidth != width || finestHeight != height;
+        if (reallocated) {
+            allocate(finestWidth, finestHeight);
+            Arrays.fill(copiedIds, 0);
+        }
+
+        int readBinding = -1;
+        int drawBinding = 0;
+        int readFramebuffer = 0;
+        int drawFramebuffer = 0;
+        for (int i = 0; i < layers.size(); i++) {
+            Texture layer = layers.get(i);
+            if (layer.isDeleted() || (copiedIds[i] == layer.getId() && copiedMips[i] == layer.getResidentMip()
+                    && copiedGenerations[i] == layer.getGeneration())) {
+                continue;
+            }
+            if (readBinding == -1) {
+                readBinding = glGetInteger(GL_READ_FRAMEBUFFER_BINDING);
+                drawBinding = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+                readFramebuffer = glGenFramebuffers();
+                drawFramebuffer = glGenFramebuffers();
+            }
+            int mip = layer.getResidentMip();
+            glBindFramebuffer(GL_READ_FRAMEBUFFER, readFramebuffer);
+            glFramebufferTexture2D(GL_READ_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, layer.getId(), layer.getBaseLevel());
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, drawFramebuffer);
+            glFramebufferTextureLayer(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, texture, 0, i);
+            glBlitFramebuffer(0, 0, layer.getLevelWidth(mip), layer.getLevelHeight(mip), 0, 0, width, height, GL_COLOR_BUFFER_BIT, GL_LINEAR);
+            copiedIds[i] = layer.getId();
+            copiedMips[i] = mip;
+            copiedGenerations[i] = layer.getGeneration();
+        }
+        if (readBinding != -1) {
+            glBindFramebuffer(GL_READ_FRAMEBUFFER, readBinding);
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, drawBinding);
+            glDeleteFramebuffers(readFramebuffer);
+            glDeleteFramebuffers(drawFramebuffer);
+
+            glBindTexture(GL_TEXTURE_2D_ARRAY, texture);
+            glGenerateMipmap(GL_TEXTURE_2D_ARRAY);
+            glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+        }
+        return reallocated;
+    }
+
+    /**
+     * Create the array texture with every mip level defined, replacing the current one. The levels
+     * are defined up front because a texture with a bindless handle can't be respecified.
+     * @param width  the width of the base level
+     * @param height the height of the base level
+     */
+    private void allocate(int width, int height) {
+        int replacement = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, replacement);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_REPEAT);
+        int levels = Texture.getMipCount(width, height);
+        for (int level = 0; level < levels; level++) {
+            glTexImage3D(GL_TEXTURE_2D_ARRAY, level, GL_RGBA8, Math.max(1, width >> level), Math.max(1, height >> level),
+                    layers.size(), 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+        }
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAX_LEVEL, levels - 1);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+
+        releaseTexture();
+        texture = replacement;
+        this.width = width;
+        this.height = height;
+        if (bindless) {
+            handle = glGetTextureHandleARB(texture);
+            glMakeTextureHandleResidentARB(handle);
+        }
+        GpuMemoryTracker.getInstance().register(this, getSizeBytes(), GpuMemoryTracker.Category.TEXTURE, owner);
+    }
+
+    /**
+     * Make the handle non-resident and delete the array texture
+     */
+    private void releaseTexture() {
+        if (handle != 0) {
+            glMakeTextureHandleNonResidentARB(handle);
+            handle = 0;
+        }
+        if (texture != 0) {
+            glDeleteTextures(texture);
+            texture = 0;
+        }
+    }
+
+    /**
+     * Get the layer a texture was copied into
+     * @param layer the texture
+     * @return the layer index, -1 if the texture isn't in the array
+     */
+    public int getLayer(Texture layer) {
+        for (int i = 0; i < layers.size(); i++) {
+            if (layers.get(i) == layer) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Bind the array to a texture unit
+     * @param unit the texture unit index
+     */
+    public void bind(int unit) {
+        glActiveTexture(GL_TEXTURE0 + unit);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, texture);
+    }
+
+    /**
+     * Get the bindless texture handle
+     * @return the resident handle, 0 if the array isn't bindless or not allocated
+     */
+    public long getHandle() {
+        return handle;
+    }
+
+    /**
+     * Get the number of layers
+     * @return the layer count
+     */
+    public int getLayerCount() {
+        return layers.size();
+    }
+
+    /**
+     * Get the estimated GPU memory used by the array: RGBA8 texels plus a third for the mipmaps
+     * @return the size in bytes
+     */
+    public long getSizeBytes() {
+        return (long) width * height * 4 * layers.size() * 4 / 3;
+    }
+
+    /**
+     * Deletes the array texture and its handle
+     */
+    @Override
+    public void delete() {
+        if (layers.isEmpty()) {
+            return;
+        }
+        releaseTexture();
+        layers.clear();
+        GpuMemoryTracker.getInstance().unregister(this);
+        ResourceTracker.getInstance().release(this);
+    }
+}
@@ -0,0 +1,100 @@
+package com.alexjmohr.graphics.rendering;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Buffer object read by shaders through a samplerBuffer as an array of RGBA32F texels, or through
+ * an integer sampler buffer in another texel format
+ * @author Alex Mohr
+ *
+ */
+public class TextureBufferObject extends BufferObject {
+
+	/**
+	 * The target to use when binding or uploading data for all texture buffers
+	 */
+	private static final int TARGET = GL_TEXTURE_BUFFER;
+
+	/**
+	 * The buffer texture id
+	 */
+	private int texture;
+
+	/**
+	 * Generates the buffer and the buffer texture
+	 */
+	public TextureBufferObject() {
+		super(TARGET);
+		texture = glGenTextures();
+	}
+
+	/**
+	 * Uploads data to the buffer with the specified usage and attaches it to the buffer texture
+	 * @param data	the data to upload, four floats per texel
+	 * @param usage see glBufferData
+	 */
+	public void uploadData(FloatBuffer data, int usage) {
+		bind();
+		glBufferData(TARGET, data, usage);
+		setAllocatedSize(data.remaining() * 4L);
+		glBindTexture(TARGET, texture);
+		glTexBuffer(TARGET, GL_RGBA32F, getId());
+		glBindTexture(TARGET, 0);
+		unbind();
+	}
+
+	/**
+	 * Uploads integer data to the buffer with the specified usage and attaches it to the buffer
+	 * texture with the specified texel format
+	 * @param data           the data to upload
+	 * @param internalFormat the texel format, e.g. GL_RG32UI
+	 * @param usage          see glBufferData
+	 */
+	public void uploadData(IntBuffer data, int internalFormat, int usage) {
+		bind();
+		glBufferData(TARGET, data, usage);
+		setAllocatedSize(data.remaining() * 4L);
+		glBindTexture(TARGET, texture);
+		glTexBuffer(TARGET, internalFormat, getId());
+		glBindTexture(TARGET, 0);
+		unbind();
+	}
+
+	/**
+	 * Overwrites the start of the buffer with new data of at most the uploaded size
+	 * @param data the data
+	 */
+	public void updateData(IntBuffer data) {
+		bind();
+		glBufferSubData(TARGET, 0, data);
+		unbind();
+	}
+
+	/**
+	 * Binds the buffer texture to the specified texture unit
+	 * @param unit the texture unit index
+	 */
+	public void bindTexture(int unit) {
+		glActiveTexture(GL_TEXTURE0 + unit);
+		glBindTexture(TARGET, texture);
+	}
+
+	/**
+	 * Deletes the buffer texture and the buffer object
+	 */
+	@Override
+	public void delete() {
+		if (isDeleted()) {
+			return;
+		}
+		glDeleteTextures(texture);
+		super.delete();
+	}
+}
@@ -1,11 +1,13 @@
 package com.alexjmohr.graphics.rendering;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Singleton TextureCache caches loaded Textures so they aren't loaded twice
  */
-public class TextureCache {
+public class TextureCache implements GLResource {
 
     /**
      * The singleton instance
@@ -17,6 +19,17 @@ public class TextureCache {
      */
     private HashMap<String, Texture> cache;
 
+    /**
+     * Number of lookups that found a loaded texture and that had to load it
+     */
+    private long hits;
+    private long misses;
+
+    /**
+     * Loads textures with only their coarse mips resident, null to load them in full
+     */
+    private TextureStreamer streamer;
+
     /**
      * Initializes the cache
      */
@@ -43,9 +56,55 @@ public class TextureCache {
     public Texture getTexture(String path) throws Exception {
         Texture texture = cache.get(path);
         if (texture == null) {
-            texture = new Texture(path);
+            misses++;
+            texture = streamer != null ? streamer.load(path) : new Texture(path);
             cache.put(path, texture);
+        } else {
+            hits++;
         }
         return texture;
     }
+
+    /**
+     * Set the streamer that loads textures from now on
+     * @param streamer the texture streamer, null to load textures in full
+     */
+    public void setStreamer(TextureStreamer streamer) {
+        this.streamer = streamer;
+    }
+
+    /**
+     * Get the loaded textures
+     * @return an unmodifiable view of the textures by file path
+     */
+    public Map<String, Texture> getTextures() {
+        return Collections.unmodifiableMap(cache);
+    }
+
+    /**
+     * Get the number of lookups that found the texture already loaded
+     * @return the number of cache hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups that had to load the texture
+     * @return the number of cache misses
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Deletes the cached textures and empties the cache
+     */
+    @Override
+    public void delete() {
+        for (Texture texture : cache.values()) {
+            texture.delete();
+        }
+        cache.clear();
+    }
 }
\ No newline at end of file
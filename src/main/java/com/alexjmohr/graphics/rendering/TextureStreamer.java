@@ -0,0 +1,457 @@
+package com.alexjmohr.graphics.rendering;
+
+import static org.lwjgl.opengl.ARBSparseTexture.GL_VIRTUAL_PAGE_SIZE_X_ARB;
+import static org.lwjgl.opengl.ARBSparseTexture.GL_VIRTUAL_PAGE_SIZE_Y_ARB;
+import static org.lwjgl.opengl.GL11.GL_RGBA8;
+import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
+import static org.lwjgl.opengl.GL42.glGetInternalformati;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.alexjmohr.graphics.metrics.MetricsRegistry;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Streams texture mips by what the draws need. Textures start with only their coarse mips
+ * resident, at most INITIAL_MAX_SIZE texels across. Each frame the renderer requests the mip each
+ * draw needs from each texture, and update() streams finer mips in on a loader thread, nearest to
+ * the requested resolution first, while the resident mips fit in the memory budget. Mips finer
+ * than needed are evicted when room is needed for others, least recently used first, and mips of
+ * textures that haven't been drawn for EVICT_AFTER_FRAMES frames are evicted regardless.
+ *
+ * Textures use ARB_sparse_texture when the context supports it, so streaming commits and
+ * decommits levels of one texture. Otherwise the texture is reallocated at its resident size,
+ * which works on plain OpenGL 3.3.
+ */
+public class TextureStreamer implements GLResource {
+
+    /**
+     * The largest size, in texels, of the mip a texture starts with
+     */
+    public static final int INITIAL_MAX_SIZE = 128;
+
+    /**
+     * The most mips being decoded by the loader thread at once
+     */
+    public static final int MAX_IN_FLIGHT = 2;
+
+    /**
+     * Frames after which the mips of a texture that hasn't been drawn are evicted
+     */
+    public static final int EVICT_AFTER_FRAMES = 120;
+
+    /**
+     * How long delete() waits for the loader thread to finish the current mip
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    /**
+     * The streaming state of a texture
+     */
+    private static class Stream {
+
+        private final Texture texture;
+
+        /**
+         * The path the texture's mips are decoded from
+         */
+        private final String path;
+
+        /**
+         * The mip the draws need
+         */
+        private int targetMip;
+
+        /**
+         * The frame the texture was last requested in
+         */
+        private long lastRequestFrame;
+
+        /**
+         * Whether a mip is being decoded
+         */
+        private boolean loading;
+
+        /**
+         * Set if decoding a mip failed, the texture is no longer streamed in
+         */
+        private boolean failed;
+
+        private Stream(Texture texture, String path, long frame) {
+            this.texture = texture;
+            this.path = path;
+            this.targetMip = texture.getResidentMip();
+            this.lastRequestFrame = frame;
+        }
+    }
+
+    /**
+     * A mip decoded by the loader thread
+     */
+    private static class Decoded {
+
+        private final Stream stream;
+        private final int mip;
+
+        /**
+         * The texture's generation when the load started, the mip is dropped if it has changed
+         */
+        private final int generation;
+
+        /**
+         * The GPU memory reserved for the mip
+         */
+        private final long reservedBytes;
+
+        private Texture.Image image;
+        private Exception failure;
+
+        private Decoded(Stream stream, int mip, long reservedBytes) {
+            this.stream = stream;
+            this.mip = mip;
+            this.generation = stream.texture.getGeneration();
+            this.reservedBytes = reservedBytes;
+        }
+    }
+
+    /**
+     * The most GPU memory for streamed textures
+     */
+    private final long budgetBytes;
+
+    /**
+     * Whether textures are allocated as sparse textures
+     */
+    private final boolean sparse;
+
+    /**
+     * The sparse page size for RGBA8 textures, a sparse texture's size must be a multiple of it
+     */
+    private final int pageWidth;
+    private final int pageHeight;
+
+    /**
+     * The streamed textures
+     */
+    private final Map<Texture, Stream> streams;
+
+    /**
+     * The mips the loader thread has finished decoding
+     */
+    private final ConcurrentLinkedQueue<Decoded> decoded;
+
+    /**
+     * Decodes mips in the background
+     */
+    private final ExecutorService loader;
+
+    /**
+     * The number of updates so far
+     */
+    private long frame;
+
+    /**
+     * The number of mips being decoded, and the memory reserved for them
+     */
+    private int inFlight;
+    private long reservedBytes;
+
+    /**
+     * Statistics, written by the GL thread and read by the metrics exporters
+     */
+    private volatile long residentBytes;
+    private volatile long loads;
+    private volatile long evictions;
+    private volatile long streamedBytes;
+    private long peakResidentBytes;
+
+    /**
+     * Creates a streamer and starts its loader thread
+     * @param budgetBytes  the most GPU memory for streamed textures. The initial mips are always
+     *                     resident, even if they don't fit.
+     * @param capabilities the context capabilities
+     */
+    public TextureStreamer(long budgetBytes, GLCapabilities capabilities) {
+        this.budgetBytes = budgetBytes;
+        this.sparse = capabilities.OpenGL42 && capabilities.GL_ARB_sparse_texture;
+        if (sparse) {
+            pageWidth = glGetInternalformati(GL_TEXTURE_2D, GL_RGBA8, GL_VIRTUAL_PAGE_SIZE_X_ARB);
+            pageHeight = glGetInternalformati(GL_TEXTURE_2D, GL_RGBA8, GL_VIRTUAL_PAGE_SIZE_Y_ARB);
+        } else {
+            pageWidth = 0;
+            pageHeight = 0;
+        }
+        this.streams = new IdentityHashMap<>();
+        this.decoded = new ConcurrentLinkedQueue<>();
+
+        loader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "texture-streamer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Load a texture with only its coarse mips resident. The full image is decoded to find its
+     * size and downsampled to the initial mip, but only that mip is uploaded.
+     * @param path the texture file path
+     * @return the streamed texture
+     * @throws Exception if the texture could not be loaded
+     */
+    public Texture load(String path) throws Exception {
+        Texture.Image image = Texture.decode(path);
+        int fullWidth = image.getWidth();
+        int fullHeight = image.getHeight();
+        int mip = getInitialMip(fullWidth, fullHeight);
+        boolean sparseTexture = sparse && pageWidth > 0 && pageHeight > 0
+                && fullWidth % pageWidth == 0 && fullHeight % pageHeight == 0;
+        Texture texture = Texture.createStreamed(image.reduce(mip), path, mip, fullWidth, fullHeight, sparseTexture);
+        streams.put(texture, new Stream(texture, path, frame));
+        return texture;
+    }
+
+    /**
+     * Get the mip a texture starts with
+     * @param width  the width of mip 0
+     * @param height the height of mip 0
+     * @return the finest mip no larger than INITIAL_MAX_SIZE
+     */
+    private static int getInitialMip(int width, int height) {
+        int mip = 0;
+        while (Math.max(width, height) >> mip > INITIAL_MAX_SIZE) {
+            mip++;
+        }
+        return mip;
+    }
+
+    /**
+     * Apply the decoded mips, then stream mips in and out for the draws of the last frame. Call
+     * once per frame on the GL thread, after the frame's draws.
+     */
+    public void update() {
+        frame++;
+        applyDecoded();
+
+        // Find the mip each texture needs, forgetting deleted textures
+        long resident = 0;
+        Iterator<Stream> it = streams.values().iterator();
+        while (it.hasNext()) {
+            Stream stream = it.next();
+            Texture texture = stream.texture;
+            if (texture.isDeleted()) {
+                it.remove();
+                continue;
+            }
+            int requested = texture.takeRequestedMip();
+            if (requested != Texture.NO_REQUEST) {
+                stream.targetMip = requested;
+                stream.lastRequestFrame = frame;
+            } else if (frame - stream.lastRequestFrame > EVICT_AFTER_FRAMES) {
+                stream.targetMip = getInitialMip(texture.getLevelWidth(0), texture.getLevelHeight(0));
+            }
+            // Textures that aren't drawn give their memory back without waiting for pressure
+            if (frame - stream.lastRequestFrame > EVICT_AFTER_FRAMES && !stream.loading
+                    && texture.getResidentMip() < stream.targetMip) {
+                evict(stream);
+            }
+            resident += texture.getSizeBytes();
+        }
+        residentBytes = resident;
+
+        streamIn();
+        peakResidentBytes = Math.max(peakResidentBytes, residentBytes);
+    }
+
+    /**
+     * Upload the mips the loader thread has decoded. A mip is dropped if its texture was deleted
+     * or replaced, or already has a finer mip resident.
+     */
+    private void applyDecoded() {
+        Decoded result;
+        while ((result = decoded.poll()) != null) {
+            inFlight--;
+            reservedBytes -= result.reservedBytes;
+            Stream stream = result.stream;
+            stream.loading = false;
+            Texture texture = stream.texture;
+            if (result.failure != null) {
+                stream.failed = true;
+                Logger.getLogger(TextureStreamer.class.getName()).warning("Failed to stream mip " + result.mip + " of " + stream.path + ": " + result.failure.getMessage());
+                continue;
+            }
+            // The file may have changed size before the texture was reloaded
+            boolean stale = texture.isDeleted() || texture.getGeneration() != result.generation
+                    || result.image.getWidth() != texture.getLevelWidth(result.mip)
+                    || result.image.getHeight() != texture.getLevelHeight(result.mip);
+            if (stale || result.mip >= texture.getResidentMip()) {
+                result.image.free();
+                continue;
+            }
+            streamedBytes += result.image.getSizeBytes();
+            texture.streamIn(result.image, result.mip);
+            loads++;
+        }
+    }
+
+    /**
+     * Start decoding mips for the textures furthest from the resolution they need, making room
+     * by evicting mips finer than needed. A texture whose mip doesn't fit gets the finest
+     * coarser mip that does.
+     */
+    private void streamIn() {
+        List<Stream> wanted = new ArrayList<>();
+        for (Stream stream : streams.values()) {
+            if (!stream.loading && !stream.failed && stream.targetMip < stream.texture.getResidentMip()) {
+                wanted.add(stream);
+            }
+        }
+        wanted.sort(Comparator.comparingInt((Stream stream) -> stream.targetMip - stream.texture.getResidentMip())
+                .thenComparing(Comparator.comparingLong((Stream stream) -> stream.lastRequestFrame).reversed()));
+
+        for (Stream stream : wanted) {
+            if (inFlight >= MAX_IN_FLIGHT) {
+                break;
+            }
+            Texture texture = stream.texture;
+            for (int mip = stream.targetMip; mip < texture.getResidentMip(); mip++) {
+                long growth = texture.getSizeBytes(mip) - texture.getSizeBytes();
+                if (residentBytes + reservedBytes + growth > budgetBytes) {
+                    makeRoom(residentBytes + reservedBytes + growth - budgetBytes, stream);
+                }
+                if (residentBytes + reservedBytes + growth <= budgetBytes) {
+                    startLoad(stream, mip, growth);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evict mips finer than needed from other textures, least recently drawn first
+     * @param bytes     the memory to free
+     * @param requester the texture the room is for, which is not evicted
+     */
+    private void makeRoom(long bytes, Stream requester) {
+        List<Stream> candidates = new ArrayList<>();
+        for (Stream stream : streams.values()) {
+            if (stream != requester && !stream.loading && stream.texture.getResidentMip() < stream.targetMip) {
+                candidates.add(stream);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(stream -> stream.lastRequestFrame));
+        long freed = 0;
+        for (Stream stream : candidates) {
+            if (freed >= bytes) {
+                break;
+            }
+            freed += evict(stream);
+        }
+    }
+
+    /**
+     * Evict the mips of a texture finer than its target mip
+     * @param stream the texture
+     * @return the memory freed in bytes
+     */
+    private long evict(Stream stream) {
+        long before = stream.texture.getSizeBytes();
+        stream.texture.evict(stream.targetMip);
+        long freed = before - stream.texture.getSizeBytes();
+        residentBytes -= freed;
+        evictions++;
+        return freed;
+    }
+
+    /**
+     * Decode a mip of a texture on the loader thread
+     * @param stream the texture
+     * @param mip    the mip level
+     * @param growth the GPU memory to reserve for the mip
+     */
+    private void startLoad(Stream stream, int mip, long growth) {
+        Decoded result = new Decoded(stream, mip, growth);
+        stream.loading = true;
+        inFlight++;
+        reservedBytes += growth;
+        loader.execute(() -> {
+            try {
+                result.image = Texture.decode(stream.path).reduce(mip);
+            } catch (Exception ex) {
+                result.failure = ex;
+            }
+            decoded.add(result);
+        });
+    }
+
+    /**
+     * Register the streaming metrics
+     * @param metrics the registry to add the metrics to
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        metrics.gauge("texture_streaming_bytes_resident", "Estimated GPU memory of the streamed textures' resident mips", () -> residentBytes);
+        metrics.gauge("texture_streaming_bytes_budget", "GPU memory budget of the streamed textures", () -> budgetBytes);
+        metrics.counter("texture_streaming_loads_total", "Texture mips streamed in", () -> loads);
+        metrics.counter("texture_streaming_evictions_total", "Texture mips evicted", () -> evictions);
+        metrics.counter("texture_streaming_bytes_total", "Decoded bytes of the texture mips streamed in", () -> streamedBytes);
+    }
+
+    /**
+     * Check whether textures are allocated as sparse textures
+     * @return true if ARB_sparse_texture is used, false for the OpenGL 3.3 fallback
+     */
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * Get the estimated GPU memory of the streamed textures' resident mips
+     * @return the size in bytes
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * Summarize the streaming statistics of the run
+     * @return the summary
+     */
+    public String getSummary() {
+        return String.format("Texture streaming (%s): %d textures, %d mips streamed in (%.1f MB), %d evictions, peak %.1f of %.1f MB resident",
+                sparse ? "sparse" : "reallocating", streams.size(), loads, streamedBytes / (1024.0 * 1024.0), evictions,
+                peakResidentBytes / (1024.0 * 1024.0), budgetBytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Stop the loader thread and free the decoded mips. The textures belong to the TextureCache.
+     */
+    @Override
+    public void delete() {
+        loader.shutdownNow();
+        try {
+            if (!loader.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Logger.getLogger(TextureStreamer.class.getName()).warning("Texture streamer thread did not stop");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        Decoded result;
+        while ((result = decoded.poll()) != null) {
+            if (result.image != null) {
+                result.image.free();
+            }
+        }
+        streams.clear();
+        inFlight = 0;
+        reservedBytes = 0;
+    }
+}
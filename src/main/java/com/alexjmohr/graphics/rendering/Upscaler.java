@@ -0,0 +1,99 @@
+package com.alexjmohr.graphics.rendering;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL20.*;
+
+import org.joml.Vector2f;
+
+/**
+ * Draws a texture rendered at a reduced resolution over the whole viewport, upscaled with bilinear
+ * filtering and a contrast adaptive sharpening filter
+ */
+public class Upscaler implements GLResource {
+
+    /**
+     * The sharpening strength used unless set, 0 to 1
+     */
+    public static final float DEFAULT_SHARPNESS = 0.5f;
+
+    /**
+     * The upscaling program and the empty VAO its fullscreen triangle is drawn with
+     */
+    private final ShaderProgram program;
+    private final VertexArrayObject emptyArray;
+
+    /**
+     * The sharpening strength, 0 to 1
+     */
+    private float sharpness = DEFAULT_SHARPNESS;
+
+    /**
+     * Loads the upscaling program
+     */
+    public Upscaler() {
+        program = new ShaderProgram();
+        Shader vertexShader = Shader.loadShader(GL_VERTEX_SHADER, "/shaders/upscale.vert");
+        Shader fragmentShader = Shader.loadShader(GL_FRAGMENT_SHADER, "/shaders/upscale.frag");
+        program.attachShader(vertexShader);
+        program.attachShader(fragmentShader);
+        program.link();
+        vertexShader.delete();
+        fragmentShader.delete();
+        emptyArray = new VertexArrayObject();
+        emptyArray.setOwner("Upscaler");
+        ResourceTracker.getInstance().track(this, "Upscaler");
+    }
+
+    /**
+     * Draw the rendered region of a texture over the viewport of the bound framebuffer
+     * @param texture      the texture
+     * @param sourceWidth  the texture width
+     * @param sourceHeight the texture height
+     * @param renderWidth  the width of the region rendered, from the lower left corner
+     * @param renderHeight the height of the region rendered
+     * @param outputWidth  the viewport width
+     * @param outputHeight the viewport height
+     */
+    public void draw(int texture, int sourceWidth, int sourceHeight, int renderWidth, int renderHeight, int outputWidth, int outputHeight) {
+        boolean depthTest = glIsEnabled(GL_DEPTH_TEST);
+        glDisable(GL_DEPTH_TEST);
+        program.use();
+        program.setUniform("source", 0);
+        program.setUniform("sourceSize", new Vector2f(sourceWidth, sourceHeight));
+        program.setUniform("renderSize", new Vector2f(renderWidth, renderHeight));
+        program.setUniform("outputSize", new Vector2f(outputWidth, outputHeight));
+        program.setUniform("sharpness", sharpness);
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, texture);
+        emptyArray.bind();
+        glDrawArrays(GL_TRIANGLES, 0, 3);
+        emptyArray.unbind();
+        glBindTexture(GL_TEXTURE_2D, 0);
+        program.unuse();
+        if (depthTest) {
+            glEnable(GL_DEPTH_TEST);
+        }
+    }
+
+    /**
+     * Set the sharpening strength
+     * @param sharpness 0 for the least sharpening, 1 for the most
+     */
+    public void setSharpness(float sharpness) {
+        this.sharpness = Math.max(0, Math.min(1, sharpness));
+    }
+
+    /**
+     * Delete the program and the VAO
+     */
+    @Override
+    public void delete() {
+        if (program.program == 0) {
+            return;
+        }
+        program.delete();
+        emptyArray.delete();
+        ResourceTracker.getInstance().release(this);
+    }
+}
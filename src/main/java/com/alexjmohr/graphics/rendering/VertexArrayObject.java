@@ -7,7 +7,7 @@ import static org.lwjgl.opengl.GL30.*;
  * @author Alex Mohr
  *
  */
-public class VertexArrayObject {
+public class VertexArrayObject implements GLResource {
 	
 	/**
 	 * The VAO id
@@ -19,6 +19,7 @@ public class VertexArrayObject {
 	 */
 	public VertexArrayObject() {
 		array = glGenVertexArrays();
+		ResourceTracker.getInstance().track(this, "VertexArrayObject");
 	}
 	
 	/**
@@ -35,11 +36,25 @@ public class VertexArrayObject {
 		glBindVertexArray(0);
 	}
 	
+	/**
+	 * Set the asset or subsystem the VAO belongs to, for leak reports
+	 * @param owner the owner name
+	 */
+	public void setOwner(String owner) {
+		ResourceTracker.getInstance().setOwner(this, owner);
+	}
+	
 	/**
 	 * Deletes the VAO
 	 */
+	@Override
 	public void delete() {
+		if (array == 0) {
+			return;
+		}
 		glDeleteVertexArrays(array);
+		array = 0;
+		ResourceTracker.getInstance().release(this);
 	}
 	
 }
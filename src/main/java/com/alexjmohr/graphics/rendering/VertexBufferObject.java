@@ -3,6 +3,7 @@ package com.alexjmohr.graphics.rendering;
 import static org.lwjgl.opengl.GL20.*;
 
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
 public class VertexBufferObject extends BufferObject {
 	
@@ -26,6 +27,18 @@ public class VertexBufferObject extends BufferObject {
 	public void uploadData(FloatBuffer data, int usage) {
 		bind();
 		glBufferData(TARGET, data, usage);
+		setAllocatedSize(data.remaining() * 4L);
+	}
+	
+	/**
+	 * Uploads integer data to the VBO with the specified usage, e.g. for glVertexAttribIPointer
+	 * @param data	the data to upload
+	 * @param usage see glBufferData
+	 */
+	public void uploadData(IntBuffer data, int usage) {
+		bind();
+		glBufferData(TARGET, data, usage);
+		setAllocatedSize(data.remaining() * 4L);
 	}
 	
 	/**
@@ -36,6 +49,7 @@ public class VertexBufferObject extends BufferObject {
 	public void uploadNullData(long size, int usage) {
 		bind();
 		glBufferData(TARGET, size, usage);
+		setAllocatedSize(size);
 	}
 	
 	/**
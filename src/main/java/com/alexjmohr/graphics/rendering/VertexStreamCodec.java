@@ -0,0 +1,91 @@
+package com.alexjmohr.graphics.rendering;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless compression of vertex and index streams of 4 byte values. The bytes of each value are
+ * split into four planes before deflating, so the slowly changing high bytes of neighbouring
+ * floats and indices end up next to each other and compress well.
+ * @author Alex Mohr
+ *
+ */
+final class VertexStreamCodec {
+
+	/**
+	 * Size of the buffer the deflater writes into
+	 */
+	private static final int CHUNK_SIZE = 8192;
+
+	private VertexStreamCodec() {
+	}
+
+	/**
+	 * Compress the remaining bytes of the buffer without changing its position
+	 * @param data the stream, its remaining size must be a multiple of 4
+	 * @return the compressed bytes
+	 */
+	static byte[] compress(ByteBuffer data) {
+		int count = data.remaining() / 4;
+		int start = data.position();
+		byte[] planes = new byte[count * 4];
+		for (int i = 0; i < count; i++) {
+			for (int b = 0; b < 4; b++) {
+				planes[b * count + i] = data.get(start + i * 4 + b);
+			}
+		}
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(planes);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(planes.length / 2 + 64);
+		byte[] chunk = new byte[CHUNK_SIZE];
+		while (!deflater.finished()) {
+			int length = deflater.deflate(chunk);
+			out.write(chunk, 0, length);
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decompress a stream into a new heap buffer in native byte order
+	 * @param compressed the bytes returned by compress
+	 * @param count      the number of 4 byte values in the stream
+	 * @return the stream
+	 */
+	static ByteBuffer decompress(byte[] compressed, int count) {
+		byte[] planes = new byte[count * 4];
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed);
+		try {
+			int read = 0;
+			while (read < planes.length && !inflater.finished()) {
+				int length = inflater.inflate(planes, read, planes.length - read);
+				if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				read += length;
+			}
+			if (read != planes.length) {
+				throw new IllegalStateException("Compressed stream is truncated: " + read + " of " + planes.length + " bytes");
+			}
+		} catch (DataFormatException ex) {
+			throw new IllegalStateException("Compressed stream is corrupt", ex);
+		} finally {
+			inflater.end();
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(count * 4).order(ByteOrder.nativeOrder());
+		for (int i = 0; i < count; i++) {
+			for (int b = 0; b < 4; b++) {
+				data.put(i * 4 + b, planes[b * count + i]);
+			}
+		}
+		return data;
+	}
+}
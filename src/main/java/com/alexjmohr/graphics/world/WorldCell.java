@@ -0,0 +1,301 @@
+package com.alexjmohr.graphics.world;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import com.alexjmohr.graphics.loaders.ModelLoader;
+import com.alexjmohr.graphics.rendering.Mesh;
+import com.alexjmohr.graphics.rendering.Texture;
+
+/**
+ * A square cell of a world partition and the assets of the models placed in it.
+ *
+ * Loading a cell has two stages. read() runs on the loader thread: it imports the cell's models
+ * and decodes their textures into native memory. The GL thread then uploads the staged assets one
+ * at a time with uploadNext(), so the uploads can be spread over several frames.
+ */
+class WorldCell {
+
+    /**
+     * Where a cell is in its lifecycle
+     */
+    enum State {
+        /**
+         * Nothing loaded
+         */
+        UNLOADED,
+        /**
+         * Waiting for or running read() on the loader thread
+         */
+        LOADING,
+        /**
+         * Read, with staged assets left to upload
+         */
+        UPLOADING,
+        /**
+         * Uploaded and rendered
+         */
+        LOADED,
+        /**
+         * Failed to load, not retried
+         */
+        FAILED
+    }
+
+    /**
+     * The cell's grid coordinates
+     */
+    final int x;
+    final int z;
+
+    /**
+     * The cell's world space bounds on the x and z axes
+     */
+    private final float minX;
+    private final float minZ;
+    private final float size;
+
+    /**
+     * The models placed in the cell
+     */
+    final List<WorldManifest.Instance> instances;
+
+    /**
+     * The cell's state, only used by the GL thread
+     */
+    State state;
+
+    /**
+     * Set when the cell should be dropped while it is loading
+     */
+    volatile boolean cancelled;
+
+    /**
+     * When the load was requested, for the load latency
+     */
+    long requestNanos;
+
+    /**
+     * Why read() failed, null if it didn't
+     */
+    RuntimeException failure;
+
+    /**
+     * The imported models waiting to be uploaded, by model path. Filled by read().
+     */
+    private final Map<String, ModelLoader.ImportedModel> imported;
+
+    /**
+     * The decoded textures waiting to be uploaded, by texture path. Filled by read().
+     */
+    private final Map<String, Texture.Image> images;
+
+    /**
+     * The uploaded textures by texture path
+     */
+    private final Map<String, Texture> textures;
+
+    /**
+     * The uploaded models by model path
+     */
+    private final Map<String, ModelLoader> models;
+
+    /**
+     * The size of the uploaded assets
+     */
+    private long residentBytes;
+
+    /**
+     * Creates an empty cell
+     * @param x        the grid x coordinate
+     * @param z        the grid z coordinate
+     * @param cellSize the width and depth of a cell
+     */
+    WorldCell(int x, int z, float cellSize) {
+        this.x = x;
+        this.z = z;
+        this.minX = x * cellSize;
+        this.minZ = z * cellSize;
+        this.size = cellSize;
+        this.instances = new ArrayList<>();
+        this.state = State.UNLOADED;
+        this.imported = new LinkedHashMap<>();
+        this.images = new LinkedHashMap<>();
+        this.textures = new HashMap<>();
+        this.models = new HashMap<>();
+    }
+
+    /**
+     * Get the horizontal distance from a point to the nearest point of the cell
+     * @param px the point's x coordinate
+     * @param pz the point's z coordinate
+     * @return the distance, 0 inside the cell
+     */
+    float distanceTo(float px, float pz) {
+        float dx = Math.max(Math.max(minX - px, px - (minX + size)), 0);
+        float dz = Math.max(Math.max(minZ - pz, pz - (minZ + size)), 0);
+        return (float) Math.sqrt(dx * dx + dz * dz);
+    }
+
+    /**
+     * Import the cell's models and decode their textures. Runs on the loader thread, so must not
+     * make GL calls. Stops early if the cell is cancelled. A texture that fails to decode is
+     * logged and left out, and its materials are drawn untextured.
+     * @param resolver maps a model's resource path to the path Assimp imports it from
+     */
+    void read(Function<String, String> resolver) {
+        for (WorldManifest.Instance instance : instances) {
+            if (cancelled) {
+                return;
+            }
+            String model = instance.getModel();
+            if (imported.containsKey(model)) {
+                continue;
+            }
+            ModelLoader.ImportedModel importedModel = ModelLoader.importModel(resolver.apply(model));
+            imported.put(model, importedModel);
+
+            for (String path : importedModel.getTexturePaths(instance.getTexturesDir())) {
+                if (cancelled) {
+                    return;
+                }
+                if (images.containsKey(path)) {
+                    continue;
+                }
+                try {
+                    images.put(path, Texture.decode(path));
+                } catch (Exception ex) {
+                    Logger.getLogger(WorldCell.class.getName()).warning("Failed to load texture " + path + " of " + getName() + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether staged assets are left to upload
+     * @return true if uploadNext() has work
+     */
+    boolean hasUploads() {
+        return !images.isEmpty() || !imported.isEmpty();
+    }
+
+    /**
+     * Get the size of the asset uploadNext() will upload
+     * @return the size in bytes, 0 if nothing is left
+     */
+    long getNextUploadSize() {
+        if (!images.isEmpty()) {
+            return images.values().iterator().next().getSizeBytes();
+        }
+        if (!imported.isEmpty()) {
+            return imported.values().iterator().next().getSizeBytes();
+        }
+        return 0;
+    }
+
+    /**
+     * Get the size of the staged assets waiting in CPU memory
+     * @return the size in bytes
+     */
+    long getStagedBytes() {
+        long staged = 0;
+        for (Texture.Image image : images.values()) {
+            staged += image.getSizeBytes();
+        }
+        for (ModelLoader.ImportedModel model : imported.values()) {
+            staged += model.getSizeBytes();
+        }
+        return staged;
+    }
+
+    /**
+     * Upload the next staged asset: the textures first, then the models, whose materials use
+     * them. Runs on the GL thread.
+     * @param residency what the models' meshes keep in CPU memory after upload
+     * @return the size of the uploaded asset in bytes
+     * @throws Exception if a model could not be loaded
+     */
+    long uploadNext(Mesh.Residency residency) throws Exception {
+        if (!images.isEmpty()) {
+            Iterator<Map.Entry<String, Texture.Image>> it = images.entrySet().iterator();
+            Map.Entry<String, Texture.Image> entry = it.next();
+            it.remove();
+            long size = entry.getValue().getSizeBytes();
+            Texture texture = new Texture(entry.getValue(), entry.getKey());
+            textures.put(entry.getKey(), texture);
+            residentBytes += texture.getSizeBytes();
+            return size;
+        }
+        if (!imported.isEmpty()) {
+            Iterator<Map.Entry<String, ModelLoader.ImportedModel>> it = imported.entrySet().iterator();
+            Map.Entry<String, ModelLoader.ImportedModel> entry = it.next();
+            it.remove();
+            long size = entry.getValue().getSizeBytes();
+            ModelLoader loader = new ModelLoader();
+            loader.setResidency(residency);
+            // Textures that failed to decode are missing, leaving their materials untextured
+            loader.setTextureSource(textures::get);
+            // The model is ours now, load() frees it even if it fails
+            models.put(entry.getKey(), loader);
+            loader.load(entry.getValue(), WorldManifest.getTexturesDir(entry.getKey()));
+            residentBytes += size;
+            return size;
+        }
+        return 0;
+    }
+
+    /**
+     * Get the uploaded model for a model path
+     * @param model the resource path of the model file
+     * @return the model's loader holding its meshes, or null if it isn't uploaded
+     */
+    ModelLoader getModel(String model) {
+        return models.get(model);
+    }
+
+    /**
+     * Get the size of the uploaded assets
+     * @return the size in bytes
+     */
+    long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * Delete the uploaded assets and free the staged ones. Runs on the GL thread, and not while
+     * read() is running.
+     */
+    void unload() {
+        for (ModelLoader model : models.values()) {
+            model.delete();
+        }
+        models.clear();
+        for (Texture texture : textures.values()) {
+            texture.delete();
+        }
+        textures.clear();
+        for (Texture.Image image : images.values()) {
+            image.free();
+        }
+        images.clear();
+        for (ModelLoader.ImportedModel model : imported.values()) {
+            model.free();
+        }
+        imported.clear();
+        residentBytes = 0;
+    }
+
+    /**
+     * Get a name for messages
+     * @return the name, e.g. cell (0, -1)
+     */
+    String getName() {
+        return "cell (" + x + ", " + z + ")";
+    }
+}
@@ -0,0 +1,240 @@
+package com.alexjmohr.graphics.world;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.joml.Vector3f;
+
+/**
+ * Describes a streamed world: the size of its cells, the distances at which cells load and
+ * unload, and where each model instance is placed. The format is line based, with # comments:
+ *
+ * <pre>
+ * cell-size 16
+ * load-radius 24
+ * unload-radius 32
+ * model /models/bricks/bricks.obj 0 0 0
+ * </pre>
+ *
+ * Model paths are resource paths, and each model's textures are looked up in its directory.
+ */
+public class WorldManifest {
+
+    /**
+     * Cell size used if the manifest doesn't give one
+     */
+    public static final float DEFAULT_CELL_SIZE = 32;
+
+    /**
+     * A model placed in the world
+     */
+    public static class Instance {
+
+        private final String model;
+        private final Vector3f position;
+
+        Instance(String model, Vector3f position) {
+            this.model = model;
+            this.position = position;
+        }
+
+        /**
+         * Get the model
+         * @return the resource path of the model file
+         */
+        public String getModel() {
+            return model;
+        }
+
+        /**
+         * Get the directory of the model's textures
+         * @return the resource path of the directory
+         */
+        public String getTexturesDir() {
+            return WorldManifest.getTexturesDir(model);
+        }
+
+        public Vector3f getPosition() {
+            return position;
+        }
+    }
+
+    /**
+     * Get the directory of a model's textures, the directory the model is in
+     * @param model the resource path of the model file
+     * @return the resource path of the directory
+     */
+    static String getTexturesDir(String model) {
+        return model.substring(0, Math.max(model.lastIndexOf('/'), 0));
+    }
+
+    /**
+     * The width and depth of a cell
+     */
+    private final float cellSize;
+
+    /**
+     * Cells closer to the camera than this are loaded
+     */
+    private final float loadRadius;
+
+    /**
+     * Loaded cells further from the camera than this are unloaded
+     */
+    private final float unloadRadius;
+
+    /**
+     * The placed models
+     */
+    private final List<Instance> instances;
+
+    /**
+     * Creates a manifest
+     * @param cellSize     the width and depth of a cell
+     * @param loadRadius   the distance within which cells are loaded
+     * @param unloadRadius the distance beyond which cells are unloaded, at least loadRadius
+     * @param instances    the placed models
+     */
+    public WorldManifest(float cellSize, float loadRadius, float unloadRadius, List<Instance> instances) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("World cell size must be positive");
+        }
+        if (unloadRadius < loadRadius) {
+            throw new IllegalArgumentException("World unload radius must be at least the load radius");
+        }
+        this.cellSize = cellSize;
+        this.loadRadius = loadRadius;
+        this.unloadRadius = unloadRadius;
+        this.instances = new ArrayList<>(instances);
+    }
+
+    /**
+     * Loads a manifest from a classpath resource
+     * @param  resource the resource path, e.g. /worlds/bricks.world
+     * @return the manifest
+     * @throws IOException if the resource can't be read
+     */
+    public static WorldManifest loadResource(String resource) throws IOException {
+        InputStream in = WorldManifest.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("World manifest resource not found: " + resource);
+        }
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return load(reader, resource);
+        }
+    }
+
+    /**
+     * Loads a manifest from a file
+     * @param  file the file path
+     * @return the manifest
+     * @throws IOException if the file can't be read
+     */
+    public static WorldManifest loadFile(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return load(reader, file.toString());
+        }
+    }
+
+    /**
+     * Parses a manifest
+     * @param  reader the manifest text
+     * @param  name   the name of the file for error messages
+     * @return the manifest
+     * @throws IOException if reading fails or the manifest is malformed
+     */
+    private static WorldManifest load(Reader reader, String name) throws IOException {
+        float cellSize = DEFAULT_CELL_SIZE;
+        float loadRadius = Float.NaN;
+        float unloadRadius = Float.NaN;
+        List<Instance> instances = new ArrayList<>();
+
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                switch (fields[0]) {
+                    case "cell-size":
+                        cellSize = parseValue(fields, name, lineNumber);
+                        break;
+                    case "load-radius":
+                        loadRadius = parseValue(fields, name, lineNumber);
+                        break;
+                    case "unload-radius":
+                        unloadRadius = parseValue(fields, name, lineNumber);
+                        break;
+                    case "model":
+                        if (fields.length != 5) {
+                            throw new IOException(name + ":" + lineNumber + ": expected model PATH x y z");
+                        }
+                        Vector3f position = new Vector3f(Float.parseFloat(fields[2]), Float.parseFloat(fields[3]), Float.parseFloat(fields[4]));
+                        instances.add(new Instance(fields[1], position));
+                        break;
+                    default:
+                        throw new IOException(name + ":" + lineNumber + ": unknown key " + fields[0]);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IOException(name + ":" + lineNumber + ": " + ex.getMessage());
+            }
+        }
+
+        // Default to loading the cells around the camera's cell, and unloading a cell later
+        if (Float.isNaN(loadRadius)) {
+            loadRadius = cellSize;
+        }
+        if (Float.isNaN(unloadRadius)) {
+            unloadRadius = loadRadius + cellSize / 2;
+        }
+        try {
+            return new WorldManifest(cellSize, loadRadius, unloadRadius, instances);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException(name + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Parse the value of a single value key
+     */
+    private static float parseValue(String[] fields, String name, int lineNumber) throws IOException {
+        if (fields.length != 2) {
+            throw new IOException(name + ":" + lineNumber + ": expected " + fields[0] + " VALUE");
+        }
+        return Float.parseFloat(fields[1]);
+    }
+
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    public float getLoadRadius() {
+        return loadRadius;
+    }
+
+    public float getUnloadRadius() {
+        return unloadRadius;
+    }
+
+    /**
+     * Get the placed models
+     * @return an unmodifiable view of the instances
+     */
+    public List<Instance> getInstances() {
+        return Collections.unmodifiableList(instances);
+    }
+}
@@ -0,0 +1,495 @@
+package com.alexjmohr.graphics.world;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import com.alexjmohr.graphics.Camera;
+import com.alexjmohr.graphics.culling.SoftwareOcclusionCuller;
+import com.alexjmohr.graphics.loaders.ModelLoader;
+import com.alexjmohr.graphics.metrics.Histogram;
+import com.alexjmohr.graphics.metrics.MetricsRegistry;
+import com.alexjmohr.graphics.rendering.GLResource;
+import com.alexjmohr.graphics.rendering.Mesh;
+import com.alexjmohr.graphics.rendering.MeshRenderer;
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+/**
+ * Streams a world that is too large to load at once. The world is divided into square cells on
+ * the x and z axes, and each model instance belongs to the cell its position is in. Cells are
+ * loaded as the camera comes within the load radius, nearest first, and unloaded once it is
+ * further than the unload radius, so a camera moving along a cell border doesn't load and unload
+ * the same cells every frame.
+ *
+ * A cell's models are imported and its textures decoded on a loader thread. The GL thread then
+ * uploads the staged assets in update(), at most the upload budget per frame, and a cell is
+ * drawn once all of its assets are uploaded. Each cell owns its assets, so a model or texture
+ * used by several cells is loaded once per cell.
+ */
+public class WorldPartition implements GLResource {
+
+    /**
+     * The most cells being read by the loader thread at once. Keeping few in flight means a
+     * camera that moves quickly doesn't queue up cells it has already left.
+     */
+    public static final int MAX_LOADING_CELLS = 2;
+
+    /**
+     * How long delete() waits for the loader thread to finish the current cell
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Bucket bounds of the cell load latency histogram, in seconds
+     */
+    private static final double[] LOAD_LATENCY_BUCKETS = { 0.05, 0.1, 0.25, 0.5, 1, 2, 5, 10 };
+
+    /**
+     * The world's cell size and radii
+     */
+    private final WorldManifest manifest;
+
+    /**
+     * The most bytes uploaded per frame
+     */
+    private final long uploadBudgetBytes;
+
+    /**
+     * Maps a model's resource path to the path Assimp imports it from
+     */
+    private final Function<String, String> resolver;
+
+    /**
+     * The cells that have models in them, by grid coordinates
+     */
+    private final Map<Long, WorldCell> cells;
+
+    /**
+     * The cells that are loading or loaded
+     */
+    private final Set<WorldCell> active;
+
+    /**
+     * The read cells with assets left to upload, in the order they were read
+     */
+    private final ArrayDeque<WorldCell> uploading;
+
+    /**
+     * The cells the loader thread has finished reading
+     */
+    private final ConcurrentLinkedQueue<WorldCell> read;
+
+    /**
+     * Reads cells in the background
+     */
+    private final ExecutorService loader;
+
+    /**
+     * The number of cells in the LOADING state
+     */
+    private int loadingCells;
+
+    /**
+     * The rotation and scale of every instance
+     */
+    private final Quaternionf rotation = new Quaternionf();
+    private final Vector3f scale = new Vector3f(1, 1, 1);
+
+    /**
+     * What the meshes of cells loaded from now on keep in CPU memory after upload
+     */
+    private Mesh.Residency meshResidency = Mesh.Residency.GPU_ONLY;
+
+    /**
+     * Scratch model matrix for the occluders
+     */
+    private final Matrix4f model = new Matrix4f();
+
+    /**
+     * Statistics, written by the GL thread and read by the metrics exporters
+     */
+    private volatile int loadedCellCount;
+    private volatile int pendingCellCount;
+    private volatile long residentBytes;
+    private volatile long stagedBytes;
+    private volatile long uploadedBytes;
+    private volatile long cellsLoaded;
+    private volatile long cellsUnloaded;
+    private long peakResidentBytes;
+    private double totalLoadSeconds;
+    private double maxLoadSeconds;
+
+    /**
+     * The cell load latency metric, null until registerMetrics() is called
+     */
+    private Histogram loadLatency;
+
+    /**
+     * Divides the world into cells and starts the loader thread. Nothing is loaded until update()
+     * is called.
+     * @param manifest          the world
+     * @param uploadBudgetBytes the most bytes to upload per frame. A single asset larger than the
+     *                          budget is uploaded in a frame of its own.
+     * @param resolver          maps a model's resource path to the path Assimp imports it from
+     */
+    public WorldPartition(WorldManifest manifest, long uploadBudgetBytes, Function<String, String> resolver) {
+        this.manifest = manifest;
+        this.uploadBudgetBytes = uploadBudgetBytes;
+        this.resolver = resolver;
+        this.cells = new HashMap<>();
+        this.active = new LinkedHashSet<>();
+        this.uploading = new ArrayDeque<>();
+        this.read = new ConcurrentLinkedQueue<>();
+
+        float cellSize = manifest.getCellSize();
+        for (WorldManifest.Instance instance : manifest.getInstances()) {
+            int x = (int) Math.floor(instance.getPosition().x / cellSize);
+            int z = (int) Math.floor(instance.getPosition().z / cellSize);
+            cells.computeIfAbsent(key(x, z), k -> new WorldCell(x, z, cellSize)).instances.add(instance);
+        }
+
+        // One thread, since Assimp keeps the last import error in a global
+        loader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "world-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the key of a cell in the cells map
+     */
+    private static long key(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Unload the cells the camera has left, start loading the nearest cells it has come close
+     * to, and upload staged assets within the frame's budget. Must be called on the GL thread
+     * once per frame.
+     * @param cameraPosition the camera position
+     */
+    public void update(Vector3f cameraPosition) {
+        float px = cameraPosition.x;
+        float pz = cameraPosition.z;
+
+        // Unload cells past the unload radius. Cells still being read are dropped once read.
+        Iterator<WorldCell> it = active.iterator();
+        while (it.hasNext()) {
+            WorldCell cell = it.next();
+            if (cell.distanceTo(px, pz) <= manifest.getUnloadRadius()) {
+                continue;
+            }
+            if (cell.state == WorldCell.State.LOADING) {
+                cell.cancelled = true;
+                continue;
+            }
+            if (cell.state == WorldCell.State.UPLOADING) {
+                uploading.remove(cell);
+            }
+            cell.unload();
+            cell.state = WorldCell.State.UNLOADED;
+            it.remove();
+            cellsUnloaded++;
+        }
+
+        // Queue the cells the loader thread has read for upload
+        WorldCell cell;
+        while ((cell = read.poll()) != null) {
+            loadingCells--;
+            if (cell.cancelled || cell.failure != null) {
+                if (cell.failure != null) {
+                    Logger.getLogger(WorldPartition.class.getName()).warning("Failed to load " + cell.getName() + ": " + cell.failure.getMessage());
+                }
+                cell.unload();
+                cell.state = cell.failure != null ? WorldCell.State.FAILED : WorldCell.State.UNLOADED;
+                active.remove(cell);
+                continue;
+            }
+            cell.state = WorldCell.State.UPLOADING;
+            uploading.add(cell);
+        }
+
+        startLoads(px, pz);
+        upload();
+        updateStatistics();
+    }
+
+    /**
+     * Start reading the nearest unloaded cells within the load radius, keeping at most
+     * MAX_LOADING_CELLS in flight
+     * @param px the camera's x coordinate
+     * @param pz the camera's z coordinate
+     */
+    private void startLoads(float px, float pz) {
+        if (loadingCells >= MAX_LOADING_CELLS) {
+            return;
+        }
+        float cellSize = manifest.getCellSize();
+        float radius = manifest.getLoadRadius();
+        int minX = (int) Math.floor((px - radius) / cellSize);
+        int maxX = (int) Math.floor((px + radius) / cellSize);
+        int minZ = (int) Math.floor((pz - radius) / cellSize);
+        int maxZ = (int) Math.floor((pz + radius) / cellSize);
+
+        List<WorldCell> candidates = new ArrayList<>();
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                WorldCell cell = cells.get(key(x, z));
+                if (cell != null && cell.state == WorldCell.State.UNLOADED && cell.distanceTo(px, pz) <= radius) {
+                    candidates.add(cell);
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingDouble(cell -> cell.distanceTo(px, pz)));
+
+        for (WorldCell cell : candidates) {
+            if (loadingCells >= MAX_LOADING_CELLS) {
+                break;
+            }
+            cell.state = WorldCell.State.LOADING;
+            cell.cancelled = false;
+            cell.failure = null;
+            cell.requestNanos = System.nanoTime();
+            active.add(cell);
+            loadingCells++;
+            loader.execute(() -> readCell(cell));
+        }
+    }
+
+    /**
+     * Read a cell on the loader thread and hand it back to the GL thread
+     * @param cell the cell
+     */
+    private void readCell(WorldCell cell) {
+        try {
+            cell.read(resolver);
+        } catch (RuntimeException ex) {
+            cell.failure = ex;
+        }
+        read.add(cell);
+    }
+
+    /**
+     * Upload staged assets in the order their cells were read until the frame's budget is used.
+     * The first asset is always uploaded, so an asset larger than the budget can't stall loading.
+     */
+    private void upload() {
+        long uploaded = 0;
+        while (!uploading.isEmpty()) {
+            WorldCell cell = uploading.peek();
+            if (cell.hasUploads()) {
+                if (uploaded > 0 && uploaded + cell.getNextUploadSize() > uploadBudgetBytes) {
+                    break;
+                }
+                try {
+                    uploaded += cell.uploadNext(meshResidency);
+                } catch (Exception ex) {
+                    Logger.getLogger(WorldPartition.class.getName()).warning("Failed to upload " + cell.getName() + ": " + ex.getMessage());
+                    uploading.poll();
+                    cell.unload();
+                    cell.state = WorldCell.State.FAILED;
+                    active.remove(cell);
+                    continue;
+                }
+            }
+            if (!cell.hasUploads()) {
+                uploading.poll();
+                cell.state = WorldCell.State.LOADED;
+                cellsLoaded++;
+                double seconds = (System.nanoTime() - cell.requestNanos) / 1e9;
+                totalLoadSeconds += seconds;
+                maxLoadSeconds = Math.max(maxLoadSeconds, seconds);
+                if (loadLatency != null) {
+                    loadLatency.observe(seconds);
+                }
+            }
+        }
+        uploadedBytes += uploaded;
+    }
+
+    /**
+     * Recount the cells and memory for the statistics getters
+     */
+    private void updateStatistics() {
+        int loaded = 0;
+        int pending = 0;
+        long resident = 0;
+        long staged = 0;
+        for (WorldCell cell : active) {
+            if (cell.state == WorldCell.State.LOADED) {
+                loaded++;
+            } else {
+                pending++;
+            }
+            resident += cell.getResidentBytes();
+            if (cell.state == WorldCell.State.UPLOADING) {
+                staged += cell.getStagedBytes();
+            }
+        }
+        loadedCellCount = loaded;
+        pendingCellCount = pending;
+        residentBytes = resident;
+        stagedBytes = staged;
+        peakResidentBytes = Math.max(peakResidentBytes, resident);
+    }
+
+    /**
+     * Render the loaded cells. Their meshes are submitted to the renderer, which records and
+     * draws them together.
+     * @param renderer the mesh renderer
+     * @param camera   the camera to render from
+     */
+    public void render(MeshRenderer renderer, Camera camera) {
+        for (WorldCell cell : active) {
+            if (cell.state != WorldCell.State.LOADED) {
+                continue;
+            }
+            for (WorldManifest.Instance instance : cell.instances) {
+                ModelLoader model = cell.getModel(instance.getModel());
+                if (model == null) {
+                    continue;
+                }
+                for (Mesh mesh : model.getMeshes()) {
+                    renderer.submit(mesh, instance.getPosition(), rotation, scale);
+                }
+            }
+        }
+        renderer.renderSubmitted(camera);
+    }
+
+    /**
+     * Add the meshes of the loaded cells to the coming frame as occluders
+     * @param culler the software occlusion culler
+     */
+    public void addOccluders(SoftwareOcclusionCuller culler) {
+        for (WorldCell cell : active) {
+            if (cell.state != WorldCell.State.LOADED) {
+                continue;
+            }
+            for (WorldManifest.Instance instance : cell.instances) {
+                ModelLoader loaded = cell.getModel(instance.getModel());
+                if (loaded == null) {
+                    continue;
+                }
+                model.translation(instance.getPosition()).rotate(rotation).scale(scale);
+                for (Mesh mesh : loaded.getMeshes()) {
+                    culler.addOccluder(mesh, model);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set what the meshes of cells loaded from now on keep in CPU memory after upload. Defaults
+     * to GPU_ONLY.
+     * @param meshResidency the residency policy
+     */
+    public void setMeshResidency(Mesh.Residency meshResidency) {
+        this.meshResidency = meshResidency;
+    }
+
+    /**
+     * Register the streaming statistics as metrics
+     * @param metrics the registry
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        loadLatency = metrics.histogram("world_cell_load_seconds", "Time from requesting a world cell to drawing it", LOAD_LATENCY_BUCKETS);
+        metrics.gauge("world_cells_loaded", "World cells loaded and drawn", () -> loadedCellCount);
+        metrics.gauge("world_cells_pending", "World cells being read or uploaded", () -> pendingCellCount);
+        metrics.gauge("world_bytes_resident", "Uploaded size of the loaded world cells", () -> residentBytes);
+        metrics.gauge("world_bytes_staged", "CPU memory of world cell assets waiting for upload", () -> stagedBytes);
+        metrics.counter("world_upload_bytes_total", "Bytes of world cell assets uploaded", () -> uploadedBytes);
+        metrics.counter("world_cells_unloaded_total", "World cells unloaded after the camera left them", () -> cellsUnloaded);
+    }
+
+    /**
+     * Get the number of cells that have models in them
+     * @return the cell count
+     */
+    public int getCellCount() {
+        return cells.size();
+    }
+
+    /**
+     * Get the number of cells loaded and drawn
+     * @return the cell count
+     */
+    public int getLoadedCellCount() {
+        return loadedCellCount;
+    }
+
+    /**
+     * Get the number of cells being read or uploaded
+     * @return the cell count
+     */
+    public int getPendingCellCount() {
+        return pendingCellCount;
+    }
+
+    /**
+     * Get the uploaded size of the loaded cells' assets
+     * @return the size in bytes
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * Get the CPU memory of assets read and waiting for upload
+     * @return the size in bytes
+     */
+    public long getStagedBytes() {
+        return stagedBytes;
+    }
+
+    /**
+     * Summarize the streaming statistics of the run
+     * @return the summary
+     */
+    public String getSummary() {
+        return String.format("World: %d of %d cells loaded, %d loads (mean %.0f ms, max %.0f ms), %d unloads, %.1f MB uploaded, peak %.1f MB resident",
+                loadedCellCount, cells.size(), cellsLoaded, cellsLoaded > 0 ? totalLoadSeconds * 1000 / cellsLoaded : 0.0,
+                maxLoadSeconds * 1000, cellsUnloaded, uploadedBytes / (1024.0 * 1024.0), peakResidentBytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Stop the loader thread and unload every cell
+     */
+    @Override
+    public void delete() {
+        loader.shutdownNow();
+        try {
+            if (!loader.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Logger.getLogger(WorldPartition.class.getName()).warning("World loader thread did not stop");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // Cells still being read are left alone, the loader thread may be using them
+        read.clear();
+        for (WorldCell cell : active) {
+            if (cell.state != WorldCell.State.LOADING || loader.isTerminated()) {
+                cell.unload();
+            }
+            cell.state = WorldCell.State.UNLOADED;
+        }
+        active.clear();
+        uploading.clear();
+        loadingCells = 0;
+    }
+}
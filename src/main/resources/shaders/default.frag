@@ -1,4 +1,7 @@
 #version 330 core
+#ifdef BINDLESS_TEXTURES
+#extension GL_ARB_bindless_texture : require
+#endif
 
 in VS_OUT {
     vec3 position;
@@ -7,6 +10,7 @@ in VS_OUT {
     vec3 tangent;
     vec3 bitangent;
     mat3 tbn;
+    flat int drawId;
 } vs_out;
 
 struct Material {
@@ -14,13 +18,42 @@ struct Material {
     vec3 diffuse;
     vec3 specular;
     float shininess;
-    bool hasTexture;
-    bool hasNormalMap;
     sampler2D texture;
     sampler2D normalMap;
 };
 uniform Material material;
 
+// Variants are compiled with HAS_TEXTURE, HAS_NORMAL_MAP, PER_DRAW_MATERIAL and
+// BINDLESS_TEXTURES defined as needed
+
+#ifdef PER_DRAW_MATERIAL
+// Per-draw material colours and texture array layers for indirect draws, 3 texels per draw:
+// (ambient, shininess), (diffuse, texture layer), (specular, normal map layer)
+uniform samplerBuffer perDrawMaterials;
+float textureLayer;
+float normalMapLayer;
+
+#ifdef BINDLESS_TEXTURES
+// Per-draw bindless handles of the texture array and the normal map array, 2 texels per draw
+uniform usamplerBuffer perDrawHandles;
+#define TEXTURE_ARRAY sampler2DArray(texelFetch(perDrawHandles, vs_out.drawId * 2).xy)
+#define NORMAL_MAP_ARRAY sampler2DArray(texelFetch(perDrawHandles, vs_out.drawId * 2 + 1).xy)
+#else
+uniform sampler2DArray textureArray;
+uniform sampler2DArray normalMapArray;
+#define TEXTURE_ARRAY textureArray
+#define NORMAL_MAP_ARRAY normalMapArray
+#endif
+#endif
+
+struct MaterialColors {
+    vec3 ambient;
+    vec3 diffuse;
+    vec3 specular;
+    float shininess;
+};
+MaterialColors colors;
+
 struct DirectionalLight {
     vec3 position;
     vec3 direction;
@@ -41,18 +74,34 @@ uniform vec3 viewPosition;
 
 out vec4 outColor;
 
+vec4 sampleTexture(vec2 texcoord) {
+#ifdef PER_DRAW_MATERIAL
+    return texture(TEXTURE_ARRAY, vec3(texcoord, textureLayer));
+#else
+    return texture(material.texture, texcoord);
+#endif
+}
+
+vec4 sampleNormalMap(vec2 texcoord) {
+#ifdef PER_DRAW_MATERIAL
+    return texture(NORMAL_MAP_ARRAY, vec3(texcoord, normalMapLayer));
+#else
+    return texture(material.normalMap, texcoord);
+#endif
+}
+
 vec3 calcDirLight(DirectionalLight light, vec3 normal, vec3 viewDir, vec3 color) {
     vec3 lightDir = normalize(-light.direction);
     // diffuse shading
     float diff = max(dot(normal, lightDir), 0);
     // specular shading
     vec3 reflectDir = reflect(-lightDir, normal);
-    float spec = pow(max(dot(viewDir, reflectDir), 0), material.shininess);
+    float spec = pow(max(dot(viewDir, reflectDir), 0), colors.shininess);
 
     // combine results
-    vec3 ambient = material.ambient * light.color * color;
-    vec3 diffuse = material.diffuse * light.color * diff * color;
-    vec3 specular = material.specular * light.color * spec * color;
+    vec3 ambient = colors.ambient * light.color * color;
+    vec3 diffuse = colors.diffuse * light.color * diff * color;
+    vec3 specular = colors.specular * light.color * spec * color;
     return ambient + diffuse + specular;
 }
 
@@ -62,35 +111,47 @@ vec3 calcPointLight(PointLight light, vec3 normal, vec3 fragPos, vec3 viewDir, v
     float diff = max(dot(normal, lightDir), 0);
     // specular shading
     vec3 reflectDir = reflect(-lightDir, normal);
-    float spec = pow(max(dot(viewDir, reflectDir), 0), material.shininess);
+    float spec = pow(max(dot(viewDir, reflectDir), 0), colors.shininess);
     // attenuation
     float distance = length(light.position - fragPos);
     float attenuation = 1.0 / (light.constant + light.linear * distance + light.quadratic * distance * distance);
 
     // combine results
-    vec3 ambient = material.ambient * light.color * color * attenuation;
-    vec3 diffuse = diff * material.diffuse * light.color * diff * color * attenuation;
-    vec3 specular = spec * material.specular * light.color * spec * color * attenuation;
+    vec3 ambient = colors.ambient * light.color * color * attenuation;
+    vec3 diffuse = diff * colors.diffuse * light.color * diff * color * attenuation;
+    vec3 specular = spec * colors.specular * light.color * spec * color * attenuation;
     return ambient + diffuse + specular;
 }
 
 void main() {
+#ifdef PER_DRAW_MATERIAL
+    int base = vs_out.drawId * 3;
+    vec4 ambientShininess = texelFetch(perDrawMaterials, base);
+    vec4 diffuseLayer = texelFetch(perDrawMaterials, base + 1);
+    vec4 specularLayer = texelFetch(perDrawMaterials, base + 2);
+    colors = MaterialColors(ambientShininess.rgb, diffuseLayer.rgb, specularLayer.rgb, ambientShininess.a);
+    textureLayer = diffuseLayer.a;
+    normalMapLayer = specularLayer.a;
+#else
+    colors = MaterialColors(material.ambient, material.diffuse, material.specular, material.shininess);
+#endif
+
     vec3 normal = normalize(vs_out.normal);
 
     // If material has normal map, use it instead of vertex normal
-    if (material.hasNormalMap) {
-        normal = texture(material.normalMap, vs_out.texcoord).rgb;
-        normal = normalize(normal * 2 - 1); // scale range [0, 1] to [-1, 1]
-        normal = normalize(vs_out.tbn * normal); // tangent space normal
-    }
+#ifdef HAS_NORMAL_MAP
+    normal = sampleNormalMap(vs_out.texcoord).rgb;
+    normal = normalize(normal * 2 - 1); // scale range [0, 1] to [-1, 1]
+    normal = normalize(vs_out.tbn * normal); // tangent space normal
+#endif
 
     vec3 viewDir = normalize(viewPosition - vs_out.position);
 
     // start with white, or texture if there is one
     vec3 color = vec3(1);
-    if (material.hasTexture) {
-        color = texture(material.texture, vs_out.texcoord).xyz;
-    }
+#ifdef HAS_TEXTURE
+    color = sampleTexture(vs_out.texcoord).xyz;
+#endif
 
     vec3 result = calcDirLight(dirLight, normal, viewDir, color);
     // Point light
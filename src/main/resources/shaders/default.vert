@@ -5,11 +5,17 @@ layout (location = 1) in vec3 normal;
 layout (location = 2) in vec2 texcoord;
 layout (location = 3) in vec3 tangent;
 layout (location = 4) in vec3 bitangent;
+// index of the draw in an indirect multi-draw, selected by the command's base instance
+layout (location = 5) in int drawId;
 
 uniform mat4 projection;
 uniform mat4 view;
-uniform mat4 model;
-uniform mat3 normalMatrix;
+
+// the transform of the draw, streamed into a uniform buffer
+layout (std140) uniform Transform {
+	mat4 model;
+	mat3 normalMatrix;
+};
 
 out VS_OUT {
 	vec3 position;
@@ -18,6 +24,7 @@ out VS_OUT {
 	vec3 tangent;
 	vec3 bitangent;
 	mat3 tbn;
+	flat int drawId;
 } vs_out;
 
 void main() {
@@ -41,4 +48,6 @@ void main() {
 	vec3 b = normalize(vec3(model * vec4(bitangent, 0)));
 	vec3 n = normalize(vec3(model * vec4(normal, 0)));
 	vs_out.tbn = mat3(t, b, n);
+
+	vs_out.drawId = drawId;
 }
@@ -0,0 +1,35 @@
+#version 330 core
+
+// Reduces a depth level to the next level of the hierarchical depth pyramid. Each texel keeps the
+// farthest depth of the 2x2 source texels it covers, so occlusion tests against it stay
+// conservative.
+
+// The depth buffer for the first level, the previous level for the others
+uniform sampler2D source;
+// The size of the source level in texels
+uniform vec2 sourceSize;
+
+out float depth;
+
+void main() {
+	ivec2 size = ivec2(sourceSize);
+	ivec2 base = ivec2(gl_FragCoord.xy) * 2;
+	// A source with an odd size has one more row or column than twice this level's size, the
+	// last texel of this level covers it too
+	ivec2 extent = ivec2(2);
+	if ((size.x & 1) == 1 && base.x + 3 == size.x) {
+		extent.x = 3;
+	}
+	if ((size.y & 1) == 1 && base.y + 3 == size.y) {
+		extent.y = 3;
+	}
+
+	float farthest = 0;
+	for (int y = 0; y < extent.y; y++) {
+		for (int x = 0; x < extent.x; x++) {
+			ivec2 texel = min(base + ivec2(x, y), size - 1);
+			farthest = max(farthest, texelFetch(source, texel, 0).r);
+		}
+	}
+	depth = farthest;
+}
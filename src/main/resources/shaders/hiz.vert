@@ -0,0 +1,8 @@
+#version 330 core
+
+// A triangle covering the viewport, generated from the vertex ID without vertex buffers
+
+void main() {
+	vec2 position = vec2((gl_VertexID << 1) & 2, gl_VertexID & 2);
+	gl_Position = vec4(position * 2 - 1, 0, 1);
+}
@@ -0,0 +1,41 @@
+#version 330 core
+
+// Upscales the region of the scene texture rendered at a reduced resolution to the viewport with
+// bilinear filtering, then sharpens it. The sharpening is contrast adaptive: each pixel is pushed
+// away from its four neighbours by an amount that shrinks as the neighbourhood's values approach
+// 0 or 1, so edges that are already sharp don't ring.
+
+// The scene colour
+uniform sampler2D source;
+// The size of the scene texture and of the region rendered into it, in texels
+uniform vec2 sourceSize;
+uniform vec2 renderSize;
+// The size of the viewport in pixels
+uniform vec2 outputSize;
+// The sharpening strength, 0 to 1
+uniform float sharpness;
+
+out vec4 color;
+
+// Sample the rendered region, never reading the texels outside it
+vec3 tap(vec2 uv) {
+	vec2 texel = 1.0 / sourceSize;
+	return texture(source, clamp(uv, 0.5 * texel, (renderSize - 0.5) * texel)).rgb;
+}
+
+void main() {
+	vec2 uv = gl_FragCoord.xy / outputSize * renderSize / sourceSize;
+	vec2 texel = 1.0 / sourceSize;
+	vec3 center = tap(uv);
+	vec3 north = tap(uv + vec2(0, texel.y));
+	vec3 south = tap(uv - vec2(0, texel.y));
+	vec3 east = tap(uv + vec2(texel.x, 0));
+	vec3 west = tap(uv - vec2(texel.x, 0));
+
+	vec3 lowest = min(center, min(min(north, south), min(east, west)));
+	vec3 highest = max(center, max(max(north, south), max(east, west)));
+	vec3 amount = sqrt(clamp(min(lowest, 1.0 - highest) / max(highest, vec3(1e-5)), 0.0, 1.0));
+	vec3 weight = -amount * mix(0.125, 0.2, sharpness);
+	vec3 sharpened = (center + (north + south + east + west) * weight) / (1.0 + 4.0 * weight);
+	color = vec4(clamp(sharpened, 0.0, 1.0), 1.0);
+}
@@ -0,0 +1,132 @@
+package com.alexjmohr.graphics.culling;
+
+import static org.junit.Assert.*;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests SoftwareOcclusionCuller and the OcclusionBuffer it rasterizes into, with a camera at the
+ * origin looking down -z
+ */
+public class SoftwareOcclusionCullerTest {
+
+    private SoftwareOcclusionCuller culler;
+    private OccluderMesh quad;
+    private Matrix4f viewProjection;
+
+    @Before
+    public void setUp() {
+        culler = new SoftwareOcclusionCuller(1);
+        quad = createGrid(4);
+        viewProjection = new Matrix4f().setPerspective((float) Math.toRadians(70), 16 / 9f, 0.1f, 100)
+                .lookAt(0, 0, 0, 0, 0, -1, 0, 1, 0);
+    }
+
+    @After
+    public void tearDown() {
+        culler.delete();
+    }
+
+    /**
+     * A unit quad facing +z, subdivided into a grid so it has edges shared by triangles
+     * @param cells the cells per side
+     * @return the occluder
+     */
+    private static OccluderMesh createGrid(int cells) {
+        float[] positions = new float[(cells + 1) * (cells + 1) * 3];
+        for (int y = 0; y <= cells; y++) {
+            for (int x = 0; x <= cells; x++) {
+                positions[3 * (y * (cells + 1) + x)] = x / (float) cells - 0.5f;
+                positions[3 * (y * (cells + 1) + x) + 1] = y / (float) cells - 0.5f;
+            }
+        }
+        int[] indices = new int[cells * cells * 6];
+        int i = 0;
+        for (int y = 0; y < cells; y++) {
+            for (int x = 0; x < cells; x++) {
+                int v = y * (cells + 1) + x;
+                indices[i++] = v;
+                indices[i++] = v + 1;
+                indices[i++] = v + cells + 2;
+                indices[i++] = v;
+                indices[i++] = v + cells + 2;
+                indices[i++] = v + cells + 1;
+            }
+        }
+        return new OccluderMesh(positions, indices);
+    }
+
+    /**
+     * Rasterize a row of 2x4 walls 10 units ahead of the camera
+     * @param culler the culler to rasterize with
+     */
+    private void rasterizeWall(SoftwareOcclusionCuller culler) {
+        for (int w = -8; w < 8; w++) {
+            culler.addOccluder(quad, new Matrix4f().translation(w * 2, 0, -10).scale(2, 4, 1));
+        }
+        culler.beginFrame(viewProjection);
+    }
+
+    @Test
+    public void boxBehindWallIsOccluded() {
+        rasterizeWall(culler);
+        assertTrue(culler.isOccluded(new Vector3f(-0.5f, -0.5f, -12), new Vector3f(0.5f, 0.5f, -11)));
+    }
+
+    @Test
+    public void boxInFrontOfWallIsVisible() {
+        rasterizeWall(culler);
+        assertFalse(culler.isOccluded(new Vector3f(-0.5f, -0.5f, -3), new Vector3f(0.5f, 0.5f, -2)));
+    }
+
+    @Test
+    public void boxPastWallEdgeIsVisible() {
+        rasterizeWall(culler);
+        // The box shows less than a texel above the wall's top edge at y = 2, inside the texel
+        // row whose centre the wall covers
+        assertFalse(culler.isOccluded(new Vector3f(-0.5f, 1, -12), new Vector3f(0.5f, 2.225f, -11)));
+    }
+
+    @Test
+    public void occluderCrossingNearPlaneIsClipped() {
+        // A slanted quad from behind the camera at the bottom to far ahead at the top, crossing
+        // the view axis at z = -7.5
+        OccluderMesh slope = new OccluderMesh(
+                new float[] { -10, -10, 5, 10, -10, 5, 10, 10, -20, -10, 10, -20 },
+                new int[] { 0, 1, 2, 0, 2, 3 });
+        culler.addOccluder(slope, new Matrix4f());
+        culler.beginFrame(viewProjection);
+
+        for (float depth : culler.getBuffer().getDepths()) {
+            assertFalse(Float.isNaN(depth));
+            assertTrue(depth >= 0 && depth <= 1);
+        }
+        assertTrue(culler.isOccluded(new Vector3f(-0.5f, -0.5f, -16), new Vector3f(0.5f, 0.5f, -15)));
+        assertFalse(culler.isOccluded(new Vector3f(-0.5f, -0.5f, -4), new Vector3f(0.5f, 0.5f, -3)));
+    }
+
+    @Test
+    public void boxCrossingNearPlaneIsNeverOccluded() {
+        rasterizeWall(culler);
+        // Reaching behind the camera
+        assertFalse(culler.isOccluded(new Vector3f(-0.5f, -0.5f, -12), new Vector3f(0.5f, 0.5f, 1)));
+        // Reaching in front of the near plane, but not behind the camera
+        assertFalse(culler.isOccluded(new Vector3f(-0.5f, -0.5f, -12), new Vector3f(0.5f, 0.5f, -0.05f)));
+    }
+
+    @Test
+    public void threadCountDoesNotChangeDepths() {
+        SoftwareOcclusionCuller parallel = new SoftwareOcclusionCuller(4);
+        try {
+            rasterizeWall(culler);
+            rasterizeWall(parallel);
+            assertArrayEquals(culler.getBuffer().getDepths(), parallel.getBuffer().getDepths(), 0);
+        } finally {
+            parallel.delete();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.alexjmohr.graphics.loaders;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests packing a directory with AssetArchiveWriter and reading it back with AssetArchive, and
+ * the archive path normalization of ArchiveFileIO
+ */
+public class AssetArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private Path archive;
+    private byte[] text;
+    private byte[] noise;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("assets").toPath();
+        archive = folder.getRoot().toPath().resolve("assets.pak");
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.append("v ").append(i % 7).append(" 0.5 1.0\n");
+        }
+        text = builder.toString().getBytes(StandardCharsets.UTF_8);
+        noise = new byte[1000];
+        new Random(1).nextBytes(noise);
+
+        Files.write(directory.resolve("model.obj"), text);
+        Files.createDirectories(directory.resolve("textures"));
+        Files.write(directory.resolve("textures").resolve("noise.png"), noise);
+    }
+
+    /**
+     * Copy the remaining bytes of a buffer
+     * @param buffer the buffer
+     * @return the bytes
+     */
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Overwrite a long in the packed archive's first table of contents record
+     * @param field the index of the long after the path: 0 for the offset, 1 the stored size, 2
+     *              the size
+     * @param value the new value
+     */
+    private void patchFirstRecord(int field, long value) throws IOException {
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(AssetArchive.HEADER_SIZE);
+            channel.read(header, 0);
+            long tocOffset = header.getLong(8);
+            ByteBuffer pathLength = ByteBuffer.allocate(Short.BYTES);
+            channel.read(pathLength, tocOffset);
+            long position = tocOffset + Short.BYTES + (pathLength.getShort(0) & 0xFFFF) + field * Long.BYTES;
+            ByteBuffer patch = ByteBuffer.allocate(Long.BYTES);
+            patch.putLong(value).flip();
+            channel.write(patch, position);
+        }
+    }
+
+    @Test
+    public void roundTripsStoredAndDeflatedEntries() throws IOException {
+        assertEquals(2, new AssetArchiveWriter(true).pack(directory, archive));
+
+        try (AssetArchive assets = AssetArchive.open(archive)) {
+            assertEquals(2, assets.getEntries().size());
+
+            AssetArchive.Entry model = assets.getEntry("/model.obj");
+            assertTrue(model.isCompressed());
+            assertEquals(text.length, model.getSize());
+            assertTrue(model.getStoredSize() < text.length);
+            assertArrayEquals(text, toArray(assets.read("/model.obj")));
+
+            // Random bytes don't deflate enough to be worth it
+            AssetArchive.Entry texture = assets.getEntry("/textures/noise.png");
+            assertFalse(texture.isCompressed());
+            assertEquals(noise.length, texture.getStoredSize());
+            assertArrayEquals(noise, toArray(assets.read("/textures/noise.png")));
+
+            for (AssetArchive.Entry entry : assets.getEntries()) {
+                assertEquals(0, entry.getOffset() % AssetArchive.ALIGNMENT);
+            }
+        }
+    }
+
+    @Test
+    public void storesEverythingWithoutCompression() throws IOException {
+        new AssetArchiveWriter(false).pack(directory, archive);
+
+        try (AssetArchive assets = AssetArchive.open(archive)) {
+            assertFalse(assets.getEntry("/model.obj").isCompressed());
+            assertArrayEquals(text, toArray(assets.read("/model.obj")));
+            assertArrayEquals(noise, toArray(assets.read("/textures/noise.png")));
+        }
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void missingEntryThrows() throws IOException {
+        new AssetArchiveWriter(true).pack(directory, archive);
+
+        try (AssetArchive assets = AssetArchive.open(archive)) {
+            assets.read("/missing.obj");
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedTableOfContentsIsRejected() throws IOException {
+        new AssetArchiveWriter(true).pack(directory, archive);
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 4);
+        }
+
+        AssetArchive.open(archive).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeStoredSizeIsRejected() throws IOException {
+        new AssetArchiveWriter(true).pack(directory, archive);
+        patchFirstRecord(1, -1);
+
+        AssetArchive.open(archive).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeSizeIsRejected() throws IOException {
+        new AssetArchiveWriter(true).pack(directory, archive);
+        patchFirstRecord(2, -1);
+
+        AssetArchive.open(archive).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void sizeOver2GBIsRejected() throws IOException {
+        new AssetArchiveWriter(true).pack(directory, archive);
+        patchFirstRecord(2, Integer.MAX_VALUE + 1L);
+
+        AssetArchive.open(archive).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void overflowingOffsetIsRejected() throws IOException {
+        new AssetArchiveWriter(true).pack(directory, archive);
+        patchFirstRecord(0, Long.MAX_VALUE);
+
+        AssetArchive.open(archive).close();
+    }
+
+    @Test
+    public void normalizesAssimpPaths() {
+        assertEquals("/models/bricks/bricks.mtl", ArchiveFileIO.normalize("/models/bricks/bricks.mtl"));
+        assertEquals("/models/bricks/bricks.mtl", ArchiveFileIO.normalize("models\\bricks\\bricks.mtl"));
+        assertEquals("/models/bricks/bricks.mtl", ArchiveFileIO.normalize("/models/bricks/./bricks.mtl"));
+        assertEquals("/models/textures/wall.png", ArchiveFileIO.normalize("/models/bricks/../textures//wall.png"));
+        assertEquals("/wall.png", ArchiveFileIO.normalize("../wall.png"));
+    }
+}
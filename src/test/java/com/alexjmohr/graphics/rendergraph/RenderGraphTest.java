@@ -0,0 +1,141 @@
+package com.alexjmohr.graphics.rendergraph;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.opengl.GL11.GL_RGBA8;
+import static org.lwjgl.opengl.GL30.GL_RGBA16F;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the culling, ordering and texture aliasing of RenderGraph.schedule(), which touches no GL
+ * state
+ */
+public class RenderGraphTest {
+
+    private RenderGraph graph;
+    private RenderTarget screen;
+
+    @Before
+    public void setUp() {
+        graph = new RenderGraph();
+        screen = graph.importFramebuffer("screen", null, 1280, 720);
+    }
+
+    /**
+     * Add a pass that draws nothing
+     * @param name the name
+     * @return the pass
+     */
+    private RenderPass addPass(String name) {
+        return graph.addPass(name, g -> { });
+    }
+
+    /**
+     * Get the names of the scheduled passes
+     * @return the names in execution order
+     */
+    private List<String> scheduledNames() {
+        List<String> names = new ArrayList<>();
+        for (RenderPass pass : graph.getSchedule()) {
+            names.add(pass.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void passWithUnusedOutputIsCulled() {
+        RenderTarget color = graph.createTarget("color", 1280, 720, GL_RGBA8);
+        RenderTarget debug = graph.createTarget("debug", 1280, 720, GL_RGBA8);
+        addPass("geometry").write(color);
+        addPass("debug").write(debug);
+        addPass("composite").read(color).write(screen);
+
+        graph.schedule();
+
+        assertEquals(Arrays.asList("geometry", "composite"), scheduledNames());
+    }
+
+    @Test
+    public void sideEffectPassIsKept() {
+        addPass("readback").setSideEffects();
+
+        graph.schedule();
+
+        assertEquals(Arrays.asList("readback"), scheduledNames());
+    }
+
+    @Test
+    public void declarationOrderDoesNotChangeSchedule() {
+        RenderTarget color = graph.createTarget("color", 1280, 720, GL_RGBA8);
+        RenderTarget lit = graph.createTarget("lit", 1280, 720, GL_RGBA16F);
+        addPass("composite").read(lit).write(screen);
+        addPass("lighting").read(color).write(lit);
+        addPass("geometry").write(color);
+
+        graph.schedule();
+
+        assertEquals(Arrays.asList("geometry", "lighting", "composite"), scheduledNames());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cycleThrows() {
+        RenderTarget a = graph.createTarget("a", 1280, 720, GL_RGBA8);
+        RenderTarget b = graph.createTarget("b", 1280, 720, GL_RGBA8);
+        addPass("first").read(b).write(a);
+        addPass("second").read(a).write(b);
+        addPass("composite").read(a).write(screen);
+
+        graph.schedule();
+    }
+
+    @Test
+    public void disjointCompatibleTargetsShareSlot() {
+        RenderTarget first = graph.createTarget("first", 1280, 720, GL_RGBA8);
+        RenderTarget second = graph.createTarget("second", 1280, 720, GL_RGBA8);
+        addPass("draw first").write(first);
+        addPass("composite first").read(first).write(screen);
+        addPass("draw second").write(second);
+        addPass("composite second").read(second).write(screen);
+
+        graph.schedule();
+
+        assertEquals(4, graph.getSchedule().size());
+        assertEquals(1, graph.getNumTextures());
+    }
+
+    @Test
+    public void overlappingTargetsGetSeparateSlots() {
+        RenderTarget first = graph.createTarget("first", 1280, 720, GL_RGBA8);
+        RenderTarget second = graph.createTarget("second", 1280, 720, GL_RGBA8);
+        addPass("draw first").write(first);
+        addPass("draw second").write(second);
+        addPass("composite").read(first).read(second).write(screen);
+
+        graph.schedule();
+
+        assertEquals(2, graph.getNumTextures());
+    }
+
+    @Test
+    public void incompatibleTargetsGetSeparateSlots() {
+        RenderTarget color = graph.createTarget("color", 1280, 720, GL_RGBA8);
+        RenderTarget hdr = graph.createTarget("hdr", 1280, 720, GL_RGBA16F);
+        RenderTarget half = graph.createTarget("half", 640, 360, GL_RGBA8);
+        addPass("draw color").write(color);
+        addPass("composite color").read(color).write(screen);
+        addPass("draw hdr").write(hdr);
+        addPass("composite hdr").read(hdr).write(screen);
+        addPass("draw half").write(half);
+        addPass("composite half").read(half).write(screen);
+
+        graph.schedule();
+
+        assertEquals(6, graph.getSchedule().size());
+        assertEquals(3, graph.getNumTextures());
+    }
+}